@@ -0,0 +1,57 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Creates and removes the text files that the benchmarks run on.
+ * <p>
+ * The files are written to a temporary directory, or to the directory named by the
+ * "problem3.benchmark.dir" system property, so that they can be placed on the disk to be measured.
+ *
+ * @author Jeremy Stone
+ */
+class BenchmarkFiles {
+	private static final String DIRECTORY_PROPERTY = "problem3.benchmark.dir";
+
+	private BenchmarkFiles() {
+	}
+
+	/**
+	 * Create a directory containing one generated text file.
+	 *
+	 * @param megabytes The size of the file
+	 * @param file      The generator
+	 * @return The path of the text file
+	 * @throws IOException if the file cannot be written
+	 */
+	static Path create(int megabytes, SyntheticTextFile file) throws IOException {
+		String parent = System.getProperty(DIRECTORY_PROPERTY);
+		Path directory = (parent == null) ? Files.createTempDirectory("problem3-jmh")
+				: Files.createTempDirectory(Paths.get(parent), "problem3-jmh");
+		Path path = directory.resolve("input.txt");
+		file.write(path, megabytes * 1024L * 1024L);
+		return path;
+	}
+
+	/**
+	 * Delete a text file created by {@link #create}, along with its index and directory.
+	 *
+	 * @param path The path of the text file
+	 * @throws IOException if the files cannot be deleted
+	 */
+	static void delete(Path path) throws IOException {
+		if (path == null) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path.getParent())) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.deleteIfExists(p);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how quickly a text file is indexed.
+ * <p>
+ * Each invocation builds a complete flat index with {@link ParallelLineIndexBuilder}. The score is
+ * the number of builds per second; the "megabytesScanned" counter gives the same result as MB/s,
+ * which is easier to compare across file sizes.
+ * <p>
+ * The file is written once per trial, so after the first build it is normally in the page cache,
+ * and the benchmark measures scanning rather than the disk.
+ *
+ * @author Jeremy Stone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IndexBuildBenchmark {
+	@Param({ "16", "256" })
+	public int megabytes;
+
+	@Param({ "LF", "CRLF", "MIXED" })
+	public SyntheticTextFile.LineBreaks lineBreaks;
+
+	@Param({ "ASCII", "MULTIBYTE" })
+	public SyntheticTextFile.Characters characters;
+
+	@Param({ "1", "4" })
+	public int workers;
+
+	private Path path;
+	private Path indexPath;
+	private ParallelLineIndexBuilder builder;
+
+	/**
+	 * Counts the bytes indexed, so that JMH can report them as a rate.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public double megabytesScanned;
+	}
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		path = BenchmarkFiles.create(megabytes,
+				new SyntheticTextFile(SyntheticTextFile.LineLengths.MIXED, characters, lineBreaks));
+		indexPath = TextFileLineAccess.getIndexPath(path.toString());
+		builder = new ParallelLineIndexBuilder(workers);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() throws IOException {
+		BenchmarkFiles.delete(path);
+	}
+
+	@Benchmark
+	public long buildIndex(Counters counters) throws IOException {
+		IndexBuildReport report = builder.buildIndex(path.toFile(), indexPath);
+		counters.megabytesScanned += report.getBytesScanned() / (1024.0 * 1024.0);
+		return report.getOffsetsWritten();
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteIndex() throws IOException {
+		Files.deleteIfExists(indexPath);
+	}
+}
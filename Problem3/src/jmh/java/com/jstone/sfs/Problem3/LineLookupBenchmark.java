@@ -0,0 +1,121 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the latency of reading lines from an indexed file.
+ * <ul>
+ * <li>warmLookup: one line from an {@link IndexedTextFile} that stays open, as a server would use
+ * it.</li>
+ * <li>coldLookup: one line through {@link TextFileLineAccess#extractLineFromFile}, which opens the
+ * file and its index, checks that the index is current, and closes them again, as the CLI does. The
+ * page cache is not dropped between invocations, so "cold" refers to the process, not the disk.</li>
+ * <li>batchLookup: {@value #BATCH_SIZE} random lines through {@link IndexedTextFile#getLines}.</li>
+ * <li>rangeTransfer: {@value #RANGE_SIZE} consecutive lines through
+ * {@link IndexedTextFile#transferLines}, to a scratch file.</li>
+ * </ul>
+ * The file and its index are built once per trial. Line numbers are drawn from a fixed sequence, so
+ * that every run reads the same lines.
+ *
+ * @author Jeremy Stone
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LineLookupBenchmark {
+	private static final int BATCH_SIZE = 1000;
+	private static final int RANGE_SIZE = 10000;
+
+	@Param({ "16", "256", "1024" })
+	public int megabytes;
+
+	@Param({ "MIXED", "LONG_TAIL" })
+	public SyntheticTextFile.LineLengths lineLengths;
+
+	@Param({ "LF", "CRLF" })
+	public SyntheticTextFile.LineBreaks lineBreaks;
+
+	private Path path;
+	private IndexedTextFile file;
+	private FileChannel rangeOutput;
+	private long lineCount;
+
+	/**
+	 * The random line numbers used by each thread.
+	 */
+	@State(Scope.Thread)
+	public static class LineNumbers {
+		private final Random random = new Random(1);
+		private final long[] batch = new long[BATCH_SIZE];
+
+		long next(long lineCount) {
+			return (long) (random.nextDouble() * lineCount);
+		}
+
+		long[] nextBatch(long lineCount) {
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = next(lineCount);
+			}
+			return batch;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void createFile() throws IOException {
+		path = BenchmarkFiles.create(megabytes,
+				new SyntheticTextFile(lineLengths, SyntheticTextFile.Characters.ASCII, lineBreaks));
+		file = IndexedTextFile.open(path.toString());
+		lineCount = file.getLineCount();
+		rangeOutput = FileChannel.open(path.resolveSibling("range.txt"), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFile() throws IOException {
+		try {
+			file.close();
+			rangeOutput.close();
+		} finally {
+			BenchmarkFiles.delete(path);
+		}
+	}
+
+	@Benchmark
+	public String warmLookup(LineNumbers lineNumbers) throws IOException {
+		return file.getLine(lineNumbers.next(lineCount));
+	}
+
+	@Benchmark
+	public String coldLookup(LineNumbers lineNumbers) {
+		return TextFileLineAccess.extractLineFromFile(path.toString(), lineNumbers.next(lineCount));
+	}
+
+	@Benchmark
+	public List<String> batchLookup(LineNumbers lineNumbers) throws IOException {
+		return file.getLines(lineNumbers.nextBatch(lineCount));
+	}
+
+	@Benchmark
+	public long rangeTransfer(LineNumbers lineNumbers) throws IOException {
+		long firstLine = lineNumbers.next(Math.max(lineCount - RANGE_SIZE, 1));
+		rangeOutput.position(0);
+		return file.transferLines(firstLine, firstLine + RANGE_SIZE - 1, rangeOutput);
+	}
+}
@@ -0,0 +1,141 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Generates text files for the benchmarks.
+ * <p>
+ * The content is pseudo-random but determined by the settings, so that a benchmark run can be
+ * repeated on exactly the same file. The settings cover the properties that matter to the indexer
+ * and the lookups: how long the lines are, whether the text is ASCII or multi-byte UTF-8, and which
+ * line breaks are used.
+ * <p>
+ * A file can also be generated from the command line, for trying the CLI by hand:
+ * <p>
+ * java -cp &lt;classpath&gt; com.jstone.sfs.Problem3.SyntheticTextFile &lt;path&gt; &lt;megabytes&gt;
+ * [&lt;line lengths&gt; [&lt;characters&gt; [&lt;line breaks&gt;]]]
+ *
+ * @author Jeremy Stone
+ */
+public class SyntheticTextFile {
+	/**
+	 * The distribution of line lengths, in characters.
+	 */
+	public enum LineLengths {
+		// Uniform from 0 to 40, like a log of short messages
+		SHORT,
+		// Uniform from 0 to 200
+		MIXED,
+		// Mostly short, with 1% of lines up to 4000 characters long
+		LONG_TAIL;
+
+		int next(Random random) {
+			switch (this) {
+			case SHORT:
+				return random.nextInt(41);
+			case MIXED:
+				return random.nextInt(201);
+			case LONG_TAIL:
+			default:
+				return (random.nextInt(100) == 0) ? random.nextInt(4001) : random.nextInt(61);
+			}
+		}
+	}
+
+	/**
+	 * The characters that lines are made of.
+	 */
+	public enum Characters {
+		ASCII,
+		// A mix of 1-, 2-, 3-, and 4-byte UTF-8 sequences
+		MULTIBYTE
+	}
+
+	/**
+	 * The line terminators used.
+	 */
+	public enum LineBreaks {
+		LF, CRLF, CR,
+		// Each line ends with LF, CRLF, or CR at random
+		MIXED
+	}
+
+	private static final byte[][] MULTIBYTE_CHARACTERS = { "e".getBytes(StandardCharsets.UTF_8),
+			"\u00e9".getBytes(StandardCharsets.UTF_8), "\u65e5".getBytes(StandardCharsets.UTF_8),
+			"\ud83d\ude00".getBytes(StandardCharsets.UTF_8) };
+	private static final byte[][] LINE_BREAKS = { { '\n' }, { '\r', '\n' }, { '\r' } };
+
+	private final LineLengths lineLengths;
+	private final Characters characters;
+	private final LineBreaks lineBreaks;
+
+	public SyntheticTextFile(LineLengths lineLengths, Characters characters, LineBreaks lineBreaks) {
+		this.lineLengths = lineLengths;
+		this.characters = characters;
+		this.lineBreaks = lineBreaks;
+	}
+
+	/**
+	 * Write a file of (about) the given size. The last line is cut off at the size.
+	 *
+	 * @param path The path of the file to write
+	 * @param size The size of the file in bytes
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(Path path, long size) throws IOException {
+		Random random = new Random(size ^ ((long) lineLengths.ordinal() << 8 | characters.ordinal() << 4
+				| lineBreaks.ordinal()));
+		byte[] line = new byte[4 * 4000 + 2];
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1024 * 1024)) {
+			for (long written = 0; written < size;) {
+				int length = nextLine(random, line);
+				length = (int) Math.min(length, size - written);
+				out.write(line, 0, length);
+				written += length;
+			}
+		}
+	}
+
+	/**
+	 * Generate a line, including its terminator.
+	 *
+	 * @return The length of the line in bytes
+	 */
+	private int nextLine(Random random, byte[] line) {
+		int length = 0;
+		int numCharacters = lineLengths.next(random);
+		for (int i = 0; i < numCharacters; i++) {
+			if (characters == Characters.ASCII) {
+				line[length++] = (byte) ((random.nextInt(8) == 0) ? ' ' : 'a' + random.nextInt(26));
+			} else {
+				byte[] c = MULTIBYTE_CHARACTERS[random.nextInt(MULTIBYTE_CHARACTERS.length)];
+				System.arraycopy(c, 0, line, length, c.length);
+				length += c.length;
+			}
+		}
+		byte[] lineBreak = (lineBreaks == LineBreaks.MIXED) ? LINE_BREAKS[random.nextInt(LINE_BREAKS.length)]
+				: LINE_BREAKS[lineBreaks.ordinal()];
+		System.arraycopy(lineBreak, 0, line, length, lineBreak.length);
+		return length + lineBreak.length;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println(
+					"USAGE: SyntheticTextFile <path> <megabytes> [SHORT|MIXED|LONG_TAIL [ASCII|MULTIBYTE [LF|CRLF|CR|MIXED]]]");
+			return;
+		}
+		LineLengths lineLengths = (args.length >= 3) ? LineLengths.valueOf(args[2]) : LineLengths.MIXED;
+		Characters characters = (args.length >= 4) ? Characters.valueOf(args[3]) : Characters.ASCII;
+		LineBreaks lineBreaks = (args.length >= 5) ? LineBreaks.valueOf(args[4]) : LineBreaks.LF;
+		new SyntheticTextFile(lineLengths, characters, lineBreaks).write(Paths.get(args[0]),
+				Long.parseLong(args[1]) * 1024 * 1024);
+	}
+}
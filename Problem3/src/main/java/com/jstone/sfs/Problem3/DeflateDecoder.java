@@ -0,0 +1,436 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A decoder for raw deflate data (RFC 1951) that knows its position in the compressed stream to the
+ * bit.
+ * <p>
+ * The JDK's {@link java.util.zip.Inflater} does not report where one deflate block ends and the next
+ * begins, which is what a checkpoint for random access needs: a block boundary, its bit position,
+ * and the 32 KB of output that precede it. This decoder exposes them. It decodes one block per call
+ * to {@link #decodeBlock()}, so the caller can note the state between blocks, and it can start at
+ * any block boundary given the preceding window.
+ * <p>
+ * Output is collected in a buffer that keeps the last 32 KB for back-references, and is passed to an
+ * {@link Output} whenever the buffer fills up, or when {@link #flush()} is called.
+ *
+ * @author Jeremy Stone
+ */
+class DeflateDecoder {
+	static final int WINDOW_SIZE = 32 * 1024;
+
+	private static final int MAX_MATCH = 258;
+	private static final int OUTPUT_BUFFER_SIZE = 8 * WINDOW_SIZE;
+	private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+	private static final int[] LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59,
+			67, 83, 99, 115, 131, 163, 195, 227, 258 };
+	private static final int[] LENGTH_EXTRA = { 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5,
+			5, 5, 5, 0 };
+	private static final int[] DISTANCE_BASE = { 1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385,
+			513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577 };
+	private static final int[] DISTANCE_EXTRA = { 0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10,
+			10, 11, 11, 12, 12, 13, 13 };
+	// The order in which code length code lengths are stored in a dynamic block header
+	private static final int[] CODE_LENGTH_ORDER = { 16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1,
+			15 };
+
+	private static final Huffman FIXED_LITERALS;
+	private static final Huffman FIXED_DISTANCES;
+
+	static {
+		int[] lengths = new int[288];
+		Arrays.fill(lengths, 0, 144, 8);
+		Arrays.fill(lengths, 144, 256, 9);
+		Arrays.fill(lengths, 256, 280, 7);
+		Arrays.fill(lengths, 280, 288, 8);
+		FIXED_LITERALS = new Huffman(lengths, 0, lengths.length);
+		int[] distanceLengths = new int[30];
+		Arrays.fill(distanceLengths, 5);
+		FIXED_DISTANCES = new Huffman(distanceLengths, 0, distanceLengths.length);
+	}
+
+	/**
+	 * A consumer of decompressed data.
+	 */
+	interface Output {
+		/**
+		 * @param buffer The buffer holding the data
+		 * @param from   The index of the first byte in the buffer
+		 * @param to     The index after the last byte
+		 * @param offset The offset in the decompressed stream of buffer[from]
+		 * @throws IOException if the data cannot be consumed
+		 */
+		void write(byte[] buffer, int from, int to, long offset) throws IOException;
+	}
+
+	private final FileChannel channel;
+	private final Output output;
+
+	// Compressed input
+	private final ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+	private long inputPosition;
+	private long bitBuffer = 0;
+	private int bitCount = 0;
+	// The number of zero bits added to the bit buffer after the end of the input
+	private int paddingBits = 0;
+
+	// Decompressed output, including the window of earlier output
+	private final byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+	private int bufferPosition = 0;
+	private int flushedPosition = 0;
+	// The offset in the decompressed stream of buffer[0]
+	private long bufferOffset;
+	// The number of bytes that back-references may reach
+	private long windowLength = 0;
+
+	private boolean lastBlockStored = false;
+
+	/**
+	 * @param channel      The compressed file
+	 * @param bitPosition  The position in the file, in bits, at which to start decoding
+	 * @param outputOffset The offset in the decompressed stream at which decoding starts
+	 * @param output       The consumer of decompressed data
+	 * @throws IOException if the file cannot be read
+	 */
+	DeflateDecoder(FileChannel channel, long bitPosition, long outputOffset, Output output) throws IOException {
+		this.channel = channel;
+		this.output = output;
+		this.inputPosition = bitPosition >>> 3;
+		this.bufferOffset = outputOffset;
+		input.flip();
+		int skip = (int) (bitPosition & 7);
+		if (skip > 0) {
+			ensure(skip);
+			consume(skip);
+		}
+	}
+
+	/**
+	 * Supply the data that precedes the starting point, for back-references to use. This must be
+	 * called before any data is decoded.
+	 *
+	 * @param window Up to 32 KB of decompressed data
+	 */
+	void setWindow(byte[] window) {
+		System.arraycopy(window, 0, buffer, 0, window.length);
+		bufferOffset -= window.length;
+		bufferPosition = window.length;
+		flushedPosition = bufferPosition;
+		windowLength = window.length;
+	}
+
+	/**
+	 * Forget the earlier output, as at the start of a new gzip member.
+	 */
+	void resetWindow() {
+		windowLength = 0;
+	}
+
+	/**
+	 * @return A copy of the last 32 KB (at most) of output that back-references may reach
+	 */
+	byte[] getWindow() {
+		int length = (int) Math.min(WINDOW_SIZE, windowLength);
+		return Arrays.copyOfRange(buffer, bufferPosition - length, bufferPosition);
+	}
+
+	/**
+	 * @return The position in the compressed file of the next bit to be decoded
+	 */
+	long getBitPosition() {
+		return inputPosition * 8 - (bitCount - paddingBits);
+	}
+
+	/**
+	 * @return The offset in the decompressed stream of the next byte to be output
+	 */
+	long getOutputPosition() {
+		return bufferOffset + bufferPosition;
+	}
+
+	/**
+	 * @return true if the last block decoded was a stored (uncompressed) block
+	 */
+	boolean isLastBlockStored() {
+		return lastBlockStored;
+	}
+
+	/**
+	 * @return true if all the compressed input has been consumed
+	 */
+	boolean isAtEnd() throws IOException {
+		if (bitCount > paddingBits) {
+			return false;
+		}
+		return !input.hasRemaining() && (inputPosition >= channel.size());
+	}
+
+	/**
+	 * Decode one block.
+	 *
+	 * @return true if the block was marked as the last in its stream
+	 * @throws IOException if the data is not valid deflate data, or the file cannot be read
+	 */
+	boolean decodeBlock() throws IOException {
+		boolean last = bits(1) == 1;
+		int type = bits(2);
+		lastBlockStored = (type == 0);
+		switch (type) {
+		case 0:
+			decodeStored();
+			break;
+		case 1:
+			decodeCodes(FIXED_LITERALS, FIXED_DISTANCES);
+			break;
+		case 2:
+			decodeDynamic();
+			break;
+		default:
+			throw new IOException("Invalid deflate block type");
+		}
+		return last;
+	}
+
+	/**
+	 * Pass any output that has not been consumed yet to the {@link Output}.
+	 */
+	void flush() throws IOException {
+		if (bufferPosition > flushedPosition) {
+			output.write(buffer, flushedPosition, bufferPosition, bufferOffset + flushedPosition);
+			flushedPosition = bufferPosition;
+		}
+	}
+
+	/**
+	 * Skip to the next byte boundary in the compressed stream.
+	 */
+	void alignToByte() throws IOException {
+		consume(bitCount & 7);
+	}
+
+	/**
+	 * Read a byte from the compressed stream, which must be at a byte boundary.
+	 *
+	 * @return The byte, from 0 to 255
+	 */
+	int readByte() throws IOException {
+		return bits(8);
+	}
+
+	private void decodeStored() throws IOException {
+		alignToByte();
+		int length = bits(16);
+		int complement = bits(16);
+		if (length != (~complement & 0xffff)) {
+			throw new IOException("Invalid stored block length");
+		}
+		for (int i = 0; i < length; i++) {
+			makeRoom(1);
+			buffer[bufferPosition++] = (byte) bits(8);
+		}
+		windowLength += length;
+	}
+
+	private void decodeDynamic() throws IOException {
+		int numLiterals = bits(5) + 257;
+		int numDistances = bits(5) + 1;
+		int numCodeLengths = bits(4) + 4;
+
+		int[] codeLengthLengths = new int[19];
+		for (int i = 0; i < numCodeLengths; i++) {
+			codeLengthLengths[CODE_LENGTH_ORDER[i]] = bits(3);
+		}
+		Huffman codeLengths = new Huffman(codeLengthLengths, 0, codeLengthLengths.length);
+
+		int[] lengths = new int[numLiterals + numDistances];
+		for (int i = 0; i < lengths.length;) {
+			int symbol = decodeSymbol(codeLengths);
+			if (symbol < 16) {
+				lengths[i++] = symbol;
+				continue;
+			}
+			int value = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (i == 0) {
+					throw new IOException("Invalid code length repeat");
+				}
+				value = lengths[i - 1];
+				repeat = 3 + bits(2);
+			} else if (symbol == 17) {
+				repeat = 3 + bits(3);
+			} else {
+				repeat = 11 + bits(7);
+			}
+			if (i + repeat > lengths.length) {
+				throw new IOException("Invalid code length repeat");
+			}
+			Arrays.fill(lengths, i, i + repeat, value);
+			i += repeat;
+		}
+
+		decodeCodes(new Huffman(lengths, 0, numLiterals), new Huffman(lengths, numLiterals, numDistances));
+	}
+
+	private void decodeCodes(Huffman literals, Huffman distances) throws IOException {
+		while (true) {
+			makeRoom(MAX_MATCH);
+			int symbol = decodeSymbol(literals);
+			if (symbol < 256) {
+				buffer[bufferPosition++] = (byte) symbol;
+				windowLength++;
+				continue;
+			}
+			if (symbol == 256) {
+				return;
+			}
+
+			symbol -= 257;
+			if (symbol >= LENGTH_BASE.length) {
+				throw new IOException("Invalid deflate length code");
+			}
+			int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+			int distanceSymbol = decodeSymbol(distances);
+			if (distanceSymbol >= DISTANCE_BASE.length) {
+				throw new IOException("Invalid deflate distance code");
+			}
+			int distance = DISTANCE_BASE[distanceSymbol] + bits(DISTANCE_EXTRA[distanceSymbol]);
+			if (distance > windowLength) {
+				throw new IOException("Invalid deflate distance: too far back");
+			}
+
+			// The source and destination may overlap, so copy one byte at a time.
+			int from = bufferPosition - distance;
+			for (int i = 0; i < length; i++) {
+				buffer[bufferPosition++] = buffer[from + i];
+			}
+			windowLength += length;
+		}
+	}
+
+	/**
+	 * Make room in the output buffer, passing its content to the {@link Output} and keeping only the
+	 * window, if fewer than the given number of bytes are free.
+	 */
+	private void makeRoom(int numBytes) throws IOException {
+		if (bufferPosition + numBytes <= buffer.length) {
+			return;
+		}
+		flush();
+		int keep = Math.min(WINDOW_SIZE, bufferPosition);
+		System.arraycopy(buffer, bufferPosition - keep, buffer, 0, keep);
+		bufferOffset += bufferPosition - keep;
+		bufferPosition = keep;
+		flushedPosition = keep;
+	}
+
+	private int decodeSymbol(Huffman huffman) throws IOException {
+		ensure(huffman.maxLength);
+		int entry = huffman.table[(int) bitBuffer & huffman.mask];
+		int length = entry & 0xf;
+		if (length == 0) {
+			throw new IOException("Invalid Huffman code");
+		}
+		consume(length);
+		return entry >>> 4;
+	}
+
+	private int bits(int numBits) throws IOException {
+		if (numBits == 0) {
+			return 0;
+		}
+		ensure(numBits);
+		int value = (int) (bitBuffer & ((1L << numBits) - 1));
+		consume(numBits);
+		return value;
+	}
+
+	private void consume(int numBits) throws EOFException {
+		bitBuffer >>>= numBits;
+		bitCount -= numBits;
+		if (bitCount < paddingBits) {
+			throw new EOFException("Unexpected end of compressed data");
+		}
+	}
+
+	/**
+	 * Load bytes into the bit buffer until it holds at least the given number of bits. Past the end
+	 * of the input, zero bits are added, so that a short code at the very end can still be looked up
+	 * in a table; consuming them is an error.
+	 */
+	private void ensure(int numBits) throws IOException {
+		if (bitCount >= numBits) {
+			return;
+		}
+		while (bitCount <= Long.SIZE - Byte.SIZE) {
+			if (!input.hasRemaining()) {
+				input.clear();
+				int numBytesRead = channel.read(input, inputPosition);
+				input.flip();
+				if (numBytesRead <= 0) {
+					if (bitCount >= numBits) {
+						return;
+					}
+					if (paddingBits >= Long.SIZE) {
+						throw new EOFException("Unexpected end of compressed data");
+					}
+					bitCount += Byte.SIZE;
+					paddingBits += Byte.SIZE;
+					continue;
+				}
+			}
+			bitBuffer |= (input.get() & 0xffL) << bitCount;
+			bitCount += Byte.SIZE;
+			inputPosition++;
+		}
+	}
+
+	/**
+	 * A Huffman code, decoded with a single table lookup indexed by the next bits of input.
+	 * <p>
+	 * Each table entry holds a symbol and the length of its code. Deflate stores codes starting
+	 * from their most significant bit, so a code is entered in the table bit-reversed, at every
+	 * index whose low bits match it.
+	 */
+	private static class Huffman {
+		final int[] table;
+		final int mask;
+		final int maxLength;
+
+		Huffman(int[] lengths, int from, int count) {
+			int maxLength = 1;
+			int[] lengthCounts = new int[16];
+			for (int i = 0; i < count; i++) {
+				lengthCounts[lengths[from + i]]++;
+				maxLength = Math.max(maxLength, lengths[from + i]);
+			}
+			lengthCounts[0] = 0;
+
+			int[] nextCode = new int[16];
+			for (int length = 1, code = 0; length < 16; length++) {
+				code = (code + lengthCounts[length - 1]) << 1;
+				nextCode[length] = code;
+			}
+
+			this.maxLength = maxLength;
+			this.mask = (1 << maxLength) - 1;
+			this.table = new int[1 << maxLength];
+			for (int symbol = 0; symbol < count; symbol++) {
+				int length = lengths[from + symbol];
+				if (length == 0) {
+					continue;
+				}
+				int reversed = Integer.reverse(nextCode[length]++) >>> (Integer.SIZE - length);
+				for (int i = reversed; i < table.length; i += 1 << length) {
+					table[i] = (symbol << 4) | length;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,382 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A line index for files of fixed-width records, in which (nearly) every line has the same length
+ * in bytes, including its terminator.
+ * <p>
+ * The index stores that length, R, and a table of the exceptions: the lines whose lengths differ
+ * (such as a header line, a short last line, or the empty line after a final line break). The index
+ * begins with an {@link IndexHeader}, whose first parameter is R and whose second is the number of
+ * exceptions. Each exception follows as three 8-byte numbers: its line number, and the offsets at
+ * which it begins and ends.
+ * <p>
+ * The table is read into memory when the index is opened, and the index file is closed, so a lookup
+ * does no I/O at all. A line that is not an exception begins R bytes per line after the end of the
+ * last exception before it (or after the beginning of the file), which is found by binary search
+ * of the table. With no exceptions, the offset is simply lineNumber * R.
+ * <p>
+ * A file is indexed this way only if its exceptions are few (see {@link #write}); otherwise the
+ * table would cost more than the offsets it replaces. Lines appended to the file are added by an
+ * {@link Appender}, which converts the index to a flat one if they bring too many exceptions.
+ *
+ * @author Jeremy Stone
+ */
+public class FixedWidthLineIndex implements LineIndex {
+	// A file is treated as fixed-width if no more than 1 line in this many is an exception...
+	static final int LINES_PER_EXCEPTION = 64;
+	// ...or if it has no more than this many exceptions...
+	static final int MIN_EXCEPTIONS = 4;
+	// ...but never with more than this many, which would take 1.5 MB of memory.
+	static final int MAX_EXCEPTIONS = 64 * 1024;
+
+	private static final int EXCEPTION_SIZE = 3 * Long.BYTES;
+
+	// The record length is chosen as the commonest length among this many lines at the start.
+	private static final int SAMPLE_LINES = 4096;
+
+	private final IndexHeader header;
+	private final long recordLength;
+	private final long[] exceptionLines;
+	private final long[] exceptionStarts;
+	private final long[] exceptionEnds;
+
+	/**
+	 * Read the exception table. The channel is not kept open.
+	 *
+	 * @param channel An open channel on the index file
+	 * @param header  The index file's header
+	 * @throws IOException if the table cannot be read
+	 */
+	FixedWidthLineIndex(FileChannel channel, IndexHeader header) throws IOException {
+		this(channel, header, true);
+	}
+
+	/**
+	 * @param close Whether to close the channel once the table has been read
+	 */
+	private FixedWidthLineIndex(FileChannel channel, IndexHeader header, boolean close) throws IOException {
+		this.header = header;
+		this.recordLength = header.getParameter1();
+		int numExceptions = header.getParameter2();
+		this.exceptionLines = new long[numExceptions];
+		this.exceptionStarts = new long[numExceptions];
+		this.exceptionEnds = new long[numExceptions];
+
+		ByteBuffer buffer = ByteBuffer.allocate(numExceptions * EXCEPTION_SIZE);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, IndexHeader.SIZE + buffer.position()) < 0) {
+				throw new IOException("The index file is truncated.");
+			}
+		}
+		buffer.flip();
+		for (int i = 0; i < numExceptions; i++) {
+			exceptionLines[i] = buffer.getLong();
+			exceptionStarts[i] = buffer.getLong();
+			exceptionEnds[i] = buffer.getLong();
+		}
+		if (close) {
+			channel.close();
+		}
+	}
+
+	@Override
+	public long getLineCount() {
+		return header.getLineCount();
+	}
+
+	/**
+	 * @return The length of a regular line, including its terminator
+	 */
+	public long getRecordLength() {
+		return recordLength;
+	}
+
+	/**
+	 * @return The number of lines whose lengths differ from the record length
+	 */
+	public int getExceptionCount() {
+		return exceptionLines.length;
+	}
+
+	@Override
+	public boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) {
+		if ((lineNumber < 0) || (lineNumber >= getLineCount())) {
+			return false;
+		}
+		int k = lastAtOrBefore(exceptionLines, lineNumber);
+		if ((k >= 0) && (exceptionLines[k] == lineNumber)) {
+			result.setStart(exceptionStarts[k]);
+			result.setLength((int) (exceptionEnds[k] - exceptionStarts[k]));
+			return true;
+		}
+		long start = (k < 0) ? lineNumber * recordLength
+				: exceptionEnds[k] + (lineNumber - exceptionLines[k] - 1) * recordLength;
+		result.setStart(start);
+		result.setLength((int) recordLength);
+		return true;
+	}
+
+	@Override
+	public long getLineNumber(long offset) {
+		if ((offset < 0) || (offset >= header.getDataLength())) {
+			return -1;
+		}
+		int k = lastAtOrBefore(exceptionStarts, offset);
+		if (k < 0) {
+			return offset / recordLength;
+		}
+		if (offset < exceptionEnds[k]) {
+			return exceptionLines[k];
+		}
+		return exceptionLines[k] + 1 + (offset - exceptionEnds[k]) / recordLength;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * @return The index of the last value that is not greater than the key, or -1 if there is none
+	 */
+	private static int lastAtOrBefore(long[] values, long key) {
+		int i = Arrays.binarySearch(values, key);
+		return (i >= 0) ? i : -i - 2;
+	}
+
+	/**
+	 * @return The most exceptions that a file of this many lines may have and still be indexed as
+	 *         fixed-width
+	 */
+	private static long maxExceptions(long numOffsets) {
+		return Math.min(Math.max(numOffsets / LINES_PER_EXCEPTION, MIN_EXCEPTIONS), MAX_EXCEPTIONS);
+	}
+
+	/**
+	 * Write a fixed-width index, converting it from a flat one, if the file is laid out in
+	 * fixed-width records.
+	 * <p>
+	 * The record length is taken to be the commonest length among the first lines. The flat index is
+	 * then read once, collecting the exceptions, and the conversion is abandoned as soon as there are
+	 * too many: more than 1 line in {@value #LINES_PER_EXCEPTION} (or {@value #MIN_EXCEPTIONS} lines,
+	 * for small files), or more than {@value #MAX_EXCEPTIONS} in all.
+	 *
+	 * @param flatIndexPath The path of a flat index, as written by {@link LineIndexBuilder}
+	 * @param indexPath     The path at which the fixed-width index should be created
+	 * @return true if the index was written, or false if the file is not laid out in fixed-width
+	 *         records, in which case nothing was written
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static boolean write(Path flatIndexPath, Path indexPath) throws IOException {
+		try (FileChannel flat = FileChannel.open(flatIndexPath, StandardOpenOption.READ)) {
+			IndexHeader header = IndexHeader.read(flat);
+			if ((header == null) || (header.getEncoding() != IndexEncoding.FLAT)) {
+				throw new IOException("A fixed-width index can only be converted from a versioned flat index.");
+			}
+			long numOffsets = header.getNumOffsets();
+			long recordLength = commonestLength(flat, numOffsets);
+			if ((recordLength <= 0) || (recordLength > Integer.MAX_VALUE)) {
+				return false;
+			}
+
+			ByteBuffer exceptions = ByteBuffer.allocate((int) maxExceptions(numOffsets) * EXCEPTION_SIZE);
+			OffsetReader reader = new OffsetReader(flat, IndexHeader.SIZE);
+			for (long previous = 0, i = 0; i < numOffsets; i++) {
+				long offset = reader.read();
+				if (offset - previous != recordLength) {
+					if (!exceptions.hasRemaining()) {
+						return false;
+					}
+					exceptions.putLong(i);
+					exceptions.putLong(previous);
+					exceptions.putLong(offset);
+				}
+				previous = offset;
+			}
+			exceptions.flip();
+
+			header.setEncoding(IndexEncoding.FIXED);
+			header.setParameter1((int) recordLength);
+			header.setParameter2(exceptions.remaining() / EXCEPTION_SIZE);
+			Path tempPath = LineIndexBuilder.createTempSibling(indexPath, ".tmp");
+			try (FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				header.write(output);
+				long position = IndexHeader.SIZE;
+				while (exceptions.hasRemaining()) {
+					position += output.write(exceptions, position);
+				}
+			} catch (IOException e) {
+				Files.deleteIfExists(tempPath);
+				throw e;
+			}
+			Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+	}
+
+	/**
+	 * @return The commonest line length among the first lines of a flat index, or 0 if it is empty
+	 */
+	private static long commonestLength(FileChannel flat, long numOffsets) throws IOException {
+		Map<Long, Integer> counts = new HashMap<Long, Integer>();
+		OffsetReader reader = new OffsetReader(flat, IndexHeader.SIZE);
+		long commonest = 0;
+		int maxCount = 0;
+		for (long previous = 0, i = 0; i < Math.min(numOffsets, SAMPLE_LINES); i++) {
+			long offset = reader.read();
+			int count = counts.merge(offset - previous, 1, Integer::sum);
+			if (count > maxCount) {
+				maxCount = count;
+				commonest = offset - previous;
+			}
+			previous = offset;
+		}
+		return commonest;
+	}
+
+	/**
+	 * Extends a fixed-width index to cover lines appended to its file, given the offsets at which
+	 * the new lines end, without reading the lines already indexed.
+	 * <p>
+	 * New lines whose lengths differ from the record length are added to the exception table. If
+	 * the exceptions become too many for the number of lines, the index is converted to a flat one:
+	 * the offsets of the lines so far are computed from the table and written after the header, and
+	 * the offsets of later lines follow them.
+	 */
+	static class Appender implements LineBreakScanner.Sink {
+		private final FileChannel channel;
+		private final long recordLength;
+		private long[] exceptionLines;
+		private long[] exceptionStarts;
+		private long[] exceptionEnds;
+		private int numExceptions;
+		private long linesWritten;
+		private long previousEnd;
+		// Receives the offsets once the index has been converted to a flat one
+		private OffsetWriter flat = null;
+
+		/**
+		 * @param channel   The index file, open for reading and writing
+		 * @param header    The index's header
+		 * @param firstLine The number of the first line to write: the lines from here on are
+		 *                  dropped from the index
+		 * @throws IOException if the index cannot be read
+		 */
+		Appender(FileChannel channel, IndexHeader header, long firstLine) throws IOException {
+			this.channel = channel;
+			this.recordLength = header.getParameter1();
+			FixedWidthLineIndex index = new FixedWidthLineIndex(channel, header, false);
+			numExceptions = lastAtOrBefore(index.exceptionLines, firstLine - 1) + 1;
+			exceptionLines = Arrays.copyOf(index.exceptionLines, Math.max(numExceptions, MIN_EXCEPTIONS));
+			exceptionStarts = Arrays.copyOf(index.exceptionStarts, exceptionLines.length);
+			exceptionEnds = Arrays.copyOf(index.exceptionEnds, exceptionLines.length);
+			linesWritten = firstLine;
+			if (firstLine > 0) {
+				FileSegmentOffsets last = index.getLineOffsets(firstLine - 1);
+				previousEnd = last.getStart() + last.getLength();
+			}
+		}
+
+		@Override
+		public void lineStart(long offset) throws IOException {
+			if ((flat == null) && (offset - previousEnd != recordLength)) {
+				if (numExceptions == MAX_EXCEPTIONS) {
+					convert();
+				} else {
+					if (numExceptions == exceptionLines.length) {
+						int length = Math.min(2 * numExceptions, MAX_EXCEPTIONS);
+						exceptionLines = Arrays.copyOf(exceptionLines, length);
+						exceptionStarts = Arrays.copyOf(exceptionStarts, length);
+						exceptionEnds = Arrays.copyOf(exceptionEnds, length);
+					}
+					exceptionLines[numExceptions] = linesWritten;
+					exceptionStarts[numExceptions] = previousEnd;
+					exceptionEnds[numExceptions] = offset;
+					numExceptions++;
+				}
+			}
+			if (flat != null) {
+				flat.write(offset);
+			}
+			linesWritten++;
+			previousEnd = offset;
+		}
+
+		/**
+		 * Rewrite the index after its header as a flat one, with the offsets of the lines so far.
+		 */
+		private void convert() throws IOException {
+			channel.truncate(IndexHeader.SIZE);
+			channel.position(IndexHeader.SIZE);
+			flat = new OffsetWriter(channel);
+			long end = 0;
+			for (long line = 0, k = 0; line < linesWritten; line++) {
+				if ((k < numExceptions) && (exceptionLines[(int) k] == line)) {
+					end = exceptionEnds[(int) k++];
+				} else {
+					end += recordLength;
+				}
+				flat.write(end);
+			}
+		}
+
+		/**
+		 * Write the exception table, or the rest of the offsets if the index has become a flat one.
+		 */
+		void close() throws IOException {
+			if ((flat == null) && (numExceptions > maxExceptions(linesWritten))) {
+				convert();
+			}
+			if (flat != null) {
+				flat.close();
+				return;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate(numExceptions * EXCEPTION_SIZE);
+			for (int i = 0; i < numExceptions; i++) {
+				buffer.putLong(exceptionLines[i]);
+				buffer.putLong(exceptionStarts[i]);
+				buffer.putLong(exceptionEnds[i]);
+			}
+			buffer.flip();
+			channel.truncate(IndexHeader.SIZE + buffer.limit());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, IndexHeader.SIZE + buffer.position());
+			}
+		}
+
+		/**
+		 * @return The number of lines in the index
+		 */
+		long getLinesWritten() {
+			return linesWritten;
+		}
+
+		/**
+		 * @return FIXED, or FLAT if the index has been converted
+		 */
+		IndexEncoding getEncoding() {
+			return (flat == null) ? IndexEncoding.FIXED : IndexEncoding.FLAT;
+		}
+
+		/**
+		 * Set the record length and the number of exceptions in the index's new header.
+		 */
+		void setParameters(IndexHeader header) {
+			if (flat == null) {
+				header.setParameter1((int) recordLength);
+				header.setParameter2(numExceptions);
+			}
+		}
+	}
+}
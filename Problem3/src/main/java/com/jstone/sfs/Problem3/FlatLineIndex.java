@@ -0,0 +1,211 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A line index stored as a flat array of 6-byte offsets, as written by {@link LineIndexBuilder}.
+ * <p>
+ * The offsets may be preceded by an {@link IndexHeader}, or (in the original format) not.
+ * <p>
+ * Offset n in the index is the end of line n and the beginning of line n+1. (Line 0 begins at
+ * offset 0, which is not stored.) A lookup therefore reads two adjacent offsets with one positional
+ * read. Positional reads do not move the channel's position, so any number of threads can look up
+ * lines at the same time.
+ * <p>
+ * After {@link #load()}, the offsets are read from memory instead (see {@link MappedIndexFile}).
+ *
+ * @author Jeremy Stone
+ */
+public class FlatLineIndex implements LineIndex {
+	private static final int SIZE_OF_OFFSET = TextFileLineAccess.SIZE_OF_OFFSET;
+
+	// Batch lookups read runs of the index, as long as the lines are close together.
+	private static final int MAX_GAP_BYTES = 64 * 1024;
+	private static final int MAX_RUN_BYTES = 1024 * 1024;
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal
+			.withInitial(() -> ByteBuffer.allocateDirect(2 * SIZE_OF_OFFSET));
+
+	private final FileChannel channel;
+	private final long firstOffsetPosition;
+	private final long numOffsets;
+	// The offsets, once the index has been made resident
+	private volatile MappedIndexFile resident = null;
+
+	/**
+	 * @param channel             An open channel on the index file
+	 * @param firstOffsetPosition The position of the first offset in the index file
+	 * @param numOffsets          The number of offsets in the index
+	 */
+	FlatLineIndex(FileChannel channel, long firstOffsetPosition, long numOffsets) {
+		this.channel = channel;
+		this.firstOffsetPosition = firstOffsetPosition;
+		this.numOffsets = numOffsets;
+	}
+
+	/**
+	 * Open an index file in the original, unversioned format.
+	 *
+	 * @param indexPath The index file's path
+	 * @return The open index
+	 * @throws IOException if the file cannot be opened
+	 */
+	public static FlatLineIndex open(Path indexPath) throws IOException {
+		FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+		return new FlatLineIndex(channel, 0, channel.size() / SIZE_OF_OFFSET);
+	}
+
+	/**
+	 * An empty file has an empty index, but it still has one (empty) line.
+	 */
+	@Override
+	public long getLineCount() {
+		return Math.max(numOffsets, 1);
+	}
+
+	@Override
+	public boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) throws IOException {
+		if ((lineNumber < 0) || (lineNumber >= getLineCount())) {
+			return false;
+		}
+		if (numOffsets == 0) {
+			result.setStart(0);
+			result.setLength(0);
+			return true;
+		}
+
+		MappedIndexFile memory = resident;
+		if (memory != null) {
+			long start = (lineNumber == 0) ? 0 : memory.readOffset((lineNumber - 1) * SIZE_OF_OFFSET);
+			long end = memory.readOffset(lineNumber * SIZE_OF_OFFSET);
+			result.setStart(start);
+			result.setLength((int) (end - start));
+			return true;
+		}
+
+		ByteBuffer buffer = BUFFERS.get();
+		buffer.clear();
+		long start = 0;
+		long end = 0;
+		if (lineNumber == 0) {
+			buffer.limit(SIZE_OF_OFFSET);
+			readFully(buffer, firstOffsetPosition);
+			end = OffsetWriter.readOffset(buffer, 0);
+		} else {
+			readFully(buffer, firstOffsetPosition + (lineNumber - 1) * SIZE_OF_OFFSET);
+			start = OffsetWriter.readOffset(buffer, 0);
+			end = OffsetWriter.readOffset(buffer, SIZE_OF_OFFSET);
+		}
+		result.setStart(start);
+		result.setLength((int) (end - start));
+		return true;
+	}
+
+	/**
+	 * Look up several lines, reading the index in runs that cover many lines at a time.
+	 */
+	@Override
+	public void getLineOffsets(long[] lineNumbers, FileSegmentOffsets[] results) throws IOException {
+		if (resident != null) {
+			// There is no I/O to save.
+			LineIndex.super.getLineOffsets(lineNumbers, results);
+			return;
+		}
+		int i = 0;
+		while (i < lineNumbers.length) {
+			long lineNumber = lineNumbers[i];
+			if ((lineNumber < 0) || (lineNumber >= getLineCount()) || (numOffsets == 0)) {
+				results[i] = getLineOffsets(lineNumber);
+				i++;
+				continue;
+			}
+
+			// Extend the run while the next line is in range and close enough to the previous one.
+			long firstOffset = Math.max(0, lineNumber - 1);
+			int j = i;
+			while ((j + 1 < lineNumbers.length) && (lineNumbers[j + 1] < numOffsets)
+					&& ((lineNumbers[j + 1] - lineNumbers[j]) * SIZE_OF_OFFSET <= MAX_GAP_BYTES)
+					&& ((lineNumbers[j + 1] - firstOffset + 1) * SIZE_OF_OFFSET <= MAX_RUN_BYTES)) {
+				j++;
+			}
+
+			ByteBuffer run = ByteBuffer.allocate((int) ((lineNumbers[j] - firstOffset + 1) * SIZE_OF_OFFSET));
+			readFully(run, firstOffsetPosition + firstOffset * SIZE_OF_OFFSET);
+			for (int k = i; k <= j; k++) {
+				long start = 0;
+				if (lineNumbers[k] > 0) {
+					start = OffsetWriter.readOffset(run, (int) ((lineNumbers[k] - 1 - firstOffset) * SIZE_OF_OFFSET));
+				}
+				long end = OffsetWriter.readOffset(run, (int) ((lineNumbers[k] - firstOffset) * SIZE_OF_OFFSET));
+				results[k] = new FileSegmentOffsets(start, (int) (end - start));
+			}
+			i = j + 1;
+		}
+	}
+
+	/**
+	 * Find the line that contains a byte offset, by binary search over the stored offsets. Each step
+	 * reads a single offset.
+	 * <p>
+	 * Offset n is the end of line n, so the line containing a byte is the number of stored offsets
+	 * that are not greater than the byte's offset.
+	 */
+	@Override
+	public long getLineNumber(long offset) throws IOException {
+		if (offset < 0) {
+			return -1;
+		}
+		ByteBuffer buffer = BUFFERS.get();
+		MappedIndexFile memory = resident;
+		long low = 0;
+		long high = numOffsets;
+		while (low < high) {
+			long middle = (low + high) >>> 1;
+			long middleOffset;
+			if (memory != null) {
+				middleOffset = memory.readOffset(middle * SIZE_OF_OFFSET);
+			} else {
+				buffer.clear();
+				buffer.limit(SIZE_OF_OFFSET);
+				readFully(buffer, firstOffsetPosition + middle * SIZE_OF_OFFSET);
+				middleOffset = OffsetWriter.readOffset(buffer, 0);
+			}
+			if (middleOffset <= offset) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		// The last offset is the length of the file, so offsets past it find no line.
+		return (low < numOffsets) ? low : -1;
+	}
+
+	/**
+	 * Map the offsets into memory and load them.
+	 */
+	@Override
+	public synchronized void load() throws IOException {
+		if (resident == null) {
+			resident = new MappedIndexFile(channel, firstOffsetPosition);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int numBytesRead = channel.read(buffer, position);
+			if (numBytesRead < 0) {
+				throw new IOException("The index file is truncated.");
+			}
+			position += numBytesRead;
+		}
+	}
+}
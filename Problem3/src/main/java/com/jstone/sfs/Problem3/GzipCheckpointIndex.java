@@ -0,0 +1,516 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompressor checkpoints for random access to a gzip file.
+ * <p>
+ * A checkpoint records where a deflate block begins in the compressed file (to the bit), the offset
+ * in the decompressed text at which its output begins, and the 32 KB of text that precede it, which
+ * later blocks may refer back to. Decompression can resume at any checkpoint, so reading a range of
+ * the text costs at most the decompression of the distance between two checkpoints, instead of a
+ * pass over everything before it.
+ * <p>
+ * The checkpoints are written while the file is indexed, roughly every
+ * {@link #DEFAULT_INTERVAL} bytes of text, and at the start of every gzip member. Text is read back
+ * with the JDK's {@link Inflater}, which only accepts input that starts on a byte boundary, so the
+ * compressed bits are shifted into alignment as they are read. A stored block would have to be
+ * aligned on the original byte boundaries, so the few checkpoints that are followed by a stored
+ * block at a shifted position are marked, and read back with {@link DeflateDecoder} instead.
+ * <p>
+ * Layout of the checkpoint file (big-endian): a 64-byte header with a magic number, a version, the
+ * number of checkpoints, the length and modification time of the gzip file, and the length of the
+ * text; then one fixed-size record per checkpoint, in order. A record holds the text offset (8
+ * bytes), the bit position (8), flags (4), the length of the window (4), and the window, padded to
+ * 32 KB.
+ *
+ * @author Jeremy Stone
+ */
+public class GzipCheckpointIndex implements Closeable {
+	public static final long DEFAULT_INTERVAL = 1024 * 1024;
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'G', 'Z', 'X', '\r', '\n', 0x1a, '\n' };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 24 + DeflateDecoder.WINDOW_SIZE;
+	// The checkpoint must be read with DeflateDecoder.
+	private static final int FLAG_UNALIGNED_STORED = 1;
+
+	private static final int INPUT_CHUNK_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private final FileChannel data;
+	private final long[] textOffsets;
+	private final long[] bitPositions;
+	private final int[] flags;
+	private final long textLength;
+
+	private GzipCheckpointIndex(FileChannel channel, FileChannel data, long[] textOffsets, long[] bitPositions,
+			int[] flags, long textLength) {
+		this.channel = channel;
+		this.data = data;
+		this.textOffsets = textOffsets;
+		this.bitPositions = bitPositions;
+		this.flags = flags;
+		this.textLength = textLength;
+	}
+
+	/**
+	 * Open a checkpoint file, if it describes the gzip file as it is now.
+	 *
+	 * @param checkpointPath The checkpoint file's path
+	 * @param file           The gzip file
+	 * @return The checkpoints, or null if the file does not exist or is out of date
+	 * @throws IOException if the checkpoint file cannot be read
+	 */
+	public static GzipCheckpointIndex open(Path checkpointPath, File file) throws IOException {
+		if (!Files.exists(checkpointPath)) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(checkpointPath, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || (header.getInt() != VERSION)) {
+				channel.close();
+				return null;
+			}
+			int count = header.getInt();
+			long fileLength = header.getLong();
+			long modifiedTime = header.getLong();
+			long textLength = header.getLong();
+			if ((fileLength != file.length()) || (modifiedTime != file.lastModified())
+					|| (channel.size() != HEADER_SIZE + (long) count * RECORD_SIZE)) {
+				channel.close();
+				return null;
+			}
+
+			long[] textOffsets = new long[count];
+			long[] bitPositions = new long[count];
+			int[] flags = new int[count];
+			ByteBuffer record = ByteBuffer.allocate(20);
+			for (int i = 0; i < count; i++) {
+				record.clear();
+				readFully(channel, record, HEADER_SIZE + (long) i * RECORD_SIZE);
+				textOffsets[i] = record.getLong(0);
+				bitPositions[i] = record.getLong(8);
+				flags[i] = record.getInt(16);
+			}
+
+			FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			return new GzipCheckpointIndex(channel, data, textOffsets, bitPositions, flags, textLength);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The length of the decompressed text
+	 */
+	public long getTextLength() {
+		return textLength;
+	}
+
+	/**
+	 * @return The number of checkpoints
+	 */
+	public int getCheckpointCount() {
+		return textOffsets.length;
+	}
+
+	/**
+	 * Decompress a range of the text.
+	 *
+	 * @param from The offset in the text at which to start
+	 * @param to   The offset in the text at which to stop
+	 * @param out  The consumer of the text, which receives it in order, in one or more pieces
+	 * @throws IOException if the gzip file cannot be read or decompressed
+	 */
+	public void read(long from, long to, DeflateDecoder.Output out) throws IOException {
+		to = Math.min(to, textLength);
+		while (from < to) {
+			int checkpoint = findCheckpoint(from);
+			// Stop at the next checkpoint, which may be the start of a new gzip member.
+			long spanEnd = to;
+			if ((checkpoint + 1 < textOffsets.length) && (textOffsets[checkpoint + 1] < to)) {
+				spanEnd = textOffsets[checkpoint + 1];
+			}
+			if ((flags[checkpoint] & FLAG_UNALIGNED_STORED) != 0) {
+				decode(checkpoint, from, spanEnd, out);
+			} else {
+				inflate(checkpoint, from, spanEnd, out);
+			}
+			from = spanEnd;
+		}
+	}
+
+	/**
+	 * Decompress a range of the text into an array.
+	 *
+	 * @param from   The offset in the text at which to start
+	 * @param length The number of bytes to decompress
+	 * @return The text, which is shorter than requested if the range extends past the end
+	 * @throws IOException if the gzip file cannot be read or decompressed
+	 */
+	public byte[] read(long from, int length) throws IOException {
+		byte[] result = new byte[(int) Math.max(0, Math.min(length, textLength - from))];
+		read(from, from + result.length,
+				(buffer, start, end, offset) -> System.arraycopy(buffer, start, result, (int) (offset - from),
+						end - start));
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			data.close();
+		}
+	}
+
+	/**
+	 * Find the last checkpoint at or before a text offset. Checkpoints with the same offset (for
+	 * example, at the start of an empty gzip member) are skipped over.
+	 */
+	private int findCheckpoint(long offset) {
+		int low = 0;
+		int high = textOffsets.length - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (textOffsets[middle] <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	private byte[] readWindow(int checkpoint) throws IOException {
+		long position = HEADER_SIZE + (long) checkpoint * RECORD_SIZE;
+		ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+		readFully(channel, length, position + 20);
+		ByteBuffer window = ByteBuffer.allocate(length.getInt(0));
+		readFully(channel, window, position + 24);
+		return window.array();
+	}
+
+	/**
+	 * Decompress the text from a checkpoint with the JDK's {@link Inflater}.
+	 */
+	private void inflate(int checkpoint, long from, long to, DeflateDecoder.Output out) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			byte[] window = readWindow(checkpoint);
+			if (window.length > 0) {
+				inflater.setDictionary(window);
+			}
+
+			int shift = (int) (bitPositions[checkpoint] & 7);
+			long position = bitPositions[checkpoint] >>> 3;
+			// Feed the inflater no further than the next checkpoint. Otherwise it may go on to read the
+			// header of the following block, which could be a stored block that is only valid unshifted.
+			long inputEnd = Long.MAX_VALUE;
+			if (checkpoint + 1 < bitPositions.length) {
+				inputEnd = position + ((bitPositions[checkpoint + 1] - bitPositions[checkpoint] + 7) >>> 3);
+			}
+			ByteBuffer input = ByteBuffer.allocate(INPUT_CHUNK_SIZE + 1);
+			byte[] shifted = new byte[INPUT_CHUNK_SIZE];
+			byte[] output = new byte[INPUT_CHUNK_SIZE];
+			long textOffset = textOffsets[checkpoint];
+			boolean atEnd = false;
+
+			while (textOffset < to) {
+				if (inflater.needsInput()) {
+					if (atEnd || (position >= inputEnd)) {
+						break;
+					}
+					// Read one byte more than is passed on, to supply the high bits of the last byte.
+					input.clear();
+					input.limit((int) Math.min(input.capacity(), inputEnd - position + 1));
+					int numBytesRead = 0;
+					while (input.hasRemaining()) {
+						int n = data.read(input, position + input.position());
+						if (n < 0) {
+							atEnd = true;
+							break;
+						}
+						numBytesRead += n;
+					}
+					int numBytes = (int) Math.min(atEnd ? numBytesRead : numBytesRead - 1, inputEnd - position);
+					byte[] bytes = input.array();
+					for (int i = 0; i < numBytes; i++) {
+						int next = (i + 1 < numBytesRead) ? bytes[i + 1] : 0;
+						shifted[i] = (byte) (((bytes[i] & 0xff) >>> shift) | (next << (8 - shift)));
+					}
+					inflater.setInput(shifted, 0, numBytes);
+					position += numBytes;
+				}
+
+				int numBytesInflated = inflater.inflate(output, 0, (int) Math.min(output.length, to - textOffset));
+				if ((numBytesInflated == 0) && (inflater.finished() || inflater.needsDictionary())) {
+					break;
+				}
+				long end = textOffset + numBytesInflated;
+				if (end > from) {
+					int start = (int) Math.max(0, from - textOffset);
+					int stop = (int) Math.min(numBytesInflated, to - textOffset);
+					out.write(output, start, stop, textOffset + start);
+				}
+				textOffset = end;
+			}
+			if (textOffset < to) {
+				throw new IOException("The gzip file is shorter than its index.");
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid compressed data", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Decompress the text from a checkpoint with {@link DeflateDecoder}.
+	 */
+	private void decode(int checkpoint, long from, long to, DeflateDecoder.Output out) throws IOException {
+		DeflateDecoder decoder = new DeflateDecoder(data, bitPositions[checkpoint], textOffsets[checkpoint],
+				(buffer, start, end, offset) -> {
+					long stop = Math.min(offset + end - start, to);
+					if (stop > from) {
+						int skip = (int) Math.max(0, from - offset);
+						out.write(buffer, start + skip, (int) (start + stop - offset), offset + skip);
+					}
+				});
+		decoder.setWindow(readWindow(checkpoint));
+		while (decoder.getOutputPosition() < to) {
+			if (decoder.decodeBlock() && (decoder.getOutputPosition() < to)) {
+				throw new IOException("The gzip file is shorter than its index.");
+			}
+		}
+		decoder.flush();
+	}
+
+	/**
+	 * Decompress a gzip file, passing the text to a consumer, and write a checkpoint file.
+	 * <p>
+	 * The file may contain several gzip members, one after another, as written by parallel gzip
+	 * tools. Each member's CRC and length are checked.
+	 *
+	 * @param file           The gzip file
+	 * @param checkpointPath The path at which the checkpoint file should be created
+	 * @param interval       The number of bytes of text between checkpoints
+	 * @param text           The consumer of the decompressed text
+	 * @return The length of the text
+	 * @throws IOException if the file cannot be read or is not a valid gzip file
+	 */
+	public static long build(File file, Path checkpointPath, long interval, DeflateDecoder.Output text)
+			throws IOException {
+		Path tempPath = LineIndexBuilder.createTempSibling(checkpointPath, ".tmp");
+		long textLength = 0;
+
+		try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long modifiedTime = file.lastModified();
+			long fileLength = input.size();
+			CRC32 crc = new CRC32();
+			DeflateDecoder decoder = new DeflateDecoder(input, 0, 0, (buffer, from, to, offset) -> {
+				crc.update(buffer, from, to - from);
+				text.write(buffer, from, to, offset);
+			});
+			CheckpointWriter writer = new CheckpointWriter(output);
+
+			boolean firstMember = true;
+			while (!decoder.isAtEnd()) {
+				if (!readMemberHeader(decoder, firstMember)) {
+					// Trailing data that is not a gzip member is ignored, as gzip does.
+					break;
+				}
+				firstMember = false;
+				decoder.resetWindow();
+				crc.reset();
+				long memberStart = decoder.getOutputPosition();
+				writer.add(decoder);
+
+				boolean last = false;
+				while (!last) {
+					if (decoder.getOutputPosition() - writer.getLastTextOffset() >= interval) {
+						writer.add(decoder);
+					}
+					last = decoder.decodeBlock();
+					if (decoder.isLastBlockStored() && (writer.getShift() != 0)) {
+						writer.markUnalignedStored();
+					}
+				}
+
+				decoder.flush();
+				decoder.alignToByte();
+				long expectedCrc = readInt(decoder);
+				long expectedLength = readInt(decoder);
+				if (crc.getValue() != expectedCrc) {
+					throw new IOException("CRC mismatch in gzip file");
+				}
+				if (((decoder.getOutputPosition() - memberStart) & 0xffffffffL) != expectedLength) {
+					throw new IOException("Length mismatch in gzip file");
+				}
+			}
+			if (firstMember) {
+				throw new IOException("Not a gzip file: " + file);
+			}
+			textLength = decoder.getOutputPosition();
+			writer.close(fileLength, modifiedTime, textLength);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+
+		Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+		return textLength;
+	}
+
+	/**
+	 * Read a gzip member header (RFC 1952), leaving the decoder at the start of the deflate data.
+	 *
+	 * @return false if the data does not begin with a gzip header, and it is not the first member
+	 */
+	private static boolean readMemberHeader(DeflateDecoder decoder, boolean firstMember) throws IOException {
+		if ((decoder.readByte() != 0x1f) || (decoder.readByte() != 0x8b)) {
+			if (firstMember) {
+				throw new IOException("Not a gzip file");
+			}
+			return false;
+		}
+		if (decoder.readByte() != 8) {
+			throw new IOException("Unsupported gzip compression method");
+		}
+		int flags = decoder.readByte();
+		// Modification time, extra flags, and operating system
+		for (int i = 0; i < 6; i++) {
+			decoder.readByte();
+		}
+		if ((flags & 4) != 0) {
+			int length = decoder.readByte() | (decoder.readByte() << 8);
+			for (int i = 0; i < length; i++) {
+				decoder.readByte();
+			}
+		}
+		// File name and comment, each terminated by a zero byte
+		for (int flag : new int[] { 8, 16 }) {
+			if ((flags & flag) != 0) {
+				while (decoder.readByte() != 0) {
+				}
+			}
+		}
+		if ((flags & 2) != 0) {
+			decoder.readByte();
+			decoder.readByte();
+		}
+		return true;
+	}
+
+	private static long readInt(DeflateDecoder decoder) throws IOException {
+		long value = 0;
+		for (int i = 0; i < 4; i++) {
+			value |= (long) decoder.readByte() << (8 * i);
+		}
+		return value;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The checkpoint file is truncated.");
+			}
+		}
+	}
+
+	/**
+	 * Writes checkpoint records. The latest record is held back until the next one is added, since
+	 * its flags depend on the blocks that follow it.
+	 */
+	private static class CheckpointWriter {
+		private final FileChannel channel;
+		private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		private int count = 0;
+		private boolean pending = false;
+		private long lastTextOffset = 0;
+
+		CheckpointWriter(FileChannel channel) throws IOException {
+			this.channel = channel;
+			channel.position(HEADER_SIZE);
+		}
+
+		void add(DeflateDecoder decoder) throws IOException {
+			writePending();
+			byte[] window = decoder.getWindow();
+			Arrays.fill(record.array(), (byte) 0);
+			record.clear();
+			record.putLong(decoder.getOutputPosition());
+			record.putLong(decoder.getBitPosition());
+			record.putInt(0);
+			record.putInt(window.length);
+			record.put(window);
+			lastTextOffset = decoder.getOutputPosition();
+			pending = true;
+		}
+
+		long getLastTextOffset() {
+			return lastTextOffset;
+		}
+
+		/**
+		 * @return The bit shift needed to align the latest checkpoint's data
+		 */
+		int getShift() {
+			return (int) (record.getLong(8) & 7);
+		}
+
+		void markUnalignedStored() {
+			record.putInt(16, record.getInt(16) | FLAG_UNALIGNED_STORED);
+		}
+
+		void close(long fileLength, long modifiedTime, long textLength) throws IOException {
+			writePending();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(count);
+			header.putLong(fileLength);
+			header.putLong(modifiedTime);
+			header.putLong(textLength);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		}
+
+		private void writePending() throws IOException {
+			if (!pending) {
+				return;
+			}
+			record.clear();
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+			count++;
+			pending = false;
+		}
+	}
+}
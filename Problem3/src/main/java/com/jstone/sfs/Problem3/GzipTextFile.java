@@ -0,0 +1,407 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A gzip-compressed text file opened for random access by line number.
+ * <p>
+ * Two indexes are kept next to the file: a flat line index (".idx") of offsets in the decompressed
+ * text, and a {@link GzipCheckpointIndex} (".gzx"). A line is looked up in the line index, and its
+ * bytes are decompressed starting from the nearest checkpoint before it. Both indexes are written
+ * in a single decompression pass the first time the file is opened, and are rebuilt if the file's
+ * length or modification time changes.
+ * <p>
+ * Like {@link IndexedTextFile}, an instance can serve any number of threads at once.
+ *
+ * @author Jeremy Stone
+ */
+public class GzipTextFile implements LineSource {
+	// Batch reads merge lines that are separated by no more than this many bytes of text...
+	private static final int MAX_GAP_BYTES = 256 * 1024;
+	// ...into reads of no more than this many bytes.
+	private static final int MAX_SPAN_BYTES = 8 * 1024 * 1024;
+
+	private final File file;
+	private final GzipCheckpointIndex checkpoints;
+	private final LineIndex index;
+	// Checked before the file is decompressed, if set (see setLineCache)
+	private LineCache lineCache = null;
+	private LineCache.FileKey cacheKey = null;
+
+	private GzipTextFile(File file, GzipCheckpointIndex checkpoints, LineIndex index) {
+		this.file = file;
+		this.checkpoints = checkpoints;
+		this.index = index;
+	}
+
+	/**
+	 * @param path A file's path
+	 * @return true if the path names a gzip file
+	 */
+	public static boolean isGzip(String path) {
+		return path.toLowerCase().endsWith(".gz");
+	}
+
+	/**
+	 * Open a gzip file, indexing it first if necessary.
+	 *
+	 * @param path The gzip file's path
+	 * @return The open file
+	 * @throws IOException if the file cannot be read or indexed
+	 */
+	public static GzipTextFile open(String path) throws IOException {
+		return open(path, new IndexOptions());
+	}
+
+	/**
+	 * Open a gzip file, indexing it first if necessary.
+	 * <p>
+	 * The options' {@link IndexProgress} is told when the line index (with its checkpoints) is
+	 * written.
+	 *
+	 * @param path    The gzip file's path
+	 * @param options The settings to use if the file needs to be indexed
+	 * @return The open file
+	 * @throws IOException if the file cannot be read or indexed
+	 */
+	public static GzipTextFile open(String path, IndexOptions options) throws IOException {
+		File file = new File(path);
+		Path indexPath = TextFileLineAccess.getIndexPath(path);
+		Path checkpointPath = getCheckpointPath(path);
+
+		GzipCheckpointIndex checkpoints = Files.exists(indexPath) ? GzipCheckpointIndex.open(checkpointPath, file)
+				: null;
+		Metrics.recordIndexCheck((checkpoints != null) ? Metrics.Counter.INDEX_REUSED : Metrics.Counter.INDEX_REBUILT);
+		if (checkpoints == null) {
+			options.getProgress().started("index", indexPath);
+			buildIndex(file, indexPath, checkpointPath, options.getCheckpointInterval());
+			options.getProgress().finished("index", indexPath);
+			checkpoints = GzipCheckpointIndex.open(checkpointPath, file);
+			if (checkpoints == null) {
+				throw new IOException("The file changed while it was being indexed: " + path);
+			}
+		}
+
+		try {
+			GzipTextFile gzipFile = new GzipTextFile(file, checkpoints, LineIndex.open(indexPath, options));
+			gzipFile.setLineCache(options.getLineCache());
+			return gzipFile;
+		} catch (IOException e) {
+			checkpoints.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the path of the checkpoint file for a gzip file.
+	 *
+	 * @param path The gzip file's path
+	 * @return The checkpoint file's path
+	 */
+	static Path getCheckpointPath(String path) {
+		return Paths.get(String.format("%s.gzx", path));
+	}
+
+	/**
+	 * Index a gzip file, writing its line index and its checkpoints in one pass.
+	 * <p>
+	 * The checkpoint file is written last, since its presence is what marks the indexes as complete.
+	 *
+	 * @param file           The gzip file
+	 * @param indexPath      The path at which the line index should be created
+	 * @param checkpointPath The path at which the checkpoint file should be created
+	 * @param interval       The number of bytes of text between checkpoints
+	 * @throws IOException if the file cannot be read or is not a valid gzip file
+	 */
+	static void buildIndex(File file, Path indexPath, Path checkpointPath, long interval) throws IOException {
+		IndexBuildEvent event = new IndexBuildEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		long textLength = 0;
+		long numOffsets = 0;
+		Files.deleteIfExists(checkpointPath);
+		Path tempPath = LineIndexBuilder.createTempSibling(indexPath, ".tmp");
+		Path tempCheckpointPath = LineIndexBuilder.createTempSibling(checkpointPath, ".next");
+
+		try (FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			long modifiedTime = file.lastModified();
+			output.position(IndexHeader.SIZE);
+			OffsetWriter writer = new OffsetWriter(output);
+			LineBreakScanner scanner = new LineBreakScanner(writer::write);
+
+			textLength = GzipCheckpointIndex.build(file, tempCheckpointPath, interval,
+					(buffer, from, to, offset) -> scanner.scan(ByteBuffer.wrap(buffer, from, to - from), offset - from));
+			scanner.finish();
+			if (textLength > 0) {
+				writer.write(textLength);
+			}
+			writer.close();
+			numOffsets = writer.getCount();
+
+			// The header describes the text. It is checked against the gzip file through the checkpoints.
+			IndexHeader header = new IndexHeader(IndexEncoding.FLAT, Math.max(writer.getCount(), 1), textLength);
+			header.setModifiedTime(modifiedTime);
+			header.write(output);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			Files.deleteIfExists(tempCheckpointPath);
+			throw e;
+		}
+
+		Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tempCheckpointPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING);
+		Metrics.recordIndexBuild(event, startTime, file, "gzip", textLength, numOffsets);
+	}
+
+	/**
+	 * @return The gzip file
+	 */
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of lines in the decompressed text
+	 */
+	@Override
+	public long getLineCount() {
+		return index.getLineCount();
+	}
+
+	/**
+	 * Look up the offset and length of a line in the decompressed text.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The offsets, or null if the line number is out of range
+	 * @throws IOException if the index cannot be read
+	 */
+	@Override
+	public FileSegmentOffsets getLineOffsets(long lineNumber) throws IOException {
+		return index.getLineOffsets(lineNumber);
+	}
+
+	/**
+	 * Find the line that contains a byte offset in the decompressed text.
+	 *
+	 * @param offset A byte offset in the decompressed text
+	 * @return The 0-based number of the line containing the offset, or -1 if the offset is out of
+	 *         range
+	 * @throws IOException if the index cannot be read
+	 * @see IndexedTextFile#getLineNumber(long)
+	 */
+	@Override
+	public long getLineNumber(long offset) throws IOException {
+		long startTime = Metrics.startTimer();
+		long lineNumber = index.getLineNumber(offset);
+		Metrics.recordLookup(startTime, 1);
+		return lineNumber;
+	}
+
+	/**
+	 * Extract one line.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The line, without its terminator, or null if the line number is out of range
+	 * @throws IOException if the file or its indexes cannot be read
+	 */
+	@Override
+	public String getLine(long lineNumber) throws IOException {
+		if (lineCache != null) {
+			String line = lineCache.get(cacheKey, lineNumber);
+			if (line != null) {
+				return line;
+			}
+		}
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		FileSegmentOffsets lineOffsets = index.getLineOffsets(lineNumber);
+		startTime = Metrics.recordLookup(startTime, 1);
+		if (lineOffsets == null) {
+			return null;
+		}
+		byte[] bytes = checkpoints.read(lineOffsets.getStart(), lineOffsets.getLength());
+		Metrics.recordRead(startTime, bytes.length, 0);
+		Metrics.commitLineRead(event, file, "line", 1, bytes.length);
+		String line = IndexedTextFile.decodeLine(bytes, 0, bytes.length, lineOffsets.getStart());
+		if (lineCache != null) {
+			lineCache.put(cacheKey, lineNumber, line);
+		}
+		return line;
+	}
+
+	/**
+	 * Extract one line as raw bytes. The line is decompressed into a temporary array, so unlike
+	 * {@link IndexedTextFile#getLine(long, ByteBuffer)}, this does allocate.
+	 */
+	@Override
+	public int getLine(long lineNumber, ByteBuffer target) throws IOException {
+		long startTime = Metrics.startTimer();
+		FileSegmentOffsets lineOffsets = index.getLineOffsets(lineNumber);
+		startTime = Metrics.recordLookup(startTime, 1);
+		if (lineOffsets == null) {
+			return -1;
+		}
+		byte[] bytes = checkpoints.read(lineOffsets.getStart(), lineOffsets.getLength());
+		Metrics.recordRead(startTime, bytes.length, 0);
+		int from = (lineOffsets.getStart() == 0) ? IndexedTextFile.bomLength(bytes) : 0;
+		if (target.remaining() < bytes.length - from) {
+			throw new BufferOverflowException();
+		}
+		int first = target.position();
+		target.put(bytes, from, bytes.length - from);
+		target.position(IndexedTextFile.trimTerminator(target, first, target.position()));
+		return target.position() - first;
+	}
+
+	/**
+	 * Extract several lines.
+	 * <p>
+	 * As in {@link IndexedTextFile#getLines(long[])}, the lines are read in file order, and nearby
+	 * lines are decompressed together rather than each from its own checkpoint.
+	 *
+	 * @param lineNumbers The 0-based line numbers
+	 * @return The lines, in the order requested, with null for any line number that is out of range
+	 * @throws IOException if the file or its indexes cannot be read
+	 */
+	@Override
+	public List<String> getLines(long[] lineNumbers) throws IOException {
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		long[] sorted = lineNumbers.clone();
+		Arrays.sort(sorted);
+		FileSegmentOffsets[] offsets = new FileSegmentOffsets[sorted.length];
+		index.getLineOffsets(sorted, offsets);
+		Metrics.recordLookup(startTime, sorted.length);
+		long numBytesRead = 0;
+
+		String[] lines = new String[sorted.length];
+		if (lineCache != null) {
+			// Skip reading the lines that are cached.
+			for (int k = 0; k < sorted.length; k++) {
+				if (offsets[k] != null) {
+					lines[k] = lineCache.get(cacheKey, sorted[k]);
+					if (lines[k] != null) {
+						offsets[k] = null;
+					}
+				}
+			}
+		}
+		int i = 0;
+		while (i < sorted.length) {
+			if (offsets[i] == null) {
+				i++;
+				continue;
+			}
+			long spanStart = offsets[i].getStart();
+			long spanEnd = spanStart + offsets[i].getLength();
+			int j = i;
+			while ((j + 1 < sorted.length) && (offsets[j + 1] != null)
+					&& (offsets[j + 1].getStart() - spanEnd <= MAX_GAP_BYTES)
+					&& (offsets[j + 1].getStart() + offsets[j + 1].getLength() - spanStart <= MAX_SPAN_BYTES)) {
+				j++;
+				spanEnd = Math.max(spanEnd, offsets[j].getStart() + offsets[j].getLength());
+			}
+
+			long readStartTime = Metrics.startTimer();
+			byte[] span = checkpoints.read(spanStart, (int) (spanEnd - spanStart));
+			Metrics.recordRead(readStartTime, span.length, 0);
+			numBytesRead += span.length;
+			for (int k = i; k <= j; k++) {
+				int from = (int) Math.min(offsets[k].getStart() - spanStart, span.length);
+				int length = Math.min(offsets[k].getLength(), span.length - from);
+				lines[k] = IndexedTextFile.decodeLine(span, from, length, offsets[k].getStart());
+				if (lineCache != null) {
+					lineCache.put(cacheKey, sorted[k], lines[k]);
+				}
+			}
+			i = j + 1;
+		}
+		Metrics.commitLineRead(event, file, "batch", lineNumbers.length, numBytesRead);
+
+		List<String> result = new ArrayList<String>(lineNumbers.length);
+		for (long lineNumber : lineNumbers) {
+			result.add(lines[Arrays.binarySearch(sorted, lineNumber)]);
+		}
+		return result;
+	}
+
+	/**
+	 * Decompress a range of lines, as raw bytes, to a channel. Memory use does not depend on the size
+	 * of the range.
+	 *
+	 * @param firstLine The 0-based number of the first line to copy
+	 * @param lastLine  The 0-based number of the last line to copy (inclusive)
+	 * @param target    The channel to write to
+	 * @return The number of bytes copied, or -1 if firstLine is out of range or after lastLine
+	 * @throws IOException if the file or its indexes cannot be read, or the target cannot be written
+	 * @see IndexedTextFile#transferLines
+	 */
+	@Override
+	public long transferLines(long firstLine, long lastLine, WritableByteChannel target) throws IOException {
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		lastLine = Math.min(lastLine, getLineCount() - 1);
+		FileSegmentOffsets first = index.getLineOffsets(firstLine);
+		if ((first == null) || (lastLine < firstLine)) {
+			Metrics.recordLookup(startTime, 1);
+			return -1;
+		}
+		FileSegmentOffsets last = (lastLine == firstLine) ? first : index.getLineOffsets(lastLine);
+		startTime = Metrics.recordLookup(startTime, (lastLine == firstLine) ? 1 : 2);
+		long start = first.getStart();
+		long end = last.getStart() + last.getLength();
+
+		long[] numBytes = { 0 };
+		checkpoints.read(start, end, (buffer, from, to, offset) -> {
+			// A byte order mark at the beginning of the text is skipped.
+			if ((offset == 0) && (to - from >= 3) && ((buffer[from] & 0xff) == 0xef)
+					&& ((buffer[from + 1] & 0xff) == 0xbb) && ((buffer[from + 2] & 0xff) == 0xbf)) {
+				from += 3;
+			}
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, from, to - from);
+			while (bytes.hasRemaining()) {
+				numBytes[0] += target.write(bytes);
+			}
+		});
+		Metrics.recordRead(startTime, end - start, 0);
+		Metrics.commitLineRead(event, file, "range", lastLine - firstLine + 1, end - start);
+		return numBytes[0];
+	}
+
+	/**
+	 * Check a cache before reading lines, and add the lines read to it.
+	 *
+	 * @param lineCache The cache, or null for none
+	 */
+	void setLineCache(LineCache lineCache) {
+		this.lineCache = lineCache;
+		this.cacheKey = (lineCache != null) ? lineCache.getFileKey(file) : null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			index.close();
+		} finally {
+			checkpoints.close();
+		}
+	}
+}
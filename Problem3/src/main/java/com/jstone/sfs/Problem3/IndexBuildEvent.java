@@ -0,0 +1,33 @@
+package com.jstone.sfs.Problem3;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for the building or extending of a line index.
+ *
+ * @author Jeremy Stone
+ * @see Metrics
+ */
+@Name("com.jstone.sfs.Problem3.IndexBuild")
+@Label("Index Build")
+@Category("Problem3")
+@Description("A line index was built, or extended to cover appended lines")
+class IndexBuildEvent extends jdk.jfr.Event {
+	@Label("File")
+	String path;
+
+	@Label("Method")
+	@Description("How the index was built: sequential, parallel, progressive, append, or gzip")
+	String method;
+
+	@Label("Bytes Scanned")
+	@DataAmount
+	long bytesScanned;
+
+	@Label("Lines Found")
+	long linesFound;
+}
@@ -0,0 +1,43 @@
+package com.jstone.sfs.Problem3;
+
+import lombok.Getter;
+
+/**
+ * Timing and size figures for one construction of a line index.
+ *
+ * @author Jeremy Stone
+ */
+@Getter
+public class IndexBuildReport {
+	private final int workers;
+	private final long bytesScanned;
+	private final long offsetsWritten;
+	private final long elapsedNanos;
+
+	/**
+	 * @param workers        The number of worker threads used
+	 * @param bytesScanned   The size of the text file
+	 * @param offsetsWritten The number of offsets in the index
+	 * @param elapsedNanos   The time taken to build the index, in nanoseconds
+	 */
+	public IndexBuildReport(int workers, long bytesScanned, long offsetsWritten, long elapsedNanos) {
+		this.workers = workers;
+		this.bytesScanned = bytesScanned;
+		this.offsetsWritten = offsetsWritten;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return The elapsed time in seconds
+	 */
+	public double getSeconds() {
+		return elapsedNanos / 1e9;
+	}
+
+	/**
+	 * @return The scanning throughput in megabytes (2^20 bytes) per second
+	 */
+	public double getMegabytesPerSecond() {
+		return (elapsedNanos > 0) ? (bytesScanned / (1024.0 * 1024.0)) / getSeconds() : 0;
+	}
+}
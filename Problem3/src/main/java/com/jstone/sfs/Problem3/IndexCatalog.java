@@ -0,0 +1,439 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * A bounded pool of open text files, for serving lookups across many files.
+ * <p>
+ * Opening a file costs a check of its index against the file, and keeps two or three file
+ * descriptors open: the text file and its index, and for a gzip file, its checkpoints. (A search or
+ * key lookup on a file also opens its trigram or key index, on first use, and keeps it open with
+ * the file. These descriptors are not counted against the cap, so a catalog that serves such
+ * lookups should be given headroom for them.) A catalog opens each file on first use and keeps it
+ * open for later lookups, up to a cap on the number of descriptors and a budget for the total size
+ * of the open indexes (which is what the page cache must hold for lookups to be served from memory,
+ * and what is mapped if the files are opened with {@link IndexOptions#isResident()} set). When
+ * either limit is exceeded, the files that were least recently used are closed.
+ * <p>
+ * A file is used through a {@link Lease}, which must be closed when the caller has finished with
+ * it:
+ *
+ * <pre>
+ * try (IndexCatalog.Lease lease = catalog.acquire(path)) {
+ * 	String line = lease.getFile().getLine(lineNumber);
+ * }
+ * </pre>
+ *
+ * Threads that acquire the same file at the same time share one open instance, and if the file has
+ * to be opened (or indexed), it is opened once while the others wait. A file is never closed while
+ * it is leased. If the descriptor cap has been reached and every open file is leased, acquiring a
+ * new file waits until a lease is released, so the cap is never exceeded; a thread must therefore
+ * not hold more leases at once than the cap allows. The index budget is a target: leased files stay
+ * open even if they exceed it.
+ * <p>
+ * If a file's length or modification time has changed since it was opened, the next acquire opens
+ * it again (which updates its index), and the old instance is closed when its last lease is
+ * released.
+ *
+ * @author Jeremy Stone
+ */
+public class IndexCatalog implements Closeable {
+	private final int maxDescriptors;
+	private final long maxIndexBytes;
+	private final IndexOptions options;
+
+	// Guards the fields below. Entries are kept in order of use, least recent first.
+	private final Object lock = new Object();
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private int openDescriptors = 0;
+	private long openIndexBytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param maxDescriptors The maximum number of file descriptors to keep open, at least 3
+	 * @param maxIndexBytes  The total size of the open indexes at which files are closed
+	 */
+	public IndexCatalog(int maxDescriptors, long maxIndexBytes) {
+		this(maxDescriptors, maxIndexBytes, new IndexOptions());
+	}
+
+	/**
+	 * @param maxDescriptors The maximum number of file descriptors to keep open, at least 3
+	 * @param maxIndexBytes  The total size of the open indexes at which files are closed
+	 * @param options        The settings used to open files, and to index them if necessary
+	 */
+	public IndexCatalog(int maxDescriptors, long maxIndexBytes, IndexOptions options) {
+		if (maxDescriptors < 3) {
+			throw new IllegalArgumentException("At least 3 descriptors are needed to open a file.");
+		}
+		this.maxDescriptors = maxDescriptors;
+		this.maxIndexBytes = maxIndexBytes;
+		this.options = options;
+	}
+
+	/**
+	 * Get a file from the catalog, opening it if necessary.
+	 *
+	 * @param path The file's path
+	 * @return A lease on the open file, which must be closed
+	 * @throws IOException if the file cannot be opened or indexed (in which case every thread waiting
+	 *                     for it fails too, and the next acquire tries again)
+	 */
+	public Lease acquire(String path) throws IOException {
+		String key = new File(path).getAbsolutePath();
+		File file = new File(key);
+		int descriptors = GzipTextFile.isGzip(key) ? 3 : 2;
+		Entry entry = null;
+		boolean opener = false;
+
+		while (entry == null) {
+			// Files removed to make room, which are closed outside the lock
+			List<Entry> closing = new ArrayList<Entry>();
+			synchronized (lock) {
+				while (true) {
+					if (closed) {
+						throw new IOException("The catalog is closed.");
+					}
+					Entry existing = entries.get(key);
+					if ((existing != null) && existing.isOpen()
+							&& ((existing.length != file.length()) || (existing.modifiedTime != file.lastModified()))) {
+						if (remove(existing)) {
+							closing.add(existing);
+						}
+						invalidations++;
+						existing = null;
+					}
+					if (existing != null) {
+						hits++;
+						entry = existing;
+						break;
+					}
+					closing.addAll(evict(descriptors, 0));
+					if (openDescriptors + descriptors <= maxDescriptors) {
+						misses++;
+						entry = new Entry(key, descriptors);
+						entries.put(key, entry);
+						openDescriptors += descriptors;
+						opener = true;
+						break;
+					}
+					if (!closing.isEmpty()) {
+						// Close what was evicted before waiting, so that it does not stay open meanwhile.
+						break;
+					}
+					// Every open file is leased.
+					waitForRelease();
+				}
+				if (entry != null) {
+					entry.refCount++;
+				}
+			}
+			// The files are closed before the new one is opened, so the cap is never exceeded.
+			closeAll(closing);
+		}
+
+		if (opener) {
+			open(entry, file);
+		} else {
+			try {
+				entry.awaitOpen();
+			} catch (IOException e) {
+				// The shared open failed: give back this thread's share of the entry.
+				returnEntry(entry);
+				throw e;
+			}
+		}
+		return new Lease(entry);
+	}
+
+	/**
+	 * @return The catalog's statistics
+	 */
+	public Stats getStats() {
+		synchronized (lock) {
+			return new Stats(hits, misses, evictions, invalidations, entries.size(), openDescriptors,
+					openIndexBytes);
+		}
+	}
+
+	/**
+	 * Close every file that is not leased. Leased files are closed when they are released.
+	 */
+	@Override
+	public void close() throws IOException {
+		List<Entry> closing = new ArrayList<Entry>();
+		synchronized (lock) {
+			closed = true;
+			for (Entry entry : new ArrayList<Entry>(entries.values())) {
+				if (remove(entry)) {
+					closing.add(entry);
+				}
+			}
+			lock.notifyAll();
+		}
+		closeAll(closing);
+	}
+
+	/**
+	 * Open a new entry's file, outside the lock, so that other files can be acquired meanwhile.
+	 */
+	private void open(Entry entry, File file) throws IOException {
+		long length = file.length();
+		long modifiedTime = file.lastModified();
+		LineSource source = null;
+		long indexBytes = 0;
+		try {
+			source = LineSource.open(entry.path, options);
+			Path indexPath = TextFileLineAccess.getIndexPath(entry.path);
+			indexBytes = Files.exists(indexPath) ? Files.size(indexPath) : 0;
+		} catch (IOException | RuntimeException e) {
+			// Threads waiting for the file give back their shares when they see the failure, and the
+			// last share frees the entry's descriptors.
+			synchronized (lock) {
+				remove(entry);
+			}
+			entry.setSource(null, e);
+			returnEntry(entry);
+			throw e;
+		}
+
+		List<Entry> closing;
+		synchronized (lock) {
+			entry.length = length;
+			entry.modifiedTime = modifiedTime;
+			entry.indexBytes = indexBytes;
+			openIndexBytes += indexBytes;
+			closing = evict(0, 0);
+		}
+		entry.setSource(source, null);
+		closeAll(closing);
+	}
+
+	/**
+	 * Remove least recently used files that are not leased until there is room for a new file.
+	 * Must be called with the lock held.
+	 *
+	 * @return The files removed, which the caller must close after releasing the lock
+	 */
+	private List<Entry> evict(int newDescriptors, long newIndexBytes) {
+		List<Entry> closing = new ArrayList<Entry>();
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext() && ((openDescriptors + newDescriptors > maxDescriptors)
+				|| (openIndexBytes + newIndexBytes > maxIndexBytes))) {
+			Entry entry = iterator.next().getValue();
+			if ((entry.refCount == 0) && entry.isOpen()) {
+				iterator.remove();
+				release(entry);
+				evictions++;
+				closing.add(entry);
+			}
+		}
+		return closing;
+	}
+
+	/**
+	 * Remove an entry from the catalog. Must be called with the lock held.
+	 *
+	 * @return true if the entry is not leased, so the caller must close it
+	 */
+	private boolean remove(Entry entry) {
+		if (entries.get(entry.path) == entry) {
+			entries.remove(entry.path);
+			release(entry);
+		}
+		return entry.refCount == 0;
+	}
+
+	/**
+	 * Account for the removal of an entry. Its descriptors are counted until it is closed, if it is
+	 * leased. Must be called with the lock held.
+	 */
+	private void release(Entry entry) {
+		entry.removed = true;
+		openIndexBytes -= entry.indexBytes;
+		if (entry.refCount == 0) {
+			openDescriptors -= entry.descriptors;
+		}
+	}
+
+	private void waitForRelease() throws IOException {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a file to be released", e);
+		}
+	}
+
+	/**
+	 * Called when a lease is closed, or when a thread that shared a file's opening gives up its share
+	 * because the opening failed.
+	 */
+	private void returnEntry(Entry entry) {
+		List<Entry> closing;
+		synchronized (lock) {
+			entry.refCount--;
+			if (entry.removed && (entry.refCount == 0)) {
+				openDescriptors -= entry.descriptors;
+				closing = evict(0, 0);
+				closing.add(entry);
+			} else {
+				closing = evict(0, 0);
+			}
+			lock.notifyAll();
+		}
+		closeAll(closing);
+	}
+
+	/**
+	 * Close files that have been removed from the catalog. Must be called without the lock held,
+	 * since closing a file may block.
+	 */
+	private static void closeAll(List<Entry> closing) {
+		for (Entry entry : closing) {
+			entry.closeSource();
+		}
+	}
+
+	/**
+	 * One file in the catalog.
+	 */
+	private static class Entry {
+		final String path;
+		final int descriptors;
+		// Guarded by the catalog's lock
+		int refCount = 0;
+		boolean removed = false;
+		long length = -1;
+		long modifiedTime = -1;
+		long indexBytes = 0;
+		// Guarded by this entry
+		private LineSource source = null;
+		private Exception failure = null;
+		private boolean ready = false;
+
+		Entry(String path, int descriptors) {
+			this.path = path;
+			this.descriptors = descriptors;
+		}
+
+		synchronized boolean isOpen() {
+			return ready && (source != null);
+		}
+
+		synchronized void setSource(LineSource source, Exception failure) {
+			this.source = source;
+			this.failure = failure;
+			this.ready = true;
+			notifyAll();
+		}
+
+		synchronized LineSource awaitOpen() throws IOException {
+			while (!ready) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for a file to be opened", e);
+				}
+			}
+			if (source == null) {
+				throw new IOException("The file could not be opened: " + path, failure);
+			}
+			return source;
+		}
+
+		void closeSource() {
+			LineSource closing;
+			synchronized (this) {
+				closing = source;
+				source = null;
+			}
+			if (closing != null) {
+				try {
+					closing.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A caller's use of an open file. The file stays open at least until the lease is closed.
+	 */
+	public class Lease implements Closeable {
+		private final Entry entry;
+		private boolean released = false;
+
+		private Lease(Entry entry) {
+			this.entry = entry;
+		}
+
+		/**
+		 * @return The open file
+		 * @throws IOException if the file could not be opened
+		 */
+		public LineSource getFile() throws IOException {
+			return entry.awaitOpen();
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (!released) {
+				released = true;
+				returnEntry(entry);
+			}
+		}
+	}
+
+	/**
+	 * A snapshot of a catalog's statistics.
+	 */
+	@Getter
+	public static class Stats {
+		// Acquires that found the file already open (or being opened)
+		private final long hits;
+		// Acquires that had to open the file
+		private final long misses;
+		// Files closed to stay within the limits
+		private final long evictions;
+		// Files reopened because they had changed
+		private final long invalidations;
+		private final int openFiles;
+		private final int openDescriptors;
+		private final long openIndexBytes;
+
+		Stats(long hits, long misses, long evictions, long invalidations, int openFiles, int openDescriptors,
+				long openIndexBytes) {
+			this.hits = hits;
+			this.misses = misses;
+			this.evictions = evictions;
+			this.invalidations = invalidations;
+			this.openFiles = openFiles;
+			this.openDescriptors = openDescriptors;
+			this.openIndexBytes = openIndexBytes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("hits=%d misses=%d evictions=%d invalidations=%d files=%d descriptors=%d indexBytes=%d",
+					hits, misses, evictions, invalidations, openFiles, openDescriptors, openIndexBytes);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.jstone.sfs.Problem3;
+
+/**
+ * The ways in which line offsets can be stored in an index file.
+ *
+ * @author Jeremy Stone
+ */
+public enum IndexEncoding {
+	/**
+	 * A 6-byte offset for every line. See {@link FlatLineIndex}.
+	 */
+	FLAT(1),
+
+	/**
+	 * An absolute offset every K lines, with bit-packed line lengths in between. See
+	 * {@link SparseLineIndex}.
+	 */
+	SPARSE(2),
+
+	/**
+	 * A record length, and a table of the lines whose lengths differ from it. See
+	 * {@link FixedWidthLineIndex}.
+	 */
+	FIXED(3);
+
+	private final int code;
+
+	IndexEncoding(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * @return The code that identifies this encoding in an index header
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @param code A code read from an index header
+	 * @return The encoding identified by the code, or null if the code is unknown
+	 */
+	public static IndexEncoding fromCode(int code) {
+		for (IndexEncoding encoding : values()) {
+			if (encoding.code == code) {
+				return encoding;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,232 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The header at the beginning of a versioned index file.
+ * <p>
+ * Layout (64 bytes, big-endian):
+ * <ul>
+ * <li>0: magic number (8 bytes)
+ * <li>8: format version (4 bytes)
+ * <li>12: encoding code (4 bytes), see {@link IndexEncoding}
+ * <li>16: number of lines (8 bytes)
+ * <li>24: length of the indexed text file (8 bytes)
+ * <li>32: first encoding parameter (4 bytes)
+ * <li>36: second encoding parameter (4 bytes)
+ * <li>40: modification time of the indexed file, in milliseconds since the epoch (8 bytes)
+ * <li>48: fingerprint of the indexed file (8 bytes), see {@link #fingerprint}
+ * <li>56-63: reserved, zero
+ * </ul>
+ * <p>
+ * The modification time and fingerprint were added in version 2. They allow an index to be checked
+ * against its file when it is opened, and extended if the file has only grown. See
+ * {@link TextFileLineAccess#updateIndex}.
+ * <p>
+ * The original index format has no header, and begins directly with a 6-byte offset. The magic
+ * number begins with 0x89, so an unversioned index could only be mistaken for a versioned one if
+ * the indexed file were over 100 terabytes long.
+ *
+ * @author Jeremy Stone
+ */
+@Getter
+@Setter
+public class IndexHeader {
+	public static final int SIZE = 64;
+	public static final int VERSION = 2;
+
+	// The number of bytes at each end of the indexed file that are covered by the fingerprint
+	static final int FINGERPRINT_LENGTH = 64 * 1024;
+	// The number and size of the samples that the fingerprint takes from between the two ends
+	static final int FINGERPRINT_SAMPLES = 16;
+	static final int SAMPLE_LENGTH = 4 * 1024;
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'L', 'I', 'D', 'X', '\r', '\n', 0x1a };
+
+	private int version = VERSION;
+	private IndexEncoding encoding;
+	private long lineCount;
+	private long dataLength;
+	private int parameter1;
+	private int parameter2;
+	private long modifiedTime;
+	private long fingerprint;
+
+	/**
+	 * @param encoding   The encoding of the offsets following the header
+	 * @param lineCount  The number of lines in the indexed file
+	 * @param dataLength The length of the indexed file in bytes
+	 */
+	public IndexHeader(IndexEncoding encoding, long lineCount, long dataLength) {
+		this.encoding = encoding;
+		this.lineCount = lineCount;
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Create a header for an index of a text file, recording the file's identity.
+	 *
+	 * @param encoding     The encoding of the offsets following the header
+	 * @param lineCount    The number of lines in the indexed file
+	 * @param data         An open channel on the text file
+	 * @param dataLength   The number of bytes of the text file that were indexed
+	 * @param modifiedTime The modification time of the text file before it was indexed
+	 * @return The header
+	 * @throws IOException if the text file cannot be read
+	 */
+	public static IndexHeader describe(IndexEncoding encoding, long lineCount, FileChannel data, long dataLength,
+			long modifiedTime) throws IOException {
+		IndexHeader header = new IndexHeader(encoding, lineCount, dataLength);
+		header.setModifiedTime(modifiedTime);
+		header.setFingerprint(fingerprint(data, dataLength));
+		return header;
+	}
+
+	/**
+	 * Compute a checksum of a prefix of a text file, from its first and last
+	 * {@value #FINGERPRINT_LENGTH} bytes and {@value #FINGERPRINT_SAMPLES} samples of
+	 * {@value #SAMPLE_LENGTH} bytes spread evenly between them.
+	 * <p>
+	 * This is used to recognize a file that has had lines appended, or has only been touched: the
+	 * prefix that was indexed still has the same bytes in the same places. The checksum reads at most
+	 * 192 KB, however long the file is, so it cannot see every byte: a change that keeps the length
+	 * of the file and falls between the samples goes unnoticed. Files that are edited in place, rather
+	 * than appended to or rewritten, should have their indexes deleted.
+	 *
+	 * @param data       An open channel on the text file
+	 * @param dataLength The length of the prefix
+	 * @return The checksum, or -1 if the file is shorter than the prefix
+	 * @throws IOException if the file cannot be read
+	 */
+	public static long fingerprint(FileChannel data, long dataLength) throws IOException {
+		CRC32 crc = new CRC32();
+		long headLength = Math.min(dataLength, FINGERPRINT_LENGTH);
+		if (!update(crc, data, 0, headLength)) {
+			return -1;
+		}
+		long middle = dataLength - 2L * FINGERPRINT_LENGTH;
+		for (int i = 0; (i < FINGERPRINT_SAMPLES) && (middle > 0); i++) {
+			long position = FINGERPRINT_LENGTH + middle / FINGERPRINT_SAMPLES * i;
+			if (!update(crc, data, position, Math.min(SAMPLE_LENGTH, dataLength - position))) {
+				return -1;
+			}
+		}
+		if (!update(crc, data, dataLength - headLength, headLength)) {
+			return -1;
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Add a byte range of a file to a checksum.
+	 *
+	 * @return false if the file ends before the range does
+	 */
+	private static boolean update(CRC32 crc, FileChannel data, long position, long length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		while (buffer.hasRemaining()) {
+			if (data.read(buffer, position + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		crc.update(buffer.array());
+		return true;
+	}
+
+	/**
+	 * @return The number of offsets that a flat index with this header contains
+	 */
+	public long getNumOffsets() {
+		return (dataLength == 0) ? 0 : lineCount;
+	}
+
+	/**
+	 * @return The size that an index file with this header should have
+	 */
+	public long getIndexSize() {
+		switch (encoding) {
+		case SPARSE:
+			long numBlocks = (lineCount + parameter1 - 1) / parameter1;
+			return SIZE + numBlocks * SparseLineIndex.blockSize(parameter1, parameter2);
+		case FIXED:
+			return SIZE + parameter2 * 3L * Long.BYTES;
+		case FLAT:
+		default:
+			return SIZE + getNumOffsets() * TextFileLineAccess.SIZE_OF_OFFSET;
+		}
+	}
+
+	/**
+	 * Read the header of an index file.
+	 *
+	 * @param channel An open channel on the index file
+	 * @return The header, or null if the index is in the original, unversioned format
+	 * @throws IOException if the header cannot be read, or if its version or encoding is not supported
+	 */
+	public static IndexHeader read(FileChannel channel) throws IOException {
+		if (channel.size() < SIZE) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				return null;
+			}
+		}
+		buffer.flip();
+
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			return null;
+		}
+		int version = buffer.getInt();
+		if (version > VERSION) {
+			throw new IOException(String.format("Unsupported index version: %d", version));
+		}
+		IndexEncoding encoding = IndexEncoding.fromCode(buffer.getInt());
+		if (encoding == null) {
+			throw new IOException("Unsupported index encoding");
+		}
+
+		IndexHeader header = new IndexHeader(encoding, buffer.getLong(), buffer.getLong());
+		header.setVersion(version);
+		header.setParameter1(buffer.getInt());
+		header.setParameter2(buffer.getInt());
+		if (version >= 2) {
+			header.setModifiedTime(buffer.getLong());
+			header.setFingerprint(buffer.getLong());
+		}
+		return header;
+	}
+
+	/**
+	 * Write the header at the beginning of an index file.
+	 *
+	 * @param channel An open channel on the index file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void write(FileChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+		buffer.put(MAGIC);
+		buffer.putInt(version);
+		buffer.putInt(encoding.getCode());
+		buffer.putLong(lineCount);
+		buffer.putLong(dataLength);
+		buffer.putInt(parameter1);
+		buffer.putInt(parameter2);
+		buffer.putLong(modifiedTime);
+		buffer.putLong(fingerprint);
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, buffer.position());
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.jstone.sfs.Problem3;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Settings that control how a line index is built, and how the indexed file is read.
+ * <p>
+ * The index settings apply only when an index is built. An existing index is used in whatever
+ * format it was written.
+ *
+ * @author Jeremy Stone
+ */
+@Getter
+@Setter
+public class IndexOptions {
+	private IndexEncoding encoding = IndexEncoding.FLAT;
+	private int linesPerBlock = SparseLineIndex.DEFAULT_LINES_PER_BLOCK;
+	// Store the index as a FixedWidthLineIndex if the file is laid out in fixed-width records,
+	// whatever the encoding
+	private boolean detectFixedWidth = true;
+	private int workers = Runtime.getRuntime().availableProcessors();
+	// Build a missing index in the background, answering lookups as soon as their lines are indexed.
+	// (This applies to flat indexes only.) The build is a single-threaded scan, and skips fixed-width
+	// detection and the search and key indexes, which are built on first use instead.
+	private boolean progressive = false;
+	// Run a progressive build on a daemon thread, so that the JVM may exit before it finishes,
+	// abandoning it (and leaving its temporary file). By default the JVM waits for the build, so that
+	// a complete index is left behind.
+	private boolean progressiveDaemon = false;
+	// For gzip files, the number of bytes of text between decompressor checkpoints
+	private long checkpointInterval = GzipCheckpointIndex.DEFAULT_INTERVAL;
+	// Also build a trigram index for substring search. (Otherwise it is built by the first search.)
+	private boolean searchable = false;
+	private int searchLinesPerBlock = TrigramBlockIndex.DEFAULT_LINES_PER_BLOCK;
+	private int searchFilterSize = TrigramBlockIndex.DEFAULT_FILTER_SIZE;
+	// Also build a key index on this 0-based column of delimited records, if it is not negative.
+	// (Otherwise it is built by the first lookup on the column.) Either way, it is built by a second
+	// pass over the file, after the line index.
+	private int keyColumn = -1;
+	private byte keyDelimiter = KeyColumnIndex.DEFAULT_DELIMITER;
+	// Load the index into memory when the file is opened (see LineIndex.load), unless it would take
+	// more than maxResidentBytes
+	private boolean resident = false;
+	private long maxResidentBytes = Long.MAX_VALUE;
+	// Watch for requests for lines in a regular pattern, and read ahead (see Readahead)
+	private boolean readahead = false;
+	// A cache of lines to check before reading the file, shared by the files opened with these
+	// settings, or null for none
+	private LineCache lineCache = null;
+	// Told when index files are written, so that an application can show progress
+	private IndexProgress progress = IndexProgress.NONE;
+}
@@ -0,0 +1,38 @@
+package com.jstone.sfs.Problem3;
+
+import java.nio.file.Path;
+
+/**
+ * Receives notice of index files being written, so that an application can report its progress.
+ * <p>
+ * The library itself prints nothing while indexing. A listener is set with
+ * {@link IndexOptions#setProgress}; the default, {@link #NONE}, ignores every notice. Builds are
+ * also counted by {@link Metrics} and published as {@link IndexBuildEvent}s, whatever the listener.
+ * <p>
+ * A listener may be called from several threads at once, for example by a {@link LineServer}
+ * indexing several files.
+ *
+ * @author Jeremy Stone
+ */
+public interface IndexProgress {
+	IndexProgress NONE = new IndexProgress() {
+	};
+
+	/**
+	 * Called before an index file is written.
+	 *
+	 * @param description What is being written: "index", "search index" or "key index"
+	 * @param path        The path of the index file
+	 */
+	default void started(String description, Path path) {
+	}
+
+	/**
+	 * Called after an index file has been written.
+	 *
+	 * @param description What was written, as passed to {@link #started}
+	 * @param path        The path of the index file
+	 */
+	default void finished(String description, Path path) {
+	}
+}
@@ -0,0 +1,712 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A text file opened for random access by line number.
+ * <p>
+ * The file and its index are opened once, and stay open until {@link #close()} is called, so a
+ * lookup costs one read of the index and one read of the file. Both reads are positional, with no
+ * shared seek state, so one instance can serve any number of threads at once.
+ * <p>
+ * Many lines can be extracted at once with {@link #getLines(long[])}, which sorts the requests and
+ * merges nearby lines into larger reads, so that a batch is read mostly sequentially.
+ * <p>
+ * If the file has not been indexed yet, the index is built when the file is opened, or, if
+ * {@link IndexOptions#isProgressive()} is set, in the background by a {@link ProgressiveLineIndex}.
+ * <p>
+ * With {@link IndexOptions#isResident()} set, the index is loaded into memory when the file is
+ * opened, so that a lookup costs only the read of the file.
+ * <p>
+ * With {@link IndexOptions#isReadahead()} set, a thread that requests lines one at a time in
+ * order, or at a regular stride, has them read in large windows by a {@link Readahead}.
+ * <p>
+ * If the file is opened with a {@link LineCache} in its options, lines found in the cache are
+ * returned without reading the index or the file.
+ *
+ * @author Jeremy Stone
+ */
+public class IndexedTextFile implements LineSource {
+	// Batch reads merge lines that are separated by no more than this many bytes...
+	private static final int MAX_GAP_BYTES = 64 * 1024;
+	// ...into reads of no more than this many bytes.
+	private static final int MAX_SPAN_BYTES = 8 * 1024 * 1024;
+
+	// The UTF-8 encoding of the byte order mark
+	private static final byte[] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+
+	// Searches check this many blocks' filters at a time.
+	private static final int SEARCH_BATCH_BLOCKS = 4096;
+	// Key lookups read at most this many candidate lines at a time.
+	private static final int KEY_BATCH_LINES = 1024;
+
+	// Receives the offsets looked up by getLine(long, ByteBuffer), so that it need not allocate
+	private static final ThreadLocal<FileSegmentOffsets> LINE_OFFSETS = ThreadLocal
+			.withInitial(() -> new FileSegmentOffsets(0, 0));
+
+	private final File file;
+	private final FileChannel data;
+	private final LineIndex index;
+	// Opened (and built, if necessary) by the first search
+	private TrigramBlockIndex trigrams = null;
+	// Opened (and built, if necessary) by the first lookup on each column and delimiter, and kept
+	// open until the file is closed, since lookups may still be reading them
+	private final Map<Long, KeyColumnIndex> keyIndexes = new HashMap<Long, KeyColumnIndex>();
+	// Checked before the file is read, if set (see setLineCache)
+	private LineCache lineCache = null;
+	private LineCache.FileKey cacheKey = null;
+	// Reads ahead for getLine, if set
+	private Readahead readahead = null;
+	// Told when a search or key index is built
+	private IndexProgress progress = IndexProgress.NONE;
+	// Whether the file begins with a byte order mark: 1 if so, 0 if not, or -1 if not yet known
+	private volatile int bom = -1;
+
+	/**
+	 * @param file  The text file
+	 * @param data  An open channel on the text file
+	 * @param index The file's line index
+	 */
+	IndexedTextFile(File file, FileChannel data, LineIndex index) {
+		this.file = file;
+		this.data = data;
+		this.index = index;
+	}
+
+	/**
+	 * Open a text file, building its index first if necessary.
+	 *
+	 * @param path The text file's path
+	 * @return The open file
+	 * @throws IOException if the file or its index cannot be opened, or the index cannot be built
+	 */
+	public static IndexedTextFile open(String path) throws IOException {
+		return open(path, new IndexOptions());
+	}
+
+	/**
+	 * Open a text file, building its index first if necessary.
+	 *
+	 * @param path    The text file's path
+	 * @param options The settings to use if the index needs to be built
+	 * @return The open file
+	 * @throws IOException if the file or its index cannot be opened, or the index cannot be built
+	 */
+	public static IndexedTextFile open(String path, IndexOptions options) throws IOException {
+		File file = new File(path);
+		Path indexPath = TextFileLineAccess.getIndexPath(path);
+		FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			if (options.isProgressive() && (options.getEncoding() == IndexEncoding.FLAT)
+					&& !Files.exists(indexPath)) {
+				Metrics.recordIndexCheck(Metrics.Counter.INDEX_REBUILT);
+				IndexedTextFile indexedFile = new IndexedTextFile(file, data, ProgressiveLineIndex.start(file, indexPath,
+						options.isProgressiveDaemon()));
+				indexedFile.configure(options);
+				return indexedFile;
+			}
+			TextFileLineAccess.updateIndex(file, indexPath, options);
+			IndexedTextFile indexedFile = new IndexedTextFile(file, data, LineIndex.open(indexPath, options));
+			indexedFile.configure(options);
+			return indexedFile;
+		} catch (IOException e) {
+			data.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The text file
+	 */
+	@Override
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of lines in the file
+	 */
+	@Override
+	public long getLineCount() {
+		return index.getLineCount();
+	}
+
+	/**
+	 * Look up the byte offset and length of a line, including its terminator.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The offsets, or null if the line number is out of range
+	 * @throws IOException if the index cannot be read
+	 */
+	@Override
+	public FileSegmentOffsets getLineOffsets(long lineNumber) throws IOException {
+		return index.getLineOffsets(lineNumber);
+	}
+
+	/**
+	 * Find the line that contains a byte offset, such as one reported by "grep -b" or in a stack
+	 * trace. The index is binary-searched, so this takes O(log(number of lines)) index reads, and the
+	 * text file is not read at all.
+	 *
+	 * @param offset A byte offset in the file
+	 * @return The 0-based number of the line containing the offset, or -1 if the offset is out of
+	 *         range
+	 * @throws IOException if the index cannot be read
+	 */
+	@Override
+	public long getLineNumber(long offset) throws IOException {
+		long startTime = Metrics.startTimer();
+		long lineNumber = index.getLineNumber(offset);
+		Metrics.recordLookup(startTime, 1);
+		return lineNumber;
+	}
+
+	/**
+	 * Extract one line.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The line, without its terminator, or null if the line number is out of range
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	@Override
+	public String getLine(long lineNumber) throws IOException {
+		if (lineCache != null) {
+			String line = lineCache.get(cacheKey, lineNumber);
+			if (line != null) {
+				return line;
+			}
+		}
+		if (readahead != null) {
+			String line = readahead.getLine(lineNumber);
+			if (line != null) {
+				return line;
+			}
+		}
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		FileSegmentOffsets lineOffsets = index.getLineOffsets(lineNumber);
+		Metrics.recordLookup(startTime, 1);
+		if (lineOffsets == null) {
+			return null;
+		}
+		byte[] bytes = readSegment(lineOffsets.getStart(), lineOffsets.getLength());
+		Metrics.commitLineRead(event, file, "line", 1, bytes.length);
+		String line = decodeLine(bytes, 0, bytes.length, lineOffsets.getStart());
+		if (lineCache != null) {
+			lineCache.put(cacheKey, lineNumber, line);
+		}
+		return line;
+	}
+
+	/**
+	 * Extract one line as raw bytes, for callers that pass lines on without decoding them.
+	 * <p>
+	 * The line is read straight into the caller's buffer, and its terminator (and, for the first
+	 * line, any byte order mark) is trimmed by adjusting the buffer's position, so once the index
+	 * and the file are in the page cache, this allocates nothing. The line cache, readahead and
+	 * Flight Recorder events of {@link #getLine(long)} are not used.
+	 */
+	@Override
+	public int getLine(long lineNumber, ByteBuffer target) throws IOException {
+		FileSegmentOffsets lineOffsets = LINE_OFFSETS.get();
+		long startTime = Metrics.startTimer();
+		boolean found = index.getLineOffsets(lineNumber, lineOffsets);
+		Metrics.recordLookup(startTime, 1);
+		if (!found) {
+			return -1;
+		}
+		long start = lineOffsets.getStart();
+		int length = lineOffsets.getLength();
+		if ((start == 0) && startsWithBOM()) {
+			start += UTF8_BOM.length;
+			length -= UTF8_BOM.length;
+		}
+		if (target.remaining() < length) {
+			throw new BufferOverflowException();
+		}
+
+		int first = target.position();
+		int limit = target.limit();
+		target.limit(first + length);
+		int numBytesRead = readSegment(start, target);
+		target.limit(limit);
+		target.position(trimTerminator(target, first, first + numBytesRead));
+		return target.position() - first;
+	}
+
+	/**
+	 * Extract several lines.
+	 *
+	 * @param lineNumbers The 0-based line numbers
+	 * @return The lines, in the order requested, with null for any line number that is out of range
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	public List<String> getLines(Collection<Long> lineNumbers) throws IOException {
+		long[] array = new long[lineNumbers.size()];
+		int i = 0;
+		for (long lineNumber : lineNumbers) {
+			array[i++] = lineNumber;
+		}
+		return getLines(array);
+	}
+
+	/**
+	 * Extract several lines.
+	 * <p>
+	 * The line numbers are sorted and duplicates are removed, so that the index can be read in
+	 * sequential runs. Lines that lie close together in the file are then read together, with one
+	 * read covering many lines (and the small gaps between them).
+	 *
+	 * @param lineNumbers The 0-based line numbers
+	 * @return The lines, in the order requested, with null for any line number that is out of range
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	@Override
+	public List<String> getLines(long[] lineNumbers) throws IOException {
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		long[] sorted = sortDistinct(lineNumbers);
+		FileSegmentOffsets[] offsets = new FileSegmentOffsets[sorted.length];
+		index.getLineOffsets(sorted, offsets);
+		Metrics.recordLookup(startTime, sorted.length);
+		long numBytesRead = 0;
+
+		String[] lines = new String[sorted.length];
+		if (lineCache != null) {
+			// Skip reading the lines that are cached.
+			for (int k = 0; k < sorted.length; k++) {
+				if (offsets[k] != null) {
+					lines[k] = lineCache.get(cacheKey, sorted[k]);
+					if (lines[k] != null) {
+						offsets[k] = null;
+					}
+				}
+			}
+		}
+		int i = 0;
+		while (i < sorted.length) {
+			if (offsets[i] == null) {
+				i++;
+				continue;
+			}
+
+			// Merge following lines into this read while they are close by.
+			long spanStart = offsets[i].getStart();
+			long spanEnd = spanStart + offsets[i].getLength();
+			int j = i;
+			while ((j + 1 < sorted.length) && (offsets[j + 1] != null)
+					&& (offsets[j + 1].getStart() - spanEnd <= MAX_GAP_BYTES)
+					&& (offsets[j + 1].getStart() + offsets[j + 1].getLength() - spanStart <= MAX_SPAN_BYTES)) {
+				j++;
+				spanEnd = Math.max(spanEnd, offsets[j].getStart() + offsets[j].getLength());
+			}
+
+			byte[] span = readSegment(spanStart, (int) (spanEnd - spanStart));
+			numBytesRead += span.length;
+			for (int k = i; k <= j; k++) {
+				int from = (int) Math.min(offsets[k].getStart() - spanStart, span.length);
+				int length = Math.min(offsets[k].getLength(), span.length - from);
+				lines[k] = decodeLine(span, from, length, offsets[k].getStart());
+				if (lineCache != null) {
+					lineCache.put(cacheKey, sorted[k], lines[k]);
+				}
+			}
+			i = j + 1;
+		}
+		Metrics.commitLineRead(event, file, "batch", lineNumbers.length, numBytesRead);
+
+		List<String> result = new ArrayList<String>(lineNumbers.length);
+		for (long lineNumber : lineNumbers) {
+			result.add(lines[Arrays.binarySearch(sorted, lineNumber)]);
+		}
+		return result;
+	}
+
+	/**
+	 * Copy a range of lines, as raw bytes, to a channel.
+	 * <p>
+	 * Only the first and last lines are looked up in the index. The bytes between them are then
+	 * handed to {@link FileChannel#transferTo}, which lets the operating system copy them from the
+	 * page cache to the target (a file, pipe, or socket) without passing them through the Java heap.
+	 * The lines are not decoded, and their terminators are copied as they are. A byte order mark at
+	 * the beginning of the file is skipped, as it is by {@link #getLine}.
+	 *
+	 * @param firstLine The 0-based number of the first line to copy
+	 * @param lastLine  The 0-based number of the last line to copy (inclusive). If it is beyond the
+	 *                  end of the file, lines are copied to the end of the file.
+	 * @param target    The channel to write to, in blocking mode
+	 * @return The number of bytes copied, or -1 if firstLine is out of range or after lastLine
+	 * @throws IOException if the file or its index cannot be read, or the target cannot be written
+	 */
+	@Override
+	public long transferLines(long firstLine, long lastLine, WritableByteChannel target) throws IOException {
+		LineReadEvent event = new LineReadEvent();
+		event.begin();
+		long startTime = Metrics.startTimer();
+		lastLine = Math.min(lastLine, getLineCount() - 1);
+		FileSegmentOffsets first = index.getLineOffsets(firstLine);
+		if ((first == null) || (lastLine < firstLine)) {
+			Metrics.recordLookup(startTime, 1);
+			return -1;
+		}
+		FileSegmentOffsets last = (lastLine == firstLine) ? first : index.getLineOffsets(lastLine);
+		startTime = Metrics.recordLookup(startTime, (lastLine == firstLine) ? 1 : 2);
+
+		long start = first.getStart();
+		if ((start == 0) && startsWithBOM()) {
+			start = UTF8_BOM.length;
+		}
+		long end = Math.max(start, last.getStart() + last.getLength());
+
+		long position = start;
+		int numCalls = 0;
+		while (position < end) {
+			long numBytesTransferred = data.transferTo(position, end - position, target);
+			numCalls++;
+			if ((numBytesTransferred <= 0) && (position >= data.size())) {
+				// The file has been truncated since it was indexed.
+				break;
+			}
+			position += numBytesTransferred;
+		}
+		Metrics.recordRead(startTime, position - start, numCalls);
+		Metrics.commitLineRead(event, file, "range", lastLine - firstLine + 1, position - start);
+		return position - start;
+	}
+
+	/**
+	 * Find the lines that contain a string.
+	 * <p>
+	 * The search uses a {@link TrigramBlockIndex}, which is built the first time the file is searched
+	 * if it was not built with the line index. Only the blocks of lines whose filters show that they
+	 * may contain the string are read, and each of their lines is compared byte by byte. The string
+	 * is matched exactly, as UTF-8, within lines; it cannot span a line break.
+	 *
+	 * @param text       The string to find
+	 * @param maxMatches The number of matches after which to stop
+	 * @return The matching lines, in file order, and the number of blocks that were read
+	 * @throws IOException if the file or its indexes cannot be read, or the trigram index cannot be
+	 *                     built
+	 */
+	public SearchResult search(String text, int maxMatches) throws IOException {
+		byte[] pattern = text.getBytes(TextFileLineAccess.CHARSET);
+		TrigramBlockIndex filters = openTrigramIndex();
+		int[] bits = filters.getPatternBits(pattern);
+		long lineCount = getLineCount();
+		List<LineMatch> matches = new ArrayList<LineMatch>();
+		long blocksScanned = 0;
+
+		for (long first = 0; (first < filters.getBlockCount()) && (matches.size() < maxMatches);
+				first += SEARCH_BATCH_BLOCKS) {
+			for (long block : filters.findCandidateBlocks(bits, first, SEARCH_BATCH_BLOCKS)) {
+				if (matches.size() >= maxMatches) {
+					break;
+				}
+				long firstLine = block * filters.getLinesPerBlock();
+				scanLines(firstLine, Math.min(lineCount, firstLine + filters.getLinesPerBlock()), pattern, maxMatches,
+						matches);
+				blocksScanned++;
+			}
+		}
+		Metrics.recordSearch(blocksScanned, filters.getBlockCount());
+		return new SearchResult(matches, blocksScanned, filters.getBlockCount());
+	}
+
+	/**
+	 * Find the lines whose field in a column of delimited records holds a key.
+	 * <p>
+	 * The lookup uses a {@link KeyColumnIndex}, which is built the first time the column is looked
+	 * up if it was not built with the line index. The lines with the key's hash are found in the
+	 * index, read, and compared with the key, so a lookup costs a few reads however large the file
+	 * is. The candidates are read and compared a batch at a time until enough matches are found, so
+	 * a lookup of a common key with few matches wanted does not read every line with the key.
+	 *
+	 * @param column     The 0-based column
+	 * @param delimiter  The byte that separates fields, such as a tab or a comma
+	 * @param key        The key, which is matched exactly, as UTF-8
+	 * @param maxMatches The number of matches after which to stop
+	 * @return The matching lines, in file order
+	 * @throws IOException if the file or its indexes cannot be read, or the key index cannot be built
+	 */
+	public List<LineMatch> findByKey(int column, byte delimiter, String key, int maxMatches) throws IOException {
+		byte[] keyBytes = key.getBytes(TextFileLineAccess.CHARSET);
+		KeyColumnIndex keys = openKeyIndex(column, delimiter);
+		KeyColumnIndex.Candidates candidates = keys.findCandidateLines(keyBytes);
+		List<LineMatch> matches = new ArrayList<LineMatch>();
+		while (matches.size() < maxMatches) {
+			// Almost every candidate matches, unless keys share a hash, so ask for no more than are wanted.
+			long[] lineNumbers = candidates.next(Math.min(KEY_BATCH_LINES, maxMatches - matches.size()));
+			if (lineNumbers.length == 0) {
+				break;
+			}
+			List<String> lines = getLines(lineNumbers);
+			for (int i = 0; i < lineNumbers.length; i++) {
+				String line = lines.get(i);
+				if ((line != null) && keys.matches(line.getBytes(TextFileLineAccess.CHARSET), keyBytes)) {
+					matches.add(new LineMatch(lineNumbers[i], index.getLineOffsets(lineNumbers[i]), line));
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Apply the settings that concern reading the file.
+	 */
+	private void configure(IndexOptions options) {
+		setLineCache(options.getLineCache());
+		progress = options.getProgress();
+		if (options.isReadahead()) {
+			readahead = new Readahead(this, index);
+		}
+	}
+
+	/**
+	 * Check a cache before reading lines, and add the lines read to it.
+	 *
+	 * @param lineCache The cache, or null for none
+	 */
+	void setLineCache(LineCache lineCache) {
+		this.lineCache = lineCache;
+		this.cacheKey = (lineCache != null) ? lineCache.getFileKey(file) : null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			index.close();
+			synchronized (this) {
+				if (trigrams != null) {
+					trigrams.close();
+				}
+				for (KeyColumnIndex keys : keyIndexes.values()) {
+					keys.close();
+				}
+			}
+		} finally {
+			data.close();
+		}
+	}
+
+	private synchronized TrigramBlockIndex openTrigramIndex() throws IOException {
+		if (trigrams == null) {
+			Path path = TrigramBlockIndex.getPath(file.getPath());
+			trigrams = TrigramBlockIndex.open(path, file);
+			if (trigrams == null) {
+				IndexOptions options = new IndexOptions();
+				progress.started("search index", path);
+				TrigramBlockIndex.build(file, index, path, options.getSearchLinesPerBlock(),
+						options.getSearchFilterSize(), options.getWorkers());
+				progress.finished("search index", path);
+				trigrams = TrigramBlockIndex.open(path, file);
+				if (trigrams == null) {
+					throw new IOException("The file changed while it was being indexed: " + file);
+				}
+			}
+		}
+		return trigrams;
+	}
+
+	private synchronized KeyColumnIndex openKeyIndex(int column, byte delimiter) throws IOException {
+		Long key = ((long) column << 8) | (delimiter & 0xff);
+		KeyColumnIndex keys = keyIndexes.get(key);
+		if (keys == null) {
+			Path path = KeyColumnIndex.getPath(file.getPath(), column, delimiter);
+			keys = KeyColumnIndex.open(path, file, delimiter);
+			if (keys == null) {
+				progress.started("key index", path);
+				KeyColumnIndex.build(file, index, path, column, delimiter);
+				progress.finished("key index", path);
+				keys = KeyColumnIndex.open(path, file, delimiter);
+				if (keys == null) {
+					throw new IOException("The file changed while it was being indexed: " + file);
+				}
+			}
+			keyIndexes.put(key, keys);
+		}
+		return keys;
+	}
+
+	/**
+	 * Compare the lines in a range with a string, and add those that contain it to a list. The lines
+	 * are read with a single read if they are not too long.
+	 */
+	private void scanLines(long firstLine, long endLine, byte[] pattern, int maxMatches, List<LineMatch> matches)
+			throws IOException {
+		long[] lineNumbers = new long[(int) (endLine - firstLine)];
+		for (int i = 0; i < lineNumbers.length; i++) {
+			lineNumbers[i] = firstLine + i;
+		}
+		FileSegmentOffsets[] offsets = new FileSegmentOffsets[lineNumbers.length];
+		index.getLineOffsets(lineNumbers, offsets);
+
+		long spanStart = offsets[0].getStart();
+		FileSegmentOffsets last = offsets[offsets.length - 1];
+		long spanLength = last.getStart() + last.getLength() - spanStart;
+		byte[] span = (spanLength <= MAX_SPAN_BYTES) ? readSegment(spanStart, (int) spanLength) : null;
+
+		for (int i = 0; (i < lineNumbers.length) && (matches.size() < maxMatches); i++) {
+			byte[] bytes = span;
+			int from = (int) (offsets[i].getStart() - spanStart);
+			if (span == null) {
+				bytes = readSegment(offsets[i].getStart(), offsets[i].getLength());
+				from = 0;
+			}
+			from = Math.min(from, bytes.length);
+			int length = Math.min(offsets[i].getLength(), bytes.length - from);
+			int textLength = length;
+			while ((textLength > 0) && ((bytes[from + textLength - 1] == LineBreakScanner.LF)
+					|| (bytes[from + textLength - 1] == LineBreakScanner.CR))) {
+				textLength--;
+			}
+			if (contains(bytes, from, textLength, pattern)) {
+				matches.add(new LineMatch(lineNumbers[i], offsets[i],
+						decodeLine(bytes, from, length, offsets[i].getStart())));
+			}
+		}
+	}
+
+	/**
+	 * @return true if a byte range of a buffer contains a pattern
+	 */
+	private static boolean contains(byte[] bytes, int from, int length, byte[] pattern) {
+		int last = from + length - pattern.length;
+		for (int i = from; i <= last; i++) {
+			int j = 0;
+			while ((j < pattern.length) && (bytes[i + j] == pattern[j])) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Read a byte range of the text file.
+	 *
+	 * @param offset   The offset, in bytes, at which to start reading
+	 * @param numBytes The number of bytes to read
+	 * @return The bytes read, which may be fewer than requested if the file has been truncated
+	 * @throws IOException if an I/O error occurs
+	 */
+	byte[] readSegment(long offset, int numBytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+		readSegment(offset, buffer);
+		if (buffer.hasRemaining()) {
+			byte[] bytes = new byte[buffer.position()];
+			System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+			return bytes;
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Read a byte range of the text file into a buffer, filling it from its position to its limit.
+	 *
+	 * @param offset The offset, in bytes, at which to start reading
+	 * @param buffer The buffer to fill
+	 * @return The number of bytes read, which may be fewer than requested if the file has been
+	 *         truncated
+	 * @throws IOException if an I/O error occurs
+	 */
+	int readSegment(long offset, ByteBuffer buffer) throws IOException {
+		long startTime = Metrics.startTimer();
+		int first = buffer.position();
+		int numCalls = 0;
+		while (buffer.hasRemaining()) {
+			numCalls++;
+			if (data.read(buffer, offset + buffer.position() - first) < 0) {
+				break;
+			}
+		}
+		Metrics.recordRead(startTime, buffer.position() - first, numCalls);
+		return buffer.position() - first;
+	}
+
+	private boolean startsWithBOM() throws IOException {
+		if (bom < 0) {
+			bom = (bomLength(readSegment(0, UTF8_BOM.length)) > 0) ? 1 : 0;
+		}
+		return bom == 1;
+	}
+
+	/**
+	 * @param bytes The bytes at the beginning of a file
+	 * @return The number of bytes in the UTF-8 byte order mark with which they begin, or 0
+	 */
+	static int bomLength(byte[] bytes) {
+		return ((bytes.length >= UTF8_BOM.length)
+				&& Arrays.equals(bytes, 0, UTF8_BOM.length, UTF8_BOM, 0, UTF8_BOM.length)) ? UTF8_BOM.length : 0;
+	}
+
+	/**
+	 * Find the end of a line in a buffer, without its terminator.
+	 *
+	 * @param buffer A buffer containing the line
+	 * @param from   The index in the buffer at which the line begins
+	 * @param end    The index in the buffer at which the line, with its terminator, ends
+	 * @return The index at which the line ends without its terminator
+	 */
+	static int trimTerminator(ByteBuffer buffer, int from, int end) {
+		if ((end > from) && (buffer.get(end - 1) == LineBreakScanner.LF)) {
+			end--;
+		}
+		if ((end > from) && (buffer.get(end - 1) == LineBreakScanner.CR)) {
+			end--;
+		}
+		return end;
+	}
+
+	/**
+	 * Sort an array of numbers and remove duplicates.
+	 */
+	private static long[] sortDistinct(long[] values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if ((n == 0) || (sorted[i] != sorted[n - 1])) {
+				sorted[n++] = sorted[i];
+			}
+		}
+		return Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * Turn the bytes of a line into a string, removing the line terminator and (for the first line)
+	 * any byte order mark.
+	 *
+	 * @param bytes  A buffer containing the line
+	 * @param from   The index in the buffer at which the line begins
+	 * @param length The length of the line in bytes
+	 * @param offset The offset in the file at which the line begins
+	 * @return The line
+	 */
+	static String decodeLine(byte[] bytes, int from, int length, long offset) {
+		String line = new String(bytes, from, length, TextFileLineAccess.CHARSET);
+		if (offset == 0) {
+			line = TextFileLineAccess.trimBOM(line);
+		}
+		return StringUtils.strip(line, "\r\n");
+	}
+}
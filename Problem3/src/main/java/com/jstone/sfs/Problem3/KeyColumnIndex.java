@@ -0,0 +1,622 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An index of the values in one column of a delimited text file (such as TSV or CSV), for finding
+ * the lines whose column holds a given key.
+ * <p>
+ * Each line's field in the column (the bytes between its n-th and (n+1)-th delimiters, not counting
+ * the line's terminator) is hashed to 64 bits, and the index holds one record per line, of its hash
+ * and its line number, sorted by hash and then by line number. The records are divided into blocks
+ * of {@value #RECORDS_PER_BLOCK}, and a directory of the first hash in each block follows them. The
+ * directory is read into memory when the index is opened (8 bytes per block: 32 MB for a billion
+ * lines), so a lookup costs a binary search in memory, and usually a single read of one block. Since
+ * different keys can share a hash, the lines found must be read and their fields compared with the
+ * key, which the caller does (see {@link IndexedTextFile#findByKey}).
+ * <p>
+ * Blank lines, and lines with too few fields, are not indexed. Fields are not unquoted: a CSV field
+ * in quotes is indexed with its quotes, and a delimiter within quotes ends the field.
+ * <p>
+ * The index is built with an external sort, so that a file with more lines than fit in memory can
+ * be indexed: the records are collected in runs of {@value #RUN_RECORDS}, each run is sorted in
+ * memory and written to a temporary file, and the runs are then merged into the index. The lines
+ * are read through the line index, so building the key index is a second pass over the file, after
+ * the line index is built, even when both are built when the file is opened.
+ * <p>
+ * Layout of the index file (big-endian): a 64-byte header with a magic number, a version, the
+ * column, the delimiter, the number of records per block, the number of records, the number of
+ * lines, and the length and modification time of the text file; then the records, of 16 bytes each;
+ * then the directory.
+ *
+ * @author Jeremy Stone
+ */
+public class KeyColumnIndex implements Closeable {
+	public static final byte DEFAULT_DELIMITER = '\t';
+
+	static final int RECORDS_PER_BLOCK = 256;
+	static final int RUN_RECORDS = 2 * 1024 * 1024;
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'K', 'I', 'X', '\r', '\n', 0x1a, '\n' };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int RECORD_SIZE = 2 * Long.BYTES;
+
+	// Lines are read this many at a time while building, but no more than MAX_SPAN_BYTES at a time
+	// unless a single line is longer.
+	private static final int BATCH_LINES = 4096;
+	private static final int MAX_SPAN_BYTES = 16 * 1024 * 1024;
+	// Runs are written and merged through buffers of this size.
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final int column;
+	private final byte delimiter;
+	private final long numRecords;
+	private final long[] directory;
+
+	private KeyColumnIndex(FileChannel channel, int column, byte delimiter, long numRecords, long[] directory) {
+		this.channel = channel;
+		this.column = column;
+		this.delimiter = delimiter;
+		this.numRecords = numRecords;
+		this.directory = directory;
+	}
+
+	/**
+	 * Get the path of the key index on one column of a text file. The delimiter is part of the name,
+	 * since the fields, and so the index, differ with it.
+	 *
+	 * @param path      The text file's path
+	 * @param column    The 0-based column
+	 * @param delimiter The byte that separates the fields
+	 * @return The key index's path
+	 */
+	static Path getPath(String path, int column, byte delimiter) {
+		return Paths.get(String.format("%s.k%d.d%d.kix", path, column, delimiter & 0xff));
+	}
+
+	/**
+	 * Open a key index, if it describes the text file as it is now, with the given delimiter.
+	 *
+	 * @param path      The key index's path
+	 * @param file      The text file
+	 * @param delimiter The byte that separates fields
+	 * @return The index, or null if it does not exist, is out of date, or was built with another
+	 *         delimiter
+	 * @throws IOException if the index cannot be read
+	 */
+	public static KeyColumnIndex open(Path path, File file, byte delimiter) throws IOException {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || (header.getInt() != VERSION)) {
+				channel.close();
+				return null;
+			}
+			int column = header.getInt();
+			byte indexDelimiter = (byte) header.getInt();
+			int recordsPerBlock = header.getInt();
+			long numRecords = header.getLong();
+			header.getLong(); // The number of lines
+			long dataLength = header.getLong();
+			long modifiedTime = header.getLong();
+			long numBlocks = (numRecords + recordsPerBlock - 1) / recordsPerBlock;
+			if ((indexDelimiter != delimiter) || (recordsPerBlock != RECORDS_PER_BLOCK)
+					|| (dataLength != file.length()) || (modifiedTime != file.lastModified())
+					|| (channel.size() != HEADER_SIZE + numRecords * RECORD_SIZE + numBlocks * Long.BYTES)) {
+				channel.close();
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) numBlocks * Long.BYTES);
+			readFully(channel, buffer, HEADER_SIZE + numRecords * RECORD_SIZE);
+			buffer.flip();
+			long[] directory = new long[(int) numBlocks];
+			buffer.asLongBuffer().get(directory);
+			return new KeyColumnIndex(channel, column, delimiter, numRecords, directory);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Build a key index on one column of a text file.
+	 *
+	 * @param file      The text file
+	 * @param index     The text file's line index, which must be current
+	 * @param path      The path at which the key index should be created
+	 * @param column    The 0-based column to index
+	 * @param delimiter The byte that separates fields
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void build(File file, LineIndex index, Path path, int column, byte delimiter) throws IOException {
+		build(file, index, path, column, delimiter, RUN_RECORDS, MAX_SPAN_BYTES);
+	}
+
+	/**
+	 * @param runRecords   The number of records to sort in memory at a time (smaller only for testing)
+	 * @param maxSpanBytes The number of bytes of lines to read at a time (smaller only for testing)
+	 */
+	static void build(File file, LineIndex index, Path path, int column, byte delimiter, int runRecords,
+			int maxSpanBytes) throws IOException {
+		if (column < 0) {
+			throw new IllegalArgumentException("The column must not be negative.");
+		}
+		Path tempPath = LineIndexBuilder.createTempSibling(path, ".tmp");
+		Path runsPath;
+		try {
+			runsPath = LineIndexBuilder.createTempSibling(path, ".runs");
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+		try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel runs = FileChannel.open(runsPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long modifiedTime = file.lastModified();
+			long dataLength = data.size();
+
+			// Collect the records in sorted runs.
+			long[] hashes = new long[runRecords];
+			long[] lineNumbers = new long[runRecords];
+			List<Long> runLengths = new ArrayList<Long>();
+			int count = 0;
+			long runsPosition = 0;
+			long numLines = index.getLineCount();
+			ByteBuffer span = ByteBuffer.allocate(BUFFER_SIZE);
+			long[] batch = new long[BATCH_LINES];
+			FileSegmentOffsets[] offsets = new FileSegmentOffsets[BATCH_LINES];
+			for (long first = 0; first < numLines;) {
+				int batchSize = (int) Math.min(BATCH_LINES, numLines - first);
+				for (int i = 0; i < batchSize; i++) {
+					batch[i] = first + i;
+				}
+				index.getLineOffsets(Arrays.copyOf(batch, batchSize), offsets);
+				long spanStart = offsets[0].getStart();
+				while ((batchSize > 1) && (end(offsets[batchSize - 1]) - spanStart > maxSpanBytes)) {
+					batchSize--;
+				}
+				long spanEnd = Math.min(dataLength, end(offsets[batchSize - 1]));
+				if (spanEnd - spanStart > Integer.MAX_VALUE - 8) {
+					throw new IOException(String.format("Line %d is too long to index (%d bytes).", first,
+							spanEnd - spanStart));
+				}
+				if (span.capacity() < spanEnd - spanStart) {
+					span = ByteBuffer.allocate((int) (spanEnd - spanStart));
+				}
+				span.clear();
+				span.limit((int) (spanEnd - spanStart));
+				readFully(data, span, spanStart);
+				byte[] bytes = span.array();
+
+				for (int i = 0; i < batchSize; i++) {
+					int from = (int) (offsets[i].getStart() - spanStart);
+					int end = (int) Math.min(from + offsets[i].getLength(), spanEnd - spanStart);
+					if (offsets[i].getStart() == 0) {
+						from += IndexedTextFile.bomLength(Arrays.copyOf(bytes, Math.min(end, 3)));
+					}
+					while ((end > from) && ((bytes[end - 1] == LineBreakScanner.LF) || (bytes[end - 1] == LineBreakScanner.CR))) {
+						end--;
+					}
+					int fieldStart = fieldStart(bytes, from, end, column, delimiter);
+					if ((end == from) || (fieldStart < 0)) {
+						continue;
+					}
+					hashes[count] = hash(bytes, fieldStart, fieldEnd(bytes, fieldStart, end, delimiter));
+					lineNumbers[count] = first + i;
+					if (++count == runRecords) {
+						runsPosition += writeRun(runs, runsPosition, hashes, lineNumbers, count);
+						runLengths.add((long) count);
+						count = 0;
+					}
+				}
+				first += batchSize;
+			}
+			if (count > 0) {
+				writeRun(runs, runsPosition, hashes, lineNumbers, count);
+				runLengths.add((long) count);
+			}
+			hashes = null;
+			lineNumbers = null;
+
+			// Merge the runs.
+			long numRecords = merge(runs, runLengths, output);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(column);
+			header.putInt(delimiter);
+			header.putInt(RECORDS_PER_BLOCK);
+			header.putLong(numRecords);
+			header.putLong(numLines);
+			header.putLong(dataLength);
+			header.putLong(modifiedTime);
+			header.clear();
+			writeFully(output, header, 0);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		} finally {
+			Files.deleteIfExists(runsPath);
+		}
+
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return The 0-based column
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * @return The byte that separates fields
+	 */
+	public byte getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * @return The number of lines indexed
+	 */
+	public long getRecordCount() {
+		return numRecords;
+	}
+
+	/**
+	 * Find the lines whose fields may hold a key: those whose fields have the same hash.
+	 * <p>
+	 * The lines are read from the index as they are asked for, so a caller that wants only a few
+	 * matches reads only a block or two of the index, however common the key is.
+	 *
+	 * @param key The key, as bytes
+	 * @return The candidate lines
+	 */
+	public Candidates findCandidateLines(byte[] key) {
+		long hash = hash(key, 0, key.length);
+		// Matches begin in the last block whose first hash is smaller, or in the first block.
+		int i = Arrays.binarySearch(directory, hash);
+		if (i >= 0) {
+			while ((i > 0) && (directory[i - 1] == hash)) {
+				i--;
+			}
+		} else {
+			i = -i - 1;
+		}
+		return new Candidates(hash, Math.max(0, i - 1) * (long) RECORDS_PER_BLOCK);
+	}
+
+	/**
+	 * Check whether a line's field holds a key.
+	 *
+	 * @param bytes The line, without its terminator
+	 * @param key   The key, as bytes
+	 * @return true if the line's field in this index's column is the key
+	 */
+	public boolean matches(byte[] bytes, byte[] key) {
+		int start = fieldStart(bytes, 0, bytes.length, column, delimiter);
+		return (start >= 0) && Arrays.equals(bytes, start, fieldEnd(bytes, start, bytes.length, delimiter), key, 0,
+				key.length);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Find where a field begins in a line.
+	 *
+	 * @return The index of the field's first byte, or -1 if the line has too few fields
+	 */
+	static int fieldStart(byte[] bytes, int from, int end, int column, byte delimiter) {
+		int i = from;
+		for (int n = 0; n < column; n++) {
+			i = fieldEnd(bytes, i, end, delimiter);
+			if (i == end) {
+				return -1;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * @return The index of the delimiter that ends a field, or the end of the line
+	 */
+	static int fieldEnd(byte[] bytes, int start, int end, byte delimiter) {
+		int i = start;
+		while ((i < end) && (bytes[i] != delimiter)) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Hash a field: FNV-1a, with a final mix so that the high bits, by which the records are sorted,
+	 * depend on every byte.
+	 */
+	static long hash(byte[] bytes, int from, int end) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = from; i < end; i++) {
+			h = (h ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Sort a run of records and append it to the runs file.
+	 *
+	 * @return The number of bytes written
+	 */
+	private static long writeRun(FileChannel runs, long position, long[] hashes, long[] lineNumbers, int count)
+			throws IOException {
+		sort(hashes, lineNumbers, count);
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long start = position;
+		for (int i = 0; i < count; i++) {
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				writeFully(runs, buffer, position);
+				position += buffer.limit();
+				buffer.clear();
+			}
+			buffer.putLong(hashes[i]);
+			buffer.putLong(lineNumbers[i]);
+		}
+		buffer.flip();
+		writeFully(runs, buffer, position);
+		position += buffer.limit();
+		return position - start;
+	}
+
+	/**
+	 * Merge the sorted runs into the index file, after its header, followed by the directory.
+	 *
+	 * @return The number of records
+	 */
+	private static long merge(FileChannel runs, List<Long> runLengths, FileChannel output) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		int bufferSize = Math.max(RECORD_SIZE * 64, BUFFER_SIZE / Math.max(1, runLengths.size()) / RECORD_SIZE * RECORD_SIZE);
+		long start = 0;
+		for (long length : runLengths) {
+			RunReader reader = new RunReader(runs, start, length, bufferSize);
+			if (reader.next()) {
+				queue.add(reader);
+			}
+			start += length * RECORD_SIZE;
+		}
+
+		long numRecords = 0;
+		long[] directory = new long[16];
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long position = HEADER_SIZE;
+		while (!queue.isEmpty()) {
+			RunReader reader = queue.poll();
+			if (numRecords % RECORDS_PER_BLOCK == 0) {
+				int block = (int) (numRecords / RECORDS_PER_BLOCK);
+				if (block == directory.length) {
+					directory = Arrays.copyOf(directory, 2 * block);
+				}
+				directory[block] = reader.hash;
+			}
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+				writeFully(output, buffer, position);
+				position += buffer.limit();
+				buffer.clear();
+			}
+			buffer.putLong(reader.hash);
+			buffer.putLong(reader.lineNumber);
+			numRecords++;
+			if (reader.next()) {
+				queue.add(reader);
+			}
+		}
+		buffer.flip();
+		writeFully(output, buffer, position);
+		position += buffer.limit();
+
+		int numBlocks = (int) ((numRecords + RECORDS_PER_BLOCK - 1) / RECORDS_PER_BLOCK);
+		ByteBuffer directoryBuffer = ByteBuffer.allocate(numBlocks * Long.BYTES);
+		directoryBuffer.asLongBuffer().put(directory, 0, numBlocks);
+		writeFully(output, directoryBuffer, position);
+		return numRecords;
+	}
+
+	/**
+	 * Sort records by hash and then by line number, with a heapsort, which needs no extra memory.
+	 */
+	static void sort(long[] hashes, long[] lineNumbers, int count) {
+		for (int i = count / 2 - 1; i >= 0; i--) {
+			siftDown(hashes, lineNumbers, i, count);
+		}
+		for (int end = count - 1; end > 0; end--) {
+			swap(hashes, lineNumbers, 0, end);
+			siftDown(hashes, lineNumbers, 0, end);
+		}
+	}
+
+	private static void siftDown(long[] hashes, long[] lineNumbers, int i, int count) {
+		while (2 * i + 1 < count) {
+			int child = 2 * i + 1;
+			if ((child + 1 < count) && (compare(hashes, lineNumbers, child + 1, child) > 0)) {
+				child++;
+			}
+			if (compare(hashes, lineNumbers, child, i) <= 0) {
+				return;
+			}
+			swap(hashes, lineNumbers, i, child);
+			i = child;
+		}
+	}
+
+	private static int compare(long[] hashes, long[] lineNumbers, int i, int j) {
+		int c = Long.compare(hashes[i], hashes[j]);
+		return (c != 0) ? c : Long.compare(lineNumbers[i], lineNumbers[j]);
+	}
+
+	private static void swap(long[] hashes, long[] lineNumbers, int i, int j) {
+		long hash = hashes[i];
+		hashes[i] = hashes[j];
+		hashes[j] = hash;
+		long lineNumber = lineNumbers[i];
+		lineNumbers[i] = lineNumbers[j];
+		lineNumbers[j] = lineNumber;
+	}
+
+	/**
+	 * @return The offset just past a line's terminator
+	 */
+	private static long end(FileSegmentOffsets offsets) {
+		return offsets.getStart() + offsets.getLength();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The file is truncated.");
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	/**
+	 * The lines whose fields have a key's hash, read from the index a batch at a time, in ascending
+	 * order.
+	 */
+	public class Candidates {
+		private final long hash;
+		private final ByteBuffer buffer = ByteBuffer.allocate(RECORDS_PER_BLOCK * RECORD_SIZE);
+		// The next record to read
+		private long record;
+		private boolean done;
+
+		private Candidates(long hash, long record) {
+			this.hash = hash;
+			this.record = record;
+		}
+
+		/**
+		 * Read the next candidates, reading no more of the index than needed.
+		 *
+		 * @param maxLines The most lines to return
+		 * @return The line numbers, in ascending order, or none if there are no more
+		 * @throws IOException if the index cannot be read
+		 */
+		public long[] next(int maxLines) throws IOException {
+			long[] lines = new long[Math.min(maxLines, 16)];
+			int count = 0;
+			while (!done && (count < maxLines)) {
+				if (record >= numRecords) {
+					done = true;
+					break;
+				}
+				// Read the rest of the record's block.
+				int numRead = (int) Math.min(RECORDS_PER_BLOCK - record % RECORDS_PER_BLOCK, numRecords - record);
+				buffer.clear();
+				buffer.limit(numRead * RECORD_SIZE);
+				readFully(channel, buffer, HEADER_SIZE + record * RECORD_SIZE);
+				for (int k = 0; (k < numRead) && (count < maxLines); k++) {
+					long recordHash = buffer.getLong(k * RECORD_SIZE);
+					if (recordHash > hash) {
+						done = true;
+						break;
+					}
+					record++;
+					if (recordHash == hash) {
+						if (count == lines.length) {
+							lines = Arrays.copyOf(lines, Math.min(maxLines, 2 * count));
+						}
+						lines[count++] = buffer.getLong(k * RECORD_SIZE + Long.BYTES);
+					}
+				}
+			}
+			return Arrays.copyOf(lines, count);
+		}
+	}
+
+	/**
+	 * Reads the records of one sorted run, for the merge.
+	 */
+	private static class RunReader implements Comparable<RunReader> {
+		private final FileChannel runs;
+		private final ByteBuffer buffer;
+		private long position;
+		private long remaining;
+		// The current record
+		long hash;
+		long lineNumber;
+
+		RunReader(FileChannel runs, long start, long numRecords, int bufferSize) {
+			this.runs = runs;
+			this.position = start;
+			this.remaining = numRecords;
+			this.buffer = ByteBuffer.allocate(bufferSize);
+			this.buffer.limit(0);
+		}
+
+		/**
+		 * Advance to the next record.
+		 *
+		 * @return false if the run is exhausted
+		 */
+		boolean next() throws IOException {
+			if (!buffer.hasRemaining()) {
+				if (remaining == 0) {
+					return false;
+				}
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), remaining * RECORD_SIZE));
+				readFully(runs, buffer, position);
+				position += buffer.limit();
+				remaining -= buffer.limit() / RECORD_SIZE;
+				buffer.flip();
+			}
+			hash = buffer.getLong();
+			lineNumber = buffer.getLong();
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			int c = Long.compare(hash, other.hash);
+			return (c != 0) ? c : Long.compare(lineNumber, other.lineNumber);
+		}
+	}
+}
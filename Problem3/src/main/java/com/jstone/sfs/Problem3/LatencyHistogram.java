@@ -0,0 +1,122 @@
+package com.jstone.sfs.Problem3;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations, for {@link Metrics}.
+ * <p>
+ * Durations are counted in buckets whose bounds are powers of 2 nanoseconds, so recording one is a
+ * bit count and an increment of a {@link LongAdder}, with no locking and no allocation, and many
+ * threads can record at once without contending. The price is precision: a percentile is known
+ * only to within a factor of 2, which is enough to tell a page-cache hit from a disk read.
+ *
+ * @author Jeremy Stone
+ */
+public class LatencyHistogram {
+	// Bucket i counts durations d with 2^(i-1) <= d < 2^i nanoseconds; bucket 0 counts d <= 0.
+	private static final int NUM_BUCKETS = 64;
+
+	private final String name;
+	private final LongAdder[] buckets = new LongAdder[NUM_BUCKETS];
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	LatencyHistogram(String name) {
+		this.name = name;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @return The name under which the histogram is reported
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Record one duration.
+	 *
+	 * @param nanos The duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		buckets[Math.min(64 - Long.numberOfLeadingZeros(Math.max(nanos, 0)), NUM_BUCKETS - 1)].increment();
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * @return The number of durations recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * @return The sum of the durations recorded, in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return totalNanos.sum();
+	}
+
+	/**
+	 * @return The longest duration recorded, in nanoseconds
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return The mean duration, in nanoseconds, or 0 if none has been recorded
+	 */
+	public double getMeanNanos() {
+		long count = getCount();
+		return (count == 0) ? 0 : (double) getTotalNanos() / count;
+	}
+
+	/**
+	 * Estimate a percentile.
+	 *
+	 * @param percentile The percentile, from 0 to 100
+	 * @return An upper bound on the duration below which the given percentage of the durations lie,
+	 *         in nanoseconds, accurate to within a factor of 2; or 0 if no duration has been recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += counts[i];
+			if ((counts[i] > 0) && (seen >= rank)) {
+				return Math.min((i == 0) ? 0 : (1L << i) - 1, getMaxNanos());
+			}
+		}
+		return 0;
+	}
+
+	void reset() {
+		for (LongAdder bucket : buckets) {
+			bucket.reset();
+		}
+		totalNanos.reset();
+		maxNanos.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: count=%d mean=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus", name, getCount(),
+				getMeanNanos() / 1000, getPercentileNanos(50) / 1000.0, getPercentileNanos(99) / 1000.0,
+				getMaxNanos() / 1000.0);
+	}
+}
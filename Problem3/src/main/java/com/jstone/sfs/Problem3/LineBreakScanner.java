@@ -0,0 +1,138 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A byte-level scanner that locates line breaks in a text file.
+ * <p>
+ * The scanner is fed consecutive windows of the file and reports the offset at which each line after
+ * the first one begins. It looks for CR and LF bytes directly, without decoding UTF-8: in UTF-8,
+ * the bytes 0x0d and 0x0a occur only as the characters CR and LF, never inside multi-byte
+ * characters.
+ * <p>
+ * CR, LF, and CRLF line breaks are supported. A CR is not reported until the following byte has
+ * been seen, since a CRLF pair counts as a single line break. The pending CR may therefore be
+ * carried from the end of one window to the beginning of the next.
+ * <p>
+ * The scanner examines 8 bytes at a time and only looks at individual bytes in words that contain a
+ * CR or LF, so most of the file is skipped over at memory speed.
+ *
+ * @author Jeremy Stone
+ */
+class LineBreakScanner {
+	static final byte CR = '\r';
+	static final byte LF = '\n';
+
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long CRS = ONES * CR;
+	private static final long LFS = ONES * LF;
+
+	/**
+	 * A consumer of line offsets found by the scanner.
+	 */
+	interface Sink {
+		/**
+		 * @param offset The byte offset at which a line begins
+		 * @throws IOException if the offset cannot be recorded
+		 */
+		void lineStart(long offset) throws IOException;
+	}
+
+	private final Sink sink;
+
+	// The offset following a CR that has not been reported yet, or -1
+	private long pendingStart = -1;
+
+	/**
+	 * @param sink The consumer to which line offsets are reported
+	 */
+	LineBreakScanner(Sink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Scan a window of the file.
+	 *
+	 * @param window         A buffer holding file content between its position and limit
+	 * @param windowPosition The offset in the file corresponding to index 0 of the buffer
+	 * @throws IOException if the sink cannot record an offset
+	 */
+	void scan(ByteBuffer window, long windowPosition) throws IOException {
+		int limit = window.limit();
+		int i = window.position();
+		while (i < limit) {
+			// Skip quickly over words that contain no line breaks. When a CR is pending, the next byte
+			// must be examined on its own.
+			if ((pendingStart < 0) && (i + Long.BYTES <= limit)) {
+				long word = window.getLong(i);
+				if (!containsLineBreak(word)) {
+					i += Long.BYTES;
+					continue;
+				}
+			}
+			int end = Math.min(i + Long.BYTES, limit);
+			for (; i < end; i++) {
+				scanByte(window.get(i), windowPosition + i + 1);
+			}
+		}
+	}
+
+	/**
+	 * Report a CR that is still pending at the end of the file.
+	 *
+	 * @throws IOException if the sink cannot record an offset
+	 */
+	void finish() throws IOException {
+		if (pendingStart >= 0) {
+			long offset = pendingStart;
+			pendingStart = -1;
+			sink.lineStart(offset);
+		}
+	}
+
+	/**
+	 * @return The offset following an unreported CR at the end of the bytes scanned so far, or -1
+	 */
+	long getPendingStart() {
+		return pendingStart;
+	}
+
+	/**
+	 * @param pendingStart The offset following an unreported CR, when resuming a scan, or -1
+	 */
+	void setPendingStart(long pendingStart) {
+		this.pendingStart = pendingStart;
+	}
+
+	/**
+	 * Check whether an 8-byte word contains a CR or LF byte.
+	 * <p>
+	 * This uses the well-known test for a zero byte, (v - 0x01...) &amp; ~v &amp; 0x80..., applied to
+	 * the word XORed with a repeated CR or LF.
+	 */
+	static boolean containsLineBreak(long word) {
+		long crs = word ^ CRS;
+		long lfs = word ^ LFS;
+		return ((((crs - ONES) & ~crs) | ((lfs - ONES) & ~lfs)) & HIGH_BITS) != 0;
+	}
+
+	private void scanByte(byte b, long nextOffset) throws IOException {
+		if (pendingStart >= 0) {
+			long offset = pendingStart;
+			pendingStart = -1;
+			if (b == LF) {
+				// CRLF: the line begins after the LF.
+				sink.lineStart(nextOffset);
+				return;
+			}
+			sink.lineStart(offset);
+		}
+		if (b == CR) {
+			pendingStart = nextOffset;
+		} else if (b == LF) {
+			sink.lineStart(nextOffset);
+		}
+	}
+}
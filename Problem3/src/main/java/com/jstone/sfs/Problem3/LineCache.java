@@ -0,0 +1,292 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-memory cache of extracted lines, for workloads in which a few lines are looked up far more
+ * often than the rest.
+ * <p>
+ * A cache is shared by any number of open files: set it with {@link IndexOptions#setLineCache} and
+ * every {@link IndexedTextFile} or {@link GzipTextFile} opened with those options checks it before
+ * reading its index and text, and adds the lines it reads. (Since {@link TextFileLineAccess}
+ * reopens the file for every line, a cache pays off most with files that stay open, as in an
+ * {@link IndexCatalog}.)
+ * <p>
+ * Lines are keyed by the identity of their file (its path, length and modification time when it was
+ * opened) and their line number, so once a file has been changed and reopened, its old lines are no
+ * longer found, and they age out of the cache. Lines are stored as their UTF-8 bytes, which for
+ * most text takes half the memory of a String.
+ * <p>
+ * The cache is bounded by the total size of the lines it holds (with a fixed allowance per entry
+ * for the key and bookkeeping), not by their number. It is split into stripes by key hash, each
+ * with its own lock, its own share of the budget and its own least-recently-used order, so that
+ * threads looking up different lines seldom contend.
+ *
+ * @author Jeremy Stone
+ */
+public class LineCache {
+	// The estimated heap cost of an entry besides its bytes: the key, the array header, and the
+	// map's entry
+	static final int ENTRY_OVERHEAD = 96;
+
+	private static final int NUM_STRIPES = 16;
+
+	private final long maxBytes;
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maxBytes The memory that the cached lines may use, in bytes
+	 */
+	public LineCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			stripes[i] = new Stripe(maxBytes / NUM_STRIPES);
+		}
+	}
+
+	/**
+	 * Identify a file as it is now, for use in keys.
+	 *
+	 * @param file The file
+	 * @return Its identity
+	 */
+	FileKey getFileKey(File file) {
+		return new FileKey(file.getAbsolutePath(), file.length(), file.lastModified());
+	}
+
+	/**
+	 * Look up a line.
+	 *
+	 * @param fileKey    The file's identity
+	 * @param lineNumber The 0-based line number
+	 * @return The line, or null if it is not cached
+	 */
+	String get(FileKey fileKey, long lineNumber) {
+		LineKey key = new LineKey(fileKey, lineNumber);
+		byte[] bytes = stripeOf(key).get(key);
+		if (bytes == null) {
+			misses.increment();
+			if (Metrics.isEnabled()) {
+				Metrics.Counter.LINE_CACHE_MISSES.add(1);
+			}
+			return null;
+		}
+		hits.increment();
+		if (Metrics.isEnabled()) {
+			Metrics.Counter.LINE_CACHE_HITS.add(1);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Add a line, evicting the least recently used lines in its stripe if necessary. A line too large
+	 * for a stripe is not cached.
+	 *
+	 * @param fileKey    The file's identity
+	 * @param lineNumber The 0-based line number
+	 * @param line       The line
+	 */
+	void put(FileKey fileKey, long lineNumber, String line) {
+		LineKey key = new LineKey(fileKey, lineNumber);
+		int evicted = stripeOf(key).put(key, line.getBytes(StandardCharsets.UTF_8));
+		if (evicted > 0) {
+			evictions.add(evicted);
+			if (Metrics.isEnabled()) {
+				Metrics.Counter.LINE_CACHE_EVICTIONS.add(evicted);
+			}
+		}
+	}
+
+	/**
+	 * Remove every line.
+	 */
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			stripe.clear();
+		}
+	}
+
+	/**
+	 * @return The memory that the cached lines may use, in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return The memory that the cached lines use now, by the cache's estimate
+	 */
+	public long getSizeBytes() {
+		long size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.getSizeBytes();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of lines cached
+	 */
+	public int getLineCount() {
+		int count = 0;
+		for (Stripe stripe : stripes) {
+			count += stripe.getLineCount();
+		}
+		return count;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return The fraction of lookups that found their line, or 0 if there have been none
+	 */
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total == 0) ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("lines=%d bytes=%d/%d hits=%d misses=%d (hit rate %.1f%%) evictions=%d", getLineCount(),
+				getSizeBytes(), maxBytes, getHits(), getMisses(), getHitRate() * 100, getEvictions());
+	}
+
+	private Stripe stripeOf(LineKey key) {
+		int h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+	}
+
+	/**
+	 * The identity of a file, when it was opened.
+	 */
+	static final class FileKey {
+		private final String path;
+		private final long length;
+		private final long modifiedTime;
+		private final int hash;
+
+		FileKey(String path, long length, long modifiedTime) {
+			this.path = path;
+			this.length = length;
+			this.modifiedTime = modifiedTime;
+			this.hash = (path.hashCode() * 31 + Long.hashCode(length)) * 31 + Long.hashCode(modifiedTime);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof FileKey)) {
+				return false;
+			}
+			FileKey other = (FileKey) o;
+			return (hash == other.hash) && (length == other.length) && (modifiedTime == other.modifiedTime)
+					&& path.equals(other.path);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	private static final class LineKey {
+		private final FileKey fileKey;
+		private final long lineNumber;
+
+		LineKey(FileKey fileKey, long lineNumber) {
+			this.fileKey = fileKey;
+			this.lineNumber = lineNumber;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof LineKey)) {
+				return false;
+			}
+			LineKey other = (LineKey) o;
+			return (lineNumber == other.lineNumber) && fileKey.equals(other.fileKey);
+		}
+
+		@Override
+		public int hashCode() {
+			// Spread consecutive line numbers across the stripes.
+			return fileKey.hashCode() * 31 + Long.hashCode(lineNumber * 0x9e3779b97f4a7c15L);
+		}
+	}
+
+	/**
+	 * One stripe: a map in least-recently-used order, with a byte budget.
+	 */
+	private static final class Stripe {
+		private final long maxBytes;
+		private final LinkedHashMap<LineKey, byte[]> lines = new LinkedHashMap<LineKey, byte[]>(64, 0.75f, true);
+		private long sizeBytes = 0;
+
+		Stripe(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized byte[] get(LineKey key) {
+			return lines.get(key);
+		}
+
+		/**
+		 * @return The number of lines evicted
+		 */
+		synchronized int put(LineKey key, byte[] bytes) {
+			long size = bytes.length + ENTRY_OVERHEAD;
+			if (size > maxBytes) {
+				return 0;
+			}
+			byte[] old = lines.put(key, bytes);
+			if (old != null) {
+				sizeBytes -= old.length + ENTRY_OVERHEAD;
+			}
+			sizeBytes += size;
+
+			int evicted = 0;
+			Iterator<Map.Entry<LineKey, byte[]>> iterator = lines.entrySet().iterator();
+			while (sizeBytes > maxBytes) {
+				Map.Entry<LineKey, byte[]> eldest = iterator.next();
+				sizeBytes -= eldest.getValue().length + ENTRY_OVERHEAD;
+				iterator.remove();
+				evicted++;
+			}
+			return evicted;
+		}
+
+		synchronized void clear() {
+			lines.clear();
+			sizeBytes = 0;
+		}
+
+		synchronized long getSizeBytes() {
+			return sizeBytes;
+		}
+
+		synchronized int getLineCount() {
+			return lines.size();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A client of a {@link LineServer} on the local machine.
+ * <p>
+ * Paths are made absolute before they are sent, since the server may have been started in another
+ * directory. A client must not be shared by several threads at once.
+ *
+ * @author Jeremy Stone
+ */
+public class LineClient implements Closeable {
+	private static final String NO_SUCH_LINE = "No such line";
+
+	private final Socket socket;
+	private final InputStream input;
+	private final OutputStream output;
+	private final ByteArrayOutputStream reply = new ByteArrayOutputStream();
+
+	/**
+	 * Connect to a server.
+	 *
+	 * @param port The port on which the server listens
+	 * @throws IOException if the server cannot be reached
+	 */
+	public LineClient(int port) throws IOException {
+		this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		this.input = new BufferedInputStream(socket.getInputStream());
+		this.output = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	/**
+	 * Extract one line.
+	 *
+	 * @param path       The text file's path
+	 * @param lineNumber The 0-based line number
+	 * @return The line, or null if lineNumber is out of range
+	 * @throws IOException if the request fails
+	 */
+	public String getLine(String path, long lineNumber) throws IOException {
+		send(String.format("LINE\t%s\t%d", absolute(path), lineNumber));
+		return readLine(readReply());
+	}
+
+	/**
+	 * Extract several lines.
+	 *
+	 * @param path        The text file's path
+	 * @param lineNumbers The 0-based line numbers
+	 * @return The lines, in the order requested, with null for each line number that is out of range
+	 * @throws IOException if the request fails
+	 */
+	public List<String> getLines(String path, long[] lineNumbers) throws IOException {
+		StringBuilder request = new StringBuilder("BATCH\t").append(absolute(path));
+		for (long lineNumber : lineNumbers) {
+			request.append('\t').append(lineNumber);
+		}
+		send(request.toString());
+		String header = readReply();
+		if (!header.startsWith("*")) {
+			readLine(header);
+			throw new IOException("Unexpected reply: " + header);
+		}
+		int count = Integer.parseInt(header.substring(1));
+		List<String> lines = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			lines.add(readLine(readReply()));
+		}
+		return lines;
+	}
+
+	/**
+	 * Copy a range of lines, as raw bytes, with their line terminators.
+	 *
+	 * @param path      The text file's path
+	 * @param firstLine The 0-based number of the first line
+	 * @param lastLine  The 0-based number of the last line (inclusive)
+	 * @param target    The channel to copy to
+	 * @return The number of bytes copied, or -1 if either line number is out of range
+	 * @throws IOException if the request fails
+	 */
+	public long transferLines(String path, long firstLine, long lastLine, WritableByteChannel target)
+			throws IOException {
+		send(String.format("RANGE\t%s\t%d\t%d", absolute(path), firstLine, lastLine));
+		String header = readReply();
+		if (!header.startsWith("$")) {
+			readLine(header);
+			return -1;
+		}
+		long length = Long.parseLong(header.substring(1));
+		byte[] bytes = new byte[(int) Math.min(length, 64 * 1024)];
+		for (long remaining = length; remaining > 0;) {
+			int numBytesRead = input.read(bytes, 0, (int) Math.min(bytes.length, remaining));
+			if (numBytesRead < 0) {
+				throw new EOFException("The server closed the connection.");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, numBytesRead);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			remaining -= numBytesRead;
+		}
+		return length;
+	}
+
+	/**
+	 * Check that the server is answering.
+	 *
+	 * @throws IOException if it is not
+	 */
+	public void ping() throws IOException {
+		send("PING");
+		readLine(readReply());
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			send("QUIT");
+		} catch (IOException e) {
+			// The server has gone away already.
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static String absolute(String path) {
+		return new File(path).getAbsolutePath();
+	}
+
+	private void send(String request) throws IOException {
+		output.write(request.getBytes(StandardCharsets.UTF_8));
+		output.write(LineBreakScanner.LF);
+		output.flush();
+	}
+
+	/**
+	 * Read the first line of a reply.
+	 */
+	private String readReply() throws IOException {
+		reply.reset();
+		int b;
+		while ((b = input.read()) != LineBreakScanner.LF) {
+			if (b < 0) {
+				throw new EOFException("The server closed the connection.");
+			}
+			reply.write(b);
+		}
+		String text = new String(reply.toByteArray(), StandardCharsets.UTF_8);
+		if (text.isEmpty()) {
+			throw new IOException("Empty reply");
+		}
+		return text;
+	}
+
+	/**
+	 * Interpret a reply of a line.
+	 *
+	 * @return The line, or null if it does not exist
+	 * @throws IOException if the reply is an error
+	 */
+	private static String readLine(String text) throws IOException {
+		if (text.charAt(0) == '+') {
+			return text.substring(1);
+		}
+		if (text.equals("-" + NO_SUCH_LINE)) {
+			return null;
+		}
+		throw new IOException(text.substring(1));
+	}
+}
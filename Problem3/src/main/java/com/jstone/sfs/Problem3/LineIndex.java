@@ -0,0 +1,172 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An open index of the line offsets in a text file.
+ * <p>
+ * Implementations must be safe to use from several threads at once.
+ *
+ * @author Jeremy Stone
+ */
+public interface LineIndex extends Closeable {
+	/**
+	 * Open an index file, in whichever format it was written.
+	 *
+	 * @param indexPath The index file's path
+	 * @return The open index
+	 * @throws IOException if the file cannot be opened, or its format is not supported
+	 */
+	static LineIndex open(Path indexPath) throws IOException {
+		FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ);
+		try {
+			IndexHeader header = IndexHeader.read(channel);
+			if (header == null) {
+				return new FlatLineIndex(channel, 0, channel.size() / TextFileLineAccess.SIZE_OF_OFFSET);
+			}
+			switch (header.getEncoding()) {
+			case SPARSE:
+				return new SparseLineIndex(channel, header);
+			case FIXED:
+				return new FixedWidthLineIndex(channel, header);
+			case FLAT:
+			default:
+				return new FlatLineIndex(channel, IndexHeader.SIZE, header.getNumOffsets());
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open an index file, and make it resident if the settings ask for it and it fits their budget.
+	 *
+	 * @param indexPath The index file's path
+	 * @param options   The settings
+	 * @return The open index
+	 * @throws IOException if the file cannot be opened or loaded, or its format is not supported
+	 */
+	static LineIndex open(Path indexPath, IndexOptions options) throws IOException {
+		LineIndex index = open(indexPath);
+		if (options.isResident() && (estimateResidentBytes(indexPath) <= options.getMaxResidentBytes())) {
+			try {
+				index.load();
+			} catch (IOException e) {
+				index.close();
+				throw e;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Estimate the memory that {@link #load()} would take for an index file, without opening it as an
+	 * index.
+	 *
+	 * @param indexPath The index file's path
+	 * @return The number of bytes that would be made resident
+	 * @throws IOException if the file cannot be read
+	 */
+	static long estimateResidentBytes(Path indexPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			IndexHeader header = IndexHeader.read(channel);
+			// A fixed-width index is always resident, and has only its exception table to load.
+			return (header == null) ? channel.size() : channel.size() - IndexHeader.SIZE;
+		}
+	}
+
+	/**
+	 * @return The number of lines in the indexed file
+	 */
+	long getLineCount();
+
+	/**
+	 * Make the index resident in memory, so that lookups read memory rather than the index file.
+	 * This reads the whole index, and takes as much memory as {@link #estimateResidentBytes} reports.
+	 * <p>
+	 * Indexes that are already resident, or cannot be made resident, ignore this.
+	 *
+	 * @throws IOException if the index cannot be loaded
+	 */
+	default void load() throws IOException {
+	}
+
+	/**
+	 * Look up the byte offset and length of a line.
+	 * <p>
+	 * The length includes the line's terminator, if it has one.
+	 *
+	 * @param lineNumber The 0-based line number to look up
+	 * @param result     An object to receive the offsets, so that lookups need not allocate
+	 * @return true, or false if the line number is out of range (in which case the result is not
+	 *         modified)
+	 * @throws IOException if the index cannot be read
+	 */
+	boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) throws IOException;
+
+	/**
+	 * Look up the byte offset and length of a line.
+	 *
+	 * @param lineNumber The 0-based line number to look up
+	 * @return The offsets, or null if the line number is out of range
+	 * @throws IOException if the index cannot be read
+	 */
+	default FileSegmentOffsets getLineOffsets(long lineNumber) throws IOException {
+		FileSegmentOffsets result = new FileSegmentOffsets(0, 0);
+		return getLineOffsets(lineNumber, result) ? result : null;
+	}
+
+	/**
+	 * Look up the byte offsets and lengths of several lines.
+	 * <p>
+	 * Implementations may take advantage of the ordering to read the index in sequential runs rather
+	 * than one line at a time.
+	 *
+	 * @param lineNumbers 0-based line numbers, in ascending order
+	 * @param results     An array to receive the offsets of each line, or null for line numbers that
+	 *                    are out of range
+	 * @throws IOException if the index cannot be read
+	 */
+	default void getLineOffsets(long[] lineNumbers, FileSegmentOffsets[] results) throws IOException {
+		for (int i = 0; i < lineNumbers.length; i++) {
+			results[i] = getLineOffsets(lineNumbers[i]);
+		}
+	}
+
+	/**
+	 * Find the line that contains a byte offset: the reverse of {@link #getLineOffsets(long)}.
+	 * <p>
+	 * Line offsets increase with line numbers, so the line is found by binary search, with
+	 * O(log(number of lines)) lookups. Implementations may search their own structures more directly.
+	 *
+	 * @param offset A byte offset in the indexed file
+	 * @return The 0-based number of the line whose bytes (including its terminator) include the
+	 *         offset, or -1 if the offset is negative or not less than the length of the file
+	 * @throws IOException if the index cannot be read
+	 */
+	default long getLineNumber(long offset) throws IOException {
+		if (offset < 0) {
+			return -1;
+		}
+		FileSegmentOffsets line = new FileSegmentOffsets(0, 0);
+		long low = 0;
+		long high = getLineCount() - 1;
+		while (low <= high) {
+			long middle = (low + high) >>> 1;
+			getLineOffsets(middle, line);
+			if (offset < line.getStart()) {
+				high = middle - 1;
+			} else if (offset >= line.getStart() + line.getLength()) {
+				low = middle + 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,457 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Builds the index of line offsets for a text file.
+ * <p>
+ * The file is memory-mapped in large windows, which are searched for CR and LF bytes by a
+ * {@link LineBreakScanner}. No characters are decoded and no objects are allocated per line, so the
+ * index can be built at close to the speed at which the file can be read from disk.
+ * <p>
+ * The index consists of an {@link IndexHeader}, followed by 6-byte offsets: the offset of each line
+ * after the first, followed by the length of the file. It is written to a temporary file, which is
+ * moved into place when it is complete, so an index that exists is never a partial one.
+ * <p>
+ * When lines have been appended to a file, its index can be brought up to date by scanning only the
+ * new bytes. See {@link #append(File, Path)}.
+ *
+ * @author Jeremy Stone
+ */
+public class LineIndexBuilder {
+	public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final int windowSize;
+
+	public LineIndexBuilder() {
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param windowSize The number of bytes of the text file to map at a time
+	 */
+	public LineIndexBuilder(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("The window size must be positive.");
+		}
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Index the byte offsets of all the line beginnings in a text file.
+	 * <p>
+	 * So that the caller does not need to read the index again, the offsets of one chosen line are
+	 * returned.
+	 *
+	 * @param file                The file to index
+	 * @param indexPath           The path at which the index file should be created
+	 * @param lineNumberRequested A line number to locate during the indexing
+	 * @return The byte offset and length of the requested line, or null if the line number is out of
+	 *         range
+	 * @throws IOException if an I/O error occurs
+	 */
+	public FileSegmentOffsets build(File file, Path indexPath, long lineNumberRequested) throws IOException {
+		IndexBuildEvent event = new IndexBuildEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		Path tempPath = createTempSibling(indexPath, ".tmp");
+		IndexSink sink = null;
+		long size = 0;
+
+		try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// Note the modification time first, so that any change made during the scan is noticed later.
+			long modifiedTime = file.lastModified();
+			size = input.size();
+			output.position(IndexHeader.SIZE);
+			sink = new IndexSink(new OffsetWriter(output), lineNumberRequested);
+			LineBreakScanner scanner = new LineBreakScanner(sink);
+
+			scan(input, scanner, 0, size);
+			scanner.finish();
+			sink.finish(size);
+
+			IndexHeader.describe(IndexEncoding.FLAT, Math.max(sink.getCount(), 1), input, size, modifiedTime)
+					.write(output);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+
+		Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+		Metrics.recordIndexBuild(event, startTime, file, "sequential", size, sink.getCount());
+		return sink.getResult();
+	}
+
+	/**
+	 * Extend an index to cover lines that have been appended to its text file.
+	 * <p>
+	 * The last line in the index may have grown, and a CR at the old end of the file may turn out to
+	 * be the first half of a CRLF pair. So the offsets describing the old last line are removed, and
+	 * scanning resumes at the old end of the file with the same state that the scanner had there.
+	 * <p>
+	 * The index is never modified in place, since other readers may have it open or mapped. It is
+	 * copied to a temporary file beside it, the copy is extended, and the copy then replaces the
+	 * index with an atomic rename. Readers that opened the old index keep reading it unchanged, and an
+	 * interrupted update leaves only a stray temporary file.
+	 * <p>
+	 * A fixed-width index is extended with the new lines' exceptions, or, if they bring too many, is
+	 * converted to a flat one (see {@link FixedWidthLineIndex.Appender}); either way, only the new
+	 * bytes are scanned.
+	 * <p>
+	 * The caller must have checked that the file has only grown since it was indexed.
+	 *
+	 * @param file      The text file
+	 * @param indexPath The path of the index, which must be a versioned index
+	 * @return true if the index was extended, or false if it could not be (if a new line is too long
+	 *         for a sparse index), in which case it must be rebuilt
+	 * @throws IOException if an I/O error occurs
+	 */
+	public boolean append(File file, Path indexPath) throws IOException {
+		IndexBuildEvent event = new IndexBuildEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		Path tempPath = copyForUpdate(indexPath);
+		try {
+			long bytesScanned;
+			long offsetsAdded;
+			try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					FileChannel output = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				long modifiedTime = file.lastModified();
+				long size = input.size();
+				IndexHeader header = IndexHeader.read(output);
+				long oldSize = header.getDataLength();
+
+				// Offset n is the end of line n. Drop the end of the old last line, and if the old data ended
+				// with CR, the line that the CR appeared to start.
+				boolean endsWithCR = (oldSize > 0) && (readByte(input, oldSize - 1) == LineBreakScanner.CR);
+				long numOffsetsKept = Math.max(0, header.getNumOffsets() - (endsWithCR ? 2 : 1));
+
+				AppendSink sink = null;
+				switch (header.getEncoding()) {
+				case SPARSE:
+					sink = new SparseAppendSink(output, header, numOffsetsKept);
+					break;
+				case FIXED:
+					sink = new FixedAppendSink(output, header, numOffsetsKept);
+					break;
+				case FLAT:
+				default:
+					sink = new FlatAppendSink(output, numOffsetsKept);
+				}
+
+				LineBreakScanner scanner = new LineBreakScanner(sink);
+				if (endsWithCR) {
+					scanner.setPendingStart(oldSize);
+				}
+				scan(input, scanner, oldSize, size);
+				scanner.finish();
+				if (size > 0) {
+					sink.lineStart(size);
+				}
+				if (!sink.close()) {
+					return false;
+				}
+
+				IndexHeader updated = IndexHeader.describe(sink.getEncoding(), Math.max(sink.getCount(), 1), input,
+						size, modifiedTime);
+				sink.setParameters(updated);
+				updated.write(output);
+				bytesScanned = size - oldSize;
+				offsetsAdded = sink.getCount() - numOffsetsKept;
+			}
+			replace(tempPath, indexPath);
+			Metrics.recordIndexBuild(event, startTime, file, "append", bytesScanned, offsetsAdded);
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+		return true;
+	}
+
+	/**
+	 * Create a temporary file beside a file that is about to be written, for writing it before it is
+	 * moved into place. The name is chosen so that no other process can choose it at the same time,
+	 * so processes building the same index at once do not write over each other's files.
+	 *
+	 * @param path   The path of the file to be written
+	 * @param suffix The suffix of the temporary file's name, such as ".tmp"
+	 * @return The path of the new, empty file
+	 * @throws IOException if the file cannot be created
+	 */
+	static Path createTempSibling(Path path, String suffix) throws IOException {
+		Path directory = path.toAbsolutePath().getParent();
+		return Files.createTempFile(directory, path.getFileName() + ".", suffix);
+	}
+
+	/**
+	 * Copy an index to a new temporary file in the same directory, so that the copy can be changed
+	 * and then moved into the index's place with {@link #replace}.
+	 *
+	 * @param indexPath The path of the index
+	 * @return The path of the copy
+	 * @throws IOException if the index cannot be copied
+	 */
+	static Path copyForUpdate(Path indexPath) throws IOException {
+		Path tempPath = createTempSibling(indexPath, ".tmp");
+		try {
+			Files.copy(indexPath, tempPath, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+		return tempPath;
+	}
+
+	/**
+	 * Replace an index with an updated copy, atomically, so that a reader opening the index sees
+	 * either the old one or the new one.
+	 *
+	 * @param tempPath  The path of the updated copy
+	 * @param indexPath The path of the index
+	 * @throws IOException if the copy cannot be moved
+	 */
+	static void replace(Path tempPath, Path indexPath) throws IOException {
+		Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Feed a byte range of a file to a scanner, one mapped window at a time.
+	 */
+	void scan(FileChannel input, LineBreakScanner scanner, long from, long to) throws IOException {
+		for (long position = from; position < to; position += windowSize) {
+			long length = Math.min(windowSize, to - position);
+			MappedByteBuffer window = input.map(FileChannel.MapMode.READ_ONLY, position, length);
+			scanner.scan(window, position);
+		}
+	}
+
+	private static byte readByte(FileChannel channel, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		if (channel.read(buffer, position) < 1) {
+			throw new IOException("The text file is shorter than its index.");
+		}
+		return buffer.get(0);
+	}
+
+	/**
+	 * Writes offsets to the index, and watches for the offsets of the requested line.
+	 * <p>
+	 * The n-th offset written (counting from 0) is both the end of line n and the beginning of line
+	 * n+1.
+	 */
+	private static class IndexSink implements LineBreakScanner.Sink {
+		private final OffsetWriter writer;
+		private final long lineNumberRequested;
+		private long start = 0;
+		private FileSegmentOffsets result = null;
+
+		IndexSink(OffsetWriter writer, long lineNumberRequested) {
+			this.writer = writer;
+			this.lineNumberRequested = lineNumberRequested;
+		}
+
+		@Override
+		public void lineStart(long offset) throws IOException {
+			long count = writer.getCount();
+			if (count == lineNumberRequested - 1) {
+				start = offset;
+			} else if (count == lineNumberRequested) {
+				result = new FileSegmentOffsets(start, (int) (offset - start));
+			}
+			writer.write(offset);
+		}
+
+		/**
+		 * Terminate the index with the length of the file. (An empty file has an empty index.)
+		 */
+		void finish(long fileLength) throws IOException {
+			if (fileLength > 0) {
+				lineStart(fileLength);
+			} else if (lineNumberRequested == 0) {
+				result = new FileSegmentOffsets(0, 0);
+			}
+			writer.close();
+		}
+
+		long getCount() {
+			return writer.getCount();
+		}
+
+		FileSegmentOffsets getResult() {
+			return result;
+		}
+	}
+
+	/**
+	 * Appends offsets to an existing index.
+	 */
+	private interface AppendSink extends LineBreakScanner.Sink {
+		/**
+		 * @return The number of offsets in the index
+		 */
+		long getCount();
+
+		/**
+		 * Write any buffered offsets.
+		 *
+		 * @return false if the offsets could not all be stored
+		 */
+		boolean close() throws IOException;
+
+		/**
+		 * @return The encoding of the index, once it has been closed
+		 */
+		IndexEncoding getEncoding();
+
+		/**
+		 * Set the encoding's parameters in the index's new header.
+		 */
+		void setParameters(IndexHeader header);
+	}
+
+	private static class FlatAppendSink implements AppendSink {
+		private final OffsetWriter writer;
+		private final long numOffsetsKept;
+
+		FlatAppendSink(FileChannel output, long numOffsetsKept) throws IOException {
+			long position = IndexHeader.SIZE + numOffsetsKept * TextFileLineAccess.SIZE_OF_OFFSET;
+			output.truncate(position);
+			output.position(position);
+			this.writer = new OffsetWriter(output);
+			this.numOffsetsKept = numOffsetsKept;
+		}
+
+		@Override
+		public void lineStart(long offset) throws IOException {
+			writer.write(offset);
+		}
+
+		@Override
+		public long getCount() {
+			return numOffsetsKept + writer.getCount();
+		}
+
+		@Override
+		public boolean close() throws IOException {
+			writer.close();
+			return true;
+		}
+
+		@Override
+		public IndexEncoding getEncoding() {
+			return IndexEncoding.FLAT;
+		}
+
+		@Override
+		public void setParameters(IndexHeader header) {
+		}
+	}
+
+	/**
+	 * Appends to a sparse index by rewriting its last block, which may be partly filled, and then
+	 * adding new blocks.
+	 */
+	private static class SparseAppendSink implements AppendSink {
+		private final SparseLineIndex.Writer writer;
+		private final int linesPerBlock;
+		private final int bitsPerLength;
+
+		SparseAppendSink(FileChannel output, IndexHeader header, long numOffsetsKept) throws IOException {
+			linesPerBlock = header.getParameter1();
+			bitsPerLength = header.getParameter2();
+			long firstLine = (numOffsetsKept / linesPerBlock) * linesPerBlock;
+
+			// Collect the ends of the lines kept in the last block before overwriting it.
+			SparseLineIndex index = new SparseLineIndex(output, header);
+			long firstStart = (firstLine > 0) ? index.getLineOffsets(firstLine).getStart() : 0;
+			long[] ends = new long[(int) (numOffsetsKept - firstLine)];
+			for (int i = 0; i < ends.length; i++) {
+				FileSegmentOffsets offsets = index.getLineOffsets(firstLine + i);
+				ends[i] = offsets.getStart() + offsets.getLength();
+			}
+
+			long position = IndexHeader.SIZE
+					+ (firstLine / linesPerBlock) * SparseLineIndex.blockSize(linesPerBlock, header.getParameter2());
+			output.truncate(position);
+			output.position(position);
+			writer = new SparseLineIndex.Writer(output, linesPerBlock, header.getParameter2(), firstLine, firstStart);
+			for (long end : ends) {
+				writer.lineStart(end);
+			}
+		}
+
+		@Override
+		public void lineStart(long offset) throws IOException {
+			writer.lineStart(offset);
+		}
+
+		@Override
+		public long getCount() {
+			return writer.getLinesWritten();
+		}
+
+		@Override
+		public boolean close() throws IOException {
+			writer.close();
+			return !writer.isOverflowed();
+		}
+
+		@Override
+		public IndexEncoding getEncoding() {
+			return IndexEncoding.SPARSE;
+		}
+
+		@Override
+		public void setParameters(IndexHeader header) {
+			header.setParameter1(linesPerBlock);
+			header.setParameter2(bitsPerLength);
+		}
+	}
+
+	/**
+	 * Appends to a fixed-width index by adding to its exception table, or by converting it to a flat
+	 * index if the new lines bring too many exceptions.
+	 */
+	private static class FixedAppendSink implements AppendSink {
+		private final FixedWidthLineIndex.Appender appender;
+
+		FixedAppendSink(FileChannel output, IndexHeader header, long numOffsetsKept) throws IOException {
+			appender = new FixedWidthLineIndex.Appender(output, header, numOffsetsKept);
+		}
+
+		@Override
+		public void lineStart(long offset) throws IOException {
+			appender.lineStart(offset);
+		}
+
+		@Override
+		public long getCount() {
+			return appender.getLinesWritten();
+		}
+
+		@Override
+		public boolean close() throws IOException {
+			appender.close();
+			return true;
+		}
+
+		@Override
+		public IndexEncoding getEncoding() {
+			return appender.getEncoding();
+		}
+
+		@Override
+		public void setParameters(IndexHeader header) {
+			appender.setParameters(header);
+		}
+	}
+}
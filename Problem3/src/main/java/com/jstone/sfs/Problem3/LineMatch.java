@@ -0,0 +1,26 @@
+package com.jstone.sfs.Problem3;
+
+import lombok.Getter;
+
+/**
+ * A line found by a search.
+ *
+ * @author Jeremy Stone
+ */
+@Getter
+public class LineMatch {
+	private final long lineNumber;
+	private final FileSegmentOffsets offsets;
+	private final String line;
+
+	/**
+	 * @param lineNumber The 0-based line number
+	 * @param offsets    The byte offset and length of the line, including its terminator
+	 * @param line       The line, without its terminator
+	 */
+	public LineMatch(long lineNumber, FileSegmentOffsets offsets, String line) {
+		this.lineNumber = lineNumber;
+		this.offsets = offsets;
+		this.line = line;
+	}
+}
@@ -0,0 +1,34 @@
+package com.jstone.sfs.Problem3;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for one call that extracts lines from an indexed file: a single line, a
+ * batch, or a range.
+ *
+ * @author Jeremy Stone
+ * @see Metrics
+ */
+@Name("com.jstone.sfs.Problem3.LineRead")
+@Label("Line Read")
+@Category("Problem3")
+@Description("Lines were extracted from an indexed text file")
+class LineReadEvent extends jdk.jfr.Event {
+	@Label("File")
+	String path;
+
+	@Label("Operation")
+	@Description("line, batch, or range")
+	String operation;
+
+	@Label("Lines Requested")
+	long lines;
+
+	@Label("Bytes Read")
+	@DataAmount
+	long bytes;
+}
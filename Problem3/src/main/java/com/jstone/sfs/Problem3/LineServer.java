@@ -0,0 +1,439 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A server that answers requests for lines over a loopback TCP connection, so that a process that
+ * looks up many lines pays for starting the JVM and opening each file's index only once.
+ * <p>
+ * Files are kept open in an {@link IndexCatalog}, which is shared by all the connections. Each
+ * connection is served by its own thread, which reads a request, answers it, and waits for the
+ * next. The threads come from a pool of a fixed size, and a connection made while every thread is
+ * busy is refused with an error, rather than left waiting. Only connections from the local machine
+ * are accepted, since the server binds the loopback address.
+ * <p>
+ * The connections are not authenticated, so any local user can ask for any file that the server
+ * may read. Requests are therefore limited to the files under a root directory: a path (relative
+ * to the root, or absolute) that resolves, after following links, to anything outside it is
+ * refused. The server writes the index of each file it opens beside the file, so it needs write
+ * access to the directory, and the directory should hold only files meant for every local user.
+ * <p>
+ * The protocol is line-based, in UTF-8, so it can be spoken by scripts (with nc, for example) as
+ * well as by {@link LineClient}. Each request is a line of tab-separated fields, beginning with a
+ * command:
+ * <ul>
+ * <li>LINE &lt;path&gt; &lt;line number&gt;
+ * <li>BATCH &lt;path&gt; &lt;line number&gt; [&lt;line number&gt; ...]
+ * <li>RANGE &lt;path&gt; &lt;first line&gt; &lt;last line&gt;
+ * <li>PING
+ * <li>QUIT
+ * </ul>
+ * Each reply begins with a line whose first character gives its type:
+ * <ul>
+ * <li>"+" followed by a line of text (for LINE, and PING)
+ * <li>"-" followed by an error message (for a line that does not exist, or a request that fails)
+ * <li>"*" followed by a count n, and then n replies of the types above (for BATCH)
+ * <li>"$" followed by a count of bytes, and then that many bytes of text, copied from the file with
+ * their line terminators (for RANGE)
+ * </ul>
+ * Replies are sent in the order of the requests, so a client may send many requests before
+ * reading the replies. Replies are written as soon as no further requests are waiting.
+ *
+ * @author Jeremy Stone
+ */
+public class LineServer implements Closeable {
+	public static final int DEFAULT_PORT = 7433;
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+	// The size of each connection's reply buffer, which grows for longer lines
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] NO_SUCH_LINE = "-No such line\n".getBytes(StandardCharsets.UTF_8);
+
+	private final ServerSocketChannel server;
+	private final IndexCatalog catalog;
+	// The directory under which requested files must be, with its links resolved
+	private final Path root;
+	// Serves the connections, a thread each, and refuses work when every thread is busy
+	private final ThreadPoolExecutor executor;
+	// Guards the set of open connections
+	private final Set<SocketChannel> connections = new HashSet<SocketChannel>();
+
+	/**
+	 * Bind the loopback address, with the default limit on connections. Requests are not answered
+	 * until {@link #start()} is called.
+	 *
+	 * @param port    The port to listen on, or 0 for any free port (see {@link #getPort()})
+	 * @param catalog The catalog from which to acquire files
+	 * @param root    The directory under which requested files must be
+	 * @throws IOException if the root directory does not exist, or the port cannot be bound
+	 */
+	public LineServer(int port, IndexCatalog catalog, Path root) throws IOException {
+		this(port, catalog, root, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Bind the loopback address. Requests are not answered until {@link #start()} is called.
+	 *
+	 * @param port           The port to listen on, or 0 for any free port (see {@link #getPort()})
+	 * @param catalog        The catalog from which to acquire files
+	 * @param root           The directory under which requested files must be
+	 * @param maxConnections The number of connections to serve at once
+	 * @throws IOException if the root directory does not exist, or the port cannot be bound
+	 */
+	public LineServer(int port, IndexCatalog catalog, Path root, int maxConnections) throws IOException {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("At least one connection must be allowed.");
+		}
+		this.catalog = catalog;
+		this.root = root.toRealPath();
+		if (!Files.isDirectory(this.root)) {
+			throw new FileNotFoundException(String.format("%s is not a directory.", root));
+		}
+		this.executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), LineServer::newThread);
+		executor.allowCoreThreadTimeOut(true);
+		this.server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The port on which the server listens
+	 * @throws IOException if the server is closed
+	 */
+	public int getPort() throws IOException {
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * @return The directory under which requested files must be, with its links resolved
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/**
+	 * Start accepting connections, on a background thread.
+	 */
+	public void start() {
+		newThread(this::run).start();
+	}
+
+	/**
+	 * Accept connections on the calling thread, until the server is closed.
+	 */
+	public void run() {
+		try {
+			while (true) {
+				SocketChannel connection = server.accept();
+				connection.socket().setTcpNoDelay(true);
+				synchronized (connections) {
+					connections.add(connection);
+				}
+				try {
+					executor.execute(() -> serve(connection));
+				} catch (RejectedExecutionException e) {
+					refuse(connection);
+				}
+			}
+		} catch (ClosedChannelException e) {
+			// The server has been closed.
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop accepting connections, and close the open ones. The catalog is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		server.close();
+		List<SocketChannel> open;
+		synchronized (connections) {
+			open = new ArrayList<SocketChannel>(connections);
+		}
+		for (SocketChannel connection : open) {
+			connection.close();
+		}
+		executor.shutdownNow();
+	}
+
+	private static Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, "LineServer");
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Tell a client that every thread is busy, and close its connection.
+	 */
+	private void refuse(SocketChannel connection) {
+		synchronized (connections) {
+			connections.remove(connection);
+		}
+		try (SocketChannel channel = connection) {
+			channel.write(ByteBuffer.wrap("-Too many connections\n".getBytes(StandardCharsets.UTF_8)));
+		} catch (IOException e) {
+			// The client has gone away.
+		}
+	}
+
+	/**
+	 * Answer the requests on one connection until the client disconnects or quits.
+	 */
+	private void serve(SocketChannel connection) {
+		try (SocketChannel channel = connection) {
+			BufferedReader reader = new BufferedReader(
+					new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			Connection state = new Connection(channel);
+			String request;
+			while ((request = reader.readLine()) != null) {
+				if (!answer(request, state)) {
+					break;
+				}
+				if (!reader.ready()) {
+					state.flush();
+				}
+			}
+			state.flush();
+		} catch (ClosedChannelException e) {
+			// The server has been closed.
+		} catch (IOException e) {
+			// The client has gone away.
+		} finally {
+			synchronized (connections) {
+				connections.remove(connection);
+			}
+		}
+	}
+
+	/**
+	 * Answer one request.
+	 *
+	 * @return false if the client has asked to quit
+	 */
+	private boolean answer(String request, Connection state) throws IOException {
+		String[] fields = request.split("\t", -1);
+		try {
+			switch (fields[0]) {
+			case "LINE":
+				if (fields.length == 3) {
+					try (IndexCatalog.Lease lease = catalog.acquire(resolve(fields[1]))) {
+						putLine(lease.getFile(), Long.parseLong(fields[2]), state);
+					}
+					return true;
+				}
+				break;
+			case "BATCH":
+				if (fields.length >= 3) {
+					try (IndexCatalog.Lease lease = catalog.acquire(resolve(fields[1]))) {
+						putBatch(lease.getFile(), fields, state);
+					}
+					return true;
+				}
+				break;
+			case "RANGE":
+				if (fields.length == 4) {
+					try (IndexCatalog.Lease lease = catalog.acquire(resolve(fields[1]))) {
+						putRange(lease.getFile(), Long.parseLong(fields[2]), Long.parseLong(fields[3]), state);
+					}
+					return true;
+				}
+				break;
+			case "PING":
+				state.put("+PONG\n");
+				return true;
+			case "QUIT":
+				return false;
+			default:
+			}
+			state.put("-Unknown request\n");
+		} catch (NumberFormatException e) {
+			state.put("-Bad line number\n");
+		} catch (IOException e) {
+			if (!state.channel.isOpen()) {
+				throw e;
+			}
+			state.put(String.format("-%s\n", String.valueOf(e.getMessage()).replaceAll("[\r\n]+", " ")));
+		}
+		return true;
+	}
+
+	/**
+	 * Find the file that a client has asked for, which must be a file under the root directory.
+	 *
+	 * @param requested The path, absolute or relative to the root directory
+	 * @return The file's real path
+	 * @throws IOException if the path is not that of a file under the root directory
+	 */
+	private String resolve(String requested) throws IOException {
+		// Refuse paths outside the root before looking at them, so that a client cannot learn which
+		// files exist elsewhere, and again once links are followed.
+		Path path;
+		try {
+			path = root.resolve(requested).normalize();
+		} catch (InvalidPathException e) {
+			throw new IOException(String.format("Bad path: %s", e.getMessage()));
+		}
+		if (!path.startsWith(root)) {
+			throw new IOException(String.format("%s is not under the served directory", requested));
+		}
+		try {
+			path = path.toRealPath();
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(String.format("No such file: %s", requested));
+		}
+		if (!path.startsWith(root)) {
+			throw new IOException(String.format("%s is not under the served directory", requested));
+		}
+		if (!Files.isRegularFile(path)) {
+			throw new IOException(String.format("%s is not a file", requested));
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Put a line in the reply buffer, as a "+" reply, reading it straight into the buffer.
+	 */
+	private static void putLine(LineSource file, long lineNumber, Connection state) throws IOException {
+		while (true) {
+			ByteBuffer buffer = state.reserve(2);
+			int mark = buffer.position();
+			buffer.put((byte) '+');
+			try {
+				if (file.getLine(lineNumber, buffer) < 0) {
+					buffer.position(mark);
+					state.put(NO_SUCH_LINE);
+					return;
+				}
+				if (buffer.hasRemaining()) {
+					buffer.put(LineBreakScanner.LF);
+					return;
+				}
+			} catch (BufferOverflowException e) {
+				// Fall through.
+			}
+			// The line did not fit: make room for it and try again.
+			buffer.position(mark);
+			FileSegmentOffsets offsets = file.getLineOffsets(lineNumber);
+			state.reserve(((offsets != null) ? offsets.getLength() : 0) + 2);
+		}
+	}
+
+	private static void putBatch(LineSource file, String[] fields, Connection state) throws IOException {
+		long[] lineNumbers = new long[fields.length - 2];
+		for (int i = 0; i < lineNumbers.length; i++) {
+			lineNumbers[i] = Long.parseLong(fields[i + 2]);
+		}
+		List<String> lines = file.getLines(lineNumbers);
+		state.put(String.format("*%d\n", lines.size()));
+		for (String line : lines) {
+			if (line == null) {
+				state.put(NO_SUCH_LINE);
+			} else {
+				state.put("+" + line + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Copy a range of lines to the client as a "$" reply. The bytes are copied by the operating
+	 * system from a plain text file (see {@link LineSource#transferLines}).
+	 */
+	private static void putRange(LineSource file, long firstLine, long lastLine, Connection state)
+			throws IOException {
+		FileSegmentOffsets first = file.getLineOffsets(firstLine);
+		FileSegmentOffsets last = file.getLineOffsets(lastLine);
+		if ((first == null) || (last == null) || (lastLine < firstLine)) {
+			state.put(NO_SUCH_LINE);
+			return;
+		}
+		long length = last.getStart() + last.getLength() - first.getStart();
+		state.put(String.format("$%d\n", length));
+		state.flush();
+		// Once the length has been sent, a failure cannot be reported in the reply, so it ends the
+		// connection.
+		try {
+			if (file.transferLines(firstLine, lastLine, state.channel) != length) {
+				throw new IOException("The file changed while it was being sent.");
+			}
+		} catch (IOException e) {
+			state.channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * The reply buffer of one connection.
+	 */
+	private static class Connection {
+		final SocketChannel channel;
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Make sure the buffer has room for a number of bytes, flushing or growing it if necessary.
+		 *
+		 * @return The buffer
+		 */
+		ByteBuffer reserve(int numBytes) throws IOException {
+			if (buffer.remaining() < numBytes) {
+				flush();
+				if (buffer.capacity() < numBytes) {
+					buffer = ByteBuffer.allocate(numBytes);
+				}
+			}
+			return buffer;
+		}
+
+		void put(byte[] bytes) throws IOException {
+			reserve(bytes.length).put(bytes);
+		}
+
+		void put(String s) throws IOException {
+			put(s.getBytes(StandardCharsets.UTF_8));
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
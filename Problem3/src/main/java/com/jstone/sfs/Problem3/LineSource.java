@@ -0,0 +1,120 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * A text file opened for access by line number, whether it is stored plain ({@link IndexedTextFile})
+ * or gzip-compressed ({@link GzipTextFile}).
+ *
+ * @author Jeremy Stone
+ */
+public interface LineSource extends Closeable {
+	/**
+	 * Open a text file, choosing the implementation by its name, and indexing it first if necessary.
+	 *
+	 * @param path    The file's path
+	 * @param options The settings to use if the file needs to be indexed
+	 * @return The open file
+	 * @throws IOException if the file cannot be read or indexed
+	 */
+	static LineSource open(String path, IndexOptions options) throws IOException {
+		if (GzipTextFile.isGzip(path)) {
+			return GzipTextFile.open(path, options);
+		}
+		return IndexedTextFile.open(path, options);
+	}
+
+	/**
+	 * @return The file
+	 */
+	File getFile();
+
+	/**
+	 * @return The number of lines in the text
+	 */
+	long getLineCount();
+
+	/**
+	 * Look up the byte offset and length of a line in the text, including its terminator.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The offsets, or null if the line number is out of range
+	 * @throws IOException if the index cannot be read
+	 */
+	FileSegmentOffsets getLineOffsets(long lineNumber) throws IOException;
+
+	/**
+	 * Find the line that contains a byte offset in the text.
+	 *
+	 * @param offset A byte offset
+	 * @return The 0-based number of the line containing the offset, or -1 if the offset is out of
+	 *         range
+	 * @throws IOException if the index cannot be read
+	 */
+	long getLineNumber(long offset) throws IOException;
+
+	/**
+	 * Extract one line.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The line, without its terminator, or null if the line number is out of range
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	String getLine(long lineNumber) throws IOException;
+
+	/**
+	 * Extract one line as raw bytes, without decoding it. The line's terminator, and a byte order
+	 * mark at the beginning of the text, are left out.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @param target     The buffer to put the line in, from its position. It must have room for the
+	 *                   line with its terminator (see {@link #getLineOffsets}). Its position is
+	 *                   advanced past the line.
+	 * @return The number of bytes put in the buffer, or -1 if the line number is out of range
+	 * @throws IOException             if the file or its index cannot be read
+	 * @throws BufferOverflowException if the buffer does not have room for the line
+	 */
+	int getLine(long lineNumber, ByteBuffer target) throws IOException;
+
+	/**
+	 * Extract several lines.
+	 *
+	 * @param lineNumbers The 0-based line numbers
+	 * @return The lines, in the order requested, with null for any line number that is out of range
+	 * @throws IOException if the file or its index cannot be read
+	 */
+	List<String> getLines(long[] lineNumbers) throws IOException;
+
+	/**
+	 * Copy a range of lines, as raw bytes, to a channel.
+	 *
+	 * @param firstLine The 0-based number of the first line to copy
+	 * @param lastLine  The 0-based number of the last line to copy (inclusive)
+	 * @param target    The channel to write to
+	 * @return The number of bytes copied, or -1 if firstLine is out of range or after lastLine
+	 * @throws IOException if the file or its index cannot be read, or the target cannot be written
+	 */
+	long transferLines(long firstLine, long lastLine, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Get the number of the first of the last lines of the text, as "tail -n" counts them: an empty
+	 * line after a final line terminator is not counted.
+	 *
+	 * @param numLines The number of lines wanted from the end of the text
+	 * @return The 0-based number of the first of those lines
+	 * @throws IOException if the index cannot be read
+	 */
+	default long getTailLineNumber(long numLines) throws IOException {
+		long lastLine = getLineCount() - 1;
+		if ((lastLine > 0) && (getLineOffsets(lastLine).getLength() == 0)) {
+			lastLine--;
+		}
+		return Math.max(0, lastLine - numLines + 1);
+	}
+}
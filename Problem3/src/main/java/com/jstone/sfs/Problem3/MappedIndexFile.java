@@ -0,0 +1,99 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The body of an index file, mapped into memory and loaded, for resident indexes (see
+ * {@link LineIndex#load()}).
+ * <p>
+ * A single mapping is limited to 2 GB, and an index of a billion lines takes 6 GB, so the file is
+ * mapped in chunks of {@value #CHUNK_SIZE} bytes. Values are read with absolute gets, which neither
+ * allocate nor move a buffer's position, so any number of threads can read at once. A value that
+ * straddles two chunks, or runs past the end of the file, is assembled a byte at a time (with zeros
+ * past the end).
+ * <p>
+ * {@link MappedByteBuffer#load()} reads every page into memory, so that no lookup waits for the
+ * disk. The pages are still part of the page cache, and the operating system may evict them under
+ * memory pressure, in which case they are read back on the next access.
+ *
+ * @author Jeremy Stone
+ */
+class MappedIndexFile {
+	static final int CHUNK_SIZE = 1 << 30;
+
+	private final int chunkShift;
+	private final long chunkMask;
+	private final long length;
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * Map and load the part of an index file from a position to its end.
+	 *
+	 * @param channel  An open channel on the index file. It may be closed once this returns.
+	 * @param position The position of the first byte to map, which becomes position 0
+	 * @throws IOException if the file cannot be mapped
+	 */
+	MappedIndexFile(FileChannel channel, long position) throws IOException {
+		this(channel, position, CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize The size of each mapping, a power of 2 (smaller only for testing)
+	 */
+	MappedIndexFile(FileChannel channel, long position, int chunkSize) throws IOException {
+		this.chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+		this.chunkMask = chunkSize - 1;
+		this.length = Math.max(0, channel.size() - position);
+		int numChunks = (int) ((length + chunkSize - 1) >>> chunkShift);
+		this.chunks = new MappedByteBuffer[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			long start = (long) i << chunkShift;
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start,
+					Math.min(chunkSize, length - start));
+			chunks[i].load();
+		}
+	}
+
+	/**
+	 * @return The number of bytes mapped
+	 */
+	long getLength() {
+		return length;
+	}
+
+	/**
+	 * Read a 6-byte offset, as written by {@link OffsetWriter}.
+	 */
+	long readOffset(long position) {
+		MappedByteBuffer chunk = chunks[(int) (position >>> chunkShift)];
+		int i = (int) (position & chunkMask);
+		if (i + TextFileLineAccess.SIZE_OF_OFFSET <= chunk.limit()) {
+			return OffsetWriter.readOffset(chunk, i);
+		}
+		return readSlowly(position, TextFileLineAccess.SIZE_OF_OFFSET);
+	}
+
+	/**
+	 * Read a big-endian long.
+	 */
+	long getLong(long position) {
+		int c = (int) (position >>> chunkShift);
+		int i = (int) (position & chunkMask);
+		if ((c < chunks.length) && (i + Long.BYTES <= chunks[c].limit())) {
+			return chunks[c].getLong(i);
+		}
+		return readSlowly(position, Long.BYTES);
+	}
+
+	private long readSlowly(long position, int numBytes) {
+		long value = 0;
+		for (int k = 0; k < numBytes; k++) {
+			long p = position + k;
+			int b = (p < length) ? chunks[(int) (p >>> chunkShift)].get((int) (p & chunkMask)) & 0xff : 0;
+			value = (value << 8) | b;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,327 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the indexing and line-access paths.
+ * <p>
+ * Metrics are off by default. They are turned on with {@link #setEnabled(boolean)}, or by starting
+ * the JVM with -Dproblem3.metrics=true. With -Dproblem3.metrics.interval=&lt;seconds&gt; they are
+ * also printed to stderr at that interval (see {@link #startPeriodicDump}). While metrics are off,
+ * the instrumented code reads one static field per call and skips the rest, and no timestamps are
+ * taken.
+ * <p>
+ * The values can be read in-process with {@link #getCounters()} and {@link #getHistograms()}, or
+ * as text with {@link #report()}.
+ * <p>
+ * Independently of this switch, index builds and line reads are also published as Flight Recorder
+ * events ({@link IndexBuildEvent} and {@link LineReadEvent}), which cost nothing unless a recording
+ * has enabled them.
+ *
+ * @author Jeremy Stone
+ */
+public final class Metrics {
+	/**
+	 * The counters. Each is a {@link LongAdder}, so that threads incrementing it do not contend.
+	 */
+	public enum Counter {
+		INDEX_BUILDS("index.builds"),
+		INDEX_BYTES_SCANNED("index.bytesScanned"),
+		INDEX_LINES_FOUND("index.linesFound"),
+		// An existing index was found to be current and used as it is
+		INDEX_REUSED("index.reused"),
+		// An existing index was extended to cover appended lines
+		INDEX_EXTENDED("index.extended"),
+		// No index existed, or an existing index no longer described its file
+		INDEX_REBUILT("index.rebuilt"),
+		LINES_LOOKED_UP("lookup.lines"),
+		// Bytes of text read (for a gzip file, bytes decompressed)
+		BYTES_READ("data.bytesRead"),
+		// Read and transfer system calls on uncompressed text files
+		READ_CALLS("data.readCalls"),
+		// Blocks of lines read by searches, and blocks that their trigram filters let them skip
+		SEARCH_BLOCKS_SCANNED("search.blocksScanned"),
+		SEARCH_BLOCKS_SKIPPED("search.blocksSkipped"),
+		// Lookups in line caches (see LineCache)
+		LINE_CACHE_HITS("lineCache.hits"),
+		LINE_CACHE_MISSES("lineCache.misses"),
+		LINE_CACHE_EVICTIONS("lineCache.evictions"),
+		// Windows of lines read ahead (see Readahead), requests answered from them, and lines read
+		// ahead but never requested
+		READAHEAD_WINDOWS("readahead.windows"),
+		READAHEAD_HITS("readahead.hits"),
+		READAHEAD_LINES_WASTED("readahead.linesWasted");
+
+		private final String name;
+		private final LongAdder adder = new LongAdder();
+
+		Counter(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long get() {
+			return adder.sum();
+		}
+
+		void add(long n) {
+			adder.add(n);
+		}
+	}
+
+	/**
+	 * The histograms.
+	 */
+	public enum Timer {
+		// Building or extending an index
+		INDEX_BUILD("index.build"),
+		// Looking up the offsets of one line, or of a batch of lines, in an index
+		INDEX_LOOKUP("index.lookup"),
+		// Reading (or decompressing) the bytes of one line, one merged span of a batch, or one range
+		DATA_READ("data.read");
+
+		private final LatencyHistogram histogram;
+
+		Timer(String name) {
+			this.histogram = new LatencyHistogram(name);
+		}
+
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+	}
+
+	private static final String ENABLED_PROPERTY = "problem3.metrics";
+	private static final String INTERVAL_PROPERTY = "problem3.metrics.interval";
+
+	private static volatile boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+	private static ScheduledExecutorService dumper = null;
+
+	static {
+		long interval = Long.getLong(INTERVAL_PROPERTY, 0);
+		if (interval > 0) {
+			enabled = true;
+			startPeriodicDump(interval * 1000, System.err);
+		}
+	}
+
+	private Metrics() {
+	}
+
+	/**
+	 * @return true if metrics are being recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turn the recording of metrics on or off. Values already recorded are kept.
+	 *
+	 * @param enabled true to record metrics
+	 */
+	public static void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+
+	/**
+	 * Set all the counters and histograms to zero.
+	 */
+	public static void reset() {
+		for (Counter counter : Counter.values()) {
+			counter.adder.reset();
+		}
+		for (Timer timer : Timer.values()) {
+			timer.histogram.reset();
+		}
+	}
+
+	/**
+	 * @return The current value of each counter, by name
+	 */
+	public static Map<String, Long> getCounters() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		for (Counter counter : Counter.values()) {
+			counters.put(counter.getName(), counter.get());
+		}
+		return counters;
+	}
+
+	/**
+	 * @return Each histogram, by name. The histograms are live, not copies.
+	 */
+	public static Map<String, LatencyHistogram> getHistograms() {
+		Map<String, LatencyHistogram> histograms = new LinkedHashMap<String, LatencyHistogram>();
+		for (Timer timer : Timer.values()) {
+			histograms.put(timer.histogram.getName(), timer.histogram);
+		}
+		return histograms;
+	}
+
+	/**
+	 * @return The counters and histograms as text, one per line
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder();
+		for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+			report.append(String.format("%s: %d%n", counter.getKey(), counter.getValue()));
+		}
+		for (Timer timer : Timer.values()) {
+			report.append(timer.histogram).append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Print {@link #report()} at a fixed interval, on a daemon thread, until
+	 * {@link #stopPeriodicDump()} is called. Any earlier periodic dump is stopped.
+	 *
+	 * @param intervalMillis The interval in milliseconds
+	 * @param out            The stream to print to
+	 */
+	public static synchronized void startPeriodicDump(long intervalMillis, PrintStream out) {
+		stopPeriodicDump();
+		dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-dump");
+			thread.setDaemon(true);
+			return thread;
+		});
+		dumper.scheduleAtFixedRate(() -> out.print(report()), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop printing metrics periodically.
+	 */
+	public static synchronized void stopPeriodicDump() {
+		if (dumper != null) {
+			dumper.shutdownNow();
+			dumper = null;
+		}
+	}
+
+	/**
+	 * Start timing an operation on the hot path.
+	 *
+	 * @return The current time in nanoseconds, or 0 if metrics are off
+	 */
+	static long startTimer() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record an index lookup.
+	 *
+	 * @param startTime The value returned by {@link #startTimer()}
+	 * @param numLines  The number of lines looked up
+	 * @return The time now, for timing the next step, or 0 if metrics are off
+	 */
+	static long recordLookup(long startTime, long numLines) {
+		if (startTime == 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		Timer.INDEX_LOOKUP.histogram.record(now - startTime);
+		Counter.LINES_LOOKED_UP.add(numLines);
+		return now;
+	}
+
+	/**
+	 * Record a read of text.
+	 *
+	 * @param startTime The value returned by {@link #startTimer()}
+	 * @param numBytes  The number of bytes read
+	 * @param numCalls  The number of read (or transfer) system calls made
+	 */
+	static void recordRead(long startTime, long numBytes, long numCalls) {
+		if (startTime == 0) {
+			return;
+		}
+		Timer.DATA_READ.histogram.record(System.nanoTime() - startTime);
+		Counter.BYTES_READ.add(numBytes);
+		Counter.READ_CALLS.add(numCalls);
+	}
+
+	/**
+	 * Record a search.
+	 *
+	 * @param blocksScanned The number of blocks read
+	 * @param blockCount    The number of blocks in the file
+	 */
+	static void recordSearch(long blocksScanned, long blockCount) {
+		if (enabled) {
+			Counter.SEARCH_BLOCKS_SCANNED.add(blocksScanned);
+			Counter.SEARCH_BLOCKS_SKIPPED.add(blockCount - blocksScanned);
+		}
+	}
+
+	/**
+	 * Record the result of checking an existing index against its file.
+	 *
+	 * @param counter {@link Counter#INDEX_REUSED}, {@link Counter#INDEX_EXTENDED}, or
+	 *                {@link Counter#INDEX_REBUILT}
+	 */
+	static void recordIndexCheck(Counter counter) {
+		if (enabled) {
+			counter.add(1);
+		}
+	}
+
+	/**
+	 * Record the building of an index. Builds are timed whether or not metrics are on, since they are
+	 * long enough that a timestamp costs nothing in comparison.
+	 *
+	 * @param event        The Flight Recorder event, on which begin() was called when the build began
+	 * @param startTime    The value of System.nanoTime() when the build began
+	 * @param file         The text file
+	 * @param method       How the index was built: sequential, parallel, progressive, append, or gzip
+	 * @param bytesScanned The number of bytes of text scanned
+	 * @param linesFound   The number of line beginnings found
+	 */
+	static void recordIndexBuild(IndexBuildEvent event, long startTime, File file, String method,
+			long bytesScanned, long linesFound) {
+		if (enabled) {
+			Timer.INDEX_BUILD.histogram.record(System.nanoTime() - startTime);
+			Counter.INDEX_BUILDS.add(1);
+			Counter.INDEX_BYTES_SCANNED.add(bytesScanned);
+			Counter.INDEX_LINES_FOUND.add(linesFound);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = file.getPath();
+			event.method = method;
+			event.bytesScanned = bytesScanned;
+			event.linesFound = linesFound;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Publish a Flight Recorder event for a call that extracted lines.
+	 *
+	 * @param event     The event, on which begin() was called when the call began
+	 * @param file      The text file
+	 * @param operation "line", "batch", or "range"
+	 * @param numLines  The number of lines requested
+	 * @param numBytes  The number of bytes of text read
+	 */
+	static void commitLineRead(LineReadEvent event, File file, String operation, long numLines, long numBytes) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = file.getPath();
+			event.operation = operation;
+			event.lines = numLines;
+			event.bytes = numBytes;
+			event.commit();
+		}
+	}
+}
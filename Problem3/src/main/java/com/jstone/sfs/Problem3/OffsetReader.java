@@ -0,0 +1,62 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads consecutive 6-byte offsets from an index file, in large blocks.
+ * <p>
+ * This is the counterpart of {@link OffsetWriter}, for passes that read a whole index in order.
+ *
+ * @author Jeremy Stone
+ */
+class OffsetReader {
+	private static final int SIZE_OF_OFFSET = TextFileLineAccess.SIZE_OF_OFFSET;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private long position;
+
+	/**
+	 * @param channel  The channel to read from
+	 * @param position The position in the channel of the first offset to read
+	 */
+	OffsetReader(FileChannel channel, long position) {
+		this.channel = channel;
+		this.position = position;
+		int entries = OffsetWriter.DEFAULT_BUFFER_SIZE / SIZE_OF_OFFSET;
+		this.buffer = ByteBuffer.allocateDirect(entries * SIZE_OF_OFFSET);
+		this.buffer.limit(0);
+	}
+
+	/**
+	 * Read the next offset.
+	 *
+	 * @return The offset
+	 * @throws EOFException if there are no more offsets
+	 * @throws IOException  if an I/O error occurs
+	 */
+	long read() throws IOException {
+		if (buffer.remaining() < SIZE_OF_OFFSET) {
+			fill();
+		}
+		long offset = OffsetWriter.readOffset(buffer, buffer.position());
+		buffer.position(buffer.position() + SIZE_OF_OFFSET);
+		return offset;
+	}
+
+	private void fill() throws IOException {
+		buffer.compact();
+		while (buffer.position() < SIZE_OF_OFFSET) {
+			int numBytesRead = channel.read(buffer, position);
+			if (numBytesRead < 0) {
+				buffer.flip();
+				throw new EOFException();
+			}
+			position += numBytesRead;
+		}
+		buffer.flip();
+	}
+}
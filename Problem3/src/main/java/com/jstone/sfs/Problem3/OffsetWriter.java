@@ -0,0 +1,95 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes byte offsets to an index file, using 6 bytes per offset.
+ * <p>
+ * Offsets are collected in a direct buffer and written to the channel in large blocks, so that
+ * writing the index costs one system call per several thousand lines rather than one per line.
+ *
+ * @author Jeremy Stone
+ */
+class OffsetWriter implements Closeable {
+	static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private long count = 0;
+
+	/**
+	 * @param channel The channel to write to, at its current position
+	 */
+	OffsetWriter(FileChannel channel) {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param channel    The channel to write to, at its current position
+	 * @param bufferSize The size of the write buffer in bytes
+	 */
+	OffsetWriter(FileChannel channel, int bufferSize) {
+		this.channel = channel;
+		int entries = Math.max(1, bufferSize / TextFileLineAccess.SIZE_OF_OFFSET);
+		this.buffer = ByteBuffer.allocateDirect(entries * TextFileLineAccess.SIZE_OF_OFFSET)
+				.order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Write a byte offset.
+	 *
+	 * @param offset The offset to write, which must fit in 6 bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	void write(long offset) throws IOException {
+		if (!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.putShort((short) (offset >>> 32));
+		buffer.putInt((int) offset);
+		count++;
+	}
+
+	/**
+	 * @return The number of offsets written so far
+	 */
+	long getCount() {
+		return count;
+	}
+
+	/**
+	 * Write any buffered offsets to the channel.
+	 *
+	 * @throws IOException if an I/O error occurs
+	 */
+	void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Flush the buffer. The channel is left open and belongs to the caller.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Decode an offset written by this class.
+	 *
+	 * @param buffer   A buffer containing index data
+	 * @param position The absolute position of the offset in the buffer
+	 * @return The offset
+	 */
+	static long readOffset(ByteBuffer buffer, int position) {
+		return ((buffer.getShort(position) & 0xffffL) << 32) | (buffer.getInt(position + 2) & 0xffffffffL);
+	}
+}
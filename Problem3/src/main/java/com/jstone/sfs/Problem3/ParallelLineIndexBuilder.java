@@ -0,0 +1,291 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds the index of line offsets for a text file, using several threads.
+ * <p>
+ * The file is split into byte ranges ("chunks"), and each chunk is scanned by a worker thread,
+ * which writes its offsets to a temporary part file. The part files are then concatenated, in
+ * order, to form the index. The result is byte-for-byte the same as the index written by
+ * {@link LineIndexBuilder}.
+ * <p>
+ * Each worker starts scanning without knowing what precedes its chunk, so a CRLF pair that
+ * straddles a chunk boundary needs attention when the parts are stitched together. The worker for
+ * the earlier chunk ends with a pending CR, which it does not report. The worker for the later
+ * chunk sees a leading LF and reports the offset after it, which is correct for a CRLF pair. So the
+ * pending CR is dropped if the next chunk begins with LF, and is written between the two parts
+ * otherwise.
+ * <p>
+ * Small files are indexed by a single thread, since splitting them would cost more than it saves.
+ *
+ * @author Jeremy Stone
+ */
+public class ParallelLineIndexBuilder {
+	public static final long MIN_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	// More chunks than workers, so that a slow chunk does not hold up the whole build.
+	private static final int CHUNKS_PER_WORKER = 4;
+
+	private final int workers;
+	private final int windowSize;
+	private final long minChunkSize;
+
+	public ParallelLineIndexBuilder() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param workers The number of worker threads
+	 */
+	public ParallelLineIndexBuilder(int workers) {
+		this(workers, LineIndexBuilder.DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param workers    The number of worker threads
+	 * @param windowSize The number of bytes of the text file that a worker maps at a time
+	 */
+	public ParallelLineIndexBuilder(int workers, int windowSize) {
+		this(workers, windowSize, MIN_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param workers      The number of worker threads
+	 * @param windowSize   The number of bytes of the text file that a worker maps at a time
+	 * @param minChunkSize The smallest number of bytes worth handing to a worker
+	 */
+	ParallelLineIndexBuilder(int workers, int windowSize, long minChunkSize) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("The number of workers must be positive.");
+		}
+		this.workers = workers;
+		this.windowSize = windowSize;
+		this.minChunkSize = minChunkSize;
+	}
+
+	/**
+	 * Index the byte offsets of all the line beginnings in a text file, and return the offsets of one
+	 * chosen line.
+	 *
+	 * @param file                The file to index
+	 * @param indexPath           The path at which the index file should be created
+	 * @param lineNumberRequested A line number to look up once the index is built
+	 * @return The byte offset and length of the requested line, or null if the line number is out of
+	 *         range
+	 * @throws IOException if an I/O error occurs
+	 */
+	public FileSegmentOffsets build(File file, Path indexPath, long lineNumberRequested) throws IOException {
+		if (countChunks(file.length()) <= 1) {
+			return new LineIndexBuilder(windowSize).build(file, indexPath, lineNumberRequested);
+		}
+		buildIndex(file, indexPath);
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			return index.getLineOffsets(lineNumberRequested);
+		}
+	}
+
+	/**
+	 * Index a text file and report how long it took.
+	 *
+	 * @param file      The file to index
+	 * @param indexPath The path at which the index file should be created
+	 * @return A report of the build
+	 * @throws IOException if an I/O error occurs
+	 */
+	public IndexBuildReport buildIndex(File file, Path indexPath) throws IOException {
+		IndexBuildEvent event = new IndexBuildEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		long modifiedTime = file.lastModified();
+		long size = file.length();
+		int numChunks = countChunks(size);
+		if (numChunks <= 1) {
+			new LineIndexBuilder(windowSize).build(file, indexPath, -1);
+			long offsetsWritten = (Files.size(indexPath) - IndexHeader.SIZE) / TextFileLineAccess.SIZE_OF_OFFSET;
+			return new IndexBuildReport(1, size, offsetsWritten, System.nanoTime() - startTime);
+		}
+
+		Path tempPath = LineIndexBuilder.createTempSibling(indexPath, ".tmp");
+		List<Path> partPaths = new ArrayList<Path>();
+		List<Future<ChunkResult>> futures = new ArrayList<Future<ChunkResult>>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(workers, numChunks));
+		long offsetsWritten = 0;
+
+		try {
+			long chunkSize = (size + numChunks - 1) / numChunks;
+			for (int i = 0; i < numChunks; i++) {
+				long from = i * chunkSize;
+				long to = Math.min(size, from + chunkSize);
+				Path partPath = LineIndexBuilder.createTempSibling(indexPath, String.format(".part%d", i));
+				partPaths.add(partPath);
+				futures.add(executor.submit(new ChunkScanner(file.toPath(), partPath, from, to)));
+			}
+
+			List<ChunkResult> results = new ArrayList<ChunkResult>();
+			for (Future<ChunkResult> future : futures) {
+				results.add(waitFor(future));
+			}
+
+			offsetsWritten = stitch(partPaths, results, tempPath, file, size, modifiedTime);
+			Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+			Metrics.recordIndexBuild(event, startTime, file, "parallel", size, offsetsWritten);
+		} finally {
+			executor.shutdownNow();
+			for (Path partPath : partPaths) {
+				Files.deleteIfExists(partPath);
+			}
+			Files.deleteIfExists(tempPath);
+		}
+
+		return new IndexBuildReport(Math.min(workers, numChunks), size, offsetsWritten, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Build the index repeatedly with 1, 2, 4, ... workers, up to the number configured for this
+	 * builder, to show how construction scales with the number of cores.
+	 * <p>
+	 * The builds write to a temporary file beside the text file, which is deleted afterwards, so an
+	 * existing index of the file is left alone.
+	 *
+	 * @param file The file to index
+	 * @return One report per build, in order of increasing worker count
+	 * @throws IOException if an I/O error occurs
+	 */
+	public List<IndexBuildReport> measureScaling(File file) throws IOException {
+		Path indexPath = LineIndexBuilder.createTempSibling(file.toPath(), ".idx");
+		try {
+			List<IndexBuildReport> reports = new ArrayList<IndexBuildReport>();
+			for (int n = 1; n <= workers; n = (n < workers) ? Math.min(2 * n, workers) : n + 1) {
+				reports.add(new ParallelLineIndexBuilder(n, windowSize, minChunkSize).buildIndex(file, indexPath));
+			}
+			return reports;
+		} finally {
+			Files.deleteIfExists(indexPath);
+		}
+	}
+
+	private int countChunks(long size) {
+		long bySize = (size + minChunkSize - 1) / minChunkSize;
+		return (int) Math.min(bySize, (long) workers * CHUNKS_PER_WORKER);
+	}
+
+	/**
+	 * Concatenate the part files, resolving line breaks that straddle chunk boundaries, terminate the
+	 * index with the file length, and write the header.
+	 *
+	 * @return The number of offsets in the index
+	 */
+	private static long stitch(List<Path> partPaths, List<ChunkResult> results, Path tempPath, File file, long size,
+			long modifiedTime) throws IOException {
+		long offsetsWritten = 0;
+		try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			output.position(IndexHeader.SIZE);
+			OffsetWriter writer = new OffsetWriter(output, TextFileLineAccess.SIZE_OF_OFFSET);
+			for (int i = 0; i < results.size(); i++) {
+				try (FileChannel part = FileChannel.open(partPaths.get(i), StandardOpenOption.READ)) {
+					long partSize = part.size();
+					for (long position = 0; position < partSize;) {
+						position += part.transferTo(position, partSize - position, output);
+					}
+				}
+				offsetsWritten += results.get(i).offsetsWritten;
+
+				long pendingStart = results.get(i).pendingStart;
+				boolean nextStartsWithLF = (i + 1 < results.size()) && results.get(i + 1).startsWithLF;
+				if ((pendingStart >= 0) && !nextStartsWithLF) {
+					writer.write(pendingStart);
+					writer.flush();
+				}
+			}
+			if (size > 0) {
+				writer.write(size);
+				writer.flush();
+			}
+			offsetsWritten += writer.getCount();
+
+			IndexHeader.describe(IndexEncoding.FLAT, Math.max(offsetsWritten, 1), input, size, modifiedTime)
+					.write(output);
+		}
+		return offsetsWritten;
+	}
+
+	private static ChunkResult waitFor(Future<ChunkResult> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building the index", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to build the index", e.getCause());
+		}
+	}
+
+	/**
+	 * The outcome of scanning one chunk.
+	 */
+	private static class ChunkResult {
+		long offsetsWritten;
+		long pendingStart;
+		boolean startsWithLF;
+	}
+
+	/**
+	 * Scans one chunk of the text file and writes its offsets to a part file.
+	 */
+	private class ChunkScanner implements Callable<ChunkResult> {
+		private final Path inputPath;
+		private final Path partPath;
+		private final long from;
+		private final long to;
+
+		ChunkScanner(Path inputPath, Path partPath, long from, long to) {
+			this.inputPath = inputPath;
+			this.partPath = partPath;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public ChunkResult call() throws IOException {
+			ChunkResult result = new ChunkResult();
+			try (FileChannel input = FileChannel.open(inputPath, StandardOpenOption.READ);
+					FileChannel output = FileChannel.open(partPath, StandardOpenOption.CREATE,
+							StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				OffsetWriter writer = new OffsetWriter(output);
+				LineBreakScanner scanner = new LineBreakScanner(writer::write);
+				for (long position = from; position < to; position += windowSize) {
+					long length = Math.min(windowSize, to - position);
+					MappedByteBuffer window = input.map(FileChannel.MapMode.READ_ONLY, position, length);
+					if (position == from) {
+						result.startsWithLF = (window.get(0) == LineBreakScanner.LF);
+					}
+					scanner.scan(window, position);
+				}
+				writer.close();
+				result.offsetsWritten = writer.getCount();
+				result.pendingStart = scanner.getPendingStart();
+			}
+			return result;
+		}
+	}
+}
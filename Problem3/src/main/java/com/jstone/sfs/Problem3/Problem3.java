@@ -7,11 +7,25 @@
 
 package com.jstone.sfs.Problem3;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * A utility that extracts one line from a text file, which may be very large.
  * <p>
  * On first execution, the text file is indexed in a compact form. The index contains byte offsets
- * of each line.
+ * of each line, and is built by several threads, each scanning part of the file (see
+ * {@link ParallelLineIndexBuilder}).
  * <p>
  * The utility is called from the command line with two parameters:
  * <p>
@@ -24,11 +38,64 @@ package com.jstone.sfs.Problem3;
  * <p>
  * The utility prints the requested line, or it writes to stderr if the line number is out of range.
  * <p>
+ * Other modes are selected with an option in place of the input file path:
+ * <ul>
+ * <li>--progressive &lt;input file path&gt; &lt;line number&gt;: Like the default mode, but if the file
+ * has no index, print the line as soon as a single-threaded scan has reached it (see
+ * {@link ProgressiveLineIndex}). The rest of the file is indexed before the utility exits, which
+ * takes longer in all than the default mode's parallel build, and the index is always flat.
+ * <li>--batch &lt;input file path&gt; &lt;line numbers file path&gt;: Print the lines whose numbers are
+ * listed, one per line, in the second file. The lines are read in file order, which is much faster
+ * than extracting them one at a time.
+ * <li>--range &lt;input file path&gt; &lt;first line&gt; &lt;last line&gt;: Copy the lines from the
+ * first through the last (inclusive) to stdout, byte for byte, without decoding them. This is the
+ * fastest way to export a large range.
+ * <li>--tail &lt;input file path&gt; &lt;number of lines&gt;: Copy the last lines to stdout, like
+ * "tail -n", without reading the rest of the file.
+ * <li>--context &lt;input file path&gt; &lt;byte offset&gt; [&lt;number of lines&gt;]: Find the line
+ * containing a byte offset (from "grep -b", for example), and print it with its line number, and
+ * with the given number of lines (2 by default, and not negative) before and after it, in the style
+ * of "grep -n -C".
+ * <li>--search &lt;input file path&gt; &lt;text&gt; [&lt;max matches&gt;]: Print the lines that contain
+ * the text, each preceded by its line number and byte offset, in the style of "grep -n -b". Only the
+ * blocks of lines that a {@link TrigramBlockIndex} cannot rule out are read. (Not supported for gzip
+ * files.)
+ * <li>--key &lt;input file path&gt; &lt;column&gt; &lt;key&gt; [&lt;delimiter&gt;] [&lt;max matches&gt;]:
+ * Print the lines of delimited records whose field in the 0-based column is the key, each preceded
+ * by its line number and byte offset. Fields are separated by tabs unless another delimiter is
+ * given ("tab", or a single character such as ","). The lines are found with a
+ * {@link KeyColumnIndex}, which is built by the first lookup on the column. (Not supported for gzip
+ * files.)
+ * <li>--build-index &lt;input file path&gt; [flat|sparse|fixed] [&lt;lines per block&gt;]: Build the
+ * index, or rebuild it, in the chosen encoding, and print its size. See {@link SparseLineIndex} for
+ * the sparse encoding, and {@link FixedWidthLineIndex} for the fixed-width one (which falls back to
+ * flat if the file's lines are not of fixed width). With no encoding named, a fixed-width index is
+ * built if possible, and a flat one otherwise.
+ * <li>--serve &lt;root directory&gt; [&lt;port&gt;] [&lt;max open files&gt;]: Run a {@link LineServer}
+ * on the loopback address, which keeps files open and answers requests for the lines of files under
+ * the root directory until it is killed. The port is 7433 by default.
+ * <li>--client &lt;port&gt; &lt;input file path&gt; &lt;line number&gt;, --client &lt;port&gt; --batch
+ * ..., or --client &lt;port&gt; --range ...: Like the modes without --client, but ask a running server
+ * for the lines.
+ * <li>--index-scaling &lt;input file path&gt; [&lt;max workers&gt;]: Build the index with 1, 2, 4, ...
+ * worker threads and print the throughput and speedup of each build. The builds write to a
+ * temporary file, so an existing index is left alone.
+ * </ul>
+ * <p>
+ * Input files whose names end in ".gz" are read as gzip-compressed text, in every mode except
+ * --build-index and --index-scaling.
+ * <p>
+ * With -Dproblem3.metrics=true, counters and latency histograms are printed to stderr at exit. See
+ * {@link Metrics}.
+ * <p>
  * Please see {@link TextFileLineAccess} for implementation details.
  * 
  * @author Jeremy Stone
  */
 public class Problem3 {
+	// The number of lines that --context reads at a time
+	private static final int CONTEXT_BATCH_SIZE = 1024;
+
 	public static void main(String[] args) {
 		// TODO Replace with a proper command-line parsing library like Airline or
 		// Apache Commons CLI.
@@ -36,19 +103,483 @@ public class Problem3 {
 		// TODO Show the actual java command line, and remove the hard-coded
 		// package/class.
 
+		if (Metrics.isEnabled()) {
+			// Report at exit, after any background indexing has finished.
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(Metrics.report())));
+		}
+
 		// Parse the command line.
+		if ((args.length >= 1) && args[0].startsWith("--")) {
+			runMode(args);
+			return;
+		}
 		if (args.length < 2) {
-			System.err.println("USAGE: java -jar <JAR file path> <input file path> <0-based line number>");
+			printUsage();
 			return;
 		}
 		String inputPath = args[0];
-		int lineNumber = Integer.parseInt(args[1]); // TODO We could check for correct format.
+		long lineNumber = Long.parseLong(args[1]); // TODO We could check for correct format.
+
+		extractLine(inputPath, lineNumber, newOptions());
+	}
 
-		String line = TextFileLineAccess.extractLineFromFile(inputPath, lineNumber);
+	/**
+	 * Print one line.
+	 *
+	 * @param inputPath  The path of the input file
+	 * @param lineNumber The 0-based line number
+	 * @param options    The settings to use if the file needs to be indexed
+	 */
+	private static void extractLine(String inputPath, long lineNumber, IndexOptions options) {
+		String line = TextFileLineAccess.extractLineFromFile(inputPath, lineNumber, options);
 		if (line == null) {
 			System.err.println("ERROR: No such line");
 		} else {
 			System.out.println(line);
 		}
 	}
+
+	/**
+	 * Run one of the modes selected by an option.
+	 * 
+	 * @param args The command-line arguments, beginning with the option
+	 */
+	private static void runMode(String[] args) {
+		switch (args[0]) {
+		case "--progressive":
+			if (args.length == 3) {
+				// Answer as soon as the line is indexed, and let the indexing of a new file finish
+				// afterwards.
+				IndexOptions options = newOptions();
+				options.setProgressive(true);
+				extractLine(args[1], Long.parseLong(args[2]), options);
+				return;
+			}
+			break;
+		case "--index-scaling":
+			if (args.length >= 2) {
+				int maxWorkers = Runtime.getRuntime().availableProcessors();
+				if (args.length >= 3) {
+					maxWorkers = Integer.parseInt(args[2]);
+				}
+				reportIndexScaling(args[1], maxWorkers);
+				return;
+			}
+			break;
+		case "--build-index":
+			if (args.length >= 2) {
+				IndexOptions options = newOptions();
+				if (args.length >= 3) {
+					options.setEncoding(IndexEncoding.valueOf(args[2].toUpperCase()));
+					options.setDetectFixedWidth(false);
+				}
+				if (args.length >= 4) {
+					options.setLinesPerBlock(Integer.parseInt(args[3]));
+				}
+				buildIndex(args[1], options);
+				return;
+			}
+			break;
+		case "--range":
+			if (args.length >= 4) {
+				extractRange(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]));
+				return;
+			}
+			break;
+		case "--tail":
+			if (args.length >= 3) {
+				extractTail(args[1], Long.parseLong(args[2]));
+				return;
+			}
+			break;
+		case "--context":
+			if (args.length >= 3) {
+				int numLines = 2;
+				if (args.length >= 4) {
+					numLines = Integer.parseInt(args[3]);
+				}
+				if (numLines < 0) {
+					break;
+				}
+				extractContext(args[1], Long.parseLong(args[2]), numLines);
+				return;
+			}
+			break;
+		case "--search":
+			if (args.length >= 3) {
+				int maxMatches = Integer.MAX_VALUE;
+				if (args.length >= 4) {
+					maxMatches = Integer.parseInt(args[3]);
+				}
+				search(args[1], args[2], maxMatches);
+				return;
+			}
+			break;
+		case "--key":
+			if (args.length >= 4) {
+				byte delimiter = KeyColumnIndex.DEFAULT_DELIMITER;
+				if ((args.length >= 5) && !args[4].equalsIgnoreCase("tab")) {
+					if (args[4].length() != 1) {
+						break;
+					}
+					delimiter = (byte) args[4].charAt(0);
+				}
+				int maxMatches = Integer.MAX_VALUE;
+				if (args.length >= 6) {
+					maxMatches = Integer.parseInt(args[5]);
+				}
+				findByKey(args[1], Integer.parseInt(args[2]), delimiter, args[3], maxMatches);
+				return;
+			}
+			break;
+		case "--serve":
+			if (args.length >= 2) {
+				int port = (args.length >= 3) ? Integer.parseInt(args[2]) : LineServer.DEFAULT_PORT;
+				int maxFiles = (args.length >= 4) ? Integer.parseInt(args[3]) : 256;
+				serve(args[1], port, maxFiles);
+				return;
+			}
+			break;
+		case "--client":
+			if ((args.length >= 4) && runClient(Integer.parseInt(args[1]), Arrays.copyOfRange(args, 2, args.length))) {
+				return;
+			}
+			break;
+		case "--batch":
+			if (args.length >= 3) {
+				extractBatch(args[1], args[2]);
+				return;
+			}
+			break;
+		default:
+		}
+		printUsage();
+	}
+
+	/**
+	 * @return Default settings, with a listener that reports each index file written to stderr
+	 */
+	private static IndexOptions newOptions() {
+		IndexOptions options = new IndexOptions();
+		options.setProgress(new IndexProgress() {
+			@Override
+			public void started(String description, Path path) {
+				System.err.print(String.format("Writing %s to %s... ", description, path));
+			}
+
+			@Override
+			public void finished(String description, Path path) {
+				System.err.println("done.");
+			}
+		});
+		return options;
+	}
+
+	private static void printUsage() {
+		System.err.println("USAGE: java -jar <JAR file path> <input file path> <0-based line number>");
+		System.err.println("       java -jar <JAR file path> --progressive <input file path> <0-based line number>");
+		System.err.println("       java -jar <JAR file path> --batch <input file path> <line numbers file path>");
+		System.err.println("       java -jar <JAR file path> --range <input file path> <first line> <last line>");
+		System.err.println("       java -jar <JAR file path> --tail <input file path> <number of lines>");
+		System.err.println("       java -jar <JAR file path> --context <input file path> <byte offset> [<number of lines>]");
+		System.err.println("       java -jar <JAR file path> --search <input file path> <text> [<max matches>]");
+		System.err.println("       java -jar <JAR file path> --key <input file path> <column> <key> [<delimiter>] [<max matches>]");
+		System.err.println("       java -jar <JAR file path> --build-index <input file path> [flat|sparse|fixed] [<lines per block>]");
+		System.err.println("       java -jar <JAR file path> --serve <root directory> [<port>] [<max open files>]");
+		System.err.println("       java -jar <JAR file path> --client <port> <input file path> <0-based line number>");
+		System.err.println("       java -jar <JAR file path> --client <port> --batch|--range ...");
+		System.err.println("       java -jar <JAR file path> --index-scaling <input file path> [<max workers>]");
+	}
+
+	/**
+	 * Build (or rebuild) the index of a file, and print its size.
+	 * 
+	 * @param inputPath The text file's path
+	 * @param options   The settings for the index
+	 */
+	private static void buildIndex(String inputPath, IndexOptions options) {
+		try {
+			Path indexPath = Paths.get(String.format("%s.idx", inputPath));
+			TextFileLineAccess.cacheLineOffsets(new File(inputPath), indexPath, options);
+			try (LineIndex index = LineIndex.open(indexPath)) {
+				long size = Files.size(indexPath);
+				System.out.println(String.format("Lines:            %d", index.getLineCount()));
+				System.out.println(String.format("Index size:       %d bytes", size));
+				System.out.println(String.format("Bytes per line:   %.2f", (double) size / index.getLineCount()));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Extract the lines whose numbers are listed in a file, and print them in the order listed.
+	 * 
+	 * @param inputPath       The text file's path
+	 * @param lineNumbersPath The path of a file containing 0-based line numbers, one per line
+	 */
+	private static void extractBatch(String inputPath, String lineNumbersPath) {
+		try {
+			long[] lineNumbers = readLineNumbers(lineNumbersPath);
+			List<String> lines = null;
+			try (LineSource file = LineSource.open(inputPath, newOptions())) {
+				lines = file.getLines(lineNumbers);
+			}
+			for (int i = 0; i < lineNumbers.length; i++) {
+				if (lines.get(i) == null) {
+					System.err.println(String.format("ERROR: No such line: %d", lineNumbers[i]));
+				} else {
+					System.out.println(lines.get(i));
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copy a range of lines to stdout as raw bytes.
+	 * <p>
+	 * stdout is written through a channel on its file descriptor, so that the copy can be done by
+	 * the operating system when stdout is a file or a pipe. (Lines of a gzip file are decompressed
+	 * on the way.)
+	 * 
+	 * @param inputPath The text file's path
+	 * @param firstLine The 0-based number of the first line
+	 * @param lastLine  The 0-based number of the last line (inclusive)
+	 */
+	private static void extractRange(String inputPath, long firstLine, long lastLine) {
+		try (LineSource file = LineSource.open(inputPath, newOptions())) {
+			if (file.transferLines(firstLine, lastLine, openStdout()) < 0) {
+				System.err.println("ERROR: No such line");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Copy the last lines of a file to stdout as raw bytes.
+	 * <p>
+	 * The line count is stored in the index, so only the index entries of the first and last lines
+	 * are read, however many lines the file has.
+	 * 
+	 * @param inputPath The text file's path
+	 * @param numLines  The number of lines to copy
+	 */
+	private static void extractTail(String inputPath, long numLines) {
+		if (numLines <= 0) {
+			return;
+		}
+		try (LineSource file = LineSource.open(inputPath, newOptions())) {
+			file.transferLines(file.getTailLineNumber(numLines), file.getLineCount() - 1, openStdout());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print the line containing a byte offset, and the lines around it, each preceded by its line
+	 * number. As in "grep -n -C", the number is followed by ':' on the line that contains the offset
+	 * and by '-' on the others.
+	 * <p>
+	 * The lines are read a batch at a time, so that a wide context does not have to fit in memory.
+	 * 
+	 * @param inputPath The text file's path
+	 * @param offset    The byte offset
+	 * @param numLines  The number of lines to print before and after the line
+	 */
+	private static void extractContext(String inputPath, long offset, int numLines) {
+		try (LineSource file = LineSource.open(inputPath, newOptions())) {
+			long lineNumber = file.getLineNumber(offset);
+			if (lineNumber < 0) {
+				System.err.println("ERROR: No such offset");
+				return;
+			}
+			long firstLine = Math.max(0, lineNumber - numLines);
+			long lastLine = Math.min(file.getLineCount() - 1, lineNumber + numLines);
+			for (long batchStart = firstLine; batchStart <= lastLine; batchStart += CONTEXT_BATCH_SIZE) {
+				long[] lineNumbers = new long[(int) Math.min(CONTEXT_BATCH_SIZE, lastLine - batchStart + 1)];
+				for (int i = 0; i < lineNumbers.length; i++) {
+					lineNumbers[i] = batchStart + i;
+				}
+				List<String> lines = file.getLines(lineNumbers);
+				for (int i = 0; i < lineNumbers.length; i++) {
+					System.out.println(String.format("%d%c%s", lineNumbers[i],
+							(lineNumbers[i] == lineNumber) ? ':' : '-', lines.get(i)));
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print the lines that contain a string, and report how many blocks of lines were read.
+	 * 
+	 * @param inputPath  The text file's path
+	 * @param text       The string to find
+	 * @param maxMatches The number of matches after which to stop
+	 */
+	private static void search(String inputPath, String text, int maxMatches) {
+		if (GzipTextFile.isGzip(inputPath)) {
+			System.err.println("ERROR: Search is not supported for gzip files");
+			return;
+		}
+		try (IndexedTextFile file = IndexedTextFile.open(inputPath, newOptions())) {
+			SearchResult result = file.search(text, maxMatches);
+			for (LineMatch match : result.getMatches()) {
+				System.out.println(String.format("%d:%d:%s", match.getLineNumber(), match.getOffsets().getStart(),
+						match.getLine()));
+			}
+			System.err.println(String.format("%d matches; %d of %d blocks read", result.getMatches().size(),
+					result.getBlocksScanned(), result.getBlockCount()));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Print the lines whose field in a column holds a key.
+	 * 
+	 * @param inputPath  The text file's path
+	 * @param column     The 0-based column
+	 * @param delimiter  The byte that separates fields
+	 * @param key        The key
+	 * @param maxMatches The number of matches after which to stop
+	 */
+	private static void findByKey(String inputPath, int column, byte delimiter, String key, int maxMatches) {
+		if (GzipTextFile.isGzip(inputPath)) {
+			System.err.println("ERROR: Key lookups are not supported for gzip files");
+			return;
+		}
+		try (IndexedTextFile file = IndexedTextFile.open(inputPath, newOptions())) {
+			List<LineMatch> matches = file.findByKey(column, delimiter, key, maxMatches);
+			if (matches.isEmpty()) {
+				System.err.println("ERROR: No such key");
+			}
+			for (LineMatch match : matches) {
+				System.out.println(String.format("%d:%d:%s", match.getLineNumber(), match.getOffsets().getStart(),
+						match.getLine()));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Run a line server until the process is killed.
+	 * 
+	 * @param root     The directory under which requested files must be
+	 * @param port     The port to listen on
+	 * @param maxFiles The maximum number of files to keep open
+	 */
+	private static void serve(String root, int port, int maxFiles) {
+		try (IndexCatalog catalog = new IndexCatalog(3 * maxFiles, Long.MAX_VALUE, newOptions());
+				LineServer server = new LineServer(port, catalog, Paths.get(root))) {
+			System.err.println(String.format("Serving %s on port %d", server.getRoot(), server.getPort()));
+			server.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ask a line server for a line, a batch, or a range, and print the result as the corresponding
+	 * mode would.
+	 * 
+	 * @param port The port on which the server listens
+	 * @param args The arguments of the mode
+	 * @return false if the arguments are not understood
+	 */
+	private static boolean runClient(int port, String[] args) {
+		try (LineClient client = new LineClient(port)) {
+			if (args[0].equals("--batch") && (args.length >= 3)) {
+				long[] lineNumbers = readLineNumbers(args[2]);
+				List<String> lines = client.getLines(args[1], lineNumbers);
+				for (int i = 0; i < lineNumbers.length; i++) {
+					if (lines.get(i) == null) {
+						System.err.println(String.format("ERROR: No such line: %d", lineNumbers[i]));
+					} else {
+						System.out.println(lines.get(i));
+					}
+				}
+			} else if (args[0].equals("--range") && (args.length >= 4)) {
+				if (client.transferLines(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]), openStdout()) < 0) {
+					System.err.println("ERROR: No such line");
+				}
+			} else if (!args[0].startsWith("--")) {
+				String line = client.getLine(args[0], Long.parseLong(args[1]));
+				if (line == null) {
+					System.err.println("ERROR: No such line");
+				} else {
+					System.out.println(line);
+				}
+			} else {
+				return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+
+	/**
+	 * Get a channel on stdout, so that bytes can be copied to it by the operating system when stdout
+	 * is a file or a pipe. Anything already printed is flushed first. The channel must not be closed,
+	 * since that would close stdout.
+	 * 
+	 * @return The channel
+	 */
+	private static FileChannel openStdout() {
+		System.out.flush();
+		return new FileOutputStream(FileDescriptor.out).getChannel();
+	}
+
+	/**
+	 * Read a list of line numbers, one per line, from a text file. Blank lines are ignored.
+	 * 
+	 * @param path The path of the file
+	 * @return The line numbers
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long[] readLineNumbers(String path) throws IOException {
+		long[] lineNumbers = new long[1024];
+		int count = 0;
+		try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+			String text = null;
+			while ((text = reader.readLine()) != null) {
+				text = text.strip();
+				if (text.length() > 0) {
+					if (count == lineNumbers.length) {
+						lineNumbers = Arrays.copyOf(lineNumbers, 2 * count);
+					}
+					lineNumbers[count++] = Long.parseLong(text);
+				}
+			}
+		}
+		return Arrays.copyOf(lineNumbers, count);
+	}
+
+	/**
+	 * Build the index of a file with increasing numbers of worker threads, and print a table showing
+	 * how the build time scales.
+	 * 
+	 * @param inputPath  The text file's path
+	 * @param maxWorkers The largest number of worker threads to try
+	 */
+	private static void reportIndexScaling(String inputPath, int maxWorkers) {
+		try {
+			List<IndexBuildReport> reports = new ParallelLineIndexBuilder(maxWorkers)
+					.measureScaling(new File(inputPath));
+			double baseline = reports.get(0).getSeconds();
+			System.out.println("Workers    Seconds       MB/s  Speedup");
+			for (IndexBuildReport report : reports) {
+				System.out.println(String.format("%7d %10.3f %10.1f %8.2f", report.getWorkers(), report.getSeconds(),
+						report.getMegabytesPerSecond(), baseline / report.getSeconds()));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 }
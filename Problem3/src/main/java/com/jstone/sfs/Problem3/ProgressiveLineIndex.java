@@ -0,0 +1,242 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A flat line index that can be used while it is still being built.
+ * <p>
+ * The text file is scanned by a background thread, which writes the index to a temporary file as
+ * {@link LineIndexBuilder} does. Every so often, and as soon as a waiting lookup can be answered, the
+ * offsets written so far are flushed and published. A lookup for a line that has already been
+ * indexed is answered from the temporary file straight away. A lookup for a later line waits until
+ * the scan has passed it. So the time taken to answer the first lookup depends on where the line
+ * is in the file, not on the size of the file.
+ * <p>
+ * When the scan is finished, the header is written, the temporary file is moved into place, and
+ * the complete index is published. The complete index is a view of the same channel that the
+ * partial lookups use, so lookups that are in progress at the time of the handoff are not
+ * disturbed. Only the line count has to wait for the whole file to be scanned.
+ * <p>
+ * Whether the background thread is a daemon is the caller's choice. If it is not, a program that
+ * exits after its first lookup still waits for the scan and leaves a complete index behind; if it
+ * is, the program may exit first, abandoning the build. Closing the index does not stop the build;
+ * the channel is closed when the build is finished.
+ * <p>
+ * The scan is done by one thread, and the index is always flat: unlike
+ * {@link TextFileLineAccess#cacheLineOffsets}, a progressive build neither runs in parallel nor
+ * converts the index to a fixed-width one.
+ *
+ * @author Jeremy Stone
+ */
+public class ProgressiveLineIndex implements LineIndex {
+	// The offsets are published at least this often, so that nearby lookups do not all have to ask.
+	private static final long PUBLISH_INTERVAL = 64 * 1024;
+
+	private final File file;
+	private final Path indexPath;
+	private final Path tempPath;
+	private final FileChannel channel;
+	private final Object lock = new Object();
+
+	// The number of offsets that readers may use
+	private volatile long numOffsetsPublished = 0;
+	// The smallest number of offsets that a waiting lookup needs
+	private volatile long numOffsetsWanted = Long.MAX_VALUE;
+
+	private volatile LineIndex complete = null;
+	private volatile IOException failure = null;
+	private boolean finished = false;
+	private boolean closed = false;
+
+	private ProgressiveLineIndex(File file, Path indexPath) throws IOException {
+		this.file = file;
+		this.indexPath = indexPath;
+		this.tempPath = LineIndexBuilder.createTempSibling(indexPath, ".tmp");
+		try {
+			this.channel = FileChannel.open(tempPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+	}
+
+	/**
+	 * Start indexing a text file in the background.
+	 *
+	 * @param file      The file to index
+	 * @param indexPath The path at which the index file should be created
+	 * @param daemon    Whether to build the index on a daemon thread, which does not keep the JVM
+	 *                  from exiting
+	 * @return The index, which can be used immediately
+	 * @throws IOException if the index file cannot be created
+	 */
+	public static ProgressiveLineIndex start(File file, Path indexPath, boolean daemon) throws IOException {
+		ProgressiveLineIndex index = new ProgressiveLineIndex(file, indexPath);
+		Thread thread = new Thread(index::build, "index-" + file.getName());
+		thread.setDaemon(daemon);
+		thread.start();
+		return index;
+	}
+
+	/**
+	 * @return The number of lines in the file, which is known only when the build is finished
+	 */
+	@Override
+	public long getLineCount() {
+		try {
+			return awaitCompletion().getLineCount();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) throws IOException {
+		if (lineNumber < 0) {
+			return false;
+		}
+		// Line n ends at offset n, so n + 1 offsets are needed.
+		LineIndex index = awaitOffsets(lineNumber + 1);
+		if (index != null) {
+			return index.getLineOffsets(lineNumber, result);
+		}
+		return new FlatLineIndex(channel, IndexHeader.SIZE, numOffsetsPublished).getLineOffsets(lineNumber, result);
+	}
+
+	/**
+	 * @return true if the whole file has been indexed
+	 */
+	public boolean isComplete() {
+		return complete != null;
+	}
+
+	/**
+	 * Wait for the whole file to be indexed.
+	 *
+	 * @return The complete index
+	 * @throws IOException if the build failed or the wait was interrupted
+	 */
+	LineIndex awaitCompletion() throws IOException {
+		return awaitOffsets(Long.MAX_VALUE);
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+			if (!finished) {
+				// The build thread closes the channel when it is done.
+				return;
+			}
+		}
+		channel.close();
+	}
+
+	/**
+	 * Wait until a number of offsets have been published, or the build has finished.
+	 *
+	 * @return The complete index if the build has finished, or null if the offsets are available in
+	 *         the partial index
+	 */
+	private LineIndex awaitOffsets(long numOffsets) throws IOException {
+		synchronized (lock) {
+			while ((complete == null) && (numOffsetsPublished < numOffsets)) {
+				if (failure != null) {
+					throw new IOException("Failed to build the index", failure);
+				}
+				if (numOffsets < numOffsetsWanted) {
+					numOffsetsWanted = numOffsets;
+				}
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the index", e);
+				}
+			}
+			return complete;
+		}
+	}
+
+	private void publish(long numOffsets) {
+		synchronized (lock) {
+			numOffsetsPublished = numOffsets;
+			// Waiters that still need more offsets will ask again.
+			numOffsetsWanted = Long.MAX_VALUE;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Scan the text file and write the index. This runs on the background thread.
+	 */
+	private void build() {
+		IndexBuildEvent event = new IndexBuildEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long modifiedTime = file.lastModified();
+			long size = input.size();
+			channel.position(IndexHeader.SIZE);
+			OffsetWriter writer = new OffsetWriter(channel);
+			LineBreakScanner scanner = new LineBreakScanner(offset -> {
+				writer.write(offset);
+				long count = writer.getCount();
+				if ((count >= numOffsetsWanted) || (count % PUBLISH_INTERVAL == 0)) {
+					writer.flush();
+					publish(count);
+				}
+			});
+
+			new LineIndexBuilder().scan(input, scanner, 0, size);
+			scanner.finish();
+			if (size > 0) {
+				writer.write(size);
+			}
+			writer.close();
+			long numOffsets = writer.getCount();
+			IndexHeader.describe(IndexEncoding.FLAT, Math.max(numOffsets, 1), input, size, modifiedTime)
+					.write(channel);
+			Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+			Metrics.recordIndexBuild(event, startTime, file, "progressive", size, numOffsets);
+
+			synchronized (lock) {
+				complete = new FlatLineIndex(channel, IndexHeader.SIZE, numOffsets);
+				lock.notifyAll();
+			}
+		} catch (IOException e) {
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+			try {
+				Files.deleteIfExists(tempPath);
+			} catch (IOException e2) {
+				e2.printStackTrace();
+			}
+		} finally {
+			finish();
+		}
+	}
+
+	private void finish() {
+		synchronized (lock) {
+			finished = true;
+			if (!closed) {
+				return;
+			}
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
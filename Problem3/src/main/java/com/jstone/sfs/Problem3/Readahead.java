@@ -0,0 +1,175 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads ahead for an {@link IndexedTextFile} whose lines are being requested one at a time in a
+ * regular pattern: consecutive lines, or every n-th line.
+ * <p>
+ * Each request is compared with the previous one. Once three requests in a row have been evenly
+ * spaced (the distance between them is the stride), the third reads a window of lines at that
+ * stride, beginning with itself: their offsets with one batch lookup of the index, and their text
+ * with one read of the span that covers them, into a buffer that is reused from window to window.
+ * Later requests that fall in the window are answered from the buffer. Each window is twice as many
+ * lines as the last, from {@value #MIN_WINDOW} up to {@value #MAX_WINDOW}, as long as its span fits
+ * in {@value #MAX_SPAN_BYTES} bytes (which limits how far apart the lines can be).
+ * <p>
+ * As soon as a request breaks the pattern, the window is dropped and the window size starts over,
+ * so random access costs one comparison per request and no extra I/O.
+ * <p>
+ * The state is shared by all the threads using the file, and guarded by its lock. Requests from
+ * several threads interleave into a pattern that looks random, so readahead is meant for files
+ * that one thread is scanning.
+ *
+ * @author Jeremy Stone
+ */
+class Readahead {
+	static final int MIN_WINDOW = 8;
+	static final int MAX_WINDOW = 256;
+	static final int MAX_SPAN_BYTES = 1024 * 1024;
+
+	// The number of times the stride must repeat before reading ahead
+	private static final int CONFIRMATIONS = 2;
+
+	private final IndexedTextFile file;
+	private final LineIndex index;
+
+	// The pattern
+	private long lastLine = -1;
+	private long stride = 0;
+	private int confirmations = 0;
+	private int windowSize = MIN_WINDOW;
+
+	// The window: windowCount lines from windowFirst at windowStride, and the span of text that
+	// covers them, which begins at spanStart in the file
+	private long windowFirst = 0;
+	private long windowStride = 0;
+	private int windowCount = 0;
+	private int windowServed = 0;
+	private FileSegmentOffsets[] offsets = null;
+	private long spanStart = 0;
+	private ByteBuffer span = ByteBuffer.allocate(0);
+
+	/**
+	 * @param file  The file to read ahead in
+	 * @param index The file's index
+	 */
+	Readahead(IndexedTextFile file, LineIndex index) {
+		this.file = file;
+		this.index = index;
+	}
+
+	/**
+	 * Note a request for a line, and answer it from the window if possible, reading a new window
+	 * first if the requests are following a pattern.
+	 *
+	 * @param lineNumber The 0-based line number
+	 * @return The line, or null if it is not in the window, in which case the caller must read it
+	 * @throws IOException if the index or the file cannot be read
+	 */
+	synchronized String getLine(long lineNumber) throws IOException {
+		boolean inPattern = observe(lineNumber);
+		String line = lookup(lineNumber);
+		if ((line == null) && inPattern) {
+			fill(lineNumber);
+			line = lookup(lineNumber);
+		}
+		return line;
+	}
+
+	/**
+	 * Compare a request with the previous one, and drop the window if it breaks the pattern.
+	 *
+	 * @return true if the requests are following a pattern
+	 */
+	private boolean observe(long lineNumber) {
+		long distance = lineNumber - lastLine;
+		lastLine = lineNumber;
+		if ((distance > 0) && (distance == stride)) {
+			confirmations++;
+		} else {
+			if (confirmations >= CONFIRMATIONS) {
+				// The pattern has ended.
+				dropWindow();
+				windowSize = MIN_WINDOW;
+			}
+			stride = distance;
+			confirmations = (distance > 0) ? 1 : 0;
+		}
+		return confirmations >= CONFIRMATIONS;
+	}
+
+	private String lookup(long lineNumber) {
+		if ((windowCount == 0) || (lineNumber < windowFirst) || ((lineNumber - windowFirst) % windowStride != 0)
+				|| ((lineNumber - windowFirst) / windowStride >= windowCount)) {
+			return null;
+		}
+		FileSegmentOffsets lineOffsets = offsets[(int) ((lineNumber - windowFirst) / windowStride)];
+		windowServed++;
+		if (Metrics.isEnabled()) {
+			Metrics.Counter.READAHEAD_HITS.add(1);
+		}
+		return IndexedTextFile.decodeLine(span.array(), (int) (lineOffsets.getStart() - spanStart),
+				lineOffsets.getLength(), lineOffsets.getStart());
+	}
+
+	/**
+	 * Read a window of lines at the current stride, beginning with a line.
+	 */
+	private void fill(long firstLine) throws IOException {
+		dropWindow();
+		if ((firstLine < 0) || (firstLine >= index.getLineCount())) {
+			return;
+		}
+		int count = (int) Math.min(windowSize, (index.getLineCount() - 1 - firstLine) / stride + 1);
+		long[] lineNumbers = new long[count];
+		for (int i = 0; i < count; i++) {
+			lineNumbers[i] = firstLine + i * stride;
+		}
+		FileSegmentOffsets[] found = new FileSegmentOffsets[count];
+		index.getLineOffsets(lineNumbers, found);
+
+		// Keep as many lines as fit in the span limit.
+		long start = found[0].getStart();
+		while ((count > 0) && (end(found[count - 1]) - start > MAX_SPAN_BYTES)) {
+			count--;
+		}
+		if (count == 0) {
+			return;
+		}
+		int spanLength = (int) (end(found[count - 1]) - start);
+		if (span.capacity() < spanLength) {
+			span = ByteBuffer.allocate(Math.min(Math.max(spanLength, 2 * span.capacity()), MAX_SPAN_BYTES));
+		}
+		span.clear();
+		span.limit(spanLength);
+		int numBytesRead = file.readSegment(start, span);
+
+		// Keep the lines that were read in full. (There may be fewer if the file has been truncated.)
+		while ((count > 0) && (end(found[count - 1]) - start > numBytesRead)) {
+			count--;
+		}
+		offsets = found;
+		spanStart = start;
+		windowFirst = firstLine;
+		windowStride = stride;
+		windowCount = count;
+		windowSize = Math.min(2 * windowSize, MAX_WINDOW);
+		if (Metrics.isEnabled()) {
+			Metrics.Counter.READAHEAD_WINDOWS.add(1);
+		}
+	}
+
+	private static long end(FileSegmentOffsets lineOffsets) {
+		return lineOffsets.getStart() + lineOffsets.getLength();
+	}
+
+	private void dropWindow() {
+		if ((windowCount > windowServed) && Metrics.isEnabled()) {
+			Metrics.Counter.READAHEAD_LINES_WASTED.add(windowCount - windowServed);
+		}
+		windowCount = 0;
+		windowServed = 0;
+	}
+}
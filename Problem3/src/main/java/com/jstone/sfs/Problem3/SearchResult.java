@@ -0,0 +1,28 @@
+package com.jstone.sfs.Problem3;
+
+import java.util.List;
+
+import lombok.Getter;
+
+/**
+ * The lines found by a search, and how much of the file had to be scanned to find them.
+ *
+ * @author Jeremy Stone
+ */
+@Getter
+public class SearchResult {
+	private final List<LineMatch> matches;
+	private final long blocksScanned;
+	private final long blockCount;
+
+	/**
+	 * @param matches       The matching lines, in file order
+	 * @param blocksScanned The number of blocks whose text was read
+	 * @param blockCount    The number of blocks in the file
+	 */
+	public SearchResult(List<LineMatch> matches, long blocksScanned, long blockCount) {
+		this.matches = matches;
+		this.blocksScanned = blocksScanned;
+		this.blockCount = blockCount;
+	}
+}
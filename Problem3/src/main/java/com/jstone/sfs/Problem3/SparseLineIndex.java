@@ -0,0 +1,374 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A compact line index that stores an absolute offset every K lines, and only line lengths in
+ * between.
+ * <p>
+ * The index begins with an {@link IndexHeader}, followed by fixed-size blocks. Block b describes
+ * lines bK through bK+K-1. It holds the 6-byte offset of line bK, followed by the lengths of the K
+ * lines, bit-packed with just enough bits for the longest line in the file. (Lines of up to 4095
+ * bytes need 12 bits, for example, and lines of up to 127 bytes need 7.) The last block is padded
+ * with zeros.
+ * <p>
+ * Because the blocks have a fixed size, the block containing a line is found by arithmetic, and a
+ * lookup costs one read of at most one block, followed by summing the lengths that precede the line
+ * in its block. K trades the size of the index against the work done per lookup. With K = 64 and
+ * 12-bit lengths, the index takes about 1.6 bytes per line, compared with 6 for
+ * {@link FlatLineIndex}; with 7-bit lengths it takes under 1 byte.
+ * <p>
+ * After {@link #load()}, the blocks are read from memory instead (see {@link MappedIndexFile}).
+ *
+ * @author Jeremy Stone
+ */
+public class SparseLineIndex implements LineIndex {
+	public static final int DEFAULT_LINES_PER_BLOCK = 64;
+
+	private static final int SIZE_OF_OFFSET = TextFileLineAccess.SIZE_OF_OFFSET;
+
+	private final FileChannel channel;
+	private final IndexHeader header;
+	private final int linesPerBlock;
+	private final int bitsPerLength;
+	private final int blockSize;
+	private final ThreadLocal<ByteBuffer> buffers;
+	// The blocks, once the index has been made resident
+	private volatile MappedIndexFile resident = null;
+
+	/**
+	 * @param channel An open channel on the index file
+	 * @param header  The index file's header
+	 */
+	SparseLineIndex(FileChannel channel, IndexHeader header) {
+		this.channel = channel;
+		this.header = header;
+		this.linesPerBlock = header.getParameter1();
+		this.bitsPerLength = header.getParameter2();
+		this.blockSize = blockSize(linesPerBlock, bitsPerLength);
+		// Leave room to read a whole word at the end of the block.
+		this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(blockSize + Long.BYTES));
+	}
+
+	@Override
+	public long getLineCount() {
+		return header.getLineCount();
+	}
+
+	@Override
+	public boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) throws IOException {
+		if ((lineNumber < 0) || (lineNumber >= getLineCount())) {
+			return false;
+		}
+		long block = lineNumber / linesPerBlock;
+		int lineInBlock = (int) (lineNumber % linesPerBlock);
+
+		MappedIndexFile memory = resident;
+		if (memory != null) {
+			long blockPosition = block * blockSize;
+			long start = memory.readOffset(blockPosition);
+			for (int i = 0; i < lineInBlock; i++) {
+				start += unpackLength(memory, blockPosition, i);
+			}
+			result.setStart(start);
+			result.setLength((int) unpackLength(memory, blockPosition, lineInBlock));
+			return true;
+		}
+
+		// Read only as much of the block as is needed.
+		ByteBuffer buffer = buffers.get();
+		buffer.clear();
+		buffer.limit(SIZE_OF_OFFSET + (int) (((long) (lineInBlock + 1) * bitsPerLength + 7) / 8));
+		readBlock(buffer, block);
+		buffer.limit(buffer.capacity());
+
+		long start = OffsetWriter.readOffset(buffer, 0);
+		for (int i = 0; i < lineInBlock; i++) {
+			start += unpackLength(buffer, i);
+		}
+		result.setStart(start);
+		result.setLength((int) unpackLength(buffer, lineInBlock));
+		return true;
+	}
+
+	/**
+	 * Find the line that contains a byte offset. The blocks are searched by their first offsets,
+	 * reading one offset per step, and then the lengths in the block that contains the offset are
+	 * summed until the line is reached.
+	 */
+	@Override
+	public long getLineNumber(long offset) throws IOException {
+		if ((offset < 0) || (offset >= header.getDataLength())) {
+			return -1;
+		}
+		ByteBuffer buffer = buffers.get();
+		MappedIndexFile memory = resident;
+		long numBlocks = (getLineCount() + linesPerBlock - 1) / linesPerBlock;
+
+		// Find the last block that begins at or before the offset.
+		long low = 0;
+		long high = numBlocks - 1;
+		while (low < high) {
+			long middle = (low + high + 1) >>> 1;
+			long blockStart;
+			if (memory != null) {
+				blockStart = memory.readOffset(middle * blockSize);
+			} else {
+				buffer.clear();
+				buffer.limit(SIZE_OF_OFFSET);
+				readBlock(buffer, middle);
+				blockStart = OffsetWriter.readOffset(buffer, 0);
+			}
+			if (blockStart <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+
+		long firstLine = low * linesPerBlock;
+		int numLines = (int) Math.min(linesPerBlock, getLineCount() - firstLine);
+		if (memory != null) {
+			long end = memory.readOffset(low * blockSize);
+			for (int i = 0; i < numLines; i++) {
+				end += unpackLength(memory, low * blockSize, i);
+				if (offset < end) {
+					return firstLine + i;
+				}
+			}
+			return -1;
+		}
+
+		buffer.clear();
+		buffer.limit(blockSize);
+		readBlock(buffer, low);
+		buffer.limit(buffer.capacity());
+		long end = OffsetWriter.readOffset(buffer, 0);
+		for (int i = 0; i < numLines; i++) {
+			end += unpackLength(buffer, i);
+			if (offset < end) {
+				return firstLine + i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Map the blocks into memory and load them.
+	 */
+	@Override
+	public synchronized void load() throws IOException {
+		if (resident == null) {
+			resident = new MappedIndexFile(channel, IndexHeader.SIZE);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void readBlock(ByteBuffer buffer, long block) throws IOException {
+		long position = IndexHeader.SIZE + block * blockSize;
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The index file is truncated.");
+			}
+		}
+	}
+
+	private long unpackLength(MappedIndexFile memory, long blockPosition, int lineInBlock) {
+		long bitPosition = (long) lineInBlock * bitsPerLength;
+		long word = memory.getLong(blockPosition + SIZE_OF_OFFSET + (bitPosition >>> 3));
+		return (word << (bitPosition & 7)) >>> (Long.SIZE - bitsPerLength);
+	}
+
+	private long unpackLength(ByteBuffer buffer, int lineInBlock) {
+		long bitPosition = (long) lineInBlock * bitsPerLength;
+		long word = buffer.getLong(SIZE_OF_OFFSET + (int) (bitPosition >>> 3));
+		return (word << (bitPosition & 7)) >>> (Long.SIZE - bitsPerLength);
+	}
+
+	/**
+	 * Write a sparse index, converting it from a flat one.
+	 * <p>
+	 * The flat index is read twice: once to find the longest line, which determines how many bits
+	 * each length needs, and once to write the blocks.
+	 *
+	 * @param flatIndexPath The path of a flat index, as written by {@link LineIndexBuilder}
+	 * @param indexPath     The path at which the sparse index should be created
+	 * @param linesPerBlock The number of lines per block (K)
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void write(Path flatIndexPath, Path indexPath, int linesPerBlock) throws IOException {
+		if (linesPerBlock < 1) {
+			throw new IllegalArgumentException("The number of lines per block must be positive.");
+		}
+		Path tempPath = LineIndexBuilder.createTempSibling(indexPath, ".tmp");
+
+		try (FileChannel flat = FileChannel.open(flatIndexPath, StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			IndexHeader header = IndexHeader.read(flat);
+			if ((header == null) || (header.getEncoding() != IndexEncoding.FLAT)) {
+				throw new IOException("A sparse index can only be converted from a versioned flat index.");
+			}
+			long numOffsets = header.getNumOffsets();
+
+			long maxLength = 0;
+			OffsetReader reader = new OffsetReader(flat, IndexHeader.SIZE);
+			for (long previous = 0, i = 0; i < numOffsets; i++) {
+				long offset = reader.read();
+				maxLength = Math.max(maxLength, offset - previous);
+				previous = offset;
+			}
+			int bitsPerLength = Math.max(1, Long.SIZE - Long.numberOfLeadingZeros(maxLength));
+
+			header.setEncoding(IndexEncoding.SPARSE);
+			header.setParameter1(linesPerBlock);
+			header.setParameter2(bitsPerLength);
+			header.write(output);
+
+			output.position(IndexHeader.SIZE);
+			Writer writer = new Writer(output, linesPerBlock, bitsPerLength, 0, 0);
+			reader = new OffsetReader(flat, IndexHeader.SIZE);
+			for (long i = 0; i < numOffsets; i++) {
+				writer.lineStart(reader.read());
+			}
+			if (numOffsets == 0) {
+				// An empty file has one empty line.
+				writer.lineStart(0);
+			}
+			writer.close();
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		}
+
+		Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	static int blockSize(int linesPerBlock, int bitsPerLength) {
+		return SIZE_OF_OFFSET + (int) (((long) linesPerBlock * bitsPerLength + 7) / 8);
+	}
+
+	/**
+	 * Writes the blocks of a sparse index, given the offset at which each line ends.
+	 * <p>
+	 * Blocks are packed into a large buffer, which is written to the index when it is full. Writing
+	 * may begin at any block, which is how an index is extended when lines are appended to its file.
+	 */
+	static class Writer implements LineBreakScanner.Sink {
+		private final FileChannel channel;
+		private final int linesPerBlock;
+		private final int bitsPerLength;
+		private final int blockSize;
+		private final ByteBuffer buffer;
+		private long linesWritten;
+		private long previousEnd;
+		private int blockStart = -1;
+		private long bits = 0;
+		private int numBits = 0;
+		private boolean overflowed = false;
+
+		/**
+		 * @param channel       The channel to write to, positioned at the beginning of a block
+		 * @param linesPerBlock The number of lines per block
+		 * @param bitsPerLength The number of bits per line length
+		 * @param firstLine     The number of the first line to write, which must begin a block
+		 * @param firstStart    The offset at which that line begins
+		 */
+		Writer(FileChannel channel, int linesPerBlock, int bitsPerLength, long firstLine, long firstStart) {
+			this.channel = channel;
+			this.linesPerBlock = linesPerBlock;
+			this.bitsPerLength = bitsPerLength;
+			this.blockSize = blockSize(linesPerBlock, bitsPerLength);
+			this.buffer = ByteBuffer.allocateDirect(Math.max(1, OffsetWriter.DEFAULT_BUFFER_SIZE / blockSize) * blockSize);
+			this.linesWritten = firstLine;
+			this.previousEnd = firstStart;
+		}
+
+		/**
+		 * Add a line, given the offset at which it ends (and the next line begins).
+		 * <p>
+		 * If the line is too long for the number of bits per length, it is not written, and the writer
+		 * is marked as overflowed.
+		 */
+		@Override
+		public void lineStart(long offset) throws IOException {
+			long length = offset - previousEnd;
+			if (overflowed || ((length >>> bitsPerLength) != 0)) {
+				overflowed = true;
+				return;
+			}
+			if (linesWritten % linesPerBlock == 0) {
+				startBlock(previousEnd);
+			}
+			bits = (bits << bitsPerLength) | length;
+			numBits += bitsPerLength;
+			while (numBits >= Byte.SIZE) {
+				numBits -= Byte.SIZE;
+				buffer.put((byte) (bits >>> numBits));
+			}
+			previousEnd = offset;
+			linesWritten++;
+		}
+
+		/**
+		 * @return The number of lines in the index, including any before the first one written
+		 */
+		long getLinesWritten() {
+			return linesWritten;
+		}
+
+		/**
+		 * @return true if a line was too long to be written
+		 */
+		boolean isOverflowed() {
+			return overflowed;
+		}
+
+		void close() throws IOException {
+			finishBlock();
+			flush();
+		}
+
+		private void startBlock(long offset) throws IOException {
+			finishBlock();
+			if (buffer.remaining() < blockSize) {
+				flush();
+			}
+			blockStart = buffer.position();
+			buffer.putShort((short) (offset >>> 32));
+			buffer.putInt((int) offset);
+		}
+
+		private void finishBlock() {
+			if (blockStart < 0) {
+				return;
+			}
+			if (numBits > 0) {
+				buffer.put((byte) (bits << (Byte.SIZE - numBits)));
+				numBits = 0;
+			}
+			while (buffer.position() < blockStart + blockSize) {
+				buffer.put((byte) 0);
+			}
+			blockStart = -1;
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
@@ -1,23 +1,16 @@
 package com.jstone.sfs.Problem3;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-
-import org.apache.commons.io.input.CountingInputStream;
-import org.apache.commons.lang3.StringUtils;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Utility for extracting a line from a large text file, with indexing to speed up further
@@ -29,6 +22,12 @@ import org.apache.commons.lang3.StringUtils;
  * the line's offset and the offset of the next line (or EOF) in bytes. These offsets are then used
  * to perform an efficient read of only the selected byte range.
  * <p>
+ * extractLineFromFile opens and closes the file for each line. Clients that extract many lines
+ * should open an {@link IndexedTextFile} once and use it for all of them.
+ * <p>
+ * Files whose names end in ".gz" are decompressed as needed, with the help of a second index of
+ * decompressor checkpoints. See {@link GzipTextFile}.
+ * <p>
  * Assumptions:
  * <ul>
  * <li>The input file has at most 1 billion lines (as specified in the problem description).
@@ -45,9 +44,8 @@ import org.apache.commons.lang3.StringUtils;
  * @author Jeremy Stone
  */
 public class TextFileLineAccess {
-	private static final int SIZE_OF_LONG = 8;
-	private static final int SIZE_OF_OFFSET = 6;
-	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	static final int SIZE_OF_OFFSET = 6;
+	static final Charset CHARSET = StandardCharsets.UTF_8;
 
 	// Byte order marks
 	public static final String UTF8_BOM = "\uefbbbf";
@@ -61,214 +59,233 @@ public class TextFileLineAccess {
 	 * @param lineNumber The 0-based index of the line to extract
 	 * @return The line, or null if lineNumber is out of range
 	 */
-	public static String extractLineFromFile(String path, int lineNumber) {
-		String cachePathStr = String.format("%s.idx", path);
-		Path cachePath = FileSystems.getDefault().getPath(cachePathStr);
-
-		File inputFile = new File(path);
+	public static String extractLineFromFile(String path, long lineNumber) {
+		return extractLineFromFile(path, lineNumber, new IndexOptions());
+	}
 
-		FileSegmentOffsets lineOffsets = null;
-		if (Files.exists(cachePath)) {
-			lineOffsets = lookupLineOffsets(cachePathStr, lineNumber);
-		} else {
-			lineOffsets = cacheLineOffsets(inputFile, cachePathStr, lineNumber);
+	/**
+	 * Extract one line from a text file, building its index with the given settings if necessary.
+	 * <p>
+	 * With {@link IndexOptions#isProgressive()} set, the line is returned as soon as the index has
+	 * reached it, and the rest of the file is indexed in the background.
+	 * 
+	 * @param path       The text file's path
+	 * @param lineNumber The 0-based index of the line to extract
+	 * @param options    The settings to use if the index needs to be built
+	 * @return The line, or null if lineNumber is out of range
+	 */
+	public static String extractLineFromFile(String path, long lineNumber, IndexOptions options) {
+		if (GzipTextFile.isGzip(path)) {
+			return extractLineFromGzipFile(path, lineNumber, options);
+		}
+		String line = null;
+		try (IndexedTextFile file = IndexedTextFile.open(path, options)) {
+			line = file.getLine(lineNumber);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
+		return line;
+	}
 
+	private static String extractLineFromGzipFile(String path, long lineNumber, IndexOptions options) {
 		String line = null;
-		if (lineOffsets != null) {
-			line = readFileSegment(inputFile, lineOffsets.getStart(), lineOffsets.getLength());
-			if (line != null) {
-				line = StringUtils.strip(line, "\r\n");
-			}
+		try (GzipTextFile file = GzipTextFile.open(path, options)) {
+			line = file.getLine(lineNumber);
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 		return line;
 	}
 
 	/**
-	 * Look up the byte offset and length of a chosen line, in an index that has already been saved.
+	 * Get the path of the index file for a text file.
 	 * 
-	 * @param cachePath  The path of an index file
-	 * @param lineNumber The line number to look up
-	 * @return An object that specifies the byte offset and length of the line, or null if the line
-	 *         number is out of range
+	 * @param path The text file's path
+	 * @return The index file's path
 	 */
-	private static FileSegmentOffsets lookupLineOffsets(String cachePath, int lineNumber) {
-		RandomAccessFile cache = null;
-		FileSegmentOffsets result = null;
-		try {
-			cache = new RandomAccessFile(cachePath, "r");
-			long start = 0;
-			int length = 0;
-			if (lineNumber < 0) {
-				return null;
-			} else if (lineNumber > 0) {
-				int offsetLocation = (lineNumber - 1) * SIZE_OF_OFFSET;
-				if (offsetLocation >= cache.length() - SIZE_OF_OFFSET) {
-					return null;
-				}
-				cache.seek((lineNumber - 1) * SIZE_OF_OFFSET);
-				start = readOffset(cache);
-			}
-			length = (int) (readOffset(cache) - start);
-			result = new FileSegmentOffsets(start, length);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			// Perhaps the file exists but is not readable.
-			e.printStackTrace();
-		} finally {
-			try {
-				if (cache != null) {
-					cache.close();
-				}
-			} catch (IOException e) {
-			}
-		}
-		if (result == null) {
-			System.out.println("NULL result");
-		}
-		return result;
+	static Path getIndexPath(String path) {
+		return FileSystems.getDefault().getPath(String.format("%s.idx", path));
 	}
 
 	/**
 	 * Index the byte offsets of all the line beginnings in a text file.
 	 * <p>
-	 * This is ordinarily called when the utility is run for the first time on a given text file. In
-	 * this context, the client has requested a particular line, and we are only indexing the whole file
-	 * in order to speed up later operations. So that it will not be necessary to re-read the index to
-	 * find the offsets of the requested line, this method takes the line number as a third parameter,
-	 * and in addition to the important side effect of creating the index, this method also returns
-	 * offsets for that line.
+	 * This is ordinarily called when the utility is run for the first time on a given text file.
 	 * <p>
-	 * This method supports CR, LF, and CRLF line breaks.
+	 * This method supports CR, LF, and CRLF line breaks. The work is done by
+	 * {@link ParallelLineIndexBuilder}, using one worker thread per available processor.
 	 * 
-	 * @param file                The file to index
-	 * @param cachePath           The path at which an index file should be created
-	 * @param lineNumberRequested A line number to locate during the indexing
-	 * @return
+	 * @param file      The file to index
+	 * @param cachePath The path at which an index file should be created
+	 * @throws IOException if the index cannot be built
 	 */
-	private static FileSegmentOffsets cacheLineOffsets(File file, String cachePath, int lineNumberRequested) {
-		CountingInputStream inputStream = null;
-		OutputStream cache = null;
-
-		FileSegmentOffsets result = null;
-
-		System.err.print(String.format("Writing index to %s... ", cachePath));
-
-		try {
-			inputStream = new CountingInputStream(new FileInputStream(file));
-			cache = new FileOutputStream(cachePath);
-
-			int lineNumber = 0;
-			long offset = 0;
-			long lineOffset = 0;
-			long prevLineOffset = 0;
-			boolean justReadCR = false;
+	static void cacheLineOffsets(File file, Path cachePath) throws IOException {
+		cacheLineOffsets(file, cachePath, new IndexOptions());
+	}
 
+	/**
+	 * Index the byte offsets of all the line beginnings in a text file, in a chosen encoding.
+	 * <p>
+	 * Encodings other than {@link IndexEncoding#FLAT} are produced by building a flat index first,
+	 * in a temporary file, and then converting it. If {@link IndexOptions#isDetectFixedWidth()} is
+	 * set (as it is by default), or the encoding is {@link IndexEncoding#FIXED}, the flat index is
+	 * first converted to a {@link FixedWidthLineIndex} if the file's lines allow it, and otherwise
+	 * to the encoding requested (with FIXED falling back to FLAT).
+	 * <p>
+	 * A {@link TrigramBlockIndex} and a {@link KeyColumnIndex} are also built if the options ask for
+	 * them. The options' {@link IndexProgress} is told as each index file is written.
+	 * 
+	 * @param file      The file to index
+	 * @param cachePath The path at which an index file should be created
+	 * @param options   The settings for the index
+	 * @throws IOException if the index cannot be built
+	 */
+	static void cacheLineOffsets(File file, Path cachePath, IndexOptions options) throws IOException {
+		options.getProgress().started("index", cachePath);
+		ParallelLineIndexBuilder builder = new ParallelLineIndexBuilder(options.getWorkers());
+		boolean tryFixed = options.isDetectFixedWidth() || (options.getEncoding() == IndexEncoding.FIXED);
+		if (tryFixed || (options.getEncoding() == IndexEncoding.SPARSE)) {
+			Path flatPath = LineIndexBuilder.createTempSibling(cachePath, ".flat");
 			try {
-				while (true) {
-					char c = TextIO.readUTF8Char(inputStream);
-					offset = inputStream.getCount();
-					if ((c == '\r') || ((c == '\n') && !justReadCR)) {
-						if (lineNumber == lineNumberRequested) {
-							result = new FileSegmentOffsets(lineOffset, (int) (offset - lineOffset));
-						}
-						if (prevLineOffset > 0) {
-							writeOffset(cache, prevLineOffset);
-						}
-						prevLineOffset = lineOffset;
-						lineOffset = offset;
-						lineNumber++;
-						if (c == '\r') {
-							justReadCR = true;
-						} else {
-							justReadCR = false;
-						}
-					} else if (c == '\n') {
-						// We've encountered a CRLF line terminator. Advance to the offset of the next
-						// line to skip the LF.
-						lineOffset = offset;
-						justReadCR = false;
+				builder.buildIndex(file, flatPath);
+				if (!(tryFixed && FixedWidthLineIndex.write(flatPath, cachePath))) {
+					if (options.getEncoding() == IndexEncoding.SPARSE) {
+						SparseLineIndex.write(flatPath, cachePath, options.getLinesPerBlock());
 					} else {
-						justReadCR = false;
+						Files.move(flatPath, cachePath, StandardCopyOption.REPLACE_EXISTING);
 					}
 				}
-			} catch (EOFException e) {
-				if (prevLineOffset > 0) {
-					writeOffset(cache, prevLineOffset);
-				}
-				if (lineOffset > 0) {
-					writeOffset(cache, lineOffset);
-				}
-				if (offset > 0) {
-					writeOffset(cache, offset);
-				}
-				if (lineNumber == lineNumberRequested) {
-					result = new FileSegmentOffsets(lineOffset, (int) (offset - lineOffset));
-				}
+			} finally {
+				Files.deleteIfExists(flatPath);
 			}
+		} else {
+			builder.buildIndex(file, cachePath);
+		}
+		options.getProgress().finished("index", cachePath);
 
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (inputStream != null) {
-					inputStream.close();
-				}
-				if (cache != null) {
-					cache.close();
-				}
-			} catch (IOException e) {
+		if (options.isSearchable()) {
+			Path trigramPath = TrigramBlockIndex.getPath(file.getPath());
+			options.getProgress().started("search index", trigramPath);
+			try (LineIndex index = LineIndex.open(cachePath)) {
+				TrigramBlockIndex.build(file, index, trigramPath, options.getSearchLinesPerBlock(),
+						options.getSearchFilterSize(), options.getWorkers());
 			}
+			options.getProgress().finished("search index", trigramPath);
 		}
 
-		System.err.println("done.");
-		return result;
+		if (options.getKeyColumn() >= 0) {
+			Path keyPath = KeyColumnIndex.getPath(file.getPath(), options.getKeyColumn(),
+					options.getKeyDelimiter());
+			options.getProgress().started("key index", keyPath);
+			try (LineIndex index = LineIndex.open(cachePath)) {
+				KeyColumnIndex.build(file, index, keyPath, options.getKeyColumn(), options.getKeyDelimiter());
+			}
+			options.getProgress().finished("key index", keyPath);
+		}
 	}
 
 	/**
-	 * Read a portion of a text file, specified by a byte offset and length, and return the result as a
-	 * string.
+	 * Make sure that a text file has an index, and that the index describes the file as it is now.
+	 * <p>
+	 * A versioned index records the length, modification time and a fingerprint of the file it
+	 * describes (see {@link IndexHeader#fingerprint}). If the file has the same length and
+	 * modification time, the index is used as it is. If the file has grown, and its old length still
+	 * has the same fingerprint, lines are assumed to have been appended, and only the new bytes are
+	 * scanned. Any other change that the fingerprint catches causes the index to be rebuilt. The
+	 * fingerprint samples the file rather than reading all of it, so an edit in place that keeps the
+	 * length of the file may be missed.
+	 * <p>
+	 * An index is updated by replacing it with an updated copy, never in place, so that other readers
+	 * of the old index are not disturbed (see {@link LineIndexBuilder#append}).
 	 * <p>
-	 * Seeking is performed efficiently, using filesystem operations rather than reading the file to
-	 * that point.
+	 * An unversioned index is kept only if its last offset is the length of the file.
 	 * 
-	 * @param file     The file to read
-	 * @param offset   The offset, in bytes, at which to start reading
-	 * @param numBytes The number of bytes to read
-	 * @return The content read, interpreted as a UTF-8-encoded string
+	 * @param file      The text file
+	 * @param indexPath The path of its index
+	 * @param options   The settings used if the index must be built
+	 * @throws IOException if the index cannot be checked or built
 	 */
-	private static String readFileSegment(File file, long offset, int numBytes) {
-		RandomAccessFile randomAccess = null;
-		String fileSegment = null;
-		try {
-			// Seek to the position. We use RandomAccessFile for this, because it performs
-			// low-level filesystem operations to seek instead of reading characters and
-			// discarding them.
-			randomAccess = new RandomAccessFile(file, "r");
-			randomAccess.seek(offset);
+	static void updateIndex(File file, Path indexPath, IndexOptions options) throws IOException {
+		if (!Files.exists(indexPath)) {
+			Metrics.recordIndexCheck(Metrics.Counter.INDEX_REBUILT);
+			cacheLineOffsets(file, indexPath, options);
+			return;
+		}
 
-			byte[] buffer = new byte[numBytes];
-			TextIO.readBytes(randomAccess, buffer, 0, numBytes);
-			fileSegment = new String(buffer, CHARSET);
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				if (randomAccess != null) {
-					randomAccess.close();
+		IndexHeader header;
+		boolean fresh;
+		Metrics.Counter outcome = Metrics.Counter.INDEX_REUSED;
+		try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel index = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+			header = IndexHeader.read(index);
+			long size = data.size();
+			if (header == null) {
+				fresh = isCurrentUnversionedIndex(index, size);
+			} else if (index.size() != header.getIndexSize()) {
+				// An interrupted update
+				fresh = false;
+			} else if (header.getVersion() < 2) {
+				fresh = (header.getDataLength() == size);
+			} else if ((header.getDataLength() == size) && (header.getModifiedTime() == file.lastModified())) {
+				Metrics.recordIndexCheck(Metrics.Counter.INDEX_REUSED);
+				return;
+			} else {
+				fresh = (header.getDataLength() <= size)
+						&& (header.getFingerprint() == IndexHeader.fingerprint(data, header.getDataLength()));
+				if (fresh && (header.getDataLength() < size)) {
+					// Lines have been appended.
+					fresh = new LineIndexBuilder().append(file, indexPath);
+					outcome = Metrics.Counter.INDEX_EXTENDED;
+				} else if (fresh) {
+					// Touched, but not changed: note the new modification time, in a copy that replaces the
+					// index, as when extending it.
+					Path tempPath = LineIndexBuilder.copyForUpdate(indexPath);
+					try {
+						try (FileChannel output = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+							header.setModifiedTime(file.lastModified());
+							header.write(output);
+						}
+						LineIndexBuilder.replace(tempPath, indexPath);
+					} finally {
+						Files.deleteIfExists(tempPath);
+					}
 				}
-			} catch (IOException e) {
 			}
 		}
-		if ((fileSegment != null) && (offset == 0)) {
-			fileSegment = trimBOM(fileSegment);
+
+		Metrics.recordIndexCheck(fresh ? outcome : Metrics.Counter.INDEX_REBUILT);
+		if (!fresh) {
+			// Rebuild in the format that the index already has.
+			IndexOptions rebuildOptions = options;
+			if (header != null) {
+				rebuildOptions = new IndexOptions();
+				rebuildOptions.setWorkers(options.getWorkers());
+				rebuildOptions.setProgress(options.getProgress());
+				rebuildOptions.setDetectFixedWidth(options.isDetectFixedWidth());
+				rebuildOptions.setEncoding(header.getEncoding());
+				if (header.getEncoding() == IndexEncoding.SPARSE) {
+					rebuildOptions.setLinesPerBlock(header.getParameter1());
+				}
+			}
+			cacheLineOffsets(file, indexPath, rebuildOptions);
 		}
-		return fileSegment;
+	}
+
+	private static boolean isCurrentUnversionedIndex(FileChannel index, long size) throws IOException {
+		long indexSize = index.size();
+		if (indexSize % SIZE_OF_OFFSET != 0) {
+			return false;
+		}
+		if (indexSize == 0) {
+			return (size == 0);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(SIZE_OF_OFFSET);
+		while (buffer.hasRemaining()) {
+			if (index.read(buffer, indexSize - SIZE_OF_OFFSET + buffer.position()) < 0) {
+				return false;
+			}
+		}
+		return OffsetWriter.readOffset(buffer, 0) == size;
 	}
 
 	/**
@@ -279,28 +296,10 @@ public class TextFileLineAccess {
 	 * @param s The string to trim
 	 * @return The trimmed string
 	 */
-	private static String trimBOM(String s) {
+	static String trimBOM(String s) {
 		if (s.startsWith(BOM) || s.startsWith(UTF8_BOM)) {
 			s = s.substring(1);
 		}
 		return s;
 	}
-
-	private static long readOffset(RandomAccessFile cache) throws IOException {
-		byte[] bytes = new byte[SIZE_OF_LONG];
-		TextIO.readBytes(cache, bytes, SIZE_OF_LONG - SIZE_OF_OFFSET, SIZE_OF_OFFSET);
-		return ByteBuffer.wrap(bytes).getLong();
-	}
-
-	/**
-	 * Write a byte offset, using only 6 bytes to keep the file compact.
-	 * 
-	 * @param destination The file to write to
-	 * @param x           The offset to write
-	 * @throws IOException if an I/O error occurs
-	 */
-	private static void writeOffset(OutputStream cache, long x) throws IOException {
-		byte[] bytes = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN).putLong(x).array();
-		cache.write(bytes, SIZE_OF_LONG - SIZE_OF_OFFSET, SIZE_OF_OFFSET);
-	}
 }
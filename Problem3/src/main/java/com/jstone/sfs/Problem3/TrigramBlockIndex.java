@@ -0,0 +1,376 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A skip index for substring search: one Bloom filter of byte trigrams per block of lines.
+ * <p>
+ * The lines of a text file are divided into blocks of M lines, and every run of three bytes within
+ * a line (not counting its terminator) is added to its block's filter. A line can only contain a
+ * string of three or more bytes if its block's filter contains all of the string's trigrams, so a
+ * search reads the filters first, and then scans only the blocks that pass. A filter can give false
+ * positives, which cost a wasted scan of a block, but never false negatives. For a string of a
+ * dozen characters, the chance that a block without it passes anyway is typically well under one
+ * in a thousand.
+ * <p>
+ * The filters have a fixed size, so the index costs that size per M lines: with the defaults, 8 KB
+ * per 1024 lines. Strings shorter than three bytes have no trigrams, and all blocks are scanned.
+ * <p>
+ * Layout of the index file (big-endian): a 64-byte header with a magic number, a version, M, the
+ * filter size, the number of hash functions, the number of blocks, the number of lines, and the
+ * length and modification time of the text file; then the filters, in block order. Each filter is
+ * an array of 64-bit words.
+ *
+ * @author Jeremy Stone
+ */
+public class TrigramBlockIndex implements Closeable {
+	public static final int DEFAULT_LINES_PER_BLOCK = 1024;
+	public static final int DEFAULT_FILTER_SIZE = 8 * 1024;
+
+	private static final byte[] MAGIC = { (byte) 0x89, 'T', 'G', 'X', '\r', '\n', 0x1a, '\n' };
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int NUM_HASHES = 2;
+
+	// Blocks are handed to the build threads, and filters are read by searches, this many at a time.
+	private static final int BLOCKS_PER_TASK = 64;
+	private static final int MAX_FILTER_BYTES_PER_READ = 4 * 1024 * 1024;
+	// The text of a block is mapped in windows of at most this many bytes.
+	private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final int linesPerBlock;
+	private final int filterSize;
+	private final int numHashes;
+	private final long numBlocks;
+
+	private TrigramBlockIndex(FileChannel channel, int linesPerBlock, int filterSize, int numHashes, long numBlocks) {
+		this.channel = channel;
+		this.linesPerBlock = linesPerBlock;
+		this.filterSize = filterSize;
+		this.numHashes = numHashes;
+		this.numBlocks = numBlocks;
+	}
+
+	/**
+	 * Get the path of the trigram index for a text file.
+	 *
+	 * @param path The text file's path
+	 * @return The trigram index's path
+	 */
+	static Path getPath(String path) {
+		return Paths.get(String.format("%s.tgx", path));
+	}
+
+	/**
+	 * Open a trigram index, if it describes the text file as it is now.
+	 *
+	 * @param path The trigram index's path
+	 * @param file The text file
+	 * @return The index, or null if it does not exist or is out of date
+	 * @throws IOException if the index cannot be read
+	 */
+	public static TrigramBlockIndex open(Path path, File file) throws IOException {
+		if (!Files.exists(path)) {
+			return null;
+		}
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			readFully(channel, header, 0);
+			header.flip();
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || (header.getInt() != VERSION)) {
+				channel.close();
+				return null;
+			}
+			int linesPerBlock = header.getInt();
+			int filterSize = header.getInt();
+			int numHashes = header.getInt();
+			long numBlocks = header.getLong();
+			header.getLong(); // The number of lines
+			long dataLength = header.getLong();
+			long modifiedTime = header.getLong();
+			if ((dataLength != file.length()) || (modifiedTime != file.lastModified())
+					|| (channel.size() != HEADER_SIZE + numBlocks * filterSize)) {
+				channel.close();
+				return null;
+			}
+			return new TrigramBlockIndex(channel, linesPerBlock, filterSize, numHashes, numBlocks);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Build a trigram index for a text file.
+	 * <p>
+	 * The blocks are independent, so they are divided among worker threads, each of which maps the
+	 * text of its blocks and writes their filters with positional writes.
+	 *
+	 * @param file          The text file
+	 * @param index         The text file's line index, which must be current
+	 * @param path          The path at which the trigram index should be created
+	 * @param linesPerBlock The number of lines per block (M)
+	 * @param filterSize    The size of each block's filter in bytes, a power of 2 no smaller than 8
+	 * @param workers       The number of worker threads to use
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void build(File file, LineIndex index, Path path, int linesPerBlock, int filterSize, int workers)
+			throws IOException {
+		if (linesPerBlock < 1) {
+			throw new IllegalArgumentException("The number of lines per block must be positive.");
+		}
+		if ((filterSize < Long.BYTES) || (Integer.bitCount(filterSize) != 1)) {
+			throw new IllegalArgumentException("The filter size must be a power of 2, of at least 8 bytes.");
+		}
+		Path tempPath = LineIndexBuilder.createTempSibling(path, ".tmp");
+		long numLines = index.getLineCount();
+		long numBlocks = (numLines + linesPerBlock - 1) / linesPerBlock;
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+
+		try (FileChannel data = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				FileChannel output = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long modifiedTime = file.lastModified();
+			long dataLength = data.size();
+
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (long first = 0; first < numBlocks; first += BLOCKS_PER_TASK) {
+				long firstBlock = first;
+				long lastBlock = Math.min(numBlocks, first + BLOCKS_PER_TASK) - 1;
+				futures.add(executor.submit(() -> {
+					FilterBuilder builder = new FilterBuilder(filterSize, NUM_HASHES);
+					for (long block = firstBlock; block <= lastBlock; block++) {
+						long firstLine = block * linesPerBlock;
+						long lastLine = Math.min(numLines, firstLine + linesPerBlock) - 1;
+						long start = index.getLineOffsets(firstLine).getStart();
+						FileSegmentOffsets last = index.getLineOffsets(lastLine);
+						long end = Math.min(dataLength, last.getStart() + last.getLength());
+						builder.clear();
+						for (long position = start; position < end; position += WINDOW_SIZE) {
+							MappedByteBuffer window = data.map(FileChannel.MapMode.READ_ONLY, position,
+									Math.min(WINDOW_SIZE, end - position));
+							builder.add(window);
+						}
+						writeFully(output, builder.toBuffer(), HEADER_SIZE + block * filterSize);
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				waitFor(future);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(linesPerBlock);
+			header.putInt(filterSize);
+			header.putInt(NUM_HASHES);
+			header.putLong(numBlocks);
+			header.putLong(numLines);
+			header.putLong(dataLength);
+			header.putLong(modifiedTime);
+			header.clear();
+			writeFully(output, header, 0);
+		} catch (IOException e) {
+			Files.deleteIfExists(tempPath);
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return The number of lines per block (M)
+	 */
+	public int getLinesPerBlock() {
+		return linesPerBlock;
+	}
+
+	/**
+	 * @return The number of blocks
+	 */
+	public long getBlockCount() {
+		return numBlocks;
+	}
+
+	/**
+	 * Compute the filter bits that a block must have set to be able to contain a string.
+	 *
+	 * @param pattern The string, as bytes
+	 * @return The bit positions, which are empty if the string is shorter than three bytes
+	 */
+	public int[] getPatternBits(byte[] pattern) {
+		int numTrigrams = Math.max(0, pattern.length - 2);
+		int[] bits = new int[numTrigrams * numHashes];
+		for (int i = 0; i < numTrigrams; i++) {
+			int trigram = ((pattern[i] & 0xff) << 16) | ((pattern[i + 1] & 0xff) << 8) | (pattern[i + 2] & 0xff);
+			FilterBuilder.hash(trigram, filterSize * 8 - 1, numHashes, bits, i * numHashes);
+		}
+		return bits;
+	}
+
+	/**
+	 * Find the blocks, in a range, whose filters have all of the given bits set.
+	 *
+	 * @param bits       Bit positions from {@link #getPatternBits(byte[])}
+	 * @param firstBlock The first block to check
+	 * @param maxBlocks  The maximum number of blocks to check
+	 * @return The numbers of the blocks that may contain the string, in ascending order
+	 * @throws IOException if the index cannot be read
+	 */
+	public long[] findCandidateBlocks(int[] bits, long firstBlock, int maxBlocks) throws IOException {
+		long lastBlock = Math.min(numBlocks, firstBlock + maxBlocks) - 1;
+		long[] candidates = new long[(int) Math.max(0, lastBlock - firstBlock + 1)];
+		int numCandidates = 0;
+		if (bits.length == 0) {
+			for (long block = firstBlock; block <= lastBlock; block++) {
+				candidates[numCandidates++] = block;
+			}
+			return candidates;
+		}
+
+		int blocksPerRead = Math.max(1, MAX_FILTER_BYTES_PER_READ / filterSize);
+		ByteBuffer filters = ByteBuffer.allocate(Math.min(blocksPerRead, candidates.length) * filterSize);
+		for (long block = firstBlock; block <= lastBlock; block += blocksPerRead) {
+			int numRead = (int) Math.min(blocksPerRead, lastBlock - block + 1);
+			filters.clear();
+			filters.limit(numRead * filterSize);
+			readFully(channel, filters, HEADER_SIZE + block * filterSize);
+			for (int i = 0; i < numRead; i++) {
+				if (allSet(filters, i * filterSize, bits)) {
+					candidates[numCandidates++] = block + i;
+				}
+			}
+		}
+		return Arrays.copyOf(candidates, numCandidates);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static boolean allSet(ByteBuffer filters, int filterStart, int[] bits) {
+		for (int bit : bits) {
+			if ((filters.getLong(filterStart + (bit >>> 6) * Long.BYTES) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("The trigram index is truncated.");
+			}
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	private static void waitFor(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building the trigram index", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to build the trigram index", e.getCause());
+		}
+	}
+
+	/**
+	 * Builds the filter of one block.
+	 */
+	private static class FilterBuilder {
+		private final long[] words;
+		private final int mask;
+		private final int numHashes;
+		private final int[] bits;
+		private final ByteBuffer buffer;
+		// The last bytes seen, and the number of them since the last line break
+		private int trigram = 0;
+		private int runLength = 0;
+
+		FilterBuilder(int filterSize, int numHashes) {
+			this.words = new long[filterSize / Long.BYTES];
+			this.mask = filterSize * 8 - 1;
+			this.numHashes = numHashes;
+			this.bits = new int[numHashes];
+			this.buffer = ByteBuffer.allocate(filterSize);
+		}
+
+		void clear() {
+			Arrays.fill(words, 0);
+			trigram = 0;
+			runLength = 0;
+		}
+
+		void add(ByteBuffer text) {
+			for (int i = text.position(); i < text.limit(); i++) {
+				byte b = text.get(i);
+				if ((b == LineBreakScanner.LF) || (b == LineBreakScanner.CR)) {
+					runLength = 0;
+					continue;
+				}
+				trigram = ((trigram << 8) | (b & 0xff)) & 0xffffff;
+				if (++runLength >= 3) {
+					hash(trigram, mask, numHashes, bits, 0);
+					for (int bit : bits) {
+						words[bit >>> 6] |= 1L << bit;
+					}
+				}
+			}
+		}
+
+		ByteBuffer toBuffer() {
+			buffer.clear();
+			buffer.asLongBuffer().put(words);
+			return buffer;
+		}
+
+		/**
+		 * Compute the filter bits for a trigram, by double hashing.
+		 */
+		static void hash(int trigram, int mask, int numHashes, int[] bits, int from) {
+			long h = trigram * 0x9e3779b97f4a7c15L;
+			int h1 = (int) (h >>> 32);
+			int h2 = (int) h | 1;
+			for (int i = 0; i < numHashes; i++) {
+				bits[from + i] = (h1 + i * h2) & mask;
+			}
+		}
+	}
+}
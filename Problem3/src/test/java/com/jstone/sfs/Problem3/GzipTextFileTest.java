@@ -0,0 +1,213 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for GzipTextFile.
+ * <p>
+ * Each gzip file is checked against the uncompressed text, read with IndexedTextFile.
+ *
+ * @author Jeremy Stone
+ */
+public class GzipTextFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSingleMember() throws IOException {
+		byte[] text = randomText(20000);
+		testGzipFile(text, gzip(text, Deflater.DEFAULT_COMPRESSION, false));
+		testGzipFile(text, gzip(text, Deflater.BEST_SPEED, false));
+	}
+
+	@Test
+	public void testMultipleMembers() throws IOException {
+		byte[] text = randomText(20000);
+		ByteArrayOutputStream members = new ByteArrayOutputStream();
+		// Members split in the middle of lines, and an empty member
+		int[] splits = { 0, 12345, 12345, 60001, 200000, text.length };
+		for (int i = 0; i + 1 < splits.length; i++) {
+			members.write(gzip(Arrays.copyOfRange(text, splits[i], splits[i + 1]), Deflater.DEFAULT_COMPRESSION, false));
+		}
+		testGzipFile(text, members.toByteArray());
+	}
+
+	@Test
+	public void testStoredBlocks() throws IOException {
+		// Stored blocks between compressed ones begin at arbitrary bit positions.
+		byte[] text = randomText(20000);
+		testGzipFile(text, gzip(text, Deflater.DEFAULT_COMPRESSION, true));
+	}
+
+	@Test
+	public void testSmallFiles() throws IOException {
+		for (String s : new String[] { "", "\n", "one line", "\ufeffa\r\nb\rc\n" }) {
+			byte[] text = s.getBytes(StandardCharsets.UTF_8);
+			testGzipFile(text, gzip(text, Deflater.DEFAULT_COMPRESSION, false));
+		}
+	}
+
+	@Test
+	public void testIndexIsReused() throws IOException {
+		byte[] text = randomText(1000);
+		File file = writeFile(folder.getRoot(), "reuse.gz", gzip(text, Deflater.DEFAULT_COMPRESSION, false));
+		List<Path> written = new ArrayList<Path>();
+		IndexOptions options = new IndexOptions();
+		options.setProgress(new IndexProgress() {
+			@Override
+			public void finished(String description, Path path) {
+				written.add(path);
+			}
+		});
+		try (GzipTextFile gzipFile = GzipTextFile.open(file.getPath(), options)) {
+			assertEquals(1001, gzipFile.getLineCount());
+		}
+		assertEquals(List.of(TextFileLineAccess.getIndexPath(file.getPath())), written);
+		Path checkpointPath = GzipTextFile.getCheckpointPath(file.getPath());
+		long modifiedTime = Files.getLastModifiedTime(checkpointPath).toMillis();
+		try (GzipTextFile gzipFile = GzipTextFile.open(file.getPath(), options)) {
+			assertEquals(1001, gzipFile.getLineCount());
+		}
+		assertEquals(modifiedTime, Files.getLastModifiedTime(checkpointPath).toMillis());
+		assertEquals(1, written.size());
+
+		// A changed file is indexed again.
+		Files.write(file.toPath(), gzip("a\nb".getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION, false));
+		assertEquals("b", TextFileLineAccess.extractLineFromFile(file.getPath(), 1));
+	}
+
+	private void testGzipFile(byte[] text, byte[] compressed) throws IOException {
+		File directory = folder.newFolder();
+		File textFile = writeFile(directory, "text.txt", text);
+		File gzipFile = writeFile(directory, "text.txt.gz", compressed);
+		IndexOptions options = new IndexOptions();
+		options.setCheckpointInterval(4096);
+
+		try (IndexedTextFile expected = IndexedTextFile.open(textFile.getPath());
+				GzipTextFile actual = GzipTextFile.open(gzipFile.getPath(), options)) {
+			assertEquals(expected.getLineCount(), actual.getLineCount());
+			for (long lineNumber = -1; lineNumber <= expected.getLineCount(); lineNumber++) {
+				assertEquals(String.format("Line %d", lineNumber), expected.getLine(lineNumber),
+						actual.getLine(lineNumber));
+			}
+
+			ByteBuffer expectedBytes = ByteBuffer.allocate(text.length);
+			ByteBuffer actualBytes = ByteBuffer.allocate(text.length);
+			for (long lineNumber = -1; lineNumber <= expected.getLineCount(); lineNumber++) {
+				expectedBytes.clear();
+				actualBytes.clear();
+				assertEquals(expected.getLine(lineNumber, expectedBytes), actual.getLine(lineNumber, actualBytes));
+				assertEquals(expectedBytes.flip(), actualBytes.flip());
+			}
+
+			Random random = new Random(text.length);
+			long[] lineNumbers = new long[500];
+			for (int i = 0; i < lineNumbers.length; i++) {
+				lineNumbers[i] = random.nextInt((int) expected.getLineCount() + 2) - 1;
+			}
+			List<String> lines = actual.getLines(lineNumbers);
+			assertEquals(expected.getLines(lineNumbers), lines);
+
+			long lastLine = expected.getLineCount() - 1;
+			assertArrayEquals(transferLines(expected, 0, lastLine), transferLines(actual, 0, lastLine));
+			assertArrayEquals(transferLines(expected, lastLine / 3, lastLine / 2),
+					transferLines(actual, lastLine / 3, lastLine / 2));
+		}
+		assertTrue(Files.exists(GzipTextFile.getCheckpointPath(gzipFile.getPath())));
+	}
+
+	private byte[] transferLines(Object file, long firstLine, long lastLine) throws IOException {
+		Path outputPath = folder.getRoot().toPath().resolve("range.txt");
+		try (FileChannel output = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			if (file instanceof GzipTextFile) {
+				((GzipTextFile) file).transferLines(firstLine, lastLine, output);
+			} else {
+				((IndexedTextFile) file).transferLines(firstLine, lastLine, output);
+			}
+		}
+		return Files.readAllBytes(outputPath);
+	}
+
+	/**
+	 * Compress text as a single gzip member.
+	 *
+	 * @param mixStored If true, switch between compressing and storing every few kilobytes
+	 */
+	private static byte[] gzip(byte[] text, int level, boolean mixStored) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff }, 0, 10);
+
+		Deflater deflater = new Deflater(level, true);
+		byte[] buffer = new byte[4096];
+		int step = mixStored ? 5000 : text.length;
+		for (int from = 0, block = 0; from < text.length; from += step, block++) {
+			if (mixStored) {
+				deflater.setLevel((block % 3 == 1) ? Deflater.NO_COMPRESSION : level);
+			}
+			deflater.setInput(text, from, Math.min(step, text.length - from));
+			int n;
+			while ((n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		deflater.end();
+
+		CRC32 crc = new CRC32();
+		crc.update(text);
+		writeInt(out, crc.getValue());
+		writeInt(out, text.length);
+		return out.toByteArray();
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, long value) {
+		for (int i = 0; i < 4; i++) {
+			out.write((int) (value >>> (8 * i)));
+		}
+	}
+
+	private static byte[] randomText(int numLines) {
+		Random random = new Random(numLines);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < numLines; i++) {
+			int length = random.nextInt(40);
+			for (int j = 0; j < length; j++) {
+				text.append((char) ('a' + random.nextInt(random.nextBoolean() ? 26 : 4)));
+			}
+			text.append((i % 7 == 0) ? "\r\n" : "\n");
+		}
+		return text.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private File writeFile(File directory, String name, byte[] bytes) throws IOException {
+		File file = new File(directory, name);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+}
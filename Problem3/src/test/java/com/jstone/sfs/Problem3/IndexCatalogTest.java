@@ -0,0 +1,209 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for IndexCatalog.
+ *
+ * @author Jeremy Stone
+ */
+public class IndexCatalogTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSharingAndEviction() throws IOException {
+		File a = TestFiles.write(folder, "a0\na1\n");
+		File b = TestFiles.write(folder, "b0\nb1\n");
+		File c = TestFiles.write(folder, "c0\nc1\n");
+		// Room for two files
+		try (IndexCatalog catalog = new IndexCatalog(4, Long.MAX_VALUE)) {
+			try (IndexCatalog.Lease first = catalog.acquire(a.getPath());
+					IndexCatalog.Lease second = catalog.acquire(a.getPath())) {
+				assertSame(first.getFile(), second.getFile());
+				assertEquals("a1", second.getFile().getLine(1));
+			}
+			try (IndexCatalog.Lease lease = catalog.acquire(b.getPath())) {
+				assertEquals("b0", lease.getFile().getLine(0));
+			}
+			// Touch a, so that b is the least recently used
+			catalog.acquire(a.getPath()).close();
+			try (IndexCatalog.Lease lease = catalog.acquire(c.getPath())) {
+				assertEquals("c1", lease.getFile().getLine(1));
+			}
+
+			IndexCatalog.Stats stats = catalog.getStats();
+			assertEquals(2, stats.getHits());
+			assertEquals(3, stats.getMisses());
+			assertEquals(1, stats.getEvictions());
+			assertEquals(2, stats.getOpenFiles());
+			assertEquals(4, stats.getOpenDescriptors());
+
+			// a is still open, b was evicted
+			catalog.acquire(a.getPath()).close();
+			assertEquals(3, catalog.getStats().getHits());
+			catalog.acquire(b.getPath()).close();
+			assertEquals(4, catalog.getStats().getMisses());
+		}
+	}
+
+	@Test
+	public void testIndexBudget() throws IOException {
+		File a = TestFiles.write(folder, "a0\na1\n");
+		File b = TestFiles.write(folder, "b0\nb1\n");
+		try (IndexCatalog catalog = new IndexCatalog(100, 1)) {
+			IndexCatalog.Lease leaseA = catalog.acquire(a.getPath());
+			// a is leased, so it stays open although it exceeds the budget
+			catalog.acquire(b.getPath()).close();
+			assertEquals(1, catalog.getStats().getOpenFiles());
+			assertEquals("a0", leaseA.getFile().getLine(0));
+			leaseA.close();
+			assertEquals(0, catalog.getStats().getOpenFiles());
+			assertEquals(0, catalog.getStats().getOpenIndexBytes());
+			assertEquals(2, catalog.getStats().getEvictions());
+		}
+	}
+
+	@Test
+	public void testChangedFile() throws IOException {
+		File file = TestFiles.write(folder, "first\n");
+		try (IndexCatalog catalog = new IndexCatalog(10, Long.MAX_VALUE)) {
+			IndexCatalog.Lease old = catalog.acquire(file.getPath());
+			assertEquals(2, old.getFile().getLineCount());
+			Files.write(file.toPath(), "second\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			try (IndexCatalog.Lease lease = catalog.acquire(file.getPath())) {
+				assertEquals(3, lease.getFile().getLineCount());
+				assertEquals("second", lease.getFile().getLine(1));
+			}
+			assertEquals(1, catalog.getStats().getInvalidations());
+			// The old instance stays usable, and its descriptors counted, until it is released.
+			assertEquals(4, catalog.getStats().getOpenDescriptors());
+			assertEquals("first", old.getFile().getLine(0));
+			old.close();
+			assertEquals(2, catalog.getStats().getOpenDescriptors());
+		}
+	}
+
+	@Test
+	public void testDescriptorCap() throws Exception {
+		File a = TestFiles.write(folder, "a\n");
+		File b = TestFiles.write(folder, "b\n");
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try (IndexCatalog catalog = new IndexCatalog(3, Long.MAX_VALUE)) {
+			IndexCatalog.Lease leaseA = catalog.acquire(a.getPath());
+			Future<String> waiting = executor.submit(() -> {
+				try (IndexCatalog.Lease lease = catalog.acquire(b.getPath())) {
+					return lease.getFile().getLine(0);
+				}
+			});
+			Thread.sleep(100);
+			assertTrue("b cannot be opened while a is leased.", !waiting.isDone());
+			leaseA.close();
+			assertEquals("b", waiting.get(10, TimeUnit.SECONDS));
+			assertEquals(2, catalog.getStats().getOpenDescriptors());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testConcurrentAcquires() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 5; i++) {
+			files.add(TestFiles.write(folder, String.format("%d\n%d\n", i, i * 10)));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try (IndexCatalog catalog = new IndexCatalog(6, Long.MAX_VALUE)) {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 8; t++) {
+				int seed = t;
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 200; i++) {
+						int n = (seed + i) % files.size();
+						try (IndexCatalog.Lease lease = catalog.acquire(files.get(n).getPath())) {
+							assertEquals(Integer.toString(n * 10), lease.getFile().getLine(1));
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			IndexCatalog.Stats stats = catalog.getStats();
+			assertEquals(1600, stats.getHits() + stats.getMisses());
+			assertTrue(stats.getOpenDescriptors() <= 6);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testConcurrentFailingOpen() throws Exception {
+		File corrupt = folder.newFile("corrupt.gz");
+		Files.write(corrupt.toPath(), "not gzip\n".getBytes(StandardCharsets.UTF_8));
+		File good = TestFiles.write(folder, "good\n");
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		IndexOptions options = new IndexOptions();
+		try (IndexCatalog catalog = new IndexCatalog(6, Long.MAX_VALUE, options)) {
+			// Hold up the failing open until the other seven threads are waiting for it.
+			options.setProgress(new IndexProgress() {
+				@Override
+				public void started(String description, Path path) {
+					long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+					while ((catalog.getStats().getHits() < 7) && (System.nanoTime() < deadline)) {
+						Thread.yield();
+					}
+				}
+			});
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(() -> {
+					try (IndexCatalog.Lease lease = catalog.acquire(corrupt.getPath())) {
+						fail("Opened " + lease.getFile());
+					} catch (IOException e) {
+						// Every thread sees the failure.
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			IndexCatalog.Stats stats = catalog.getStats();
+			assertEquals(7, stats.getHits());
+			assertEquals(0, stats.getOpenFiles());
+			assertEquals(0, stats.getOpenDescriptors());
+
+			// The descriptors were all given back, so other files can still be opened.
+			Future<String> line = executor.submit(() -> {
+				try (IndexCatalog.Lease lease = catalog.acquire(good.getPath())) {
+					return lease.getFile().getLine(0);
+				}
+			});
+			assertEquals("good", line.get(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
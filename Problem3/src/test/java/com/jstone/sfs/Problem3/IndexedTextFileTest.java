@@ -0,0 +1,414 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for IndexedTextFile.
+ *
+ * @author Jeremy Stone
+ */
+public class IndexedTextFileTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testGetLine() throws IOException {
+		File file = TestFiles.write(folder, "\ufefffirst\r\nsecond\nthird\rfourth");
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			assertEquals(4, indexedFile.getLineCount());
+			assertEquals("first", indexedFile.getLine(0));
+			assertEquals("second", indexedFile.getLine(1));
+			assertEquals("third", indexedFile.getLine(2));
+			assertEquals("fourth", indexedFile.getLine(3));
+			assertNull(indexedFile.getLine(4));
+			assertNull(indexedFile.getLine(-1));
+		}
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+		File file = TestFiles.write(folder, "");
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			assertEquals("", indexedFile.getLine(0));
+			assertNull(indexedFile.getLine(1));
+		}
+	}
+
+	@Test
+	public void testIndexProgress() throws IOException {
+		File file = TestFiles.write(folder, "a,1\nb,2\n");
+		List<String> notices = new ArrayList<String>();
+		IndexOptions options = new IndexOptions();
+		options.setProgress(new IndexProgress() {
+			@Override
+			public void started(String description, Path path) {
+				notices.add("started " + description + " " + path.getFileName());
+			}
+
+			@Override
+			public void finished(String description, Path path) {
+				notices.add("finished " + description);
+			}
+		});
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			assertEquals(1, indexedFile.findByKey(0, (byte) ',', "b", 1).size());
+		}
+		String name = file.getName();
+		assertEquals(List.of("started index " + name + ".idx", "finished index",
+				"started key index " + name + ".k0.d44.kix", "finished key index"), notices);
+	}
+
+	@Test
+	public void testExtractLineFromFile() throws IOException {
+		File file = TestFiles.write(folder, "a\nb\n");
+		assertEquals("b", TextFileLineAccess.extractLineFromFile(file.getPath(), 1));
+		// Now the index exists, and is used instead of being rebuilt.
+		assertEquals("a", TextFileLineAccess.extractLineFromFile(file.getPath(), 0));
+		assertEquals("", TextFileLineAccess.extractLineFromFile(file.getPath(), 2));
+		assertNull(TextFileLineAccess.extractLineFromFile(file.getPath(), 3));
+	}
+
+	@Test
+	public void testConcurrentLookups() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append("line ").append(i).append((i % 2 == 0) ? "\r\n" : "\n");
+		}
+		File file = TestFiles.write(folder, text.toString());
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 1000; i++) {
+				long lineNumber = (i * 7919) % 1000;
+				futures.add(executor.submit(() -> indexedFile.getLine(lineNumber)));
+			}
+			for (int i = 0; i < 1000; i++) {
+				assertEquals("line " + ((i * 7919) % 1000), futures.get(i).get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testGetLines() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append("line ").append(i).append((i % 3 == 0) ? "\r\n" : "\n");
+		}
+		File file = TestFiles.write(folder, text.toString());
+
+		Random random = new Random(5);
+		long[] lineNumbers = new long[2000];
+		for (int i = 0; i < lineNumbers.length; i++) {
+			lineNumbers[i] = random.nextInt(5100) - 50;
+		}
+		lineNumbers[1] = lineNumbers[0];
+
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			List<String> lines = indexedFile.getLines(lineNumbers);
+			assertEquals(lineNumbers.length, lines.size());
+			for (int i = 0; i < lineNumbers.length; i++) {
+				assertEquals(indexedFile.getLine(lineNumbers[i]), lines.get(i));
+			}
+			assertEquals(List.of("line 4", "line 0", "line 4999", ""), indexedFile.getLines(List.of(4L, 0L, 4999L, 5000L)));
+		}
+	}
+
+	@Test
+	public void testProgressiveIndex() throws Exception {
+		// Enough lines for the partial index to be published several times
+		int numLines = 300000;
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < numLines; i++) {
+			text.append("line ").append(i).append((i % 5 == 0) ? "\r\n" : "\n");
+		}
+		File file = TestFiles.write(folder, text.toString());
+		IndexOptions options = new IndexOptions();
+		options.setProgressive(true);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			assertEquals("line 10", indexedFile.getLine(10));
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (int i = 0; i < 1000; i++) {
+				long lineNumber = (i * 7919L * 31) % numLines;
+				futures.add(executor.submit(() -> indexedFile.getLine(lineNumber)));
+			}
+			for (int i = 0; i < 1000; i++) {
+				assertEquals("line " + ((i * 7919L * 31) % numLines), futures.get(i).get());
+			}
+			assertNull(indexedFile.getLine(numLines + 1));
+			assertEquals(numLines + 1, indexedFile.getLineCount());
+		} finally {
+			executor.shutdown();
+		}
+
+		// The finished index is the same as one built in the foreground.
+		Path expectedPath = folder.getRoot().toPath().resolve("expected.idx");
+		new LineIndexBuilder().build(file, expectedPath, -1);
+		assertArrayEquals(Files.readAllBytes(expectedPath),
+				Files.readAllBytes(TextFileLineAccess.getIndexPath(file.getPath())));
+	}
+
+	@Test
+	public void testTransferLines() throws IOException {
+		File file = TestFiles.write(folder, "\ufefffirst\r\nsecond\nthird\rfourth");
+		assertEquals("first\r\nsecond\n", transferLines(file, 0, 1));
+		assertEquals("second\nthird\r", transferLines(file, 1, 2));
+		assertEquals("third\rfourth", transferLines(file, 2, 100));
+		assertEquals("fourth", transferLines(file, 3, 3));
+		assertNull(transferLines(file, 4, 4));
+		assertNull(transferLines(file, 2, 1));
+	}
+
+	@Test
+	public void testSearch() throws IOException {
+		Random random = new Random(13);
+		StringBuilder text = new StringBuilder();
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder line = new StringBuilder();
+			int length = random.nextInt(30);
+			for (int j = 0; j < length; j++) {
+				line.append((char) ('a' + random.nextInt(26)));
+			}
+			if (i % 1000 == 999) {
+				line.append("needle\u00e9");
+			}
+			lines.add(line.toString());
+			text.append(line).append((i % 3 == 0) ? "\r\n" : "\n");
+		}
+		// The empty line after the last line break
+		lines.add("");
+		File file = TestFiles.write(folder, text.toString());
+
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			try (LineIndex index = LineIndex.open(TextFileLineAccess.getIndexPath(file.getPath()))) {
+				TrigramBlockIndex.build(file, index, TrigramBlockIndex.getPath(file.getPath()), 50, 1024, 3);
+			}
+			for (String pattern : new String[] { "needle\u00e9", "abc", "zq", "", "no such text", "\n" }) {
+				SearchResult result = indexedFile.search(pattern, Integer.MAX_VALUE);
+				List<Long> expected = new ArrayList<Long>();
+				for (int i = 0; i < lines.size(); i++) {
+					if (!pattern.contains("\n") && lines.get(i).contains(pattern)) {
+						expected.add((long) i);
+					}
+				}
+				List<Long> actual = new ArrayList<Long>();
+				for (LineMatch match : result.getMatches()) {
+					actual.add(match.getLineNumber());
+					assertEquals(lines.get((int) match.getLineNumber()), match.getLine());
+					assertEquals(indexedFile.getLineOffsets(match.getLineNumber()).getStart(),
+							match.getOffsets().getStart());
+				}
+				assertEquals(pattern, expected, actual);
+				assertEquals(101, result.getBlockCount());
+			}
+
+			// A rare string is found by reading only a few blocks.
+			SearchResult result = indexedFile.search("needle", Integer.MAX_VALUE);
+			assertEquals(5, result.getMatches().size());
+			assertTrue(result.getBlocksScanned() < 10);
+			assertEquals(2, indexedFile.search("needle", 2).getMatches().size());
+		}
+	}
+
+	@Test
+	public void testReadahead() throws IOException {
+		StringBuilder text = new StringBuilder("\ufeff");
+		List<String> expected = new ArrayList<String>();
+		Random random = new Random(18);
+		for (int i = 0; i < 3000; i++) {
+			String line = Integer.toString(i) + "x".repeat(random.nextInt(100));
+			expected.add(line);
+			text.append(line).append((i % 5 == 0) ? "\r\n" : "\n");
+		}
+		expected.add("");
+		File file = TestFiles.write(folder, text.toString());
+		IndexOptions options = new IndexOptions();
+		options.setReadahead(true);
+
+		Metrics.setEnabled(true);
+		Metrics.reset();
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			// Sequential, strided, and random access, and patterns broken part way through windows
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals(expected.get(i), indexedFile.getLine(i));
+			}
+			for (int i = 7; i < expected.size(); i += 13) {
+				assertEquals(expected.get(i), indexedFile.getLine(i));
+			}
+			for (int i = 0; i < 500; i++) {
+				int n = (i % 40 < 20) ? 100 + i : random.nextInt(expected.size() + 10) - 5;
+				assertEquals((n >= 0) && (n < expected.size()) ? expected.get(n) : null, indexedFile.getLine(n));
+			}
+			assertNull(indexedFile.getLine(expected.size()));
+		} finally {
+			Metrics.setEnabled(false);
+		}
+		assertTrue(Metrics.Counter.READAHEAD_HITS.get() > 3000);
+		assertTrue(Metrics.Counter.READAHEAD_WINDOWS.get() < 100);
+	}
+
+	@Test
+	public void testGetLineBytes() throws IOException {
+		File file = TestFiles.write(folder, "\ufefffirst\r\nsecond\nthird\r\u00e9\n");
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			for (int i = 0; i < indexedFile.getLineCount(); i++) {
+				buffer.clear();
+				int numBytes = indexedFile.getLine(i, buffer);
+				assertEquals(buffer.position(), numBytes);
+				assertEquals(indexedFile.getLine(i), new String(buffer.array(), 0, numBytes, StandardCharsets.UTF_8));
+			}
+			assertEquals(-1, indexedFile.getLine(-1, buffer));
+			assertEquals(-1, indexedFile.getLine(indexedFile.getLineCount(), buffer));
+
+			// Lines are appended from the buffer's position.
+			buffer.clear();
+			indexedFile.getLine(1, buffer);
+			indexedFile.getLine(0, buffer);
+			buffer.flip();
+			assertEquals("secondfirst", StandardCharsets.UTF_8.decode(buffer).toString());
+
+			buffer.clear().limit(3);
+			try {
+				indexedFile.getLine(1, buffer);
+				fail();
+			} catch (BufferOverflowException e) {
+				assertEquals(0, buffer.position());
+			}
+		}
+	}
+
+	@Test
+	public void testFindByKey() throws IOException {
+		StringBuilder text = new StringBuilder("\ufeff");
+		Random random = new Random(20);
+		List<String> lines = new ArrayList<String>();
+		for (int i = 0; i < 2000; i++) {
+			String line = (i % 100 == 99) ? "" : String.format("k%d\tid%d\tx", i % 700, random.nextInt(5000));
+			lines.add(line);
+			text.append(line).append((i % 3 == 0) ? "\r\n" : "\n");
+		}
+		text.append("short");
+		lines.add("short");
+		File file = TestFiles.write(folder, text.toString());
+
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath());
+				LineIndex index = LineIndex.open(TextFileLineAccess.getIndexPath(file.getPath()))) {
+			// Sort in small runs, to exercise the merge.
+			Path keyPath = KeyColumnIndex.getPath(file.getPath(), 0, KeyColumnIndex.DEFAULT_DELIMITER);
+			KeyColumnIndex.build(file, index, keyPath, 0, KeyColumnIndex.DEFAULT_DELIMITER, 37, 100);
+			for (String key : new String[] { "k0", "k1", "k699", "k700", "short", "", "id1" }) {
+				List<Long> expected = new ArrayList<Long>();
+				for (int i = 0; i < lines.size(); i++) {
+					if (!lines.get(i).isEmpty() && lines.get(i).split("\t")[0].equals(key)) {
+						expected.add((long) i);
+					}
+				}
+				List<LineMatch> matches = indexedFile.findByKey(0, KeyColumnIndex.DEFAULT_DELIMITER, key, 100);
+				List<Long> actual = new ArrayList<Long>();
+				for (LineMatch match : matches) {
+					actual.add(match.getLineNumber());
+					assertEquals(lines.get((int) match.getLineNumber()), match.getLine());
+				}
+				assertEquals(key, expected, actual);
+			}
+			assertEquals(1, indexedFile.findByKey(0, KeyColumnIndex.DEFAULT_DELIMITER, "k0", 1).size());
+
+			// Candidates are read as they are asked for.
+			try (KeyColumnIndex keys = KeyColumnIndex.open(keyPath, file, KeyColumnIndex.DEFAULT_DELIMITER)) {
+				KeyColumnIndex.Candidates candidates = keys.findCandidateLines("k1".getBytes(StandardCharsets.UTF_8));
+				assertArrayEquals(new long[] { 1 }, candidates.next(1));
+				assertArrayEquals(new long[] { 701, 1401 }, candidates.next(5));
+				assertEquals(0, candidates.next(5).length);
+			}
+
+			// A column that some lines lack, and another delimiter
+			List<LineMatch> matches = indexedFile.findByKey(2, KeyColumnIndex.DEFAULT_DELIMITER, "x", 5000);
+			assertEquals(lines.size() - 21, matches.size());
+			List<LineMatch> firstMatches = indexedFile.findByKey(2, KeyColumnIndex.DEFAULT_DELIMITER, "x", 3);
+			assertEquals(3, firstMatches.size());
+			for (int i = 0; i < 3; i++) {
+				assertEquals(matches.get(i).getLineNumber(), firstMatches.get(i).getLineNumber());
+			}
+			assertTrue(indexedFile.findByKey(1, (byte) ',', "id1", 10).isEmpty());
+		}
+	}
+
+	@Test
+	public void testFindByKeyWithDelimiters() throws IOException {
+		File file = TestFiles.write(folder, "a,b\tc\na\tc,d\nb,a\ta\n");
+		List<Path> built = new ArrayList<Path>();
+		IndexOptions options = new IndexOptions();
+		options.setProgress(new IndexProgress() {
+			@Override
+			public void started(String description, Path path) {
+				if (description.equals("key index")) {
+					built.add(path);
+				}
+			}
+
+			@Override
+			public void finished(String description, Path path) {
+			}
+		});
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			// Each delimiter has its own key index, and switching between them rebuilds neither.
+			for (int i = 0; i < 3; i++) {
+				List<LineMatch> commas = indexedFile.findByKey(0, (byte) ',', "a", 10);
+				assertEquals(1, commas.size());
+				assertEquals(0, commas.get(0).getLineNumber());
+				List<LineMatch> tabs = indexedFile.findByKey(0, (byte) '\t', "a", 10);
+				assertEquals(1, tabs.size());
+				assertEquals(1, tabs.get(0).getLineNumber());
+			}
+		}
+		assertEquals(List.of(KeyColumnIndex.getPath(file.getPath(), 0, (byte) ','),
+				KeyColumnIndex.getPath(file.getPath(), 0, (byte) '\t')), built);
+		for (Path path : built) {
+			assertTrue(Files.exists(path));
+		}
+	}
+
+	private String transferLines(File file, long firstLine, long lastLine) throws IOException {
+		Path outputPath = folder.getRoot().toPath().resolve("range.txt");
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath());
+				FileChannel output = FileChannel.open(outputPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			long numBytes = indexedFile.transferLines(firstLine, lastLine, output);
+			if (numBytes < 0) {
+				return null;
+			}
+			assertEquals(numBytes, output.size());
+		}
+		return new String(Files.readAllBytes(outputPath), StandardCharsets.UTF_8);
+	}
+}
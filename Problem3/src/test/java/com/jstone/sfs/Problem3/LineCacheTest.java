@@ -0,0 +1,67 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for LineCache.
+ *
+ * @author Jeremy Stone
+ */
+public class LineCacheTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testByteBudget() {
+		LineCache cache = new LineCache(16 * (LineCache.ENTRY_OVERHEAD + 100));
+		LineCache.FileKey key = new LineCache.FileKey("/a", 1, 1);
+		String line = String.format("%0100d", 0);
+		for (int i = 0; i < 1000; i++) {
+			cache.put(key, i, line);
+		}
+		assertTrue(cache.getSizeBytes() <= cache.getMaxBytes());
+		assertTrue(cache.getLineCount() > 0);
+		assertEquals(1000, cache.getLineCount() + cache.getEvictions());
+
+		// A line larger than a stripe's share is not cached.
+		cache.put(key, 5000, String.format("%01000d", 0));
+		assertNull(cache.get(key, 5000));
+	}
+
+	@Test
+	public void testCachedLines() throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), "\ufeffzero\r\none\ntwo\n".getBytes(StandardCharsets.UTF_8));
+		IndexOptions options = new IndexOptions();
+		LineCache cache = new LineCache(1024 * 1024);
+		options.setLineCache(cache);
+
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			assertEquals("zero", indexedFile.getLine(0));
+			assertEquals("zero", indexedFile.getLine(0));
+			assertEquals(Arrays.asList("one", "zero", "two"), indexedFile.getLines(new long[] { 1, 0, 2 }));
+			assertNull(indexedFile.getLine(10));
+		}
+		assertEquals(2, cache.getHits());
+		assertEquals(3, cache.getLineCount());
+
+		// Once the file has changed, its old lines are not returned.
+		Files.write(file.toPath(), "ZERO\n".getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(file.lastModified() + 2000);
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath(), options)) {
+			assertEquals("ZERO", indexedFile.getLine(0));
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for LineIndexBuilder.
+ * <p>
+ * The expected indexes are the ones written by the original character-by-character indexer.
+ *
+ * @author Jeremy Stone
+ */
+public class LineIndexBuilderTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLineBreaks() throws IOException {
+		testIndex("a\nb\nc\n", 2, 4, 6, 6);
+		testIndex("a\nb", 2, 3);
+		testIndex("a\r\nb", 3, 4);
+		testIndex("a\r\r", 2, 3, 3);
+		testIndex("\nabc\n", 1, 5, 5);
+		testIndex("abc", 3);
+		testIndex("");
+	}
+
+	@Test
+	public void testMultiByteCharacters() throws IOException {
+		testIndex("\u00e9t\u00e9\r\n\u65e5\u672c\n\ud83d\ude00", 7, 14, 18);
+	}
+
+	@Test
+	public void testWindowBoundaries() throws IOException {
+		// With tiny windows, CRLF pairs and the word-at-a-time scan cross window boundaries.
+		String text = "0123456789\r\nabcdefghijklmnop\rq\r\n\nxyz";
+		long[] expected = { 12, 29, 32, 33, 36 };
+		for (int windowSize = 1; windowSize <= 20; windowSize++) {
+			assertArrayEquals(String.format("Window size %d", windowSize), expected,
+					buildIndex(text, windowSize));
+		}
+	}
+
+	@Test
+	public void testRequestedLine() throws IOException {
+		File file = TestFiles.write(folder, "first\r\nsecond\nthird");
+		Path indexPath = folder.getRoot().toPath().resolve("requested.idx");
+		LineIndexBuilder builder = new LineIndexBuilder();
+
+		FileSegmentOffsets offsets = builder.build(file, indexPath, 0);
+		assertEquals(0, offsets.getStart());
+		assertEquals(7, offsets.getLength());
+
+		offsets = builder.build(file, indexPath, 2);
+		assertEquals(14, offsets.getStart());
+		assertEquals(5, offsets.getLength());
+
+		assertNull(builder.build(file, indexPath, 3));
+	}
+
+	@Test
+	public void testParallelBuildMatchesSequential() throws IOException {
+		// Line breaks are dense, so that CR, LF, and CRLF land on many chunk boundaries.
+		Random random = new Random(3);
+		char[] alphabet = { 'a', 'b', '\r', '\n' };
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append(alphabet[random.nextInt(alphabet.length)]);
+		}
+		File file = TestFiles.write(folder, text.toString());
+		Path sequentialPath = folder.getRoot().toPath().resolve("sequential.idx");
+		new LineIndexBuilder().build(file, sequentialPath, -1);
+		byte[] expected = Files.readAllBytes(sequentialPath);
+
+		for (int chunkSize = 1; chunkSize <= 64; chunkSize++) {
+			Path parallelPath = folder.getRoot().toPath().resolve("parallel.idx");
+			IndexBuildReport report = new ParallelLineIndexBuilder(4, 7, chunkSize).buildIndex(file, parallelPath);
+			assertArrayEquals(String.format("Chunk size %d", chunkSize), expected, Files.readAllBytes(parallelPath));
+			assertEquals((expected.length - IndexHeader.SIZE) / TextFileLineAccess.SIZE_OF_OFFSET,
+					report.getOffsetsWritten());
+		}
+
+		FileSegmentOffsets offsets = new ParallelLineIndexBuilder(4, 7, 16).build(file, sequentialPath, 10);
+		FileSegmentOffsets expectedOffsets = new LineIndexBuilder().build(file, sequentialPath, 10);
+		assertEquals(expectedOffsets.getStart(), offsets.getStart());
+		assertEquals(expectedOffsets.getStart() + expectedOffsets.getLength(),
+				offsets.getStart() + offsets.getLength());
+	}
+
+	@Test
+	public void testMeasureScaling() throws IOException {
+		File file = TestFiles.write(folder, "a\nb\nc\nd\ne\nf\ng\nh\n");
+		Path indexPath = Path.of(file.getPath() + ".idx");
+		Files.write(indexPath, new byte[] { 1, 2, 3 });
+
+		// 16 bytes make 2 chunks of 8 bytes, so 4 or 8 workers still use only 2 threads.
+		List<IndexBuildReport> reports = new ParallelLineIndexBuilder(8, 7, 8).measureScaling(file);
+		assertEquals(4, reports.size());
+		assertEquals(1, reports.get(0).getWorkers());
+		for (int i = 1; i < reports.size(); i++) {
+			assertEquals(2, reports.get(i).getWorkers());
+			assertEquals(9, reports.get(i).getOffsetsWritten());
+		}
+
+		// The existing index is untouched, and no temporary files are left behind.
+		assertArrayEquals(new byte[] { 1, 2, 3 }, Files.readAllBytes(indexPath));
+		assertEquals(2, folder.getRoot().list().length);
+	}
+
+	private void testIndex(String text, long... expected) throws IOException {
+		assertArrayEquals(String.format("Index of \"%s\"", text), expected,
+				buildIndex(text, LineIndexBuilder.DEFAULT_WINDOW_SIZE));
+	}
+
+	private long[] buildIndex(String text, int windowSize) throws IOException {
+		File file = TestFiles.write(folder, text);
+		Path indexPath = folder.getRoot().toPath().resolve(file.getName() + ".idx");
+		new LineIndexBuilder(windowSize).build(file, indexPath, 0);
+
+		ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+		long[] offsets = new long[(index.capacity() - IndexHeader.SIZE) / TextFileLineAccess.SIZE_OF_OFFSET];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = OffsetWriter.readOffset(index, IndexHeader.SIZE + i * TextFileLineAccess.SIZE_OF_OFFSET);
+		}
+		return offsets;
+	}
+
+	@Test
+	public void testConcurrentBuilds() throws Exception {
+		// Builds of the same index at once, as by two processes, each use their own temporary files.
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			text.append("line ").append(i).append((i % 4 == 0) ? "\r\n" : "\n");
+		}
+		File file = TestFiles.write(folder, text.toString());
+		Path indexPath = folder.getRoot().toPath().resolve(file.getName() + ".idx");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<IndexBuildReport>> futures = new ArrayList<Future<IndexBuildReport>>();
+			for (int t = 0; t < 4; t++) {
+				futures.add(executor.submit(() -> new ParallelLineIndexBuilder(4, 4096, 4096).buildIndex(file, indexPath)));
+			}
+			for (Future<IndexBuildReport> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+		assertEquals(3, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testAppend() throws IOException {
+		String[][] cases = { { "a\nb", "c\nd\n" }, { "a\r", "\nb" }, { "a\r", "b\r\n" }, { "a\n", "\n" },
+				{ "", "x\r\ny" }, { "\r\n", "\r" } };
+		for (String[] texts : cases) {
+			for (IndexEncoding encoding : IndexEncoding.values()) {
+				testAppend(texts[0], texts[1], encoding, 2);
+			}
+		}
+
+		// Enough lines to fill several sparse blocks before and after the append
+		StringBuilder before = new StringBuilder();
+		StringBuilder after = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			before.append(i).append((i % 3 == 0) ? "\r\n" : "\n");
+			after.append(i * 7).append('\r');
+		}
+		for (IndexEncoding encoding : IndexEncoding.values()) {
+			testAppend(before.toString(), after.toString(), encoding, 16);
+		}
+	}
+
+	@Test
+	public void testAppendToFixedWidthIndex() throws IOException {
+		StringBuilder records = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			records.append(String.format("%08d|record\n", i));
+		}
+		File file = TestFiles.write(folder, "header\n" + records);
+		Path indexPath = buildIndex(file, IndexEncoding.FIXED, 0);
+
+		// More records: only they are scanned, and the index stays fixed-width.
+		String more = records.substring(0, 100 * 16) + "short";
+		Files.write(file.toPath(), more.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		Metrics.setEnabled(true);
+		Metrics.reset();
+		try {
+			assertTrue(new LineIndexBuilder().append(file, indexPath));
+			assertEquals(more.length(), Metrics.Counter.INDEX_BYTES_SCANNED.get());
+		} finally {
+			Metrics.setEnabled(false);
+		}
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			assertTrue(index instanceof FixedWidthLineIndex);
+			assertEquals(2, ((FixedWidthLineIndex) index).getExceptionCount());
+		}
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+
+		// Irregular lines: the index becomes a flat one.
+		StringBuilder irregular = new StringBuilder("\n");
+		for (int i = 0; i < 100; i++) {
+			irregular.append("x".repeat(i % 5)).append('\n');
+		}
+		Files.write(file.toPath(), irregular.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		assertTrue(new LineIndexBuilder().append(file, indexPath));
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			assertTrue(index instanceof FlatLineIndex);
+		}
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+	}
+
+	@Test
+	public void testAppendLineTooLongForSparseIndex() throws IOException {
+		File file = TestFiles.write(folder, "ab\ncd\n");
+		Path indexPath = buildIndex(file, IndexEncoding.SPARSE, 4);
+		Files.write(file.toPath(), "a much longer line\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		assertFalse(new LineIndexBuilder().append(file, indexPath));
+
+		// The index is rebuilt instead.
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+	}
+
+	@Test
+	public void testUpdateIndex() throws IOException {
+		File file = TestFiles.write(folder, "one\ntwo\n");
+		Path indexPath = buildIndex(file, IndexEncoding.FLAT, 0);
+		byte[] original = Files.readAllBytes(indexPath);
+
+		// Unchanged: the index is left alone.
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		assertArrayEquals(original, Files.readAllBytes(indexPath));
+
+		// Appended: the index is extended.
+		Files.write(file.toPath(), "three\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		try (IndexedTextFile text = IndexedTextFile.open(file.getPath())) {
+			assertEquals("three", text.getLine(2));
+		}
+
+		// Rewritten: the index is rebuilt.
+		Files.write(file.toPath(), "uno\ndos\ntres\ncuatro\n".getBytes(StandardCharsets.UTF_8));
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+
+		// Truncated: the index is rebuilt.
+		Files.write(file.toPath(), "uno\n".getBytes(StandardCharsets.UTF_8));
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+	}
+
+	@Test
+	public void testUpdateIndexSeesEditsNearTheStart() throws IOException {
+		// Longer than the two ends that the fingerprint reads in full
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 4 * IndexHeader.FINGERPRINT_LENGTH; i++) {
+			text.append("line ").append(i).append('\n');
+		}
+		File file = TestFiles.write(folder, text.toString());
+		Path indexPath = buildIndex(file, IndexEncoding.FLAT, 0);
+
+		// Move a line break, keeping the length of the file.
+		text.setCharAt(6, 'x');
+		text.setCharAt(7, '\n');
+		Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+		file.setLastModified(file.lastModified() + 2000);
+		TextFileLineAccess.updateIndex(file, indexPath, new IndexOptions());
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			assertEquals(8, index.getLineOffsets(0).getLength());
+			assertEquals(8, index.getLineOffsets(1).getStart());
+			assertEquals(6, index.getLineOffsets(1).getLength());
+		}
+	}
+
+	@Test
+	public void testAppendLeavesOpenIndexAlone() throws IOException {
+		File file = TestFiles.write(folder, "one\ntwo\n");
+		Path indexPath = buildIndex(file, IndexEncoding.FLAT, 0);
+		try (LineIndex open = LineIndex.open(indexPath)) {
+			Files.write(file.toPath(), "three\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+			assertTrue(new LineIndexBuilder().append(file, indexPath));
+
+			// The index open before the append still describes the file as it was.
+			assertEquals(3, open.getLineCount());
+			assertEquals(4, open.getLineOffsets(1).getStart());
+			assertEquals(0, open.getLineOffsets(2).getLength());
+		}
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			assertEquals(4, index.getLineCount());
+		}
+		// No temporary copies are left behind.
+		assertEquals(2, folder.getRoot().list().length);
+	}
+
+	/**
+	 * Index some text, append to it, and check that the extended index matches a new one.
+	 */
+	private void testAppend(String before, String after, IndexEncoding encoding, int linesPerBlock)
+			throws IOException {
+		File file = TestFiles.write(folder, before);
+		Path indexPath = buildIndex(file, encoding, linesPerBlock);
+		Files.write(file.toPath(), after.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		String message = String.format("%s: \"%s\" + \"%s\"", encoding, before, after);
+		boolean appended = new LineIndexBuilder().append(file, indexPath);
+		if (encoding == IndexEncoding.FLAT) {
+			assertTrue(message, appended);
+		} else if (!appended) {
+			// A longer line than the sparse index has room for; rebuilt by updateIndex.
+			return;
+		}
+		assertIndexesMatch(file, indexPath, buildIndex(file, IndexEncoding.FLAT, 0));
+		if (encoding == IndexEncoding.FLAT) {
+			assertArrayEquals(message, Files.readAllBytes(buildIndex(file, IndexEncoding.FLAT, 0)),
+					Files.readAllBytes(indexPath));
+		}
+	}
+
+	private void assertIndexesMatch(File file, Path actualPath, Path expectedPath) throws IOException {
+		try (LineIndex expected = LineIndex.open(expectedPath); LineIndex actual = LineIndex.open(actualPath)) {
+			assertEquals(file.getName(), expected.getLineCount(), actual.getLineCount());
+			for (long lineNumber = 0; lineNumber < expected.getLineCount(); lineNumber++) {
+				FileSegmentOffsets expectedOffsets = expected.getLineOffsets(lineNumber);
+				FileSegmentOffsets actualOffsets = actual.getLineOffsets(lineNumber);
+				String message = String.format("%s, line %d", file.getName(), lineNumber);
+				assertEquals(message, expectedOffsets.getStart(), actualOffsets.getStart());
+				assertEquals(message, expectedOffsets.getLength(), actualOffsets.getLength());
+			}
+		}
+	}
+
+	private Path buildIndex(File file, IndexEncoding encoding, int linesPerBlock) throws IOException {
+		IndexOptions options = new IndexOptions();
+		options.setEncoding(encoding);
+		options.setDetectFixedWidth(false);
+		if (linesPerBlock > 0) {
+			options.setLinesPerBlock(linesPerBlock);
+		}
+		Path indexPath = folder.getRoot().toPath().resolve(String.format("%s.%s.idx", file.getName(), encoding));
+		TextFileLineAccess.cacheLineOffsets(file, indexPath, options);
+		return indexPath;
+	}
+}
@@ -0,0 +1,220 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for the index encodings.
+ * <p>
+ * Each encoding is checked against the flat index, which is the reference.
+ *
+ * @author Jeremy Stone
+ */
+public class LineIndexTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSparseIndex() throws IOException {
+		File file = TestFiles.write(folder, randomText(3000, 300));
+		for (int linesPerBlock : new int[] { 1, 2, 3, 7, 64, 1000, 5000 }) {
+			testEncoding(file, IndexEncoding.SPARSE, linesPerBlock);
+		}
+		testEncoding(TestFiles.write(folder, ""), IndexEncoding.SPARSE, 64);
+		testEncoding(TestFiles.write(folder, "\n"), IndexEncoding.SPARSE, 64);
+		testEncoding(TestFiles.write(folder, "no line break"), IndexEncoding.SPARSE, 64);
+	}
+
+	@Test
+	public void testSparseIndexSize() throws IOException {
+		File file = TestFiles.write(folder, randomText(20000, 100));
+		Path flatPath = buildIndex(file, IndexEncoding.FLAT, 0);
+		Path sparsePath = buildIndex(file, IndexEncoding.SPARSE, 64);
+		assertTrue("The sparse index should be at least 5 times smaller for short lines.",
+				Files.size(sparsePath) * 5 < Files.size(flatPath));
+	}
+
+	@Test
+	public void testFixedWidthIndex() throws IOException {
+		StringBuilder records = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			records.append(String.format("%08d|%-20s\r\n", i, (i % 7 == 0) ? "seven" : "other"));
+		}
+		String[] texts = { records.toString(), "header\n" + records + "short\n", records + "no line break",
+				"\n\n\n", "aaa\nbbb\nccc" };
+		for (String text : texts) {
+			File file = TestFiles.write(folder, text);
+			testEncoding(file, IndexEncoding.FIXED, 0);
+			Path fixedPath = buildIndex(file, IndexEncoding.FIXED, 0);
+			testGetLineNumber(fixedPath, text.length());
+			try (LineIndex index = LineIndex.open(fixedPath)) {
+				assertTrue(index instanceof FixedWidthLineIndex);
+			}
+			assertTrue(Files.size(fixedPath) <= IndexHeader.SIZE + 3 * 3 * Long.BYTES);
+		}
+
+		// Files with irregular lines keep the flat encoding.
+		File file = TestFiles.write(folder, randomText(3000, 300));
+		testEncoding(file, IndexEncoding.FIXED, 0);
+		try (LineIndex index = LineIndex.open(buildIndex(file, IndexEncoding.FIXED, 0))) {
+			assertTrue(index instanceof FlatLineIndex);
+		}
+	}
+
+	@Test
+	public void testResidentIndex() throws IOException {
+		String text = randomText(2000, 200);
+		File file = TestFiles.write(folder, text);
+		Path[] paths = { buildIndex(file, IndexEncoding.FLAT, 0), buildIndex(file, IndexEncoding.SPARSE, 7),
+				buildIndex(file, IndexEncoding.SPARSE, 64) };
+		for (Path path : paths) {
+			try (LineIndex expected = LineIndex.open(path); LineIndex actual = LineIndex.open(path)) {
+				actual.load();
+				for (long lineNumber = -1; lineNumber <= expected.getLineCount(); lineNumber++) {
+					FileSegmentOffsets expectedOffsets = expected.getLineOffsets(lineNumber);
+					FileSegmentOffsets actualOffsets = actual.getLineOffsets(lineNumber);
+					String message = String.format("%s, line %d", path.getFileName(), lineNumber);
+					if (expectedOffsets == null) {
+						assertNull(message, actualOffsets);
+					} else {
+						assertEquals(message, expectedOffsets.getStart(), actualOffsets.getStart());
+						assertEquals(message, expectedOffsets.getLength(), actualOffsets.getLength());
+					}
+				}
+				for (long offset = -1; offset <= text.length(); offset += 37) {
+					assertEquals(expected.getLineNumber(offset), actual.getLineNumber(offset));
+				}
+			}
+			testGetLineNumber(path, text.length());
+		}
+	}
+
+	@Test
+	public void testMappedIndexFileChunks() throws IOException {
+		Path path = buildIndex(TestFiles.write(folder, randomText(500, 50)), IndexEncoding.FLAT, 0);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			// Chunks of 16 bytes, so that many offsets straddle two chunks
+			MappedIndexFile mapped = new MappedIndexFile(channel, IndexHeader.SIZE, 16);
+			long numOffsets = (channel.size() - IndexHeader.SIZE) / TextFileLineAccess.SIZE_OF_OFFSET;
+			assertEquals(numOffsets * TextFileLineAccess.SIZE_OF_OFFSET, mapped.getLength());
+			OffsetReader reader = new OffsetReader(channel, IndexHeader.SIZE);
+			for (long i = 0; i < numOffsets; i++) {
+				assertEquals(reader.read(), mapped.readOffset(i * TextFileLineAccess.SIZE_OF_OFFSET));
+			}
+			ByteBuffer bytes = ByteBuffer.allocate((int) mapped.getLength() + Long.BYTES);
+			channel.read(bytes, IndexHeader.SIZE);
+			for (int i = 0; i < mapped.getLength(); i++) {
+				assertEquals(bytes.getLong(i), mapped.getLong(i));
+			}
+		}
+	}
+
+	@Test
+	public void testGetLineNumber() throws IOException {
+		String[] texts = { randomText(500, 40), "", "\n", "\n\n", "no line break", "a\r\nb\rc\n" };
+		for (String text : texts) {
+			File file = TestFiles.write(folder, text);
+			testGetLineNumber(buildIndex(file, IndexEncoding.FLAT, 0), text.length());
+			for (int linesPerBlock : new int[] { 1, 3, 64 }) {
+				testGetLineNumber(buildIndex(file, IndexEncoding.SPARSE, linesPerBlock), text.length());
+			}
+		}
+	}
+
+	/**
+	 * Check an index's reverse lookup of every offset, and the default binary search of
+	 * {@link LineIndex#getLineNumber(long)}, against the lines' offsets.
+	 */
+	private void testGetLineNumber(Path indexPath, long fileLength) throws IOException {
+		try (LineIndex index = LineIndex.open(indexPath)) {
+			LineIndex defaultSearch = new LineIndex() {
+				@Override
+				public long getLineCount() {
+					return index.getLineCount();
+				}
+
+				@Override
+				public boolean getLineOffsets(long lineNumber, FileSegmentOffsets result) throws IOException {
+					return index.getLineOffsets(lineNumber, result);
+				}
+
+				@Override
+				public void close() {
+				}
+			};
+
+			long lineNumber = 0;
+			for (long offset = -1; offset <= fileLength; offset++) {
+				long expected = -1;
+				if ((offset >= 0) && (offset < fileLength)) {
+					while (offset >= index.getLineOffsets(lineNumber).getStart()
+							+ index.getLineOffsets(lineNumber).getLength()) {
+						lineNumber++;
+					}
+					expected = lineNumber;
+				}
+				String message = String.format("%s, offset %d", indexPath.getFileName(), offset);
+				assertEquals(message, expected, index.getLineNumber(offset));
+				assertEquals(message, expected, defaultSearch.getLineNumber(offset));
+			}
+		}
+	}
+
+	private void testEncoding(File file, IndexEncoding encoding, int linesPerBlock) throws IOException {
+		Path flatPath = buildIndex(file, IndexEncoding.FLAT, 0);
+		Path encodedPath = buildIndex(file, encoding, linesPerBlock);
+		try (LineIndex expected = LineIndex.open(flatPath); LineIndex actual = LineIndex.open(encodedPath)) {
+			assertEquals(expected.getLineCount(), actual.getLineCount());
+			for (long lineNumber = -1; lineNumber <= expected.getLineCount(); lineNumber++) {
+				FileSegmentOffsets expectedOffsets = expected.getLineOffsets(lineNumber);
+				FileSegmentOffsets actualOffsets = actual.getLineOffsets(lineNumber);
+				if (expectedOffsets == null) {
+					assertNull(actualOffsets);
+				} else {
+					String message = String.format("%s, K=%d, line %d", encoding, linesPerBlock, lineNumber);
+					assertEquals(message, expectedOffsets.getStart(), actualOffsets.getStart());
+					assertEquals(message, expectedOffsets.getLength(), actualOffsets.getLength());
+				}
+			}
+		}
+	}
+
+	private Path buildIndex(File file, IndexEncoding encoding, int linesPerBlock) throws IOException {
+		IndexOptions options = new IndexOptions();
+		options.setEncoding(encoding);
+		options.setDetectFixedWidth(false);
+		if (linesPerBlock > 0) {
+			options.setLinesPerBlock(linesPerBlock);
+		}
+		Path indexPath = folder.getRoot().toPath().resolve(String.format("%s.%s.idx", file.getName(), encoding));
+		TextFileLineAccess.cacheLineOffsets(file, indexPath, options);
+		return indexPath;
+	}
+
+	private static String randomText(int numLines, int maxLineLength) {
+		Random random = new Random(numLines);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < numLines; i++) {
+			int length = random.nextInt(maxLineLength);
+			for (int j = 0; j < length; j++) {
+				text.append((char) ('a' + random.nextInt(26)));
+			}
+			text.append((i % 4 == 0) ? "\r\n" : "\n");
+		}
+		return text.toString();
+	}
+}
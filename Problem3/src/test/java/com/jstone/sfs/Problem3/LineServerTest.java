@@ -0,0 +1,202 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for LineServer and LineClient.
+ *
+ * @author Jeremy Stone
+ */
+public class LineServerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRequests() throws IOException {
+		File file = TestFiles.write(folder, "\ufefffirst\r\nsecond\n\u00e9\tthird\n" + "x".repeat(100000) + "\n");
+		try (IndexCatalog catalog = new IndexCatalog(8, Long.MAX_VALUE);
+				LineServer server = new LineServer(0, catalog, folder.getRoot().toPath())) {
+			server.start();
+			try (LineClient client = new LineClient(server.getPort())) {
+				client.ping();
+				assertEquals("first", client.getLine(file.getPath(), 0));
+				assertEquals("\u00e9\tthird", client.getLine(file.getPath(), 2));
+				assertEquals("x".repeat(100000), client.getLine(file.getPath(), 3));
+				assertEquals("", client.getLine(file.getPath(), 4));
+				assertNull(client.getLine(file.getPath(), 5));
+				assertNull(client.getLine(file.getPath(), -1));
+
+				assertEquals(Arrays.asList("second", null, "first"),
+						client.getLines(file.getPath(), new long[] { 1, 9, 0 }));
+
+				ByteArrayOutputStream range = new ByteArrayOutputStream();
+				assertEquals(16, client.transferLines(file.getPath(), 1, 2, Channels.newChannel(range)));
+				assertEquals("second\n\u00e9\tthird\n", new String(range.toByteArray(), StandardCharsets.UTF_8));
+				assertEquals(-1, client.transferLines(file.getPath(), 2, 9, Channels.newChannel(range)));
+
+				try {
+					client.getLine(new File(folder.getRoot(), "missing.txt").getPath(), 0);
+					fail();
+				} catch (IOException e) {
+					// The error is reported, and the connection is still usable.
+				}
+				assertEquals("second", client.getLine(file.getPath(), 1));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentClients() throws Exception {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append("line ").append(i).append('\n');
+		}
+		File file = TestFiles.write(folder, text.toString());
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try (IndexCatalog catalog = new IndexCatalog(8, Long.MAX_VALUE);
+				LineServer server = new LineServer(0, catalog, folder.getRoot().toPath())) {
+			server.start();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 8; t++) {
+				int seed = t;
+				futures.add(executor.submit(() -> {
+					Random random = new Random(seed);
+					try (LineClient client = new LineClient(server.getPort())) {
+						for (int i = 0; i < 500; i++) {
+							int lineNumber = random.nextInt(5000);
+							assertEquals("line " + lineNumber, client.getLine(file.getPath(), lineNumber));
+						}
+						assertArrayEquals(new Object[] { "line 7", "line 4999" },
+								client.getLines(file.getPath(), new long[] { 7, 4999 }).toArray());
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			assertEquals(1, catalog.getStats().getMisses());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testRoot() throws IOException {
+		File root = folder.newFolder("served");
+		File inside = new File(root, "inside.txt");
+		Files.write(inside.toPath(), "in\n".getBytes(StandardCharsets.UTF_8));
+		File outside = TestFiles.write(folder, "out\n");
+		Path link = Files.createSymbolicLink(new File(root, "link.txt").toPath(), outside.toPath());
+		try (IndexCatalog catalog = new IndexCatalog(8, Long.MAX_VALUE);
+				LineServer server = new LineServer(0, catalog, root.toPath())) {
+			server.start();
+			try (LineClient client = new LineClient(server.getPort())) {
+				assertEquals("in", client.getLine(inside.getPath(), 0));
+				for (String path : new String[] { outside.getPath(), root.getPath() + "/../" + outside.getName(),
+						link.toString(), new File(root, "missing.txt").getPath(), root.getPath(), "bad\u0000path" }) {
+					try {
+						client.getLine(path, 0);
+						fail(path);
+					} catch (IOException e) {
+						// Refused, and the connection is still usable.
+					}
+				}
+				assertEquals("in", client.getLine(inside.getPath(), 0));
+			}
+			assertEquals(1, catalog.getStats().getMisses());
+			assertTrue(!new File(outside.getPath() + ".idx").exists());
+		}
+	}
+
+	@Test
+	public void testMissingFiles() throws Exception {
+		// Many clients asking for a missing file do not use up a small catalog.
+		File file = TestFiles.write(folder, "only\n");
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try (IndexCatalog catalog = new IndexCatalog(6, Long.MAX_VALUE);
+				LineServer server = new LineServer(0, catalog, folder.getRoot().toPath())) {
+			server.start();
+			String missing = new File(folder.getRoot(), "missing.txt").getPath();
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < 16; t++) {
+				futures.add(executor.submit(() -> {
+					try (LineClient client = new LineClient(server.getPort())) {
+						for (int i = 0; i < 50; i++) {
+							try {
+								client.getLine(missing, 0);
+								fail();
+							} catch (IOException e) {
+							}
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			try (LineClient client = new LineClient(server.getPort())) {
+				assertEquals("only", client.getLine(file.getPath(), 0));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception {
+		File file = TestFiles.write(folder, "only\n");
+		try (IndexCatalog catalog = new IndexCatalog(8, Long.MAX_VALUE);
+				LineServer server = new LineServer(0, catalog, folder.getRoot().toPath(), 1)) {
+			server.start();
+			try (LineClient client = new LineClient(server.getPort())) {
+				client.ping();
+				try (LineClient refused = new LineClient(server.getPort())) {
+					refused.ping();
+					fail();
+				} catch (IOException e) {
+					// Refused while the only thread is busy
+				}
+				assertEquals("only", client.getLine(file.getPath(), 0));
+			}
+
+			// Once the connection has closed, its thread serves another.
+			for (int attempt = 0;; attempt++) {
+				try (LineClient client = new LineClient(server.getPort())) {
+					assertEquals("only", client.getLine(file.getPath(), 0));
+					break;
+				} catch (IOException e) {
+					if (attempt == 100) {
+						throw e;
+					}
+					Thread.sleep(10);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package com.jstone.sfs.Problem3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for Metrics and LatencyHistogram.
+ *
+ * @author Jeremy Stone
+ */
+public class MetricsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void disableMetrics() {
+		Metrics.setEnabled(false);
+		Metrics.reset();
+	}
+
+	@Test
+	public void testHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+		assertEquals(0, histogram.getPercentileNanos(50));
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(100, histogram.getCount());
+		assertEquals(100000, histogram.getMaxNanos());
+		assertEquals(50500.0, histogram.getMeanNanos(), 0.001);
+		// Percentiles are upper bounds, accurate to a factor of 2.
+		long p50 = histogram.getPercentileNanos(50);
+		assertTrue(p50 >= 50000 && p50 < 100000);
+		assertEquals(100000, histogram.getPercentileNanos(100));
+	}
+
+	@Test
+	public void testLineAccessIsCounted() throws IOException {
+		File file = folder.newFile("test.txt");
+		Files.write(file.toPath(), "one\ntwo\nthree\n".getBytes(StandardCharsets.UTF_8));
+
+		// Nothing is recorded while metrics are off.
+		Metrics.reset();
+		assertEquals("two", TextFileLineAccess.extractLineFromFile(file.getPath(), 1));
+		assertEquals(0, Metrics.Counter.LINES_LOOKED_UP.get());
+
+		Metrics.setEnabled(true);
+		Files.delete(TextFileLineAccess.getIndexPath(file.getPath()));
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			assertEquals("three", indexedFile.getLine(2));
+			indexedFile.getLines(new long[] { 0, 1, 5 });
+		}
+		assertEquals(1, Metrics.Counter.INDEX_REBUILT.get());
+		assertEquals(1, Metrics.Counter.INDEX_BUILDS.get());
+		assertEquals(14, Metrics.Counter.INDEX_BYTES_SCANNED.get());
+		assertEquals(4, Metrics.Counter.LINES_LOOKED_UP.get());
+		assertEquals(2, Metrics.Timer.INDEX_LOOKUP.getHistogram().getCount());
+		assertEquals(14, Metrics.Counter.BYTES_READ.get());
+
+		try (IndexedTextFile indexedFile = IndexedTextFile.open(file.getPath())) {
+			assertEquals("one", indexedFile.getLine(0));
+		}
+		assertEquals(1, Metrics.Counter.INDEX_REUSED.get());
+		assertTrue(Metrics.report().contains("index.reused: 1"));
+	}
+}
@@ -0,0 +1,31 @@
+package com.jstone.sfs.Problem3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Helpers shared by the test cases.
+ *
+ * @author Jeremy Stone
+ */
+class TestFiles {
+	private TestFiles() {
+	}
+
+	/**
+	 * Write text to a new file in a temporary folder.
+	 *
+	 * @param folder The folder
+	 * @param text   The file's contents, which are encoded as UTF-8
+	 * @return The file
+	 */
+	static File write(TemporaryFolder folder, String text) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
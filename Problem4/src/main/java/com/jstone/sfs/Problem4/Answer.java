@@ -12,15 +12,15 @@ import lombok.Setter;
 @Setter
 public class Answer {
 	private long sum;
-	private int start;
-	private int end;
+	private long start;
+	private long end;
 
 	/**
 	 * @param sum   The sum of a contiguous subsequence
 	 * @param start The index, in the larger sequence, of the subsequence's first element
 	 * @param end   The index, in the larger sequence, of the last element in the subsequence
 	 */
-	public Answer(long sum, int start, int end) {
+	public Answer(long sum, long start, long end) {
 		this.sum = sum;
 		this.start = start;
 		this.end = end;
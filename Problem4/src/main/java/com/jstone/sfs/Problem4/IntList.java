@@ -0,0 +1,74 @@
+package com.jstone.sfs.Problem4;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, stored in a primitive array, for sequences too long to hold as
+ * Integers.
+ * <p>
+ * The backing array is exposed (see {@link #getValues()}), so that algorithms can scan it directly.
+ * It may be longer than the list; only the first {@link #size()} elements belong to it. Trimming
+ * the array would need a second copy of it, which for hundreds of millions of elements is more
+ * memory than it is worth.
+ *
+ * @author Jeremy Stone
+ */
+public class IntList {
+	private static final int DEFAULT_CAPACITY = 1024;
+	// Arrays a little shorter than Integer.MAX_VALUE are the longest that every JVM can allocate.
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private int[] values;
+	private int size = 0;
+
+	public IntList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity The number of elements to allocate room for initially
+	 */
+	public IntList(int capacity) {
+		this.values = new int[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Append an element, growing the array if it is full.
+	 *
+	 * @param value The element
+	 */
+	public void add(int value) {
+		if (size == values.length) {
+			if (size == MAX_CAPACITY) {
+				throw new IllegalStateException("The list is too long for an array.");
+			}
+			values = Arrays.copyOf(values, (int) Math.min(2L * size, MAX_CAPACITY));
+		}
+		values[size++] = value;
+	}
+
+	/**
+	 * @param index The 0-based index of an element
+	 * @return The element
+	 */
+	public int get(int index) {
+		if (index >= size) {
+			throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", index, size));
+		}
+		return values[index];
+	}
+
+	/**
+	 * @return The number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The backing array, whose first {@link #size()} elements are the list
+	 */
+	public int[] getValues() {
+		return values;
+	}
+}
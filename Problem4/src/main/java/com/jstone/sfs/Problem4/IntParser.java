@@ -0,0 +1,103 @@
+package com.jstone.sfs.Problem4;
+
+import java.util.function.IntConsumer;
+
+/**
+ * Parses integers, one per line, from bytes of text, without creating an object per integer.
+ * <p>
+ * The bytes may arrive in blocks of any size: a number that is split between two blocks is
+ * finished when the second arrives. Each line should contain one integer, in decimal, with an
+ * optional sign; spaces and tabs around it, and blank lines, are ignored. Lines may end with LF or
+ * CRLF. The last line need not end with a line break, but its number is only passed on when
+ * {@link #finish} is called.
+ *
+ * @author Jeremy Stone
+ */
+public class IntParser {
+	// Larger magnitudes cannot be ints, and parsing stops before they can overflow a long.
+	private static final long MAX_MAGNITUDE = 1L << 31;
+
+	private final IntConsumer consumer;
+
+	// The number being parsed: its magnitude, sign, and number of digits so far, and whether it has
+	// ended (with a space or tab) before the end of its line
+	private long magnitude = 0;
+	private boolean negative = false;
+	private boolean hasSign = false;
+	private int numDigits = 0;
+	private boolean ended = false;
+	private long lineNumber = 1;
+
+	/**
+	 * @param consumer Receives each integer as it is parsed
+	 */
+	public IntParser(IntConsumer consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Parse a block of bytes.
+	 *
+	 * @param bytes  A buffer containing the bytes
+	 * @param from   The index of the first byte
+	 * @param length The number of bytes
+	 * @throws NumberFormatException if a line is not an integer, or the integer does not fit in an
+	 *                               int
+	 */
+	public void parse(byte[] bytes, int from, int length) {
+		for (int i = from; i < from + length; i++) {
+			byte b = bytes[i];
+			if ((b >= '0') && (b <= '9') && !ended) {
+				magnitude = magnitude * 10 + (b - '0');
+				if (magnitude > MAX_MAGNITUDE) {
+					throw new NumberFormatException(String.format("Line %d: The integer is too large.", lineNumber));
+				}
+				numDigits++;
+			} else if (b == '\n') {
+				endLine();
+			} else if ((b == ' ') || (b == '\t') || (b == '\r')) {
+				ended = (numDigits > 0) || hasSign;
+			} else if (((b == '-') || (b == '+')) && (numDigits == 0) && !hasSign && !ended) {
+				negative = (b == '-');
+				hasSign = true;
+			} else {
+				throw new NumberFormatException(String.format("Line %d: Not an integer", lineNumber));
+			}
+		}
+	}
+
+	/**
+	 * Finish the last line, at the end of the input.
+	 *
+	 * @throws NumberFormatException if the last line is not an integer
+	 */
+	public void finish() {
+		endLine();
+	}
+
+	/**
+	 * @return The number of the line being parsed (1-based)
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	private void endLine() {
+		if ((numDigits == 0) && hasSign) {
+			throw new NumberFormatException(String.format("Line %d: Not an integer", lineNumber));
+		}
+		if (numDigits > 0) {
+			long value = negative ? -magnitude : magnitude;
+			if ((value < Integer.MIN_VALUE) || (value > Integer.MAX_VALUE)) {
+				throw new NumberFormatException(String.format("Line %d: The integer is too large.", lineNumber));
+			}
+			consumer.accept((int) value);
+		}
+		magnitude = 0;
+		negative = false;
+		hasSign = false;
+		numDigits = 0;
+		ended = false;
+		lineNumber++;
+	}
+}
@@ -1,6 +1,8 @@
 package com.jstone.sfs.Problem4;
 
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Search algorithms for maximizing the sum of a contiguous subsequence of a list of integers.
@@ -24,6 +26,11 @@ import java.util.List;
  */
 
 public class MaximalSubsequenceFinder {
+	// The parallel algorithm splits the sequence into about this many chunks per thread, so that
+	// threads that finish early can take over the work of the others...
+	private static final int CHUNKS_PER_THREAD = 4;
+	// ...but never into chunks so small that the tasks cost more than the scans.
+	private static final int MIN_CHUNK_SIZE = 64 * 1024;
 
 	/**
 	 * Find the contiguous subsequence with the greatest sum, using a fast algorithm.
@@ -92,6 +99,119 @@ public class MaximalSubsequenceFinder {
 		return new Answer(maxSum, maxStart + 1, maxEnd + 1);
 	}
 
+	/**
+	 * Find the contiguous subsequence with the greatest sum, using the fast algorithm on a primitive
+	 * array.
+	 * <p>
+	 * This is the same algorithm as {@link #fastest(List)}, for sequences read with
+	 * {@link Problem4#readInts(String)}. It reads the array directly, so it creates no objects but
+	 * the answer.
+	 * 
+	 * @param values An array whose first elements are the sequence to search
+	 * @param length The length of the sequence, which may be less than the length of the array
+	 * @return An answer specifying the subsequence and its sum
+	 */
+
+	public static Answer fastest(int[] values, int length) {
+		if (length < 1) {
+			System.err.println("ERROR: 0-length sequence encountered. No nonempty subsequences exist.");
+			return null;
+		}
+
+		long sum = values[0];
+		int start = 0;
+
+		long maxSum = sum;
+		int maxStart = 0;
+		int maxEnd = 0;
+
+		for (int i = 1; i < length; i++) {
+			if (sum > 0) {
+				sum += values[i];
+			} else {
+				sum = values[i];
+				start = i;
+			}
+
+			if ((sum > maxSum) || ((sum == maxSum) && (i - start < maxEnd - maxStart))) {
+				maxStart = start;
+				maxEnd = i;
+				maxSum = sum;
+			}
+		}
+
+		// Return a result with 1-based sequence indices.
+		return new Answer(maxSum, maxStart + 1, maxEnd + 1);
+	}
+
+	/**
+	 * Find the contiguous subsequence with the greatest sum, using a parallel algorithm.
+	 * <p>
+	 * The array is split into chunks, each chunk is summarized in one scan (see
+	 * {@link SegmentSummary}), and the summaries of adjacent chunks are combined in pairs, up a tree,
+	 * into a summary of the whole sequence. The scans and combinations are tasks on the common
+	 * fork-join pool, so the work is O(N) and is spread across the available processors, with
+	 * O(log N) combinations at the end.
+	 * <p>
+	 * The answer is the same as that of {@link #fastest(int[], int)}, ties included.
+	 * 
+	 * @param values An array whose first elements are the sequence to search
+	 * @param length The length of the sequence, which may be less than the length of the array
+	 * @return An answer specifying the subsequence and its sum
+	 */
+
+	public static Answer parallel(int[] values, int length) {
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, length / (CHUNKS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism()));
+		return parallel(values, length, chunkSize);
+	}
+
+	/**
+	 * @param chunkSize The largest number of elements to scan in one task (smaller only for testing)
+	 */
+	static Answer parallel(int[] values, int length, int chunkSize) {
+		if (length < 1) {
+			System.err.println("ERROR: 0-length sequence encountered. No nonempty subsequences exist.");
+			return null;
+		}
+
+		SegmentSummary summary = ForkJoinPool.commonPool().invoke(new SummaryTask(values, 0, length, chunkSize));
+
+		// Return a result with 1-based sequence indices.
+		return new Answer(summary.bestSum, summary.bestStart + 1, summary.bestEnd + 1);
+	}
+
+	/**
+	 * Summarizes a segment, by scanning it if it is small enough, and otherwise by splitting it in
+	 * half and combining the summaries of the halves.
+	 */
+	private static class SummaryTask extends RecursiveTask<SegmentSummary> {
+		private static final long serialVersionUID = 1L;
+
+		private final int[] values;
+		private final int from;
+		private final int to;
+		private final int chunkSize;
+
+		SummaryTask(int[] values, int from, int to, int chunkSize) {
+			this.values = values;
+			this.from = from;
+			this.to = to;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected SegmentSummary compute() {
+			if (to - from <= chunkSize) {
+				return SegmentSummary.of(values, from, to);
+			}
+			int middle = from + (to - from) / 2;
+			SummaryTask left = new SummaryTask(values, from, middle, chunkSize);
+			left.fork();
+			SegmentSummary right = new SummaryTask(values, middle, to, chunkSize).compute();
+			return SegmentSummary.merge(left.join(), right);
+		}
+	}
+
 	/**
 	 * Find the contiguous subsequence with the greatest sum, using a slow brute-force algorithm.
 	 * <p>
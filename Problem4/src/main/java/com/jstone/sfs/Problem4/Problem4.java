@@ -12,8 +12,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Test application for algorithms that maximize the sum of a contiguous subsequence of a list of
@@ -31,26 +39,46 @@ import java.util.List;
  * <li>algorithm: The algorithm name to use
  * </ul>
  * <p>
- * Two algorithms are supported:
+ * Three algorithms are supported:
  * <ul>
  * <li>bruteforce
  * <li>fastest
+ * <li>parallel
  * </ul>
  * <p>
  * These are documented at {@link MaximalSubsequenceFinder}.
  * <p>
+ * In place of an algorithm, "stream" reads the integers as a stream, in constant memory, with the
+ * fast algorithm (see {@link StreamingFinder}). The input file path may then be "-" for stdin, and
+ * may be followed by "follow", to keep reading a file as it grows, like "tail -f", and by a number
+ * of seconds between reports of the answer so far, to stderr.
+ * <p>
+ * In place of an algorithm, "replay" followed by the path of a command file builds a
+ * {@link SubsequenceSegmentTree} over the integers and runs the commands against it, one per line:
+ * <ul>
+ * <li>query &lt;start&gt; &lt;end&gt;: Print the subsequence with maximum sum within the range
+ * <li>set &lt;index&gt; &lt;value&gt;: Change an integer
+ * </ul>
+ * <p>
+ * Indices are 1-based and ranges inclusive. Blank lines and lines beginning with "#" are ignored.
+ * <p>
  * The application writes the results to stdout.
  *
  * @author Jeremy Stone
  */
 public class Problem4 {
+	// The size of the blocks in which readInts reads the input file
+	private static final int READ_BUFFER_SIZE = 1024 * 1024;
+	// How often a followed file is checked for new lines
+	private static final long FOLLOW_POLL_MILLIS = 200;
+
 	public static void main(String[] args) {
 
 		// Parse the command line.
 		// TODO Replace with a proper command-line parsing library like Airline or Apache Commons CLI.
 		// TODO Show the actual java command line, and remove the hard-coded package/class.
 		if (args.length < 1) {
-			System.err.println("USAGE: java com.jstone.sfs.Problem4 <input file path> [<algorithm>]");
+			printUsage();
 			return;
 		}
 		String inputPath = args[0];
@@ -59,23 +87,75 @@ public class Problem4 {
 			algorithm = args[1];
 		}
 
-		// Read a list of integers from the input file.
-		List<Integer> list = readInput(inputPath);
-		if (list == null) {
+		if (algorithm.equals("stream")) {
+			boolean follow = false;
+			long reportInterval = 0;
+			for (int i = 2; i < args.length; i++) {
+				if (args[i].equals("follow")) {
+					follow = true;
+					continue;
+				}
+				try {
+					reportInterval = Long.parseLong(args[i]);
+				} catch (NumberFormatException e) {
+					reportInterval = -1;
+				}
+				if (reportInterval < 0) {
+					System.err.println(String.format("ERROR: Not a report interval in seconds: %s", args[i]));
+					printUsage();
+					return;
+				}
+			}
+			stream(inputPath, follow, reportInterval);
+			return;
+		}
+		if (algorithm.equals("replay")) {
+			if (args.length < 3) {
+				System.err.println("ERROR: No command file was given.");
+				return;
+			}
+			replay(inputPath, args[2]);
 			return;
 		}
 
-		// Apply the selected algorithm to find the subsequence with maximum sum.
+		// Read the integers from the input file, and apply the selected algorithm to find the
+		// subsequence with maximum sum. The fast algorithms read them into a primitive array.
 		Answer answer = null;
 		switch (algorithm) {
 		case "bruteforce":
+			List<Integer> list = readInput(inputPath);
+			if (list == null) {
+				return;
+			}
 			answer = MaximalSubsequenceFinder.bruteForce(list);
 			break;
+		case "parallel":
 		case "fastest":
 		default:
-			answer = MaximalSubsequenceFinder.fastest(list);
+			IntList values = null;
+			try {
+				values = readInts(inputPath);
+			} catch (IOException | NumberFormatException e) {
+				e.printStackTrace();
+				return;
+			}
+			if (algorithm.equals("parallel")) {
+				answer = MaximalSubsequenceFinder.parallel(values.getValues(), values.size());
+			} else {
+				answer = MaximalSubsequenceFinder.fastest(values.getValues(), values.size());
+			}
 		}
 
+		printAnswer(answer);
+	}
+
+	private static void printUsage() {
+		System.err.println("USAGE: java com.jstone.sfs.Problem4 <input file path> [<algorithm>]");
+		System.err.println("       java com.jstone.sfs.Problem4 <input file path>|- stream [follow] [<report interval in seconds>]");
+		System.err.println("       java com.jstone.sfs.Problem4 <input file path> replay <command file path>");
+	}
+
+	private static void printAnswer(Answer answer) {
 		if (answer != null) {
 			System.out.println("Maximum contiguous subsequence");
 			System.out.println(String.format("Begins at index:            %d", answer.getStart()));
@@ -87,6 +167,176 @@ public class Problem4 {
 		}
 	}
 
+	/**
+	 * Find the subsequence with maximum sum in a stream of integers, in constant memory, and print
+	 * the answer at the end of the stream.
+	 * <p>
+	 * The integers are parsed and passed to a {@link StreamingFinder} a block at a time. When
+	 * following a file, the end of the file is not the end of the stream: the file is checked for
+	 * new lines every {@value #FOLLOW_POLL_MILLIS} ms, like "tail -f", until the process is
+	 * interrupted (with Ctrl-C, for example), and the answer for the integers read so far is then
+	 * printed, after a note to stderr that it covers only those. The answer so far is also printed
+	 * to stderr at the given interval, if integers have arrived since the last report.
+	 * <p>
+	 * If the stream cannot be read, or holds something other than an integer, the error is printed
+	 * to stderr, and no answer is printed.
+	 * 
+	 * @param inputPath      The path of the input file, or "-" for stdin
+	 * @param follow         Whether to wait for the file to grow at its end
+	 * @param reportInterval The number of seconds between reports of the answer so far, or 0 for
+	 *                       none
+	 */
+	private static void stream(String inputPath, boolean follow, long reportInterval) {
+		StreamingFinder finder = new StreamingFinder();
+		IntParser parser = new IntParser(finder::add);
+		// The answer so far, for a shutdown that interrupts the stream
+		AtomicReference<Answer> latest = new AtomicReference<Answer>();
+		Thread printer = new Thread(() -> printPartialAnswer(latest.get()));
+		Runtime.getRuntime().addShutdownHook(printer);
+
+		boolean stdin = inputPath.equals("-");
+		boolean interrupted = false;
+		try (ReadableByteChannel channel = stdin ? Channels.newChannel(System.in)
+				: FileChannel.open(Paths.get(inputPath), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			long reportNanos = TimeUnit.SECONDS.toNanos(reportInterval);
+			long nextReport = System.nanoTime() + reportNanos;
+			long reportedCount = 0;
+			while (true) {
+				int numBytesRead = channel.read(buffer.clear());
+				if (numBytesRead >= 0) {
+					parser.parse(buffer.array(), 0, numBytesRead);
+					latest.set(finder.getAnswer());
+				} else if (follow && !stdin) {
+					FileChannel file = (FileChannel) channel;
+					if (file.size() < file.position()) {
+						throw new IOException("The input file was truncated.");
+					}
+					Thread.sleep(FOLLOW_POLL_MILLIS);
+				} else {
+					parser.finish();
+					break;
+				}
+				if ((reportNanos > 0) && (System.nanoTime() - nextReport >= 0)) {
+					Answer answer = finder.getAnswer();
+					if ((answer != null) && (finder.getCount() != reportedCount)) {
+						reportedCount = finder.getCount();
+						System.err.println(String.format("After %d integers: sum %d, indices %d to %d", finder.getCount(),
+								answer.getSum(), answer.getStart(), answer.getEnd()));
+					}
+					nextReport = System.nanoTime() + reportNanos;
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			System.err.println(String.format("ERROR: The stream could not be read: %s", e.getMessage()));
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			interrupted = true;
+		} finally {
+			Runtime.getRuntime().removeShutdownHook(printer);
+		}
+
+		if (interrupted) {
+			printPartialAnswer(finder.getAnswer());
+		} else {
+			printAnswer(finder.getAnswer());
+		}
+	}
+
+	/**
+	 * Print the answer for the integers read before a stream was interrupted, marked as such.
+	 */
+	private static void printPartialAnswer(Answer answer) {
+		System.err.println("The stream was interrupted: the answer covers only the integers read until then.");
+		printAnswer(answer);
+	}
+
+	/**
+	 * Build a segment tree over the integers in a file, and run the queries and updates in a command
+	 * file against it, printing the answer to each query on one line.
+	 * <p>
+	 * The times taken to build the tree and to run the commands are printed to stderr. An invalid
+	 * command stops the run with an error that gives its line number.
+	 * 
+	 * @param inputPath   The path of the input file
+	 * @param commandPath The path of the command file
+	 */
+	private static void replay(String inputPath, String commandPath) {
+		try (BufferedReader reader = new BufferedReader(new FileReader(commandPath))) {
+			IntList values = readInts(inputPath);
+			if (values.size() < 1) {
+				System.err.println("ERROR: 0-length sequence encountered. No nonempty subsequences exist.");
+				return;
+			}
+			long startTime = System.nanoTime();
+			SubsequenceSegmentTree tree = new SubsequenceSegmentTree(values.getValues(), values.size());
+			long buildTime = System.nanoTime() - startTime;
+
+			startTime = System.nanoTime();
+			int numCommands = 0;
+			int lineNumber = 0;
+			String text;
+			while ((text = reader.readLine()) != null) {
+				lineNumber++;
+				String[] words = text.strip().split("\\s+");
+				if (words[0].isEmpty() || words[0].startsWith("#")) {
+					continue;
+				}
+				try {
+					if (words[0].equals("query") && (words.length == 3)) {
+						int start = Integer.parseInt(words[1]);
+						int end = Integer.parseInt(words[2]);
+						Answer answer = tree.query(start, end);
+						System.out.println(String.format("%d %d: sum %d, indices %d to %d", start, end, answer.getSum(),
+								answer.getStart(), answer.getEnd()));
+					} else if (words[0].equals("set") && (words.length == 3)) {
+						tree.set(Integer.parseInt(words[1]), Integer.parseInt(words[2]));
+					} else {
+						System.err.println(String.format("ERROR: Line %d: Unknown command: %s", lineNumber, text));
+						return;
+					}
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					System.err.println(String.format("ERROR: Line %d: %s", lineNumber, e.getMessage()));
+					return;
+				}
+				numCommands++;
+			}
+			long replayTime = System.nanoTime() - startTime;
+			System.err.println(String.format("Built the tree over %d integers in %d ms; ran %d commands in %d ms",
+					values.size(), TimeUnit.NANOSECONDS.toMillis(buildTime), numCommands,
+					TimeUnit.NANOSECONDS.toMillis(replayTime)));
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Read a list of integers from a text file, without creating an object per integer.
+	 * <p>
+	 * The file is read through a channel in blocks of {@value #READ_BUFFER_SIZE} bytes, and parsed
+	 * by an {@link IntParser}, straight into an {@link IntList}.
+	 * 
+	 * @param path The path of the input file
+	 * @return The integers
+	 * @throws IOException           if the file cannot be read
+	 * @throws NumberFormatException if a line is not an integer, or the integer does not fit in an
+	 *                               int
+	 */
+	public static IntList readInts(String path) throws IOException {
+		IntList list = new IntList(READ_BUFFER_SIZE);
+		IntParser parser = new IntParser(list::add);
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			int numBytesRead;
+			while ((numBytesRead = channel.read(buffer.clear())) >= 0) {
+				parser.parse(buffer.array(), 0, numBytesRead);
+			}
+		}
+		parser.finish();
+		return list;
+	}
+
 	/**
 	 * Read a list of integers from a text file.
 	 * <p>
@@ -0,0 +1,160 @@
+package com.jstone.sfs.Problem4;
+
+/**
+ * What the parallel algorithm needs to know about one segment of a sequence, so that the answers
+ * for two adjacent segments can be combined into the answer for both.
+ * <p>
+ * A subsequence of the combined segment lies within the left segment, within the right one, or
+ * across the boundary, in which case it is a suffix of the left segment followed by a prefix of the
+ * right one. So each summary holds, besides its best subsequence, its total, its best nonempty
+ * prefix and its best nonempty suffix. The best prefix of the combined segment is then either the
+ * left segment's best prefix or the whole left segment followed by the right segment's best prefix,
+ * and likewise for suffixes.
+ * <p>
+ * "Best" always means the order that {@link MaximalSubsequenceFinder#fastest(java.util.List)}
+ * applies: the greatest sum, then the shortest length, then the earliest start. This is a total
+ * order on subsequences, so the best subsequence is unique, and combining summaries in any tree
+ * gives the same answer as the sequential scan. A crossing subsequence is best when its suffix and
+ * its prefix are each best (greatest sum, then shortest), since its sum and its length are the sums
+ * of theirs.
+ * <p>
+ * Indices are 0-based and inclusive.
+ *
+ * @author Jeremy Stone
+ */
+class SegmentSummary {
+	final int first;
+	final int last;
+	final long total;
+	// The best prefix, which ends at prefixEnd
+	final long prefixSum;
+	final int prefixEnd;
+	// The best suffix, which begins at suffixStart
+	final long suffixSum;
+	final int suffixStart;
+	// The best subsequence
+	final long bestSum;
+	final int bestStart;
+	final int bestEnd;
+
+	SegmentSummary(int first, int last, long total, long prefixSum, int prefixEnd, long suffixSum,
+			int suffixStart, long bestSum, int bestStart, int bestEnd) {
+		this.first = first;
+		this.last = last;
+		this.total = total;
+		this.prefixSum = prefixSum;
+		this.prefixEnd = prefixEnd;
+		this.suffixSum = suffixSum;
+		this.suffixStart = suffixStart;
+		this.bestSum = bestSum;
+		this.bestStart = bestStart;
+		this.bestEnd = bestEnd;
+	}
+
+	/**
+	 * Summarize a nonempty segment of an array, in one scan.
+	 * <p>
+	 * The best subsequence is found as in {@link MaximalSubsequenceFinder#fastest(int[], int)}. The
+	 * best prefix is the first one with the greatest running sum. The best suffix is the total less
+	 * the smallest running sum before it begins, and the last such start gives the shortest suffix.
+	 *
+	 * @param values The array
+	 * @param from   The index of the segment's first element
+	 * @param to     The index after the segment's last element
+	 * @return The summary
+	 */
+	static SegmentSummary of(int[] values, int from, int to) {
+		long running = 0;
+		long prefixSum = Long.MIN_VALUE;
+		int prefixEnd = from;
+		long minRunning = 0;
+		int suffixStart = from;
+
+		long sum = 0;
+		int start = from;
+		long bestSum = Long.MIN_VALUE;
+		int bestStart = from;
+		int bestEnd = from;
+
+		for (int i = from; i < to; i++) {
+			// A suffix beginning here has the sum (total - running).
+			if (running <= minRunning) {
+				minRunning = running;
+				suffixStart = i;
+			}
+			running += values[i];
+			if (running > prefixSum) {
+				prefixSum = running;
+				prefixEnd = i;
+			}
+
+			if ((i > from) && (sum > 0)) {
+				sum += values[i];
+			} else {
+				sum = values[i];
+				start = i;
+			}
+			if ((sum > bestSum) || ((sum == bestSum) && (i - start < bestEnd - bestStart))) {
+				bestSum = sum;
+				bestStart = start;
+				bestEnd = i;
+			}
+		}
+		return new SegmentSummary(from, to - 1, running, prefixSum, prefixEnd, running - minRunning, suffixStart,
+				bestSum, bestStart, bestEnd);
+	}
+
+	/**
+	 * Combine the summaries of two adjacent segments.
+	 *
+	 * @param left  The summary of the first segment
+	 * @param right The summary of the segment that follows it
+	 * @return The summary of both
+	 */
+	static SegmentSummary merge(SegmentSummary left, SegmentSummary right) {
+		// On equal sums, the shorter prefix or suffix is the one that stays within one segment.
+		long prefixSum = left.prefixSum;
+		int prefixEnd = left.prefixEnd;
+		if (left.total + right.prefixSum > prefixSum) {
+			prefixSum = left.total + right.prefixSum;
+			prefixEnd = right.prefixEnd;
+		}
+		long suffixSum = right.suffixSum;
+		int suffixStart = right.suffixStart;
+		if (left.suffixSum + right.total > suffixSum) {
+			suffixSum = left.suffixSum + right.total;
+			suffixStart = left.suffixStart;
+		}
+
+		long bestSum = left.bestSum;
+		int bestStart = left.bestStart;
+		int bestEnd = left.bestEnd;
+		if (isBetter(right.bestSum, right.bestStart, right.bestEnd, bestSum, bestStart, bestEnd)) {
+			bestSum = right.bestSum;
+			bestStart = right.bestStart;
+			bestEnd = right.bestEnd;
+		}
+		long crossSum = left.suffixSum + right.prefixSum;
+		if (isBetter(crossSum, left.suffixStart, right.prefixEnd, bestSum, bestStart, bestEnd)) {
+			bestSum = crossSum;
+			bestStart = left.suffixStart;
+			bestEnd = right.prefixEnd;
+		}
+		return new SegmentSummary(left.first, right.last, left.total + right.total, prefixSum, prefixEnd,
+				suffixSum, suffixStart, bestSum, bestStart, bestEnd);
+	}
+
+	/**
+	 * @return true if the first subsequence comes before the second: it has a greater sum, or the
+	 *         same sum and a shorter length, or the same sum and length and an earlier start
+	 */
+	static boolean isBetter(long sum, int start, int end, long otherSum, int otherStart, int otherEnd) {
+		if (sum != otherSum) {
+			return sum > otherSum;
+		}
+		if (end - start != otherEnd - otherStart) {
+			return end - start < otherEnd - otherStart;
+		}
+		return start < otherStart;
+	}
+}
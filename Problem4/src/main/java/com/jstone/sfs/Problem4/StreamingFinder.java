@@ -0,0 +1,63 @@
+package com.jstone.sfs.Problem4;
+
+/**
+ * The fast algorithm of {@link MaximalSubsequenceFinder#fastest(java.util.List)}, fed one element at
+ * a time, for sequences that are too long to store, or that have no end.
+ * <p>
+ * The algorithm only ever looks at the current element, so its state is a few numbers, whatever
+ * the length of the sequence. Positions are counted in longs, so the sequence may have more than
+ * Integer.MAX_VALUE elements. The answer for the elements seen so far can be read at any time, and
+ * is the answer that {@link MaximalSubsequenceFinder#fastest(java.util.List)} would give for them.
+ * <p>
+ * A finder is not safe for use by several threads at once.
+ *
+ * @author Jeremy Stone
+ */
+public class StreamingFinder {
+	private long count = 0;
+	private long sum = 0;
+	private long start = 0;
+
+	private long maxSum = 0;
+	private long maxStart = 0;
+	private long maxEnd = 0;
+
+	/**
+	 * Add the next element of the sequence.
+	 *
+	 * @param value The element
+	 */
+	public void add(int value) {
+		long i = count++;
+		if ((i > 0) && (sum > 0)) {
+			sum += value;
+		} else {
+			sum = value;
+			start = i;
+		}
+
+		if ((i == 0) || (sum > maxSum) || ((sum == maxSum) && (i - start < maxEnd - maxStart))) {
+			maxStart = start;
+			maxEnd = i;
+			maxSum = sum;
+		}
+	}
+
+	/**
+	 * @return The number of elements added
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return The answer for the elements added so far, with 1-based indices, or null if there are
+	 *         none
+	 */
+	public Answer getAnswer() {
+		if (count == 0) {
+			return null;
+		}
+		return new Answer(maxSum, maxStart + 1, maxEnd + 1);
+	}
+}
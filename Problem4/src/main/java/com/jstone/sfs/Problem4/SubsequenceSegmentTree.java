@@ -0,0 +1,277 @@
+package com.jstone.sfs.Problem4;
+
+import java.util.stream.IntStream;
+
+/**
+ * A segment tree over a sequence of integers, for repeated searches of its ranges for the
+ * contiguous subsequence with the greatest sum, while its elements change.
+ * <p>
+ * Each node of the tree holds the {@link SegmentSummary} of the range it covers: its total, its
+ * best prefix and suffix, and its best subsequence, with their positions. A query for a range
+ * combines the summaries of the O(log N) nodes that cover it, and a change to an element
+ * recomputes the O(log N) nodes above it, so both take O(log N) time, where a scan of the range
+ * would take O(N). Answers are the same as those of {@link MaximalSubsequenceFinder#fastest(int[], int)}
+ * on the range, ties included, but with indices in the whole sequence.
+ * <p>
+ * The summaries are held in primitive arrays, one per field, in heap order, rather than as an
+ * object per node. A leaf's summary is its element alone, so leaves are read from the sequence
+ * itself, and the arrays hold only the internal nodes: about 50 bytes per element, on top of the
+ * sequence. The levels of the tree are built from the bottom up, the larger ones in parallel on
+ * the common fork-join pool.
+ * <p>
+ * Indices are 1-based and inclusive, as in {@link Answer}. Queries may run concurrently with each
+ * other, but not with updates.
+ *
+ * @author Jeremy Stone
+ */
+public class SubsequenceSegmentTree {
+	// The largest sequence, so that node numbers fit in an int
+	private static final int MAX_LENGTH = 1 << 30;
+	// Levels with fewer nodes than this are built on one thread.
+	private static final int MIN_PARALLEL_NODES = 64 * 1024;
+	// The bestStart of an internal node that covers only padding past the end of the sequence
+	private static final int EMPTY = -1;
+
+	private final int[] values;
+	private final int length;
+	// The number of leaves: the least power of 2 (and at least 2) that is not less than the length.
+	// Node 1 is the root, node i has the children 2i and 2i + 1, and node (leafCount + k) is the
+	// leaf for the element at 0-based index k.
+	private final int leafCount;
+
+	// The summaries of the internal nodes, indexed by node, with 0-based positions
+	private final long[] total;
+	private final long[] prefixSum;
+	private final int[] prefixEnd;
+	private final long[] suffixSum;
+	private final int[] suffixStart;
+	private final long[] bestSum;
+	private final int[] bestStart;
+	private final int[] bestEnd;
+
+	/**
+	 * Build a tree over a sequence, in O(N) time.
+	 * <p>
+	 * The tree takes over the array: later changes to the sequence should be made with
+	 * {@link #set(int, int)}, which updates the array as well as the tree.
+	 *
+	 * @param values An array whose first elements are the sequence
+	 * @param length The length of the sequence, which may be less than the length of the array
+	 * @throws IllegalArgumentException if the sequence is empty, or longer than 2^30
+	 */
+	public SubsequenceSegmentTree(int[] values, int length) {
+		if ((length < 1) || (length > MAX_LENGTH)) {
+			throw new IllegalArgumentException(String.format("Cannot build a tree over %d elements", length));
+		}
+		this.values = values;
+		this.length = length;
+		this.leafCount = (length == 1) ? 2 : Integer.highestOneBit(length - 1) << 1;
+
+		total = new long[leafCount];
+		prefixSum = new long[leafCount];
+		prefixEnd = new int[leafCount];
+		suffixSum = new long[leafCount];
+		suffixStart = new int[leafCount];
+		bestSum = new long[leafCount];
+		bestStart = new int[leafCount];
+		bestEnd = new int[leafCount];
+
+		// The nodes of each level depend only on the level below, so each level can be built in
+		// parallel.
+		for (int levelStart = leafCount / 2; levelStart >= 1; levelStart /= 2) {
+			IntStream nodes = IntStream.range(levelStart, 2 * levelStart);
+			if (levelStart >= MIN_PARALLEL_NODES) {
+				nodes = nodes.parallel();
+			}
+			nodes.forEach(this::pull);
+		}
+	}
+
+	/**
+	 * @return The length of the sequence
+	 */
+	public int size() {
+		return length;
+	}
+
+	/**
+	 * @param index The 1-based index of an element
+	 * @return The element
+	 */
+	public int get(int index) {
+		checkIndex(index);
+		return values[index - 1];
+	}
+
+	/**
+	 * Change an element, and update the summaries that cover it, in O(log N) time.
+	 *
+	 * @param index The 1-based index of the element
+	 * @param value Its new value
+	 */
+	public void set(int index, int value) {
+		checkIndex(index);
+		values[index - 1] = value;
+		for (int node = (leafCount + index - 1) / 2; node >= 1; node /= 2) {
+			pull(node);
+		}
+	}
+
+	/**
+	 * Find the contiguous subsequence with the greatest sum within a range of the sequence, in
+	 * O(log N) time.
+	 *
+	 * @param start The 1-based index of the first element of the range
+	 * @param end   The 1-based index of the last element of the range (inclusive)
+	 * @return An answer specifying the subsequence, by its indices in the whole sequence, and its sum
+	 */
+	public Answer query(int start, int end) {
+		if ((start < 1) || (end > length) || (start > end)) {
+			throw new IndexOutOfBoundsException(
+					String.format("Range %d to %d out of bounds for length %d", start, end, length));
+		}
+
+		// Walk up from both ends of the range, collecting the nodes that cover it: those on the left in
+		// order, and those on the right in reverse order. The node numbers may exceed an int.
+		SegmentSummary left = null;
+		SegmentSummary right = null;
+		for (long lo = leafCount + start - 1L, hi = leafCount + (long) end; lo < hi; lo /= 2, hi /= 2) {
+			if ((lo & 1) == 1) {
+				SegmentSummary summary = summary((int) lo++);
+				left = (left == null) ? summary : SegmentSummary.merge(left, summary);
+			}
+			if ((hi & 1) == 1) {
+				SegmentSummary summary = summary((int) --hi);
+				right = (right == null) ? summary : SegmentSummary.merge(summary, right);
+			}
+		}
+		SegmentSummary summary = (left == null) ? right : (right == null) ? left : SegmentSummary.merge(left, right);
+
+		// Return a result with 1-based sequence indices.
+		return new Answer(summary.bestSum, summary.bestStart + 1, summary.bestEnd + 1);
+	}
+
+	private void checkIndex(int index) {
+		if ((index < 1) || (index > length)) {
+			throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for length %d", index, length));
+		}
+	}
+
+	/**
+	 * Recompute the summary of an internal node from those of its children, by the rules of
+	 * {@link SegmentSummary#merge}.
+	 */
+	private void pull(int node) {
+		int left = 2 * node;
+		int right = left + 1;
+		if (isEmpty(left)) {
+			bestStart[node] = EMPTY;
+			return;
+		}
+		if (isEmpty(right)) {
+			total[node] = total(left);
+			prefixSum[node] = prefixSum(left);
+			prefixEnd[node] = prefixEnd(left);
+			suffixSum[node] = suffixSum(left);
+			suffixStart[node] = suffixStart(left);
+			bestSum[node] = bestSum(left);
+			bestStart[node] = bestStart(left);
+			bestEnd[node] = bestEnd(left);
+			return;
+		}
+
+		long leftTotal = total(left);
+		long rightTotal = total(right);
+		total[node] = leftTotal + rightTotal;
+
+		// On equal sums, the shorter prefix or suffix is the one that stays within one child.
+		long rightPrefixSum = prefixSum(right);
+		if (leftTotal + rightPrefixSum > prefixSum(left)) {
+			prefixSum[node] = leftTotal + rightPrefixSum;
+			prefixEnd[node] = prefixEnd(right);
+		} else {
+			prefixSum[node] = prefixSum(left);
+			prefixEnd[node] = prefixEnd(left);
+		}
+		long leftSuffixSum = suffixSum(left);
+		if (leftSuffixSum + rightTotal > suffixSum(right)) {
+			suffixSum[node] = leftSuffixSum + rightTotal;
+			suffixStart[node] = suffixStart(left);
+		} else {
+			suffixSum[node] = suffixSum(right);
+			suffixStart[node] = suffixStart(right);
+		}
+
+		long sum = bestSum(left);
+		int start = bestStart(left);
+		int end = bestEnd(left);
+		if (SegmentSummary.isBetter(bestSum(right), bestStart(right), bestEnd(right), sum, start, end)) {
+			sum = bestSum(right);
+			start = bestStart(right);
+			end = bestEnd(right);
+		}
+		long crossSum = leftSuffixSum + rightPrefixSum;
+		if (SegmentSummary.isBetter(crossSum, suffixStart(left), prefixEnd(right), sum, start, end)) {
+			sum = crossSum;
+			start = suffixStart(left);
+			end = prefixEnd(right);
+		}
+		bestSum[node] = sum;
+		bestStart[node] = start;
+		bestEnd[node] = end;
+	}
+
+	/**
+	 * @return The summary of a node that covers part of the sequence
+	 */
+	private SegmentSummary summary(int node) {
+		// The node's range begins where its leftmost leaf is.
+		int depth = Integer.numberOfLeadingZeros(node) - Integer.numberOfLeadingZeros(leafCount);
+		int first = (node << depth) - leafCount;
+		int last = Math.min(first + (1 << depth), length) - 1;
+		return new SegmentSummary(first, last, total(node), prefixSum(node), prefixEnd(node), suffixSum(node),
+				suffixStart(node), bestSum(node), bestStart(node), bestEnd(node));
+	}
+
+	// The fields of a node's summary. A leaf's summary is its element alone.
+
+	private boolean isLeaf(int node) {
+		return node >= leafCount;
+	}
+
+	private boolean isEmpty(int node) {
+		return isLeaf(node) ? (node - leafCount >= length) : (bestStart[node] == EMPTY);
+	}
+
+	private long total(int node) {
+		return isLeaf(node) ? values[node - leafCount] : total[node];
+	}
+
+	private long prefixSum(int node) {
+		return isLeaf(node) ? values[node - leafCount] : prefixSum[node];
+	}
+
+	private int prefixEnd(int node) {
+		return isLeaf(node) ? node - leafCount : prefixEnd[node];
+	}
+
+	private long suffixSum(int node) {
+		return isLeaf(node) ? values[node - leafCount] : suffixSum[node];
+	}
+
+	private int suffixStart(int node) {
+		return isLeaf(node) ? node - leafCount : suffixStart[node];
+	}
+
+	private long bestSum(int node) {
+		return isLeaf(node) ? values[node - leafCount] : bestSum[node];
+	}
+
+	private int bestStart(int node) {
+		return isLeaf(node) ? node - leafCount : bestStart[node];
+	}
+
+	private int bestEnd(int node) {
+		return isLeaf(node) ? node - leafCount : bestEnd[node];
+	}
+}
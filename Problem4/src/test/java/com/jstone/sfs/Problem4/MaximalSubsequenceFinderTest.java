@@ -3,8 +3,12 @@
  */
 package com.jstone.sfs.Problem4;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -29,12 +33,78 @@ public class MaximalSubsequenceFinderTest {
 		testAlgorithm("fastest", List.of(1, 2, -20, 2, 4, 1, -10, 3, 6, -10, 2, 7), new Answer(9, 8, 9));
 	}
 
+	@Test
+	public void testPrimitiveFastestAlgorithm() {
+		testAlgorithm("fastest-primitive", List.of(), null);
+		testAlgorithm("fastest-primitive", List.of(1, 2, 3), new Answer(6, 1, 3));
+		testAlgorithm("fastest-primitive", List.of(1, 2, -20, 2, 4, 1, -10, 3, 6, -10, 2, 7), new Answer(9, 8, 9));
+		// Elements past the given length are ignored.
+		Answer answer = MaximalSubsequenceFinder.fastest(new int[] { -1, 2, -5, 100 }, 3);
+		assertTrue((answer.getSum() == 2) && (answer.getStart() == 2) && (answer.getEnd() == 2));
+	}
+
+	@Test
+	public void testParallelAlgorithm() {
+		testAlgorithm("parallel", List.of(), null);
+		testAlgorithm("parallel", List.of(1, 2, 3), new Answer(6, 1, 3));
+		testAlgorithm("parallel", List.of(1, 2, -20, 2, 4, 1, -10, 3, 6, -10, 2, 7), new Answer(9, 8, 9));
+
+		// Compare with the sequential algorithm on random sequences, with small values so that there
+		// are many ties, and with small chunks so that many summaries are combined.
+		Random random = new Random(23);
+		for (int trial = 0; trial < 2000; trial++) {
+			int[] values = new int[1 + random.nextInt(200)];
+			int range = 1 + random.nextInt(6);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = random.nextInt(2 * range + 1) - range;
+			}
+			Answer expected = MaximalSubsequenceFinder.fastest(values, values.length);
+			Answer actual = MaximalSubsequenceFinder.parallel(values, values.length, 1 + random.nextInt(16));
+			assertEquals(Arrays.toString(values), List.of(expected.getSum(), expected.getStart(), expected.getEnd()),
+					List.of(actual.getSum(), actual.getStart(), actual.getEnd()));
+		}
+	}
+
+	@Test
+	public void testStreamingAlgorithm() {
+		testAlgorithm("streaming", List.of(), null);
+		testAlgorithm("streaming", List.of(1, 2, 3), new Answer(6, 1, 3));
+		testAlgorithm("streaming", List.of(1, 2, -20, 2, 4, 1, -10, 3, 6, -10, 2, 7), new Answer(9, 8, 9));
+
+		// The answer so far matches the sequential algorithm on every prefix.
+		Random random = new Random(24);
+		int[] values = new int[500];
+		StreamingFinder finder = new StreamingFinder();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(9) - 4;
+			finder.add(values[i]);
+			Answer expected = MaximalSubsequenceFinder.fastest(values, i + 1);
+			Answer actual = finder.getAnswer();
+			assertEquals(List.of(expected.getSum(), expected.getStart(), expected.getEnd()),
+					List.of(actual.getSum(), actual.getStart(), actual.getEnd()));
+		}
+		assertEquals(values.length, finder.getCount());
+	}
+
 	private void testAlgorithm(String algorithmName, List<Integer> list, Answer expectedAnswer) {
 		Answer answer = null;
 		switch (algorithmName) {
 		case "bruteforce":
 			answer = MaximalSubsequenceFinder.bruteForce(list);
 			break;
+		case "fastest-primitive":
+			IntList values = new IntList(1);
+			list.forEach(values::add);
+			answer = MaximalSubsequenceFinder.fastest(values.getValues(), values.size());
+			break;
+		case "parallel":
+			answer = MaximalSubsequenceFinder.parallel(list.stream().mapToInt(Integer::intValue).toArray(), list.size(), 2);
+			break;
+		case "streaming":
+			StreamingFinder finder = new StreamingFinder();
+			list.forEach(finder::add);
+			answer = finder.getAnswer();
+			break;
 		case "fastest":
 		default:
 			answer = MaximalSubsequenceFinder.fastest(list);
@@ -0,0 +1,108 @@
+package com.jstone.sfs.Problem4;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for Problem4's input parsing and command line.
+ *
+ * @author Jeremy Stone
+ */
+public class Problem4Test {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadInts() throws IOException {
+		IntList list = Problem4.readInts(writeFile("1\n-2\r\n\n  +3 \t\n2147483647\n-2147483648\n0").getPath());
+		assertArrayEquals(new int[] { 1, -2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE, 0 },
+				Arrays.copyOf(list.getValues(), list.size()));
+		assertEquals(0, Problem4.readInts(writeFile("").getPath()).size());
+
+		for (String text : new String[] { "1 2\n", "-\n", "2147483648\n", "12a\n", "99999999999999999999\n", "--1" }) {
+			try {
+				Problem4.readInts(writeFile(text).getPath());
+				fail(text);
+			} catch (NumberFormatException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testReadIntsAcrossBuffers() throws IOException {
+		// Enough numbers to span several reads, so that some are split between them
+		Random random = new Random(22);
+		int[] expected = new int[400000];
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = random.nextInt();
+			text.append(expected[i]).append((i % 2 == 0) ? "\n" : "\r\n");
+		}
+		IntList list = Problem4.readInts(writeFile(text.toString()).getPath());
+		assertArrayEquals(expected, Arrays.copyOf(list.getValues(), list.size()));
+	}
+
+	@Test
+	public void testStreamErrors() throws IOException {
+		String good = writeFile("1\n-5\n4\n").getPath();
+		assertTrue(run(good, "stream")[0].contains("Sum:                        4"));
+
+		// A bad report interval gives the usage, and no answer.
+		for (String interval : new String[] { "fllow", "-1" }) {
+			String[] output = run(good, "stream", interval);
+			assertEquals("", output[0]);
+			assertTrue(output[1], output[1].contains("USAGE:"));
+		}
+
+		// So does a stream that fails part of the way through.
+		String[] output = run(writeFile("1\n2\nx\n3\n").getPath(), "stream");
+		assertEquals("", output[0]);
+		assertTrue(output[1], output[1].startsWith("ERROR: The stream could not be read: Line 3"));
+		output = run(new File(folder.getRoot(), "missing.txt").getPath(), "stream");
+		assertEquals("", output[0]);
+		assertTrue(output[1], output[1].startsWith("ERROR:"));
+	}
+
+	/**
+	 * Run the application.
+	 *
+	 * @return What it printed to stdout and to stderr
+	 */
+	private String[] run(String... args) {
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		ByteArrayOutputStream outBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream errBytes = new ByteArrayOutputStream();
+		try {
+			System.setOut(new PrintStream(outBytes, true, StandardCharsets.UTF_8));
+			System.setErr(new PrintStream(errBytes, true, StandardCharsets.UTF_8));
+			Problem4.main(args);
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+		return new String[] { outBytes.toString(StandardCharsets.UTF_8), errBytes.toString(StandardCharsets.UTF_8) };
+	}
+
+	private File writeFile(String text) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+}
@@ -0,0 +1,91 @@
+package com.jstone.sfs.Problem4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test cases for SubsequenceSegmentTree.
+ *
+ * @author Jeremy Stone
+ */
+public class SubsequenceSegmentTreeTest {
+	@Test
+	public void testQuery() {
+		int[] values = { 1, 2, -20, 2, 4, 1, -10, 3, 6, -10, 2, 7 };
+		SubsequenceSegmentTree tree = new SubsequenceSegmentTree(values, values.length);
+		assertAnswer(new Answer(9, 8, 9), tree.query(1, 12));
+		assertAnswer(new Answer(7, 4, 6), tree.query(1, 7));
+		assertAnswer(new Answer(-10, 7, 7), tree.query(7, 7));
+		assertAnswer(new Answer(9, 11, 12), tree.query(10, 12));
+
+		tree.set(10, -1);
+		assertEquals(-1, tree.get(10));
+		assertAnswer(new Answer(17, 8, 12), tree.query(1, 12));
+
+		try {
+			tree.query(0, 12);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+		try {
+			tree.set(13, 0);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	@Test
+	public void testRandomQueriesAndUpdates() {
+		// Compare with the sequential algorithm on random ranges, after random updates, with small
+		// values so that there are many ties.
+		Random random = new Random(25);
+		for (int trial = 0; trial < 200; trial++) {
+			int[] values = new int[1 + random.nextInt(100)];
+			int range = 1 + random.nextInt(6);
+			for (int i = 0; i < values.length; i++) {
+				values[i] = random.nextInt(2 * range + 1) - range;
+			}
+			int[] copy = values.clone();
+			SubsequenceSegmentTree tree = new SubsequenceSegmentTree(values, values.length);
+
+			for (int step = 0; step < 50; step++) {
+				int index = 1 + random.nextInt(values.length);
+				int value = random.nextInt(2 * range + 1) - range;
+				tree.set(index, value);
+				copy[index - 1] = value;
+
+				int start = 1 + random.nextInt(values.length);
+				int end = start + random.nextInt(values.length - start + 1);
+				Answer expected = MaximalSubsequenceFinder.fastest(Arrays.copyOfRange(copy, start - 1, end), end - start + 1);
+				expected = new Answer(expected.getSum(), expected.getStart() + start - 1, expected.getEnd() + start - 1);
+				assertAnswer(expected, tree.query(start, end));
+			}
+		}
+	}
+
+	@Test
+	public void testParallelBuild() {
+		// Long enough for the lower levels to be built in parallel
+		Random random = new Random(26);
+		int[] values = new int[300001];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = random.nextInt(2001) - 1000;
+		}
+		SubsequenceSegmentTree tree = new SubsequenceSegmentTree(values, values.length);
+		assertAnswer(MaximalSubsequenceFinder.fastest(values, values.length), tree.query(1, values.length));
+		Answer expected = MaximalSubsequenceFinder.fastest(Arrays.copyOfRange(values, 1000, 200000), 199000);
+		assertAnswer(new Answer(expected.getSum(), expected.getStart() + 1000, expected.getEnd() + 1000),
+				tree.query(1001, 200000));
+	}
+
+	private void assertAnswer(Answer expected, Answer actual) {
+		assertEquals(List.of(expected.getSum(), expected.getStart(), expected.getEnd()),
+				List.of(actual.getSum(), actual.getStart(), actual.getEnd()));
+	}
+}